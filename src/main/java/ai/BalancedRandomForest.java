@@ -43,6 +43,7 @@ package ai;
  */
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.Random;
@@ -240,6 +241,28 @@ public class BalancedRandomForest extends AbstractClassifier implements Randomiz
 			indexSample[ (int) data.get(i).classValue() ].add( i );
 		}
 		
+		// If the instances are weighted (e.g. collapsed duplicated samples),
+		// the samples of each class are drawn with probability proportional
+		// to their weight, so no weighted copy of the data is needed
+		double[][] cumulativeWeights = null;
+		for(int i = 0 ; i < numInstances; i++)
+			if( data.get(i).weight() != 1.0 )
+			{
+				cumulativeWeights = new double[ numClasses ][];
+				break;
+			}
+		if( null != cumulativeWeights )
+			for(int i = 0; i < numClasses; i++)
+			{
+				cumulativeWeights[i] = new double[ indexSample[i].size() ];
+				double sum = 0;
+				for(int j = 0; j < indexSample[i].size(); j++)
+				{
+					sum += data.get( indexSample[i].get( j ) ).weight();
+					cumulativeWeights[i][j] = sum;
+				}
+			}
+
 		final Random random = new Random(seed);
 		
 		// Executor service to run concurrent trees
@@ -263,7 +286,9 @@ public class BalancedRandomForest extends AbstractClassifier implements Randomiz
 					// Select first the class
 					final int randomClass = random.nextInt( numClasses );
 					// Select then a random sample of that class
-					final int randomSample = random.nextInt( indexSample[randomClass].size() );
+					final int randomSample = null == cumulativeWeights ?
+							random.nextInt( indexSample[randomClass].size() ) :
+							weightedSample( cumulativeWeights[randomClass], random );
 					bagIndices.add( indexSample[ randomClass ].get( randomSample ) );
 					inBag[ i ][ indexSample[ randomClass ].get( randomSample ) ] = true;
 				}
@@ -331,6 +356,25 @@ public class BalancedRandomForest extends AbstractClassifier implements Randomiz
 		
 	}
 
+	/**
+	 * Draw a random index with probability proportional to its weight.
+	 *
+	 * @param cumulativeWeights cumulative sum of the weights
+	 * @param random random number generator
+	 * @return index of the selected sample
+	 */
+	private static int weightedSample(
+			final double[] cumulativeWeights,
+			final Random random )
+	{
+		final double r = random.nextDouble()
+				* cumulativeWeights[ cumulativeWeights.length - 1 ];
+		int index = Arrays.binarySearch( cumulativeWeights, r );
+		if( index < 0 )
+			index = -index - 1;
+		return Math.min( index, cumulativeWeights.length - 1 );
+	}
+
 	/**
 	 * Calculates the class membership probabilities for the given test
 	 * instance.
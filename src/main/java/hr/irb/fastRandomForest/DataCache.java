@@ -42,7 +42,8 @@
 
 package hr.irb.fastRandomForest;
 
-import java.util.Arrays;
+import java.io.File;
+import java.io.IOException;
 import java.util.Random;
 
 import weka.core.Instances;
@@ -55,12 +56,16 @@ import weka.core.Instances;
  * Also stores the sorted order of the instances by any attribute, can create
  * bootstrap samples, and seed a random number generator from the stored data.
  * 
+ * The values and the sorted orders are normally kept in the heap, but can
+ * also be memory-mapped from scratch files (see DataCache(Instances, File)),
+ * which allows training on datasets larger than the available memory.
+ * 
  * @author Fran Supek (fran.supek[AT]irb.hr)
  */
 public class DataCache {
 
   /** The dataset, first indexed by attribute, then by instance. */
-  protected final float[][] vals;
+  protected final FloatColumns vals;
 
   /**
    * Attribute description - holds a 0 for numeric attributes, and the number
@@ -84,7 +89,7 @@ public class DataCache {
   protected final int[] instClassValues;
 
   /** Ordering of instances, indexed by attribute, then by instance. */ 
-  protected int[][] sortedIndices;
+  protected IntColumns sortedIndices;
   
   /** Weights of instances. */
   protected double[] instWeights;
@@ -103,19 +108,70 @@ public class DataCache {
    */
   protected Random reusableRandomGenerator = null;
 
+  /**
+   * Directory for the scratch files of memory-mapped sorted indices, or null
+   * if the data is kept in the heap.
+   */
+  protected File scratchDirectory = null;
+
+  /**
+   * Used in training of FastRandomTrees when the sorted indices are
+   * memory-mapped; holds the part of a column being processed.
+   */
+  protected int[] columnBuffer = null;
+
+  /**
+   * Scratch file of the per-tree sorted orders of the current thread (see
+   * createMappedInBagSortedIndices()). It is reused by the next tree the
+   * thread trains, so the trees trained in parallel take one scratch file
+   * per thread instead of one per tree, and the disk space is released
+   * when the threads end.
+   */
+  private static final ThreadLocal<InBagScratch> inBagScratch =
+          new ThreadLocal<InBagScratch>();
+
+  /** Scratch file of per-tree sorted orders, and the data it fits. */
+  private static final class InBagScratch {
+
+    final IntColumns columns;
+    final int classIndex;
+    final File directory;
+
+    InBagScratch( IntColumns columns, int classIndex, File directory ) {
+      this.columns = columns;
+      this.classIndex = classIndex;
+      this.directory = directory;
+    }
+
+    /** Can it hold numInBag sorted orders of the given data? */
+    boolean fits( DataCache data ) {
+      return columns.numColumns() == data.numAttributes
+              && columns.length() >= data.numInBag
+              && classIndex == data.classIndex
+              && directory.equals( data.scratchDirectory );
+    }
+
+  }
+
 
   /** Randomizes one attribute in the vals[][]; returns a copy of the vals[] 
    * before randomization. */
   public float[] scrambleOneAttribute( int attIndex, Random random ) {
-    float[] toReturn = Arrays.copyOf( vals[attIndex], vals[attIndex].length );
-    for ( int i=0; i < vals[attIndex].length; i++ ) {
-      int swapWith = random.nextInt(vals[attIndex].length);
-      float temp = vals[attIndex][i];
-      vals[attIndex][i] = vals[attIndex][swapWith];
-      vals[attIndex][swapWith] = temp;
+    float[] toReturn = vals.toArray( attIndex ).clone();
+    for ( int i=0; i < numInstances; i++ ) {
+      int swapWith = random.nextInt(numInstances);
+      float temp = vals.get(attIndex, i);
+      vals.set(attIndex, i, vals.get(attIndex, swapWith));
+      vals.set(attIndex, swapWith, temp);
     }
     return toReturn;
   }
+
+
+  /** Restores an attribute scrambled by scrambleOneAttribute(). */
+  public void restoreAttribute( int attIndex, float[] unscrambled ) {
+    vals.put( attIndex, 0, unscrambled, 0, numInstances );
+  }
   
   
   /**
@@ -128,26 +184,19 @@ public class DataCache {
     numClasses = origData.numClasses();
     numInstances = origData.numInstances();
 
-    attNumVals = new int[origData.numAttributes()];
-    for (int i = 0; i < attNumVals.length; i++) {
-      if (origData.attribute(i).isNumeric()) {
-        attNumVals[i] = 0;
-      } else if (origData.attribute(i).isNominal()) {
-        attNumVals[i] = origData.attribute(i).numValues();
-      } else
-        throw new Exception("Only numeric and nominal attributes are supported.");
-    }
+    attNumVals = getAttNumVals(origData);
 
     /* Array is indexed by attribute first, to speed access in RF splitting. */
-    vals = new float[numAttributes][numInstances];
+    float[][] values = new float[numAttributes][numInstances];
     for (int a = 0; a < numAttributes; a++) {
       for (int i = 0; i < numInstances; i++) {
         if (origData.instance(i).isMissing(a))
-          vals[a][i] = Float.MAX_VALUE;  // to make sure missing values go to the end
+          values[a][i] = Float.MAX_VALUE;  // to make sure missing values go to the end
         else
-          vals[a][i] = (float) origData.instance(i).value(a);  // deep copy
+          values[a][i] = (float) origData.instance(i).value(a);  // deep copy
       }
     }
+    vals = new FloatColumns(values);
 
     instWeights = new double[numInstances];
     instClassValues = new int[numInstances];
@@ -157,8 +206,162 @@ public class DataCache {
     }
 
     /* compute the sortedInstances for the whole dataset */
-    
-    sortedIndices = new int[numAttributes][];
+    createSortedIndices();
+
+    // System.out.println(" Done.");
+
+  }
+
+
+
+  /**
+   * Creates a memory-mapped DataCache by copying data from a
+   * weka.core.Instances object straight into scratch files created in the
+   * given directory. The values are copied one attribute at a time, so the
+   * heap only holds a single column besides the class values and weights.
+   *
+   * @param origData the dataset
+   * @param scratchDirectory directory for the scratch files
+   * @throws Exception if the attributes are not supported or the scratch
+   * files could not be created
+   */
+  public DataCache(Instances origData, File scratchDirectory) throws Exception {
+
+    classIndex = origData.classIndex();
+    numAttributes = origData.numAttributes();
+    numClasses = origData.numClasses();
+    numInstances = origData.numInstances();
+
+    attNumVals = getAttNumVals(origData);
+
+    vals = new FloatColumns(numAttributes, numInstances, classIndex,
+            scratchDirectory);
+    float[] column = new float[numInstances];
+    for (int a = 0; a < numAttributes; a++) {
+      if (a == classIndex)
+        continue;
+      for (int i = 0; i < numInstances; i++) {
+        if (origData.instance(i).isMissing(a))
+          column[i] = Float.MAX_VALUE;  // to make sure missing values go to the end
+        else
+          column[i] = (float) origData.instance(i).value(a);
+      }
+      vals.put(a, 0, column, 0, numInstances);
+    }
+
+    instWeights = new double[numInstances];
+    instClassValues = new int[numInstances];
+    for (int i = 0; i < numInstances; i++) {
+      instWeights[i] = origData.instance(i).weight();
+      instClassValues[i] = (int) origData.instance(i).classValue();
+    }
+
+    this.scratchDirectory = scratchDirectory;
+    createMappedSortedIndices();
+
+  }
+
+
+
+  /**
+   * Returns the number of values of each attribute of a dataset: 0 for
+   * numeric attributes, number of categories for nominal attributes.
+   */
+  private static int[] getAttNumVals(Instances data) throws Exception {
+
+    int[] attNumVals = new int[data.numAttributes()];
+    for (int i = 0; i < attNumVals.length; i++) {
+      if (data.attribute(i).isNumeric()) {
+        attNumVals[i] = 0;
+      } else if (data.attribute(i).isNominal()) {
+        attNumVals[i] = data.attribute(i).numValues();
+      } else
+        throw new Exception("Only numeric and nominal attributes are supported.");
+    }
+    return attNumVals;
+
+  }
+
+  
+  
+  /**
+   * Creates a DataCache directly from the attribute columns, without going
+   * through a weka.core.Instances object. The arrays are used as they are
+   * (not copied), and missing values must already be coded as
+   * Float.MAX_VALUE.
+   *
+   * @param vals the dataset, first indexed by attribute, then by instance
+   * (the column of the class attribute is ignored and may be null)
+   * @param attNumVals 0 for numeric attributes, number of categories for
+   * nominal attributes
+   * @param classIndex index of the class attribute
+   * @param numClasses number of classes
+   * @param instClassValues class of each instance
+   * @param instWeights weight of each instance
+   */
+  public DataCache(float[][] vals, int[] attNumVals, int classIndex,
+                   int numClasses, int[] instClassValues,
+                   double[] instWeights) {
+
+    this.classIndex = classIndex;
+    this.numAttributes = attNumVals.length;
+    this.numClasses = numClasses;
+    this.numInstances = instClassValues.length;
+
+    this.attNumVals = attNumVals;
+    this.vals = new FloatColumns(vals);
+    this.instClassValues = instClassValues;
+    this.instWeights = instWeights;
+
+    createSortedIndices();
+
+  }
+
+
+
+  /**
+   * Creates a DataCache from memory-mapped attribute columns, for datasets
+   * that do not fit in the heap. The sorted orders are memory-mapped as well,
+   * in scratch files created in the given directory, as are the per-tree
+   * sorted orders created during training.
+   *
+   * @param vals the memory-mapped dataset (missing values coded as
+   * Float.MAX_VALUE; the column of the class attribute is ignored)
+   * @param attNumVals 0 for numeric attributes, number of categories for
+   * nominal attributes
+   * @param classIndex index of the class attribute
+   * @param numClasses number of classes
+   * @param instClassValues class of each instance
+   * @param instWeights weight of each instance
+   * @param scratchDirectory directory for the scratch files
+   * @throws IOException if the scratch files could not be created
+   */
+  public DataCache(FloatColumns vals, int[] attNumVals, int classIndex,
+                   int numClasses, int[] instClassValues,
+                   double[] instWeights, File scratchDirectory)
+          throws IOException {
+
+    this.classIndex = classIndex;
+    this.numAttributes = attNumVals.length;
+    this.numClasses = numClasses;
+    this.numInstances = instClassValues.length;
+
+    this.attNumVals = attNumVals;
+    this.vals = vals;
+    this.instClassValues = instClassValues;
+    this.instWeights = instWeights;
+    this.scratchDirectory = scratchDirectory;
+
+    createMappedSortedIndices();
+
+  }
+
+
+
+  /** Computes the sorted order of the instances for every attribute. */
+  private void createSortedIndices() {
+
+    int[][] sorted = new int[numAttributes][];
 
     for (int a = 0; a < numAttributes; a++) { // ================= attr by attr
 
@@ -170,10 +373,10 @@ public class DataCache {
         // Handling nominal attributes: as of FastRF 0.99, they're sorted as well
         // missing values are coded as Float.MAX_VALUE and go to the end
         
-        sortedIndices[a] = new int[numInstances];
+        sorted[a] = new int[numInstances];
         //int count = 0;
 
-        sortedIndices[a] = FastRfUtils.sort(vals[a]); 
+        sorted[a] = FastRfUtils.sort(vals.toArray(a)); 
         
         /*for (int i = 0; i < numInstances; i++) {
           if ( !this.isValueMissing(a, i) ) {
@@ -193,18 +396,40 @@ public class DataCache {
 
         // Sorted indices are computed for numeric attributes
         // missing values are coded as Float.MAX_VALUE and go to the end
-        sortedIndices[a] = FastRfUtils.sort(vals[a]); 
+        sorted[a] = FastRfUtils.sort(vals.toArray(a)); 
 
       } // ---------------------------------------------------------- attr kind
 
     } // ========================================================= attr by attr
 
-    // System.out.println(" Done.");
+    sortedIndices = new IntColumns(sorted);
 
   }
 
-  
-  
+
+
+  /**
+   * Computes the sorted order of the instances for every attribute into
+   * memory-mapped columns. Only one attribute at a time is brought into the
+   * heap for sorting.
+   */
+  private void createMappedSortedIndices() throws IOException {
+
+    sortedIndices = new IntColumns(numAttributes, numInstances, classIndex,
+            scratchDirectory);
+
+    for (int a = 0; a < numAttributes; a++) {
+      if (a == classIndex)
+        continue;
+      // missing values are coded as Float.MAX_VALUE and go to the end
+      sortedIndices.put(a, 0, FastRfUtils.sort(vals.toArray(a)), 0,
+              numInstances);
+    }
+
+  }
+
+
+
   /**
    * Makes a copy of a DataCache. Most array fields are shallow copied, with the
    * exception of in inBag and whatGoesWhere arrays, which are created anew.
@@ -225,6 +450,7 @@ public class DataCache {
     sortedIndices = origData.sortedIndices; // shallow copied - also big
 
     instWeights = origData.instWeights;     // shallow copied
+    scratchDirectory = origData.scratchDirectory;
 
     inBag = new boolean[numInstances];      // gets its own inBag array
     numInBag = 0;
@@ -279,9 +505,52 @@ public class DataCache {
 
   
 
+  /**
+   * Rescales the instance weights so that every class present in the data
+   * has the same total weight, while keeping the overall weight unchanged.
+   * This balances the class distribution seen by the trees without
+   * resampling or copying the data.
+   *
+   * Should be called before resample(), as the bootstrap samples multiply
+   * these weights.
+   */
+  public void balanceClassWeights() {
+
+    double[] classWeights = new double[ numClasses ];
+    double totalWeight = 0;
+    for ( int i = 0; i < numInstances; i++ ) {
+      classWeights[ instClassValues[i] ] += instWeights[i];
+      totalWeight += instWeights[i];
+    }
+
+    int numPresentClasses = 0;
+    for ( int c = 0; c < numClasses; c++ )
+      if ( classWeights[c] > 0 )
+        numPresentClasses++;
+
+    if ( numPresentClasses == 0 )
+      return;
+
+    // factor that makes each class sum up to totalWeight / numPresentClasses
+    for ( int c = 0; c < numClasses; c++ )
+      if ( classWeights[c] > 0 )
+        classWeights[c] = totalWeight / ( numPresentClasses * classWeights[c] );
+
+    for ( int i = 0; i < numInstances; i++ )
+      instWeights[i] *= classWeights[ instClassValues[i] ];
+
+  }
+
+
+
   /** Invoked only when tree is trained. */
   protected void createInBagSortedIndices() {
 
+    if ( scratchDirectory != null ) {
+      createMappedInBagSortedIndices();
+      return;
+    }
+
     int[][] newSortedIndices = new int[ numAttributes ][ ];
     
     for (int a = 0; a < numAttributes; a++) {
@@ -291,18 +560,68 @@ public class DataCache {
       
       newSortedIndices[a] = new int[this.numInBag];
       
+      int[] origSortedIndices = sortedIndices.column( a, 0, numInstances - 1, null );
       int inBagIdx = 0;
-      for (int i = 0; i < sortedIndices[a].length; i++) {
-        int origIdx = sortedIndices[a][i];
+      for (int i = 0; i < origSortedIndices.length; i++) {
+        int origIdx = origSortedIndices[i];
         if ( !this.inBag[origIdx] )
           continue;
-        newSortedIndices[a][inBagIdx] = sortedIndices[a][i];
+        newSortedIndices[a][inBagIdx] = origIdx;
         inBagIdx++;
 
       }
       
     }    
     
+    this.sortedIndices = new IntColumns( newSortedIndices );
+
+  }
+
+
+
+  /**
+   * Same as createInBagSortedIndices(), but the new sorted orders are
+   * written into a memory-mapped scratch file, as they are modified during
+   * tree building. The scratch file of the current thread is reused if
+   * it fits (see inBagScratch), and it is made long enough for any bag
+   * of this data.
+   */
+  private void createMappedInBagSortedIndices() {
+
+    InBagScratch scratch = inBagScratch.get();
+    if ( scratch == null || !scratch.fits( this ) ) {
+      try {
+        scratch = new InBagScratch( new IntColumns( numAttributes,
+                numInstances, classIndex, scratchDirectory ), classIndex,
+                scratchDirectory );
+      } catch ( IOException e ) {
+        throw new RuntimeException( "Could not create scratch file in "
+                + scratchDirectory, e );
+      }
+      inBagScratch.set( scratch );
+    }
+    IntColumns newSortedIndices = scratch.columns.prefix( numInBag );
+
+    columnBuffer = new int[ numInstances ];
+    int[] inBagIndices = new int[ numInBag ];
+
+    for (int a = 0; a < numAttributes; a++) {
+
+      if (a == classIndex)
+        continue;
+
+      int[] origSortedIndices = sortedIndices.column( a, 0, numInstances - 1,
+              columnBuffer );
+      int inBagIdx = 0;
+      for (int i = 0; i < numInstances; i++) {
+        int origIdx = origSortedIndices[i];
+        if ( this.inBag[origIdx] )
+          inBagIndices[ inBagIdx++ ] = origIdx;
+      }
+      newSortedIndices.put( a, 0, inBagIndices, 0, numInBag );
+
+    }
+
     this.sortedIndices = newSortedIndices;
 
   }
@@ -311,7 +630,7 @@ public class DataCache {
   
   /** Does the given attribute - instance combination contain a missing value? */
   public final boolean isValueMissing( int attIndex, int instIndex ) {
-    return this.vals[attIndex][instIndex] == Float.MAX_VALUE;
+    return this.vals.get(attIndex, instIndex) == Float.MAX_VALUE;
   }
 
   
@@ -334,8 +653,7 @@ public class DataCache {
 
     Random r = new Random(seed);
     long dataSignature
-            = Arrays.toString( sortedIndices[ r.nextInt( numAttributes ) ] )
-            .hashCode();
+            = sortedIndices.toStringHashCode( r.nextInt( numAttributes ) );
     r.setSeed( dataSignature + seed );
     return r;
     
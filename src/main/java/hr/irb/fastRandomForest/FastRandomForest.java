@@ -157,6 +157,15 @@ public class FastRandomForest
   /** The header information. */
   protected Instances m_Info = null;
 
+  /** Whether to balance the class distribution by reweighting the instances. */
+  protected boolean m_BalanceClasses = false;
+
+  /**
+   * Directory for the scratch files of the memory-mapped training data, or
+   * an empty string to keep the training data in the heap.
+   */
+  protected String m_ScratchDirectory = "";
+
   /** a ZeroR model in case no model can be built from the data */
   protected AbstractClassifier m_ZeroR;
 
@@ -343,6 +352,70 @@ public class FastRandomForest
     m_NumThreads = value;
   }
 
+  /**
+   * Returns the tip text for this property
+   *
+   * @return tip text for this property suitable for
+   *         displaying in the explorer/experimenter gui
+   */
+  public String balanceClassesTipText(){
+    return "Whether to balance the class distribution by reweighting the "
+      + "instances (all classes get the same total weight).";
+  }
+
+  /**
+   * Get whether the classes are balanced by reweighting the instances.
+   *
+   * @return true if the classes are balanced by instance weights
+   */
+  public boolean getBalanceClasses(){
+    return m_BalanceClasses;
+  }
+
+  /**
+   * Set whether to balance the classes by reweighting the instances. Unlike
+   * resampling the training data, this does not create any copy of it.
+   *
+   * @param value true to balance the classes by instance weights
+   */
+  public void setBalanceClasses(boolean value){
+    m_BalanceClasses = value;
+  }
+
+  /**
+   * Returns the tip text for this property
+   *
+   * @return tip text for this property suitable for
+   *         displaying in the explorer/experimenter gui
+   */
+  public String scratchDirectoryTipText(){
+    return "Directory for temporary files holding the training data during "
+      + "training, so that it does not need to fit in memory. Leave empty to "
+      + "keep the training data in memory.";
+  }
+
+  /**
+   * Get the directory used for the memory-mapped training data.
+   *
+   * @return the scratch directory, or an empty string if the training data
+   *         is kept in memory
+   */
+  public String getScratchDirectory(){
+    return m_ScratchDirectory;
+  }
+
+  /**
+   * Set the directory used for the memory-mapped training data. When set,
+   * the attribute values and their sorted orders (also those of every tree)
+   * are kept in temporary memory-mapped files instead of the heap.
+   *
+   * @param value the scratch directory, or an empty string to keep the
+   *              training data in memory
+   */
+  public void setScratchDirectory(String value){
+    m_ScratchDirectory = value == null ? "" : value;
+  }
+
   ////////////////////////////
   // Feature importances stuff
   ////////////////////////////
@@ -453,6 +526,15 @@ public class FastRandomForest
     newVector.addElement(new Option(
       "\tWhether to compute feature importances.\n",
       "import", 0, "-import"));
+
+    newVector.addElement(new Option(
+      "\tWhether to balance the classes by reweighting the instances.\n",
+      "balance", 0, "-balance"));
+
+    newVector.addElement(new Option(
+      "\tDirectory for memory-mapped training data, empty to keep it in memory.\n"
+        + "\t(default empty)",
+      "scratch", 1, "-scratch <dir>"));
     
     Enumeration enu = super.listOptions();
     while(enu.hasMoreElements()){
@@ -497,6 +579,15 @@ public class FastRandomForest
       result.add("-import");
     }    
 
+    if (getBalanceClasses()) {
+      result.add("-balance");
+    }
+
+    if (getScratchDirectory().length() > 0) {
+      result.add("-scratch");
+      result.add(getScratchDirectory());
+    }
+
     options = super.getOptions();
     for(i = 0; i < options.length; i++)
       result.add(options[i]);
@@ -527,6 +618,11 @@ public class FastRandomForest
    *  (default 0 = autodetect number of available cores)</pre>
    * <pre> -import
    *  Compute and output RF feature importances (slow).</pre>
+   * <pre> -balance
+   *  Balance the classes by reweighting the instances.</pre>
+   * <pre> -scratch &lt;dir&gt;
+   *  Directory for memory-mapped training data.
+   *  (default empty = keep the training data in memory)</pre>
    * <pre> -D
    *  If set, classifier is run in debug mode and
    *  may output additional info to the console</pre>
@@ -576,6 +672,10 @@ public class FastRandomForest
 
     setComputeImportances(Utils.getFlag("import", options));
 
+    setBalanceClasses(Utils.getFlag("balance", options));
+
+    setScratchDirectory(Utils.getOption("scratch", options));
+
     super.setOptions(options);
 
     Utils.checkForRemainingOptions(options);
@@ -625,12 +725,55 @@ public class FastRandomForest
      * through their m_MotherForest field. */
     m_Info = new Instances(data, 0);
 
+    setUpBagger();
+
+    m_bagger.buildClassifier(data, m_NumThreads, this);
+    
+  }
+
+
+  /**
+   * Builds a classifier directly from a DataCache (for example, one read
+   * from a binary training data file), so no Instances object holding the
+   * whole training set is needed.
+   *
+   * Note that when balanceClasses is set, the instance weights of the
+   * DataCache are rescaled in place.
+   *
+   * @param data the training data, without missing class values
+   * @param header header (attribute information, no instances needed) of
+   *        the training data, with the class index set
+   *
+   * @throws Exception if something goes wrong
+   */
+  public void buildClassifier(DataCache data, Instances header) throws Exception{
+
+    if(header.numAttributes() == 1)
+      throw new Exception("Cannot build model (only class attribute present"
+        + " in data!)");
+    m_ZeroR = null;
+
+    m_Info = new Instances(header, 0);
+
+    setUpBagger();
+
+    m_bagger.buildClassifier(data, m_NumThreads, this);
+
+  }
+
+
+  /**
+   * Creates the bagger and sets up the tree options (held in this mother
+   * forest) according to the current header m_Info.
+   */
+  void setUpBagger(){
+
     m_bagger = new FastRfBagging();
 
     // Set up the tree options which are held in the motherForest.
     m_KValue = m_numFeatures;
-    if(m_KValue > data.numAttributes() - 1) m_KValue = data.numAttributes() - 1;
-    if(m_KValue < 1) m_KValue = (int)Utils.log2(data.numAttributes()) + 1;
+    if(m_KValue > m_Info.numAttributes() - 1) m_KValue = m_Info.numAttributes() - 1;
+    if(m_KValue < 1) m_KValue = (int)Utils.log2(m_Info.numAttributes()) + 1;
 
     FastRandomTree rTree = new FastRandomTree();
     rTree.m_MotherForest = this; // allows to retrieve KValue and MaxDepth
@@ -644,8 +787,6 @@ public class FastRandomForest
     m_bagger.setCalcOutOfBag(true);
     m_bagger.setComputeImportances( this.getComputeImportances() );
 
-    m_bagger.buildClassifier(data, m_NumThreads, this);
-    
   }
 
 
@@ -238,7 +238,7 @@ class FastRandomTree
     data.whatGoesWhere = new int[ data.inBag.length ];
     data.createInBagSortedIndices();
 
-    buildTree(data.sortedIndices, 0, data.sortedIndices[0].length-1,
+    buildTree(data.sortedIndices, 0, data.numInBag-1,
             classProbs, m_Debug, attIndicesWindow, 0);
 
     this.data = null;
@@ -352,7 +352,7 @@ class FastRandomTree
         //        .distributionForInstance(instance);
         
         // 0.99: new - binary splits (also) for nominal attributes
-        if ( data.vals[m_Attribute][instIdx] == m_SplitPoint ) {
+        if ( data.vals.get(m_Attribute, instIdx) == m_SplitPoint ) {
           returnedDist = m_Successors[0].distributionForInstanceInDataCache(data, instIdx);
         } else {
           returnedDist = m_Successors[1].distributionForInstanceInDataCache(data, instIdx);
@@ -361,7 +361,7 @@ class FastRandomTree
         
       } else { // ------------------------------------------ numeric attributes
 
-        if ( data.vals[m_Attribute][instIdx] < m_SplitPoint) {
+        if ( data.vals.get(m_Attribute, instIdx) < m_SplitPoint) {
           returnedDist = m_Successors[0].distributionForInstanceInDataCache(data, instIdx);
         } else {
           returnedDist = m_Successors[1].distributionForInstanceInDataCache(data, instIdx);
@@ -439,7 +439,7 @@ class FastRandomTree
    * @param attIndicesWindow the attribute window to choose attributes from
    * @param depth the current depth
    */
-  protected void buildTree(int[][] sortedIndices, int startAt, int endAt,
+  protected void buildTree(IntColumns sortedIndices, int startAt, int endAt,
           double[] classProbs,
           boolean debug,
           int[] attIndicesWindow,
@@ -496,7 +496,8 @@ class FastRandomTree
       // new: 0.99
       double candidateSplit = distributionSequentialAtt( prop, dist,
               bestNegPosterior, attIndex, 
-              sortedIndices[attIndex], startAt, endAt );  
+              sortedIndices.column( attIndex, startAt, endAt,
+                      data.columnBuffer ), startAt, endAt );  
 
       if ( Double.isNaN(candidateSplit) ) {
         continue;  // we did not improve over a previous attribute! "dist" is unchanged from before
@@ -679,7 +680,7 @@ class FastRandomTree
 
           // if it matches the category to "split out", put above split
           // all other categories go below split
-          int subset = ( data.vals[att][inst] == splitPoint ) ? 0 : 1;
+          int subset = ( data.vals.get(att, inst) == splitPoint ) ? 0 : 1;
           data.whatGoesWhere[ inst ] = subset;
           num[subset]++;
 
@@ -711,7 +712,7 @@ class FastRandomTree
 
         } else { // ----------------------------- does not have missing value
 
-          int branch = ( data.vals[att][inst] < splitPoint ) ? 0 : 1;
+          int branch = ( data.vals.get(att, inst) < splitPoint ) ? 0 : 1;
           
           data.whatGoesWhere[ inst ] = branch;
           num[ branch ]++;
@@ -779,7 +780,7 @@ class FastRandomTree
    */
   protected int splitDataNew(
           int att, double splitPoint,
-          int[][] sortedIndices, int startAt, int endAt ) {
+          IntColumns sortedIndices, int startAt, int endAt ) {
 
     Random random = data.reusableRandomGenerator;
     int j;
@@ -789,11 +790,16 @@ class FastRandomTree
     // we might possibly want to recycle this array for the whole tree
     int[] tempArr = new int[ endAt-startAt+1 ]; 
     
+    // indices sorted by the split attribute; when memory-mapped, only the
+    // range being split is copied into the buffer
+    int[] attSortedIndices = sortedIndices.column( att, startAt, endAt,
+            data.columnBuffer );
+
     if ( data.isAttrNominal(att) ) { // ============================ if nominal
 
       for (j = startAt; j <= endAt; j++) {
         
-        int inst = sortedIndices[att][j];
+        int inst = attSortedIndices[j];
 
         if ( data.isValueMissing(att, inst) ) { // ---------- has missing value
 
@@ -816,7 +822,7 @@ class FastRandomTree
 
           // if it matches the category to "split out", put above split
           // all other categories go below split
-          int subset = ( data.vals[att][inst] == splitPoint ) ? 0 : 1;
+          int subset = ( data.vals.get(att, inst) == splitPoint ) ? 0 : 1;
           data.whatGoesWhere[ inst ] = subset;
           num[subset]++;
 
@@ -830,7 +836,7 @@ class FastRandomTree
 
       for (j = startAt; j <= endAt ; j++) {
         
-        int inst = sortedIndices[att][j];
+        int inst = attSortedIndices[j];
         
         //Instance inst = data.instance(sortedIndices[att][j]);
 
@@ -848,7 +854,7 @@ class FastRandomTree
 
         } else { // ----------------------------- does not have missing value
 
-          int branch = ( data.vals[att][inst] < splitPoint ) ? 0 : 1;
+          int branch = ( data.vals.get(att, inst) < splitPoint ) ? 0 : 1;
           
           data.whatGoesWhere[ inst ] = branch;
           num[ branch ]++;
@@ -869,6 +875,9 @@ class FastRandomTree
       int startAbove = 0, startBelow = num[0]; // always only 2 sub-branches, remember where second starts
       
       Arrays.fill(tempArr, 0);
+
+      int[] indicesOfA = sortedIndices.column( a, startAt, endAt,
+              data.columnBuffer );
       
       //for (int branch = 0; branch < num.length; branch++) {
       //  num[branch] = 0;
@@ -877,14 +886,14 @@ class FastRandomTree
       // fill them with stuff by looking at goesWhere array
       for (j = startAt; j <= endAt; j++) {
         
-        int inst = sortedIndices[ a ][j];
+        int inst = indicesOfA[j];
         int branch = data.whatGoesWhere[ inst ];  // can be only 0 or 1
         
         if ( branch==0 ) {
-          tempArr[ startAbove ] = sortedIndices[a][j];
+          tempArr[ startAbove ] = inst;
           startAbove++;
         } else {
-          tempArr[ startBelow ] = sortedIndices[a][j];
+          tempArr[ startBelow ] = inst;
           startBelow++;
         } 
         
@@ -894,7 +903,7 @@ class FastRandomTree
       }
       
       // now copy the tempArr into the sortedIndices, thus overwriting it
-      System.arraycopy( tempArr, 0, sortedIndices[a], startAt, endAt-startAt+1 );
+      sortedIndices.put( a, startAt, tempArr, 0, endAt-startAt+1 );
 
     } // xxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxx end for attr by attr
     
@@ -946,7 +955,7 @@ class FastRandomTree
         int inst = sortedIndices[i];
         if ( data.isValueMissing(att, inst) )
           break;
-        dist[ (int)data.vals[att][inst] ][ data.instClassValues[inst] ] += data.instWeights[inst];        
+        dist[ (int)data.vals.get(att, inst) ][ data.instClassValues[inst] ] += data.instWeights[inst];        
       }
 
       splitPoint = 0; // signals we've found a sensible split point; by
@@ -986,7 +995,7 @@ class FastRandomTree
                 -= data.instWeights[ prevInst ] ;        
         
         // do not allow splitting between two instances with the same value
-        if ( data.vals[att][inst] > data.vals[att][prevInst] ) {
+        if ( data.vals.get(att, inst) > data.vals.get(att, prevInst) ) {
 
           // we want the lowest impurity after split; at this point, we don't
           // really care what we've had before spliting
@@ -1013,8 +1022,8 @@ class FastRandomTree
 
         int instJustBeforeSplit = sortedIndices[bestI-1];
         int instJustAfterSplit = sortedIndices[bestI];
-        splitPoint = ( data.vals[ att ][ instJustAfterSplit ]
-                + data.vals[ att ][ instJustBeforeSplit ] ) / 2.0;
+        splitPoint = ( data.vals.get(att, instJustAfterSplit)
+                + data.vals.get(att, instJustBeforeSplit) ) / 2.0;
         
         // Now make the correct dist[] from the default dist[] (all instances
         // in the second branch, by iterating through instances until we reach
@@ -1131,7 +1140,7 @@ class FastRandomTree
         // goes 'above' the split and category with index 1 goes 'below' the split
         for (i = startAt; i <= lastNonmissingValIdx; i++) {
           int inst = sortedIndicesOfAtt[i];
-          dist[ (int)data.vals[attToExamine][inst] ][ data.instClassValues[inst] ] += data.instWeights[inst];        
+          dist[ (int)data.vals.get(attToExamine, inst) ][ data.instClassValues[inst] ] += data.instWeights[inst];        
         }
         
       } else {   // for >2 levels, we have to search different splits
@@ -1157,9 +1166,9 @@ class FastRandomTree
 
             lastSeen = i;
             int inst = sortedIndicesOfAtt[i];
-            if ( (int)data.vals[attToExamine][inst] < lvl ) {
+            if ( (int)data.vals.get(attToExamine, inst) < lvl ) {
               continue; 
-            } else if ( (int)data.vals[attToExamine][inst] == lvl ) {
+            } else if ( (int)data.vals.get(attToExamine, inst) == lvl ) {
               // move to "above split" from "below split"
               currDist[0][ data.instClassValues[ inst ] ] += data.instWeights[ inst ] ;
               currDist[1][ data.instClassValues[ inst ] ] -= data.instWeights[ inst ] ;              
@@ -1183,7 +1192,7 @@ class FastRandomTree
         for (i = startAt; i <= lastNonmissingValIdx; i++) {
 
           int inst = sortedIndicesOfAtt[i];
-          if ( (int)data.vals[attToExamine][inst] == bestLvl ) {
+          if ( (int)data.vals.get(attToExamine, inst) == bestLvl ) {
             // move to "above split" from "below split"
             dist[0][ data.instClassValues[ inst ] ] += data.instWeights[ inst ] ;
             dist[1][ data.instClassValues[ inst ] ] -= data.instWeights[ inst ] ;              
@@ -1229,7 +1238,7 @@ class FastRandomTree
                 -= data.instWeights[ prevInst ] ;        
         
         // do not allow splitting between two instances with the same value
-        if ( data.vals[attToExamine][inst] > data.vals[attToExamine][prevInst] ) {
+        if ( data.vals.get(attToExamine, inst) > data.vals.get(attToExamine, prevInst) ) {
 
           // we want the lowest impurity after split; at this point, we don't
           // really care what we've had before spliting
@@ -1256,8 +1265,8 @@ class FastRandomTree
 
         int instJustBeforeSplit = sortedIndicesOfAtt[bestI-1];
         int instJustAfterSplit = sortedIndicesOfAtt[bestI];
-        splitPoint = ( data.vals[ attToExamine ][ instJustAfterSplit ]
-                + data.vals[ attToExamine ][ instJustBeforeSplit ] ) / 2.0;
+        splitPoint = ( data.vals.get(attToExamine, instJustAfterSplit)
+                + data.vals.get(attToExamine, instJustBeforeSplit) ) / 2.0;
         
         // now make the correct dist[] (for the best split point) from the 
         // default dist[] (all instances in the second branch, by iterating 
@@ -44,6 +44,7 @@
 
 package hr.irb.fastRandomForest;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.List;
@@ -127,6 +128,31 @@ class FastRfBagging extends RandomizableIteratedSingleClassifierEnhancer
     data = new Instances(data);
     data.deleteWithMissingClass();
 
+    // sorting is performed inside these constructors; the data is written
+    // straight to the scratch files if they are requested
+    String scratchDirectory = motherForest.getScratchDirectory();
+    DataCache myData = scratchDirectory.length() > 0 ?
+            new DataCache(data, new File(scratchDirectory)) : new DataCache(data);
+
+    buildClassifier(myData, numThreads, motherForest);
+  }
+
+  /**
+   * Bagging method working directly on a DataCache, e.g. one that was read
+   * from a binary training data file without creating any Instances.
+   *
+   * @param myData       The training set (without missing class values) to
+   *                     be used for generating the bagged classifier.
+   * @param numThreads   The number of simultaneous threads to use for
+   *                     computation. Pass zero (0) for autodetection.
+   * @param motherForest A reference to the FastRandomForest object that
+   *                     invoked this.
+   *
+   * @throws Exception if the classifier could not be built successfully
+   */
+  public void buildClassifier(DataCache myData, int numThreads,
+                              FastRandomForest motherForest) throws Exception {
+
     if (!(m_Classifier instanceof FastRandomTree))
       throw new IllegalArgumentException("The FastRfBagging class accepts " +
         "only FastRandomTree as its base classifier.");
@@ -144,11 +170,11 @@ class FastRfBagging extends RandomizableIteratedSingleClassifierEnhancer
       // 0.99: this array is of size two as now all splits are binary - even categorical ones
       curTree.tempProps = new double[2]; 
       curTree.tempDists = new double[2][]; 
-      curTree.tempDists[0] = new double[data.numClasses()];
-      curTree.tempDists[1] = new double[data.numClasses()];
+      curTree.tempDists[0] = new double[myData.numClasses];
+      curTree.tempDists[1] = new double[myData.numClasses];
       curTree.tempDistsOther = new double[2][]; 
-      curTree.tempDistsOther[0] = new double[data.numClasses()];
-      curTree.tempDistsOther[1] = new double[data.numClasses()];
+      curTree.tempDistsOther[0] = new double[myData.numClasses];
+      curTree.tempDistsOther[1] = new double[myData.numClasses];
       m_Classifiers[i] = curTree;
     }
 
@@ -161,10 +187,11 @@ class FastRfBagging extends RandomizableIteratedSingleClassifierEnhancer
     }
 
 
-    // sorting is performed inside this constructor
-    DataCache myData = new DataCache(data);
+    // balance the classes by reweighting the instances (no data is copied)
+    if (motherForest.getBalanceClasses())
+      myData.balanceClassWeights();
 
-    int bagSize = data.numInstances() * m_BagSizePercent / 100;
+    int bagSize = myData.numInstances * m_BagSizePercent / 100;
     Random random = new Random(m_Seed);
 
     boolean[][] inBag = new boolean[m_Classifiers.length][];
@@ -220,17 +247,17 @@ class FastRfBagging extends RandomizableIteratedSingleClassifierEnhancer
       m_FeatureImportances = null;
       //m_FeatureNames = null;
       if (getComputeImportances()) {
-        m_FeatureImportances = new double[data.numAttributes()];
+        m_FeatureImportances = new double[myData.numAttributes];
         ///m_FeatureNames = new String[data.numAttributes()];
         //Instances dataCopy = new Instances(data); //To scramble
         //int[] permutation = FastRfUtils.randomPermutation(data.numInstances(), random);
-        for (int j = 0; j < data.numAttributes(); j++) {
-          if (j != data.classIndex()) {
+        for (int j = 0; j < myData.numAttributes; j++) {
+          if (j != myData.classIndex) {
             //double sError = computeOOBError(FastRfUtils.scramble(data, dataCopy, j, permutation), inBag, threadPool);
             //double sError = computeOOBError(data, inBag, threadPool, j, 0);
             float[] unscrambled = myData.scrambleOneAttribute(j, random);
             double sError = computeOOBError(myData, inBag, threadPool);
-            myData.vals[j] = unscrambled; // restore the original state
+            myData.restoreAttribute(j, unscrambled); // restore the original state
             m_FeatureImportances[j] = sError - m_OutOfBagError;
           }
           //m_FeatureNames[j] = data.attribute(j).name();
@@ -382,6 +409,31 @@ class FastRfBagging extends RandomizableIteratedSingleClassifierEnhancer
   // /Feature importances stuff
   ////////////////////////////
 
+  /**
+   * Returns the trained trees (used when packing the forest).
+   *
+   * @return the FastRandomTrees of the forest
+   */
+  Classifier[] getTrees() {
+    return m_Classifiers;
+  }
+
+  /**
+   * Sets already trained trees, e.g. unpacked from a PackedForest.
+   *
+   * @param trees the FastRandomTrees
+   * @param outOfBagError the out-of-bag error measured in training
+   * @param featureImportances the feature importances, or null if they
+   * were not computed
+   */
+  void setTrees(Classifier[] trees, double outOfBagError,
+                double[] featureImportances) {
+    m_Classifiers = trees;
+    m_NumIterations = trees.length;
+    m_OutOfBagError = outOfBagError;
+    m_FeatureImportances = featureImportances;
+  }
+
   /**
    * Not supported.
    */
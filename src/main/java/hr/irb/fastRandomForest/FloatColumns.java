@@ -0,0 +1,155 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package hr.irb.fastRandomForest;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+
+/**
+ * A set of float columns of equal length, stored either as Java arrays in the
+ * heap or as off-heap memory-mapped regions of a scratch file. Used by the
+ * DataCache to hold the attribute values, so that training sets larger than
+ * the available heap can be handled.
+ *
+ * Reads are thread-safe in both modes.
+ */
+public final class FloatColumns {
+
+  /** Columns in the heap (null when memory-mapped). */
+  private final float[][] heap;
+
+  /** Memory-mapped columns (null when in the heap). */
+  private final FloatBuffer[] mapped;
+
+  /** Length of every column. */
+  private final int length;
+
+
+  /**
+   * Wraps a set of heap arrays (not copied).
+   *
+   * @param columns the columns, all of the same length (some may be null)
+   */
+  public FloatColumns( float[][] columns ) {
+    this.heap = columns;
+    this.mapped = null;
+    int len = 0;
+    for ( float[] column : columns )
+      if ( column != null )
+        len = column.length;
+    this.length = len;
+  }
+
+
+  /**
+   * Creates a set of zero-filled columns in a memory-mapped scratch file.
+   *
+   * @param numColumns number of columns
+   * @param length length of every column
+   * @param skipColumn index of a column that is not needed (e.g. the class),
+   * or -1
+   * @param scratchDirectory directory to create the scratch file in
+   * @throws IOException if the scratch file could not be created
+   */
+  public FloatColumns( int numColumns, int length, int skipColumn,
+                       File scratchDirectory ) throws IOException {
+    this.heap = null;
+    this.length = length;
+    this.mapped = new FloatBuffer[ numColumns ];
+    MappedColumnFile.map( scratchDirectory, numColumns, length, skipColumn,
+            this.mapped, null );
+  }
+
+
+  /** @return true if the columns are memory-mapped */
+  public boolean isMapped() {
+    return mapped != null;
+  }
+
+
+  /** @return the number of columns */
+  public int numColumns() {
+    return heap != null ? heap.length : mapped.length;
+  }
+
+
+  /** @return the length of the columns */
+  public int length() {
+    return length;
+  }
+
+
+  /** Returns the value at the given position. */
+  public final float get( int column, int index ) {
+    return heap != null ? heap[column][index] : mapped[column].get( index );
+  }
+
+
+  /** Sets the value at the given position. */
+  public final void set( int column, int index, float value ) {
+    if ( heap != null )
+      heap[column][index] = value;
+    else
+      mapped[column].put( index, value );
+  }
+
+
+  /**
+   * Copies values from an array into a column.
+   *
+   * @param column the column index
+   * @param offset first position of the column to write
+   * @param src source array
+   * @param srcOffset first position of the source array to read
+   * @param n number of values to copy
+   */
+  public void put( int column, int offset, float[] src, int srcOffset, int n ) {
+    if ( heap != null )
+      System.arraycopy( src, srcOffset, heap[column], offset, n );
+    else {
+      FloatBuffer buffer = mapped[column].duplicate();
+      buffer.position( offset );
+      buffer.put( src, srcOffset, n );
+    }
+  }
+
+
+  /**
+   * Returns the values of a column as an array. For heap columns the backing
+   * array itself is returned (it must not be modified), otherwise a copy.
+   *
+   * @param column the column index
+   * @return the values of the column
+   */
+  public float[] toArray( int column ) {
+    if ( heap != null )
+      return heap[column];
+    float[] values = new float[ length ];
+    FloatBuffer buffer = mapped[column].duplicate();
+    buffer.position( 0 );
+    buffer.get( values );
+    return values;
+  }
+
+}
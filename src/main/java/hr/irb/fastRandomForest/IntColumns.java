@@ -0,0 +1,213 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package hr.irb.fastRandomForest;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.IntBuffer;
+
+/**
+ * A set of int columns of equal length, stored either as Java arrays in the
+ * heap or as off-heap memory-mapped regions of a scratch file. Used by the
+ * DataCache to hold the sorted orders of the instances.
+ *
+ * The tree building code reads the columns through column(), which returns
+ * the backing array directly when in the heap, so the hot loops run on plain
+ * arrays in both modes.
+ */
+public final class IntColumns {
+
+  /** Columns in the heap (null when memory-mapped). */
+  private final int[][] heap;
+
+  /** Memory-mapped columns (null when in the heap). */
+  private final IntBuffer[] mapped;
+
+  /** Length of every column. */
+  private final int length;
+
+
+  /**
+   * Wraps a set of heap arrays (not copied).
+   *
+   * @param columns the columns, all of the same length (some may be null)
+   */
+  public IntColumns( int[][] columns ) {
+    this.heap = columns;
+    this.mapped = null;
+    int len = 0;
+    for ( int[] column : columns )
+      if ( column != null )
+        len = column.length;
+    this.length = len;
+  }
+
+
+  /**
+   * Creates a set of zero-filled columns in a memory-mapped scratch file.
+   *
+   * @param numColumns number of columns
+   * @param length length of every column
+   * @param skipColumn index of a column that is not needed (e.g. the class),
+   * or -1
+   * @param scratchDirectory directory to create the scratch file in
+   * @throws IOException if the scratch file could not be created
+   */
+  public IntColumns( int numColumns, int length, int skipColumn,
+                     File scratchDirectory ) throws IOException {
+    this.heap = null;
+    this.length = length;
+    this.mapped = new IntBuffer[ numColumns ];
+    MappedColumnFile.map( scratchDirectory, numColumns, length, skipColumn,
+            null, this.mapped );
+  }
+
+
+  /** Wraps a set of memory-mapped columns (not copied). */
+  private IntColumns( IntBuffer[] mapped, int length ) {
+    this.heap = null;
+    this.mapped = mapped;
+    this.length = length;
+  }
+
+
+  /**
+   * Returns a view of the first positions of memory-mapped columns, sharing
+   * their scratch file.
+   *
+   * @param length length of the view (at most the column length)
+   * @return the view
+   */
+  public IntColumns prefix( int length ) {
+    if ( mapped == null )
+      throw new UnsupportedOperationException( "Only memory-mapped columns have views" );
+    if ( length > this.length )
+      throw new IllegalArgumentException( "View longer than the columns: " + length );
+    return new IntColumns( mapped, length );
+  }
+
+
+  /** @return true if the columns are memory-mapped */
+  public boolean isMapped() {
+    return mapped != null;
+  }
+
+
+  /** @return the number of columns */
+  public int numColumns() {
+    return heap != null ? heap.length : mapped.length;
+  }
+
+
+  /** @return the length of the columns */
+  public int length() {
+    return length;
+  }
+
+
+  /** Returns the value at the given position. */
+  public final int get( int column, int index ) {
+    return heap != null ? heap[column][index] : mapped[column].get( index );
+  }
+
+
+  /** Sets the value at the given position. */
+  public final void set( int column, int index, int value ) {
+    if ( heap != null )
+      heap[column][index] = value;
+    else
+      mapped[column].put( index, value );
+  }
+
+
+  /**
+   * Returns an array holding the values of a column between two positions
+   * (inclusive), at their original positions. For heap columns the backing
+   * array itself is returned, otherwise the values are copied into the
+   * given buffer.
+   *
+   * @param column the column index
+   * @param from first position needed
+   * @param to last position needed
+   * @param buffer array of at least the column length, used when the column
+   * is memory-mapped
+   * @return array with the requested values
+   */
+  public final int[] column( int column, int from, int to, int[] buffer ) {
+    if ( heap != null )
+      return heap[column];
+    IntBuffer src = mapped[column].duplicate();
+    src.position( from );
+    src.get( buffer, from, to - from + 1 );
+    return buffer;
+  }
+
+
+  /**
+   * Copies values from an array into a column.
+   *
+   * @param column the column index
+   * @param offset first position of the column to write
+   * @param src source array
+   * @param srcOffset first position of the source array to read
+   * @param n number of values to copy
+   */
+  public void put( int column, int offset, int[] src, int srcOffset, int n ) {
+    if ( heap != null )
+      System.arraycopy( src, srcOffset, heap[column], offset, n );
+    else {
+      IntBuffer buffer = mapped[column].duplicate();
+      buffer.position( offset );
+      buffer.put( src, srcOffset, n );
+    }
+  }
+
+
+  /**
+   * Computes the same value as Arrays.toString( column ).hashCode() without
+   * building the (potentially huge) string. Used to seed random number
+   * generators from the data.
+   *
+   * @param column the column index
+   * @return hash code of the string representation of the column
+   */
+  public int toStringHashCode( int column ) {
+
+    if ( heap != null ? heap[column] == null : mapped[column] == null )
+      return "null".hashCode();
+
+    int h = '[';
+    for ( int i = 0; i < length; i++ ) {
+      if ( i > 0 ) {
+        h = 31 * h + ',';
+        h = 31 * h + ' ';
+      }
+      String value = Integer.toString( get( column, i ) );
+      for ( int c = 0; c < value.length(); c++ )
+        h = 31 * h + value.charAt( c );
+    }
+    return 31 * h + ']';
+
+  }
+
+}
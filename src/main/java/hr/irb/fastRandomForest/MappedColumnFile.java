@@ -0,0 +1,92 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package hr.irb.fastRandomForest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Creates the scratch files backing memory-mapped FloatColumns and
+ * IntColumns. Each column is mapped as a separate region, so a single column
+ * can hold up to Integer.MAX_VALUE / 4 values.
+ *
+ * The files are deleted as soon as they are mapped (or on exit on platforms
+ * that do not allow deleting mapped files); the disk space is released once
+ * the buffers are garbage collected.
+ */
+final class MappedColumnFile {
+
+  private MappedColumnFile() {
+  }
+
+
+  /**
+   * Maps a set of columns of 4-byte values.
+   *
+   * @param scratchDirectory directory to create the scratch file in
+   * @param numColumns number of columns
+   * @param length length of every column
+   * @param skipColumn index of a column that is not mapped, or -1
+   * @param floats if not null, gets filled with float views of the columns
+   * @param ints if not null, gets filled with int views of the columns
+   * @throws IOException if the scratch file could not be created or mapped
+   */
+  static void map( File scratchDirectory, int numColumns, int length,
+                   int skipColumn, FloatBuffer[] floats, IntBuffer[] ints )
+          throws IOException {
+
+    if ( length > Integer.MAX_VALUE / 4 )
+      throw new IOException( "Columns too long to be mapped: " + length );
+
+    File file = File.createTempFile( "frf-columns", ".tmp", scratchDirectory );
+    RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+    try {
+      long columnBytes = 4L * length;
+      raf.setLength( columnBytes * numColumns );
+      FileChannel channel = raf.getChannel();
+      for ( int c = 0; c < numColumns; c++ ) {
+        if ( c == skipColumn )
+          continue;
+        MappedByteBuffer buffer = channel.map( FileChannel.MapMode.READ_WRITE,
+                c * columnBytes, columnBytes );
+        buffer.order( ByteOrder.nativeOrder() );
+        if ( floats != null )
+          floats[c] = buffer.asFloatBuffer();
+        if ( ints != null )
+          ints[c] = buffer.asIntBuffer();
+      }
+    } finally {
+      raf.close();  // the mappings stay valid after closing the file
+      if ( !file.delete() )
+        file.deleteOnExit();
+    }
+
+  }
+
+}
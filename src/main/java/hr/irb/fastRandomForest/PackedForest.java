@@ -0,0 +1,471 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package hr.irb.fastRandomForest;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Classifier;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.core.WeightedInstancesHandler;
+
+/**
+ * A trained FastRandomForest with all its trees packed into a single flat
+ * buffer instead of a graph of FastRandomTree objects. The buffer can be
+ * read from (or memory-mapped in) a file as it is, so loading a model does
+ * not need to create any object per node, and it can be unpacked into an
+ * equivalent FastRandomForest at any time.
+ *
+ * The buffer (big-endian) contains:
+ * <ul>
+ * <li>int number of trees, int number of classes, int number of nodes,
+ * int number of leaf values</li>
+ * <li>double out-of-bag error, int number of feature importances (0 if not
+ * computed) followed by the importances as doubles</li>
+ * <li>the node index of the root of every tree (ints)</li>
+ * <li>the nodes, NODE_BYTES each: int split attribute (-1 for leaves),
+ * int index of the first child (the second child follows it) or, for
+ * leaves, offset of the class probabilities in the leaf values,
+ * double split point, and the two double proportions of training instances
+ * going down each branch</li>
+ * <li>the class probabilities of the leaves (doubles)</li>
+ * </ul>
+ *
+ * Instances are classified by walking the buffer directly, which gives the
+ * same results as the original forest.
+ */
+public class PackedForest
+  extends AbstractClassifier
+  implements WeightedInstancesHandler {
+
+  /** for serialization */
+  private static final long serialVersionUID = -3179284702951482385L;
+
+  /** Size of a node in the buffer. */
+  public static final int NODE_BYTES = 32;
+
+  /** Size of the fixed part at the start of the buffer. */
+  private static final int COUNTS_BYTES = 4 * 4 + 8 + 4;
+
+  /** Header of the data the forest was trained on. */
+  protected Instances m_Info;
+
+  /** Options of the original FastRandomForest. */
+  protected String m_Options;
+
+  /** The packed trees (see class description). */
+  protected transient ByteBuffer m_Buffer;
+
+  /** Number of trees. */
+  protected transient int m_NumTrees;
+
+  /** Number of classes. */
+  protected transient int m_NumClasses;
+
+  /** Node index of the root of every tree. */
+  protected transient int[] m_Roots;
+
+  /** Position of the first node in the buffer. */
+  protected transient int m_NodesStart;
+
+  /** Class probabilities of the leaves. */
+  protected transient DoubleBuffer m_LeafValues;
+
+  /** Whether each attribute is nominal (splits on equality). */
+  protected transient boolean[] m_Nominal;
+
+
+  /**
+   * Creates a packed forest from a buffer in the format described above,
+   * e.g. a memory-mapped region of a file. The buffer is not copied.
+   *
+   * @param header header of the data the forest was trained on
+   * @param options options of the original FastRandomForest
+   * @param buffer the packed trees
+   */
+  public PackedForest(Instances header, String options, ByteBuffer buffer) {
+    m_Info = new Instances(header, 0);
+    m_Options = options;
+    setBuffer(buffer);
+  }
+
+
+  /**
+   * Packs the trees of a trained FastRandomForest.
+   *
+   * @param forest the trained forest
+   * @return the packed forest
+   * @throws IllegalArgumentException if the forest is not trained or it is
+   * only a ZeroR model
+   */
+  public static PackedForest pack(FastRandomForest forest) {
+
+    if (forest.m_bagger == null || forest.m_ZeroR != null)
+      throw new IllegalArgumentException("Only trained forests with at least "
+        + "one attribute can be packed.");
+
+    Classifier[] trees = forest.m_bagger.getTrees();
+    int numClasses = forest.m_Info.numClasses();
+    double[] importances = forest.m_bagger.getFeatureImportances();
+    int numImportances = importances == null ? 0 : importances.length;
+
+    int numNodes = 0, numLeaves = 0;
+    for (Classifier tree : trees) {
+      numNodes += ((FastRandomTree) tree).numNodes();
+      numLeaves += countLeaves((FastRandomTree) tree);
+    }
+
+    long size = COUNTS_BYTES + 8L * numImportances + 4L * trees.length
+      + (long) NODE_BYTES * numNodes + 8L * numLeaves * numClasses;
+    if (size > Integer.MAX_VALUE)
+      throw new IllegalArgumentException("Forest too large to be packed.");
+
+    ByteBuffer buffer = ByteBuffer.allocate((int) size);
+    buffer.putInt(trees.length);
+    buffer.putInt(numClasses);
+    buffer.putInt(numNodes);
+    buffer.putInt(numLeaves * numClasses);
+    buffer.putDouble(forest.m_bagger.measureOutOfBagError());
+    buffer.putInt(numImportances);
+    for (int i = 0; i < numImportances; i++)
+      buffer.putDouble(importances[i]);
+
+    int nodesStart = buffer.position() + 4 * trees.length;
+    int leavesStart = nodesStart + NODE_BYTES * numNodes;
+    // next free node index and next free leaf value offset
+    int[] next = new int[2];
+    for (Classifier tree : trees) {
+      int root = next[0]++;
+      buffer.putInt(root);
+      packNode((FastRandomTree) tree, root, buffer, nodesStart, leavesStart,
+        numClasses, next);
+    }
+
+    buffer.rewind();
+    return new PackedForest(forest.m_Info, Utils.joinOptions(
+      forest.getOptions()), buffer);
+
+  }
+
+
+  /** Counts the leaves of a tree. */
+  private static int countLeaves(FastRandomTree node) {
+    if (node.m_Attribute == -1)
+      return 1;
+    int count = 0;
+    for (FastRandomTree successor : node.m_Successors)
+      count += countLeaves(successor);
+    return count;
+  }
+
+
+  /**
+   * Writes a node (and recursively its subtree) at the given node index.
+   * The children of a node are given consecutive indices.
+   */
+  private static void packNode(FastRandomTree node, int index,
+                               ByteBuffer buffer, int nodesStart,
+                               int leavesStart, int numClasses, int[] next) {
+
+    int pos = nodesStart + index * NODE_BYTES;
+
+    if (node.m_Attribute == -1) { // ------------------------------------ leaf
+      int offset = next[1];
+      next[1] += numClasses;
+      buffer.putInt(pos, -1);
+      buffer.putInt(pos + 4, offset);
+      buffer.putDouble(pos + 8, Double.NaN);
+      buffer.putDouble(pos + 16, 0);
+      buffer.putDouble(pos + 24, 0);
+      for (int c = 0; c < numClasses; c++)
+        buffer.putDouble(leavesStart + 8 * (offset + c), node.m_ClassProbs[c]);
+      return;
+    }
+
+    // all splits are binary since FastRF 0.99
+    int firstChild = next[0];
+    next[0] += 2;
+    buffer.putInt(pos, node.m_Attribute);
+    buffer.putInt(pos + 4, firstChild);
+    buffer.putDouble(pos + 8, node.m_SplitPoint);
+    buffer.putDouble(pos + 16, node.m_Prop[0]);
+    buffer.putDouble(pos + 24, node.m_Prop[1]);
+    for (int i = 0; i < 2; i++)
+      packNode(node.m_Successors[i], firstChild + i, buffer, nodesStart,
+        leavesStart, numClasses, next);
+
+  }
+
+
+  /** Reads the counts and positions of the different parts of the buffer. */
+  private void setBuffer(ByteBuffer buffer) {
+
+    m_Buffer = buffer;
+    m_NumTrees = buffer.getInt(0);
+    m_NumClasses = buffer.getInt(4);
+    int numNodes = buffer.getInt(8);
+    int numLeafValues = buffer.getInt(12);
+    int numImportances = buffer.getInt(24);
+
+    int rootsStart = COUNTS_BYTES + 8 * numImportances;
+    m_Roots = new int[m_NumTrees];
+    for (int t = 0; t < m_NumTrees; t++)
+      m_Roots[t] = buffer.getInt(rootsStart + 4 * t);
+    m_NodesStart = rootsStart + 4 * m_NumTrees;
+
+    ByteBuffer leaves = buffer.duplicate();
+    leaves.position(m_NodesStart + NODE_BYTES * numNodes);
+    leaves.limit(leaves.position() + 8 * numLeafValues);
+    m_LeafValues = leaves.slice().asDoubleBuffer();
+
+    m_Nominal = new boolean[m_Info.numAttributes()];
+    for (int a = 0; a < m_Nominal.length; a++)
+      m_Nominal[a] = m_Info.attribute(a).isNominal();
+
+  }
+
+
+  /**
+   * Returns the buffer with the packed trees, e.g. to write it into a file.
+   *
+   * @return a read-only view of the packed trees
+   */
+  public ByteBuffer getBuffer() {
+    ByteBuffer buffer = m_Buffer.asReadOnlyBuffer();
+    buffer.rewind();
+    return buffer;
+  }
+
+
+  /** @return the header of the data the forest was trained on */
+  public Instances getHeader() {
+    return m_Info;
+  }
+
+
+  /** @return the options of the original FastRandomForest */
+  public String getForestOptions() {
+    return m_Options;
+  }
+
+
+  /** @return the number of trees */
+  public int getNumTrees() {
+    return m_NumTrees;
+  }
+
+
+  /**
+   * Packed forests cannot be trained; use createForest() to get an untrained
+   * FastRandomForest with the same options.
+   *
+   * @throws Exception every time this function is called
+   */
+  @Override
+  public void buildClassifier(Instances data) throws Exception {
+    throw new Exception("A PackedForest cannot be trained, use createForest() "
+      + "to get a FastRandomForest with the same options.");
+  }
+
+
+  /**
+   * Creates an untrained FastRandomForest with the options of the original
+   * forest.
+   *
+   * @return the new forest
+   * @throws Exception if the stored options are not valid
+   */
+  public FastRandomForest createForest() throws Exception {
+    FastRandomForest forest = new FastRandomForest();
+    forest.setOptions(Utils.splitOptions(m_Options));
+    return forest;
+  }
+
+
+  /**
+   * Unpacks the trees into an equivalent FastRandomForest, which can be
+   * serialized as a regular Weka model.
+   *
+   * @return the trained forest
+   * @throws Exception if the stored options are not valid
+   */
+  public FastRandomForest unpack() throws Exception {
+
+    FastRandomForest forest = createForest();
+    forest.m_Info = new Instances(m_Info, 0);
+    forest.m_ZeroR = null;
+    forest.setUpBagger();
+
+    Classifier[] trees = new Classifier[m_NumTrees];
+    for (int t = 0; t < m_NumTrees; t++)
+      trees[t] = unpackNode(m_Roots[t], forest);
+
+    double[] importances = null;
+    int numImportances = m_Buffer.getInt(24);
+    if (numImportances > 0) {
+      importances = new double[numImportances];
+      for (int i = 0; i < numImportances; i++)
+        importances[i] = m_Buffer.getDouble(COUNTS_BYTES + 8 * i);
+    }
+    forest.m_bagger.setTrees(trees, m_Buffer.getDouble(16), importances);
+
+    return forest;
+
+  }
+
+
+  /** Recreates the FastRandomTree of a node and its subtree. */
+  private FastRandomTree unpackNode(int index, FastRandomForest motherForest) {
+
+    int pos = m_NodesStart + index * NODE_BYTES;
+    FastRandomTree node = new FastRandomTree();
+    node.m_MotherForest = motherForest;
+    node.m_Attribute = m_Buffer.getInt(pos);
+
+    if (node.m_Attribute == -1) {
+      int offset = m_Buffer.getInt(pos + 4);
+      node.m_ClassProbs = new double[m_NumClasses];
+      for (int c = 0; c < m_NumClasses; c++)
+        node.m_ClassProbs[c] = m_LeafValues.get(offset + c);
+      return node;
+    }
+
+    int firstChild = m_Buffer.getInt(pos + 4);
+    node.m_SplitPoint = m_Buffer.getDouble(pos + 8);
+    node.m_Prop = new double[] {m_Buffer.getDouble(pos + 16),
+      m_Buffer.getDouble(pos + 24)};
+    node.m_Successors = new FastRandomTree[] {
+      unpackNode(firstChild, motherForest),
+      unpackNode(firstChild + 1, motherForest)};
+    return node;
+
+  }
+
+
+  /**
+   * Returns the class probability distribution for an instance, computed in
+   * the same way as FastRandomForest does.
+   *
+   * @param instance the instance to be classified
+   * @return the distribution the forest generates for the instance
+   */
+  @Override
+  public double[] distributionForInstance(Instance instance) {
+
+    double[] sums = new double[m_NumClasses];
+    for (int t = 0; t < m_NumTrees; t++)
+      addDistribution(m_Roots[t], instance, 1.0, sums);
+
+    if (!Utils.eq(Utils.sum(sums), 0))
+      Utils.normalize(sums);
+    return sums;
+
+  }
+
+
+  /**
+   * Adds the class distribution of a subtree for an instance, multiplied by
+   * a weight, to the given sums. Instances with a missing value for the split
+   * attribute go down both branches, weighted by the branch proportions.
+   */
+  private void addDistribution(int index, Instance instance, double weight,
+                               double[] sums) {
+
+    while (true) {
+
+      int pos = m_NodesStart + index * NODE_BYTES;
+      int att = m_Buffer.getInt(pos);
+      int child = m_Buffer.getInt(pos + 4);
+
+      if (att == -1) { // ------------------------------------------------ leaf
+        for (int c = 0; c < m_NumClasses; c++)
+          sums[c] += weight * m_LeafValues.get(child + c);
+        return;
+      }
+
+      if (instance.isMissing(att)) { // ---------------------- missing value
+        addDistribution(child, instance,
+          weight * m_Buffer.getDouble(pos + 16), sums);
+        addDistribution(child + 1, instance,
+          weight * m_Buffer.getDouble(pos + 24), sums);
+        return;
+      }
+
+      double value = instance.value(att);
+      double splitPoint = m_Buffer.getDouble(pos + 8);
+      boolean first = m_Nominal[att] ? value == splitPoint : value < splitPoint;
+      index = first ? child : child + 1;
+
+    }
+
+  }
+
+
+  /**
+   * Writes the header, the options and the packed trees.
+   */
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    out.defaultWriteObject();
+    ByteBuffer buffer = getBuffer();
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+
+  /**
+   * Reads the header, the options and the packed trees.
+   */
+  private void readObject(ObjectInputStream in)
+    throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    setBuffer(ByteBuffer.wrap(bytes));
+  }
+
+
+  /**
+   * Outputs a description of this classifier.
+   *
+   * @return a string containing a description of the classifier
+   */
+  @Override
+  public String toString() {
+    if (m_Buffer == null)
+      return "PackedForest not loaded yet";
+    return "Packed FastRandomForest of " + m_NumTrees + " trees ("
+      + m_Buffer.getInt(8) + " nodes).\n"
+      + "Out of bag error: "
+      + Utils.doubleToString(m_Buffer.getDouble(16) * 100.0, 3) + "%\n"
+      + "Options: " + m_Options + "\n";
+  }
+
+}
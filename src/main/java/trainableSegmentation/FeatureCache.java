@@ -0,0 +1,467 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package trainableSegmentation;
+
+import ij.IJ;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * On-disk cache of feature stacks, so the features of an image are not
+ * computed again when a project is reopened or a classifier is applied to
+ * the same image in another session.
+ * <p>
+ * Stacks are identified by a hash of the image content and the feature
+ * settings (see {@link #key(ImageProcessor, String)}). Each stack is stored
+ * in its own file, with its slices compressed in chunks of rows, each
+ * with a checksum; files that fail the checks are discarded. Files are
+ * deleted in least recently used order once they take more disk space
+ * than the capacity of the cache.
+ */
+public final class FeatureCache
+{
+	/** default capacity of the cache (in bytes) */
+	public static final long DEFAULT_CAPACITY = 4L << 30;
+
+	/** extension of the cache files */
+	private static final String EXTENSION = ".features";
+	/** first bytes of the cache files ("TWSF") */
+	private static final int MAGIC = 0x54575346;
+	/** version of the file format */
+	private static final int VERSION = 1;
+	/** number of rows of the chunks the slices are compressed in */
+	private static final int CHUNK_ROWS = 64;
+
+	/** directory of the cache files */
+	private final File directory;
+	/** maximum disk space taken by the cache files (in bytes) */
+	private long capacity;
+
+	/**
+	 * Create a cache (or open an existing one).
+	 *
+	 * @param directory directory of the cache files (created if needed)
+	 * @param capacity maximum disk space taken by the cache files (in bytes)
+	 * @throws IOException if the directory cannot be created
+	 */
+	public FeatureCache( File directory, long capacity ) throws IOException
+	{
+		if( !directory.isDirectory() && !directory.mkdirs() )
+			throw new IOException( "Cannot create feature cache directory " + directory );
+		this.directory = directory;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Build the key of the features of an image.
+	 *
+	 * @param image original image
+	 * @param settings description of every setting the features depend on
+	 * @return hexadecimal hash of the image content and the settings
+	 */
+	public static String key( ImageProcessor image, String settings )
+	{
+		final MessageDigest digest;
+		try{
+			digest = MessageDigest.getInstance( "SHA-256" );
+		}
+		catch( NoSuchAlgorithmException e )
+		{
+			throw new RuntimeException( "SHA-256 is not available", e );
+		}
+		final ByteBuffer header = ByteBuffer.allocate( 12 );
+		header.putInt( image.getWidth() ).putInt( image.getHeight() ).putInt( image.getBitDepth() );
+		digest.update( header.array() );
+		final Object pixels = image.getPixels();
+		final int width = image.getWidth();
+		for( int y = 0; y < image.getHeight(); y += CHUNK_ROWS )
+		{
+			final int rows = Math.min( CHUNK_ROWS, image.getHeight() - y );
+			digest.update( toBytes( pixels, y * width, rows * width ) );
+		}
+		digest.update( settings.getBytes( StandardCharsets.UTF_8 ) );
+
+		final StringBuilder sb = new StringBuilder();
+		for( byte b : digest.digest() )
+			sb.append( String.format( "%02x", b ) );
+		return sb.toString();
+	}
+
+	/**
+	 * Get the directory of the cache files.
+	 * @return cache directory
+	 */
+	public File getDirectory()
+	{
+		return directory;
+	}
+
+	/**
+	 * Set the capacity of the cache, deleting files if necessary.
+	 * @param capacity maximum disk space taken by the cache files (in bytes)
+	 */
+	public synchronized void setCapacity( long capacity )
+	{
+		this.capacity = capacity;
+		evict();
+	}
+
+	/**
+	 * Get the capacity of the cache.
+	 * @return maximum disk space taken by the cache files (in bytes)
+	 */
+	public synchronized long getCapacity()
+	{
+		return capacity;
+	}
+
+	/**
+	 * Get the disk space taken by the cache files.
+	 * @return size in bytes
+	 */
+	public long getSize()
+	{
+		long size = 0;
+		for( File file : listFiles() )
+			size += file.length();
+		return size;
+	}
+
+	/**
+	 * Delete all cache files.
+	 */
+	public synchronized void clear()
+	{
+		for( File file : listFiles() )
+			file.delete();
+	}
+
+	/**
+	 * Get cached features.
+	 *
+	 * @param key key of the features (see {@link #key(ImageProcessor, String)})
+	 * @return feature stack, or null if it is not cached (or its file is corrupted)
+	 */
+	public ImageStack load( String key )
+	{
+		final File file = getFile( key );
+		if( !file.isFile() )
+			return null;
+		try{
+			final DataInputStream in = new DataInputStream(
+					new BufferedInputStream( new FileInputStream( file ) ) );
+			final ImageStack stack;
+			try{
+				stack = read( in, key );
+			}
+			finally{
+				in.close();
+			}
+			// most recently used
+			file.setLastModified( System.currentTimeMillis() );
+			return stack;
+		}
+		catch( FileNotFoundException e )
+		{
+			// evicted meanwhile
+			return null;
+		}
+		catch( IOException e )
+		{
+			IJ.log( "Discarding corrupted feature cache file " + file.getName() + ": " + e.getMessage() );
+			file.delete();
+			return null;
+		}
+	}
+
+	/**
+	 * Store features in the cache.
+	 *
+	 * @param key key of the features (see {@link #key(ImageProcessor, String)})
+	 * @param stack feature stack
+	 * @return false if the features could not be written
+	 */
+	public boolean store( String key, ImageStack stack )
+	{
+		File tmp = null;
+		try{
+			// written to a temporary file first, so incomplete files are never read
+			tmp = File.createTempFile( key, ".tmp", directory );
+			final DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream( new FileOutputStream( tmp ) ) );
+			try{
+				write( out, key, stack );
+			}
+			finally{
+				out.close();
+			}
+			final File file = getFile( key );
+			if( !tmp.renameTo( file ) && !( file.delete() && tmp.renameTo( file ) ) )
+				throw new IOException( "Cannot rename " + tmp + " to " + file );
+			tmp = null;
+		}
+		catch( IOException e )
+		{
+			IJ.log( "Error when writing features to cache: " + e.getMessage() );
+			return false;
+		}
+		finally{
+			if( null != tmp )
+				tmp.delete();
+		}
+		evict();
+		return true;
+	}
+
+	private File getFile( String key )
+	{
+		return new File( directory, key + EXTENSION );
+	}
+
+	private File[] listFiles()
+	{
+		final File[] files = directory.listFiles( new FileFilter(){
+			public boolean accept( File file ){
+				return file.getName().endsWith( EXTENSION );
+			}
+		});
+		return null == files ? new File[ 0 ] : files;
+	}
+
+	/**
+	 * Delete the least recently used files until the cache fits in its
+	 * capacity.
+	 */
+	private synchronized void evict()
+	{
+		final File[] files = listFiles();
+		final long[] lastModified = new long[ files.length ];
+		final Integer[] order = new Integer[ files.length ];
+		long size = 0;
+		for( int i = 0; i < files.length; i++ )
+		{
+			lastModified[ i ] = files[ i ].lastModified();
+			order[ i ] = i;
+			size += files[ i ].length();
+		}
+		if( size <= capacity )
+			return;
+		Arrays.sort( order, new Comparator<Integer>(){
+			public int compare( Integer a, Integer b ){
+				return Long.compare( lastModified[ a ], lastModified[ b ] );
+			}
+		});
+		for( int i = 0; i < order.length && size > capacity; i++ )
+		{
+			final File file = files[ order[ i ] ];
+			final long length = file.length();
+			if( file.delete() )
+				size -= length;
+		}
+	}
+
+	private static void write( DataOutputStream out, String key, ImageStack stack ) throws IOException
+	{
+		final int width = stack.getWidth();
+		final int height = stack.getHeight();
+		final int bitDepth = stack.getBitDepth();
+		out.writeInt( MAGIC );
+		out.writeInt( VERSION );
+		out.writeUTF( key );
+		out.writeInt( width );
+		out.writeInt( height );
+		out.writeInt( bitDepth );
+		out.writeInt( stack.getSize() );
+		for( int z = 1; z <= stack.getSize(); z++ )
+		{
+			final String label = stack.getSliceLabel( z );
+			out.writeBoolean( null != label );
+			if( null != label )
+				out.writeUTF( label );
+		}
+
+		final Deflater deflater = new Deflater( Deflater.BEST_SPEED );
+		final CRC32 crc = new CRC32();
+		byte[] compressed = new byte[ 1 << 16 ];
+		try{
+			for( int z = 1; z <= stack.getSize(); z++ )
+			{
+				final Object pixels = stack.getPixels( z );
+				for( int y = 0; y < height; y += CHUNK_ROWS )
+				{
+					final int rows = Math.min( CHUNK_ROWS, height - y );
+					final byte[] raw = toBytes( pixels, y * width, rows * width );
+					crc.reset();
+					crc.update( raw );
+					deflater.reset();
+					deflater.setInput( raw );
+					deflater.finish();
+					int length = 0;
+					while( !deflater.finished() )
+					{
+						if( length == compressed.length )
+							compressed = Arrays.copyOf( compressed, 2 * compressed.length );
+						length += deflater.deflate( compressed, length, compressed.length - length );
+					}
+					out.writeInt( length );
+					out.writeInt( (int) crc.getValue() );
+					out.write( compressed, 0, length );
+				}
+			}
+		}
+		finally{
+			deflater.end();
+		}
+	}
+
+	private static ImageStack read( DataInputStream in, String key ) throws IOException
+	{
+		if( in.readInt() != MAGIC || in.readInt() != VERSION )
+			throw new IOException( "not a feature cache file" );
+		if( !key.equals( in.readUTF() ) )
+			throw new IOException( "wrong key" );
+		final int width = in.readInt();
+		final int height = in.readInt();
+		final int bitDepth = in.readInt();
+		final int size = in.readInt();
+		if( width <= 0 || height <= 0 || size < 0
+				|| ( bitDepth != 8 && bitDepth != 16 && bitDepth != 24 && bitDepth != 32 ) )
+			throw new IOException( "wrong header" );
+		final String[] labels = new String[ size ];
+		for( int z = 0; z < size; z++ )
+			labels[ z ] = in.readBoolean() ? in.readUTF() : null;
+
+		final int bytesPerPixel = bitDepth / 8 == 3 ? 4 : bitDepth / 8;
+		final ImageStack stack = new ImageStack( width, height );
+		final Inflater inflater = new Inflater();
+		final CRC32 crc = new CRC32();
+		try{
+			for( int z = 0; z < size; z++ )
+			{
+				final Object pixels = newPixels( bitDepth, width * height );
+				for( int y = 0; y < height; y += CHUNK_ROWS )
+				{
+					final int rows = Math.min( CHUNK_ROWS, height - y );
+					final byte[] raw = new byte[ rows * width * bytesPerPixel ];
+					final int length = in.readInt();
+					final int checksum = in.readInt();
+					if( length < 0 || length > 2 * raw.length + 1024 )
+						throw new IOException( "wrong chunk length" );
+					final byte[] compressed = new byte[ length ];
+					in.readFully( compressed );
+					inflater.reset();
+					inflater.setInput( compressed );
+					if( inflater.inflate( raw ) != raw.length || !inflater.finished() )
+						throw new IOException( "wrong chunk size" );
+					crc.reset();
+					crc.update( raw );
+					if( (int) crc.getValue() != checksum )
+						throw new IOException( "wrong checksum" );
+					fromBytes( raw, pixels, y * width, rows * width );
+				}
+				stack.addSlice( labels[ z ], pixels );
+			}
+		}
+		catch( DataFormatException e )
+		{
+			throw new IOException( "wrong compressed data", e );
+		}
+		finally{
+			inflater.end();
+		}
+		if( in.read() != -1 )
+			throw new IOException( "unexpected data at the end of the file" );
+		return stack;
+	}
+
+	private static Object newPixels( int bitDepth, int length )
+	{
+		switch( bitDepth )
+		{
+			case 8:
+				return new byte[ length ];
+			case 16:
+				return new short[ length ];
+			case 24:
+				return new int[ length ];
+			default:
+				return new float[ length ];
+		}
+	}
+
+	/**
+	 * Copy a range of pixels into a byte array (big-endian).
+	 */
+	private static byte[] toBytes( Object pixels, int offset, int length )
+	{
+		if( pixels instanceof byte[] )
+			return Arrays.copyOfRange( (byte[]) pixels, offset, offset + length );
+		if( pixels instanceof short[] )
+		{
+			final ByteBuffer buffer = ByteBuffer.allocate( 2 * length );
+			buffer.asShortBuffer().put( (short[]) pixels, offset, length );
+			return buffer.array();
+		}
+		final ByteBuffer buffer = ByteBuffer.allocate( 4 * length );
+		if( pixels instanceof int[] )
+			buffer.asIntBuffer().put( (int[]) pixels, offset, length );
+		else
+			buffer.asFloatBuffer().put( (float[]) pixels, offset, length );
+		return buffer.array();
+	}
+
+	/**
+	 * Copy a byte array (big-endian) into a range of pixels.
+	 */
+	private static void fromBytes( byte[] bytes, Object pixels, int offset, int length )
+	{
+		if( pixels instanceof byte[] )
+			System.arraycopy( bytes, 0, pixels, offset, length );
+		else if( pixels instanceof short[] )
+			ByteBuffer.wrap( bytes ).asShortBuffer().get( (short[]) pixels, offset, length );
+		else if( pixels instanceof int[] )
+			ByteBuffer.wrap( bytes ).asIntBuffer().get( (int[]) pixels, offset, length );
+		else
+			ByteBuffer.wrap( bytes ).asFloatBuffer().get( (float[]) pixels, offset, length );
+	}
+}
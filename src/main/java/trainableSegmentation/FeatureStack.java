@@ -73,9 +73,7 @@ import ij.ImagePlus;
 import ij.ImageStack;
 import ij.Prefs;
 import ij.io.FileSaver;
-import ij.plugin.ZProjector;
 import ij.plugin.filter.Convolver;
-import ij.plugin.filter.GaussianBlur;
 import ij.plugin.filter.RankFilters;
 import ij.process.ByteProcessor;
 import ij.process.ColorProcessor;
@@ -84,29 +82,39 @@ import ij.process.ImageConverter;
 import ij.process.ImageProcessor;
 
 import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
 
-
-import net.imglib2.img.ImagePlusAdapter;
-import net.imglib2.img.Img;
-import net.imglib2.img.display.imagej.ImageJFunctions;
-import net.imglib2.type.numeric.real.FloatType;
-import net.imglib2.algorithm.fft2.FFTConvolution;
-
+import trainableSegmentation.filters.AnisotropicDiffusion;
+import trainableSegmentation.filters.BilateralGrid;
 import trainableSegmentation.filters.Entropy_Filter;
+import trainableSegmentation.filters.FFTConvolver;
+import trainableSegmentation.filters.HessianFeatures;
+import trainableSegmentation.filters.KernelCache;
 import trainableSegmentation.filters.Kuwahara;
-import trainableSegmentation.filters.Lipschitz_;
-import trainableSegmentation.utils.Utils;
+import trainableSegmentation.filters.LipschitzEnvelope;
+import trainableSegmentation.filters.MinMaxFilter;
+import trainableSegmentation.filters.RecursiveGaussian;
+import trainableSegmentation.utils.OrientationProjection;
 import vib.BilateralFilter;
 import weka.core.Attribute;
 import weka.core.DenseInstance;
@@ -121,7 +129,11 @@ public class FeatureStack
 	/** original input image */
 	private ImagePlus originalImage = null;
 	/** stack of feature images (created by filtering) */
-	private ImageStack wholeStack = null;
+	private volatile ImageStack wholeStack = null;
+	/** features spilled to disk (see {@link #spill(File)}), or null if the stack is in memory */
+	private volatile SpilledFeatures spilledFeatures = null;
+	/** action to run after spilled features are loaded back into memory */
+	private Runnable loadListener = null;
 	/** image width */
 	private int width = 0;
 	/** image height */
@@ -229,6 +241,119 @@ public class FeatureStack
 	
 	/** use neighborhood flag */
 	private boolean useNeighbors = false;
+	/** features packed pixel by pixel (see {@link #packFeatures()}), or null */
+	private volatile PackedFeatures packedFeatures = null;
+	/** padded copy of the first slice to read the neighborhood features from */
+	private volatile NeighborhoodPlane neighborhoodPlane = null;
+	/** NEIGHBORS features of the stack, read from the padded original image
+	 * instead of being stored as stack slices (see {@link #setNeighborFeatures(int, int)}) */
+	private volatile NeighborhoodPlane neighborFeatures = null;
+	
+	/**
+	 * Image extended on each side with mirror boundary conditions, so its
+	 * neighbors are shifted reads of it. It is used for the neighborhood of
+	 * the first slice (see {@link #getNeighborhood(int, int, double[], int)})
+	 * and for the NEIGHBORS features, which are not stored as stack slices
+	 * but appended to the slices of the stack they were computed for.
+	 */
+	private static class NeighborhoodPlane
+	{
+		/** pixels of the slice, or stack (in memory or spilled), the plane belongs to */
+		final Object source;
+		/** stack the plane also belongs to while it is being spilled or loaded back */
+		final Object previous;
+		/** padded pixels (row by row) of each channel (one channel, or RGB) */
+		final float[][] channels;
+		/** padded width */
+		final int width;
+		/** number of pixels added on each side */
+		final int pad;
+		/** offset of each neighbor in the padded pixels */
+		final int[] shifts;
+		/** slice label of each neighbor (NEIGHBORS features only) */
+		final String[] labels;
+		
+		NeighborhoodPlane(Object source, float[][] channels, int width, int pad,
+				int[] shifts, String[] labels)
+		{
+			this( source, null, channels, width, pad, shifts, labels );
+		}
+		
+		private NeighborhoodPlane(Object source, Object previous, float[][] channels,
+				int width, int pad, int[] shifts, String[] labels)
+		{
+			this.source = source;
+			this.previous = previous;
+			this.channels = channels;
+			this.width = width;
+			this.pad = pad;
+			this.shifts = shifts;
+			this.labels = labels;
+		}
+		
+		/** same plane for another source */
+		NeighborhoodPlane bind(Object source)
+		{
+			return bind( source, null );
+		}
+		
+		/** same plane for another source, and the previous one meanwhile */
+		NeighborhoodPlane bind(Object source, Object previous)
+		{
+			return new NeighborhoodPlane( source, previous, channels, width, pad, shifts, labels );
+		}
+		
+		/** check if the plane belongs to a slice or stack */
+		boolean belongsTo(Object stack)
+		{
+			return null != stack && ( stack == source || stack == previous );
+		}
+		
+		/**
+		 * Value of a neighbor of a pixel, as it would be read from its stack
+		 * slice (a float slice, or an RGB slice for color images).
+		 * @param colorAverage read the average of the RGB channels
+		 */
+		double getValue(int x, int y, int k, boolean colorAverage)
+		{
+			final int i = (y + pad) * width + x + pad + shifts[ k ];
+			if( channels.length == 1 )
+				return channels[ 0 ][ i ];
+			final int r = (int) channels[ 0 ][ i ];
+			final int g = (int) channels[ 1 ][ i ];
+			final int b = (int) channels[ 2 ][ i ];
+			if( colorAverage )
+				return (r + g + b) / 3.0;
+			return 0xff000000 | (r << 16) | (g << 8) | b;
+		}
+		
+		/** pixels of the stack slice of a neighbor */
+		Object getPixels(int k)
+		{
+			final int imageWidth = width - 2 * pad;
+			final int imageHeight = channels[ 0 ].length / width - 2 * pad;
+			final int offset = pad * width + pad + shifts[ k ];
+			if( channels.length == 1 )
+			{
+				final float[] pixels = new float[ imageWidth * imageHeight ];
+				for(int y=0; y<imageHeight; y++)
+					System.arraycopy( channels[ 0 ], offset + y * width, pixels, y * imageWidth, imageWidth );
+				return pixels;
+			}
+			final int[] pixels = new int[ imageWidth * imageHeight ];
+			for(int y=0, n=0; y<imageHeight; y++)
+				for(int x=0, i=offset + y * width; x<imageWidth; x++, i++, n++)
+					pixels[ n ] = 0xff000000 | ((int) channels[ 0 ][ i ] << 16)
+							| ((int) channels[ 1 ][ i ] << 8) | (int) channels[ 2 ][ i ];
+			return pixels;
+		}
+		
+		/** memory taken by the padded pixels (in bytes) */
+		long getMemorySize()
+		{
+			return 4L * channels.length * channels[ 0 ].length;
+		}
+	}
 	/** expected membrane thickness (in pixels) */
 	private int membraneSize = 1;	
 	/** size of the patch to use to enhance membranes (in pixels, NxN) */
@@ -247,8 +372,42 @@ public class FeatureStack
 	/** flag to specify the use of the old (wrong) Hessian format (fixed in
 	 * version 3.2.25 of TWS) */
 	private boolean oldHessianFormat = false;
+	/** flag to compute the Gaussian-based features with the recursive
+	 * Gaussian filter, whose cost does not depend on sigma */
+	private boolean useRecursiveGaussian = false;
+	/** flag to compute the anisotropic diffusion features with the
+	 * multi-threaded {@link AnisotropicDiffusion} instead of the
+	 * Anisotropic_Diffusion_2D plugin */
+	private boolean useFastAnisotropicDiffusion = false;
+	/** flag to compute the bilateral filter features on a
+	 * {@link BilateralGrid} instead of with vib.BilateralFilter */
+	private boolean useBilateralGrid = false;
 	/** executor service to produce concurrent threads */
 	private ExecutorService exe = null;
+	/** Gaussian scale-space of the original image, shared by the features
+	 * while the feature stack is being updated */
+	private GaussianScaleSpace scaleSpace = null;
+	/** on-disk cache of the updated features (null to always compute them) */
+	private FeatureCache featureCache = null;
+	/** planes of each feature (filter name and parameters) of the last
+	 * update, reused by the next update if the feature is still enabled */
+	private HashMap< List<Object>, ImageStack > featurePlanes = new HashMap< List<Object>, ImageStack >();
+	/** settings (other than the feature parameters) the planes were computed with */
+	private String featurePlanesSettings = null;
+	/** planes that can be reused by the update in progress */
+	private HashMap< List<Object>, ImageStack > previousPlanes = null;
+	/** planes of each feature of the update in progress */
+	private HashMap< List<Object>, ImageStack > updatedPlanes = null;
+	/** planes kept for the next update, written to scratch files (one per
+	 * pixel type) when the stack was dropped (see {@link #setStack(ImageStack)}),
+	 * or null */
+	private ArrayList< SpilledFeatures > spilledPlanes = null;
+	/** feature (filter name and parameters) of each spilled plane */
+	private ArrayList< List< List<Object> > > spilledPlaneKeys = null;
+	/** feature whose planes are being added by a single-thread update */
+	private List<Object> pendingFeature = null;
+	/** index of the slice before the first plane of the pending feature */
+	private int pendingFirst = 0;
 	
 	/**
 	 * Construct object to store stack of image features. The input image
@@ -330,6 +489,8 @@ public class FeatureStack
 	 * Display feature stack
 	 */
 	public void show(){
+		ensureLoaded();
+		materializeNeighbors();
 		ImagePlus showStack = new ImagePlus("featureStack", wholeStack);
 		showStack.show();
 	}
@@ -338,10 +499,19 @@ public class FeatureStack
 	 * @return number of slices in the stack
 	 */
 	public int getSize(){
-		if( null != wholeStack )
-			return wholeStack.getSize();
-		else
-			return 0;
+		while( true )
+		{
+			final ImageStack stack = wholeStack;
+			final SpilledFeatures spilled = null == stack ? spilledFeatures : null;
+			final Object source = null != stack ? stack : spilled;
+			if( null == source )
+				return 0;
+			final NeighborhoodPlane neighbors = getNeighborFeatures( source );
+			if( null != neighbors )
+				return ( null != stack ? stack.getSize() : spilled.getSize() ) + neighbors.labels.length;
+			if( isCurrent( source ) )
+				return null != stack ? stack.getSize() : spilled.getSize();
+		}
 	}
 	/**
 	 * Get slice label
@@ -349,13 +519,37 @@ public class FeatureStack
 	 * @return slice label
 	 */
 	public String getSliceLabel(int index){
-		return wholeStack.getSliceLabel(index);
+		while( true )
+		{
+			ImageStack stack = wholeStack;
+			final SpilledFeatures spilled = null == stack ? spilledFeatures : null;
+			if( null == stack && null == spilled )
+				// loaded back meanwhile
+				stack = wholeStack;
+			final int size = null != stack ? stack.getSize() : spilled.getSize();
+			if( index <= size )
+				return null != stack ? stack.getSliceLabel(index) : spilled.getSliceLabel(index);
+			// NEIGHBORS features
+			final Object source = null != stack ? stack : spilled;
+			final NeighborhoodPlane neighbors = getNeighborFeatures( source );
+			if( null != neighbors )
+				return neighbors.labels[ index - size - 1 ];
+			if( isCurrent( source ) )
+				return null != stack ? stack.getSliceLabel(index) : spilled.getSliceLabel(index);
+		}
 	}
 	/**
 	 * Get stack height
 	 * @return stack height
 	 */
 	public int getHeight(){
+		final ImageStack stack = wholeStack;
+		if( null != stack )
+			return stack.getHeight();
+		final SpilledFeatures spilled = spilledFeatures;
+		if( null != spilled )
+			return spilled.getHeight();
+		// loaded back meanwhile
 		return wholeStack.getHeight();
 	}
 	/**
@@ -363,6 +557,13 @@ public class FeatureStack
 	 * @return stack width
 	 */
 	public int getWidth(){
+		final ImageStack stack = wholeStack;
+		if( null != stack )
+			return stack.getWidth();
+		final SpilledFeatures spilled = spilledFeatures;
+		if( null != spilled )
+			return spilled.getWidth();
+		// loaded back meanwhile
 		return wholeStack.getWidth();
 	}
 	
@@ -402,11 +603,8 @@ public class FeatureStack
 	 */
 	public void addGaussianBlur(float sigma)
 	{
-		ImageProcessor ip = originalImage.getProcessor().duplicate();
-		GaussianBlur gs = new GaussianBlur();
-		//gs.blur(ip, sigma);
-		gs.blurGaussian(ip, 0.4 * sigma, 0.4 * sigma,  0.0002);
-		wholeStack.addSlice(availableFeatures[GAUSSIAN] + "_" + sigma, ip);
+		ImageProcessor ip = calculateGaussianBlur(originalImage, sigma);
+		addFeatureSlice(availableFeatures[GAUSSIAN] + "_" + sigma, ip);
 	}
 	/**
 	 * Calculate Gaussian filter concurrently
@@ -424,14 +622,59 @@ public class FeatureStack
 		return new Callable<ImagePlus>(){
 			public ImagePlus call(){
 		
-				ImageProcessor ip = originalImage.getProcessor().duplicate();
-				GaussianBlur gs = new GaussianBlur();
-				//gs.blur(ip, sigma);
-				gs.blurGaussian(ip, 0.4 * sigma, 0.4 * sigma,  0.0002);
+				ImageProcessor ip = calculateGaussianBlur(originalImage, sigma);
 				return new ImagePlus (availableFeatures[GAUSSIAN] + "_" + sigma, ip);
 			}
 		};
 	}
+
+	/**
+	 * Get the Gaussian scale-space of an image: the one shared during the
+	 * current feature update if it belongs to the same image, otherwise a
+	 * new one.
+	 *
+	 * @param image input image
+	 * @return scale-space of the image
+	 */
+	private GaussianScaleSpace getScaleSpace(ImagePlus image)
+	{
+		final GaussianScaleSpace current = scaleSpace;
+		if( null != current && current.getImage() == image )
+			return current;
+		return createScaleSpace( image );
+	}
+
+	/**
+	 * Create an empty Gaussian scale-space of an image, using the recursive
+	 * Gaussian filter if enabled.
+	 *
+	 * @param image input image
+	 * @return new scale-space of the image
+	 */
+	private GaussianScaleSpace createScaleSpace(ImagePlus image)
+	{
+		return new GaussianScaleSpace( image, extractChannels( image ), useRecursiveGaussian );
+	}
+
+	/** Helper method to addGaussianBlur and getGaussianBlur */
+	private ImageProcessor calculateGaussianBlur(ImagePlus originalImage, float sigma)
+	{
+		final GaussianScaleSpace scales = getScaleSpace( originalImage );
+		final FloatProcessor[] blurred = scales.getBlurredChannels( sigma );
+		final ImageProcessor ip = originalImage.getProcessor();
+		final ImageProcessor result;
+		if( ip instanceof FloatProcessor )
+			result = blurred[ 0 ].duplicate();
+		else
+		{
+			// same rounding as when blurring the color (or integer) image directly
+			result = ip.createProcessor( ip.getWidth(), ip.getHeight() );
+			for( int ch = 0; ch < blurred.length; ch++ )
+				result.setPixels( ch, blurred[ ch ] );
+		}
+		scales.release( sigma );
+		return result;
+	}
 	
 	/**
 	 * Add entropy filter to current stack
@@ -454,7 +697,7 @@ public class FeatureStack
 											filter.getEntropy(ip, radius, numBins));
 		}
 		ImagePlus merged = mergeResultChannels(results);
-		wholeStack.addSlice(merged.getTitle(), merged.getProcessor());		
+		addFeatureSlice(merged.getTitle(), merged.getProcessor());		
 	}
 	/**
 	 * Calculate entropy filter filter concurrently
@@ -484,8 +727,9 @@ public class FeatureStack
 				for(int ch=0; ch < channels.length; ch++)
 				{
 					final ImageProcessor ip = channels[ ch ].getProcessor().duplicate();										
+					// single thread, the features are already computed in parallel
 					results[ ch ] = new ImagePlus( availableFeatures[ENTROPY] + "_" + radius + "_" + numBins,
-							filter.getEntropy(ip, radius, numBins) );
+							filter.getEntropy(ip, radius, numBins, 1) );
 				}
 				return mergeResultChannels(results);				
 			}
@@ -502,42 +746,9 @@ public class FeatureStack
 			final int maxSigma)
 	{
 		// Test: add neighbors of original image
-				
-		ImagePlus[] channels = extractChannels(originalImage);
-
-		ImagePlus[] results = new ImagePlus[ channels.length ];
-
-		for(int ch=0; ch < channels.length; ch++)
-		{
-			ImageStack result = new ImageStack( originalImage.getWidth(), originalImage.getHeight() );
-			
-			for(int sigma = minSigma; sigma <=maxSigma; sigma *= 2)
-			{
-				double[][] neighborhood = new double[8][originalImage.getWidth() * originalImage.getHeight()];		
-
-				for(int y=0, n=0; y<originalImage.getHeight(); y++)
-					for(int x=0; x<originalImage.getWidth(); x++, n++)					
-					{
-						for(int i = -1 * sigma, k=0;  i < (sigma+1); i += sigma)
-							for(int j = -1 * sigma; j < (sigma+1); j += sigma)
-							{
-								if(i==0 && j==0)
-									continue;				
-								neighborhood[k][n] = getPixelMirrorConditions(channels[ ch ].getProcessor(), x+i, y+j);
-								k++;
-							}
-					}
-
-
-				for(int i=0; i<8; i++)
-					result.addSlice(availableFeatures[ NEIGHBORS ] + "_" + sigma +"_" +  i, new FloatProcessor( originalImage.getWidth(), originalImage.getHeight(), neighborhood[ i ]));						
-			}
-			results[ ch ] = new ImagePlus("Neighbors", result);
-		}
-		ImagePlus merged = mergeResultChannels(results);
-		
-		for(int i=1; i<=merged.getImageStackSize(); i++)
-			wholeStack.addSlice(merged.getImageStack().getSliceLabel(i), merged.getImageStack().getPixels(i));
+		final NeighborhoodPlane neighbors = getNeighborPlane( null, minSigma, maxSigma );
+		for(int k=0; k<neighbors.labels.length; k++)
+			addFeatureSlice( neighbors.labels[ k ], neighbors.getPixels( k ) );
 	}
 	
 	/**
@@ -559,39 +770,174 @@ public class FeatureStack
 			public ImagePlus call(){
 		
 				// Test: add neighbors of original image
-				ImagePlus[] channels = extractChannels(originalImage);
-
-				ImagePlus[] results = new ImagePlus[ channels.length ];
+				final NeighborhoodPlane neighbors = getNeighborPlane( originalImage, null, minSigma, maxSigma );
+				final ImageStack result = new ImageStack( originalImage.getWidth(), originalImage.getHeight() );
+				for(int k=0; k<neighbors.labels.length; k++)
+					result.addSlice( neighbors.labels[ k ], neighbors.getPixels( k ) );
+				return new ImagePlus( "Neighbors", result );
+			}
+		};
+	}
+	
+	/**
+	 * Set the NEIGHBORS features of the current stack. They are not added as
+	 * stack slices but read as shifted pixels of the padded original image
+	 * when the instances are created, and appended to the slices of the stack
+	 * by {@link #getSize()} and {@link #getSliceLabel(int)}. They become
+	 * stack slices only if the stack itself is needed (see
+	 * {@link #getStack()}).
+	 * 
+	 * @param minSigma minimum sigma
+	 * @param maxSigma maximum sigma
+	 */
+	private void setNeighborFeatures(
+			final int minSigma,
+			final int maxSigma)
+	{
+		neighborFeatures = getNeighborPlane( wholeStack, minSigma, maxSigma );
+	}
 
-				for(int ch=0; ch < channels.length; ch++)
+	/**
+	 * Helper method to the neighbor features: shift the original image by
+	 * -sigma, 0 and sigma pixels along X and Y (mirror boundary conditions).
+	 * The channels of the image are padded once with the largest shift and
+	 * every neighbor is then a shifted read of the padded channels.
+	 * 
+	 * @param source stack the neighbors belong to
+	 * @param minSigma minimum sigma
+	 * @param maxSigma maximum sigma
+	 * @return 8 shifted images per sigma
+	 */
+	private NeighborhoodPlane getNeighborPlane(
+			final Object source,
+			final int minSigma,
+			final int maxSigma)
+	{
+		return getNeighborPlane( originalImage, source, minSigma, maxSigma );
+	}
+	
+	/**
+	 * Helper method to the neighbor features of an image (see
+	 * {@link #getNeighborPlane(Object, int, int)}).
+	 * 
+	 * @param image input image
+	 * @param source stack the neighbors belong to
+	 * @param minSigma minimum sigma
+	 * @param maxSigma maximum sigma
+	 * @return 8 shifted images per sigma
+	 */
+	private NeighborhoodPlane getNeighborPlane(
+			final ImagePlus image,
+			final Object source,
+			final int minSigma,
+			final int maxSigma)
+	{
+		final ImagePlus[] channels = extractChannels( image );
+		
+		int pad = minSigma;
+		while( pad * 2 <= maxSigma )
+			pad *= 2;
+		final float[][] padded = new float[ channels.length ][];
+		for(int ch=0; ch < channels.length; ch++)
+			padded[ ch ] = getMirrorPadded( channels[ ch ].getProcessor(), pad );
+		final int paddedWidth = image.getWidth() + 2 * pad;
+		
+		final ArrayList<Integer> shifts = new ArrayList<Integer>();
+		final ArrayList<String> labels = new ArrayList<String>();
+		for(int sigma = minSigma; sigma <=maxSigma; sigma *= 2)
+		{
+			for(int i = -1 * sigma, k=0;  i < (sigma+1); i += sigma)
+				for(int j = -1 * sigma; j < (sigma+1); j += sigma)
 				{
-					ImageStack result = new ImageStack( originalImage.getWidth(), originalImage.getHeight() );
-					for(int sigma = minSigma; sigma <=maxSigma; sigma *= 2)
-					{
-						double[][] neighborhood = new double[8][originalImage.getWidth() * originalImage.getHeight()];		
-
-						for(int y=0, n=0; y<originalImage.getHeight(); y++)
-							for(int x=0; x<originalImage.getWidth(); x++, n++)
-							{
-								for(int i=-1 * sigma, k=0;  i < (sigma+1); i+=sigma)
-									for(int j = -1 * sigma; j < (sigma+1); j+=sigma)
-									{
-										if(i==0 && j==0)
-											continue;				
-										neighborhood[k][n] = getPixelMirrorConditions(channels[ ch ].getProcessor(), x+i, y+j);
-										k++;
-									}
-							}
-
-						
-						for(int i=0; i<8; i++)
-							result.addSlice(availableFeatures[ NEIGHBORS] + "_" + sigma +"_" +  i, new FloatProcessor( originalImage.getWidth(), originalImage.getHeight(), neighborhood[ i ]));						
-					}
-					results[ ch ] = new ImagePlus("Neighbors", result);
+					if(i==0 && j==0)
+						continue;
+					shifts.add( j * paddedWidth + i );
+					labels.add( availableFeatures[ NEIGHBORS ] + "_" + sigma +"_" +  k );
+					k++;
 				}
-				return mergeResultChannels(results);
-			}
-		};
+		}
+		final int[] offsets = new int[ shifts.size() ];
+		for(int k=0; k<offsets.length; k++)
+			offsets[ k ] = shifts.get( k );
+		return new NeighborhoodPlane( source, padded, paddedWidth, pad,
+				offsets, labels.toArray( new String[ labels.size() ] ) );
+	}
+	
+	/**
+	 * Add a slice to the stack, after the NEIGHBORS features if they are
+	 * not stack slices yet.
+	 * @param label slice label
+	 * @param pixels slice pixels
+	 */
+	private void addFeatureSlice( String label, Object pixels )
+	{
+		materializeNeighbors();
+		wholeStack.addSlice( label, pixels );
+	}
+	
+	/**
+	 * Add a slice to the stack, after the NEIGHBORS features if they are
+	 * not stack slices yet.
+	 * @param label slice label
+	 * @param ip slice image
+	 */
+	private void addFeatureSlice( String label, ImageProcessor ip )
+	{
+		materializeNeighbors();
+		wholeStack.addSlice( label, ip );
+	}
+	
+	/**
+	 * Add the NEIGHBORS features of the stack as stack slices (see
+	 * {@link #setNeighborFeatures(int, int)}). Spilled features must be
+	 * loaded first.
+	 */
+	private void materializeNeighbors()
+	{
+		synchronized( this )
+		{
+			final ImageStack stack = wholeStack;
+			final NeighborhoodPlane neighbors = getNeighborFeatures( stack );
+			if( null == neighbors )
+				return;
+			// new stack, so the readers of the current one stay consistent
+			final ImageStack extended = new ImageStack( stack.getWidth(), stack.getHeight() );
+			for(int i=1; i<=stack.getSize(); i++)
+				extended.addSlice( stack.getSliceLabel( i ), stack.getPixels( i ) );
+			for(int k=0; k<neighbors.labels.length; k++)
+				extended.addSlice( neighbors.labels[ k ], neighbors.getPixels( k ) );
+			wholeStack = extended;
+			neighborFeatures = null;
+			// packed without the NEIGHBORS features
+			packedFeatures = null;
+		}
+	}
+	
+	/**
+	 * Get the NEIGHBORS features appended to a stack.
+	 * @param source stack in memory or spilled features
+	 * @return NEIGHBORS features of the source, or null
+	 */
+	private NeighborhoodPlane getNeighborFeatures( Object source )
+	{
+		final NeighborhoodPlane neighbors = neighborFeatures;
+		if( null == neighbors || !neighbors.belongsTo( source ) )
+			return null;
+		return neighbors;
+	}
+	
+	/**
+	 * Check if a stack is still the current one. If a stack is spilled,
+	 * loaded back or gets its NEIGHBORS features as slices while it is
+	 * read, there is no telling whether the NEIGHBORS features read with
+	 * it were appended to it, so it must be read again.
+	 * @param source stack in memory or spilled features
+	 * @return true if the source holds the current features
+	 */
+	private boolean isCurrent( Object source )
+	{
+		final ImageStack stack = wholeStack;
+		return source == ( null != stack ? stack : spilledFeatures );
 	}
 	
 	
@@ -614,7 +960,7 @@ public class FeatureStack
 			results[ ch ] = new ImagePlus(availableFeatures[VARIANCE]+ "_"  + radius, ip);
 		}
 		ImagePlus merged = mergeResultChannels(results);
-		wholeStack.addSlice(merged.getTitle(), merged.getProcessor());
+		addFeatureSlice(merged.getTitle(), merged.getProcessor());
 	}
 	/**
 	 * Calculate variance filter concurrently
@@ -655,7 +1001,7 @@ public class FeatureStack
 		final ImageProcessor ip = originalImage.getProcessor().duplicate();
 		final RankFilters filter = new RankFilters();
 		filter.rank(ip, radius, RankFilters.MEAN);
-		wholeStack.addSlice(availableFeatures[MEAN]+ "_"  + radius, ip);
+		addFeatureSlice(availableFeatures[MEAN]+ "_"  + radius, ip);
 	}
 	
 	/**
@@ -689,10 +1035,8 @@ public class FeatureStack
 	 */
 	public void addMin(float radius)
 	{
-		final ImageProcessor ip = originalImage.getProcessor().duplicate();
-		final RankFilters filter = new RankFilters();
-		filter.rank(ip, radius, RankFilters.MIN);
-		wholeStack.addSlice(availableFeatures[MINIMUM]+ "_"  + radius, ip);
+		final ImageProcessor ip = filterMinMax(originalImage.getProcessor(), radius, false, Prefs.getThreads());
+		addFeatureSlice(availableFeatures[MINIMUM]+ "_"  + radius, ip);
 	}
 	
 	/**
@@ -711,25 +1055,48 @@ public class FeatureStack
 		
 		return new Callable<ImagePlus>(){
 			public ImagePlus call(){
-		
-				final ImageProcessor ip = originalImage.getProcessor().duplicate();
-				final RankFilters filter = new RankFilters();
-				filter.rank(ip, radius, RankFilters.MIN);
+				// single thread, the features are already computed in parallel
+				final ImageProcessor ip = filterMinMax(originalImage.getProcessor(), radius, false, 1);
 				return new ImagePlus (availableFeatures[MINIMUM]+ "_"  + radius, ip);
 			}
 		};
 	}
 	
+	/**
+	 * Helper method to the minimum and maximum features: filter a (copy of
+	 * an) image with the circular kernel of RankFilters. Grayscale images
+	 * use the van Herk-Gil-Werman filter, whose cost grows only linearly
+	 * with the radius, and color images RankFilters.
+	 * @param ip input image (not modified)
+	 * @param radius radius of the filter in pixels
+	 * @param maximum true for the maximum filter, false for the minimum filter
+	 * @param numThreads number of threads to use
+	 * @return filtered image
+	 */
+	private static ImageProcessor filterMinMax(
+			final ImageProcessor ip,
+			final float radius,
+			final boolean maximum,
+			final int numThreads)
+	{
+		if( ip instanceof FloatProcessor )
+			return new FloatProcessor( ip.getWidth(), ip.getHeight(),
+					MinMaxFilter.filter2D( (float[]) ip.getPixels(), ip.getWidth(), ip.getHeight(),
+							radius, maximum, numThreads ) );
+		final ImageProcessor result = ip.duplicate();
+		final RankFilters filter = new RankFilters();
+		filter.rank(result, radius, maximum ? RankFilters.MAX : RankFilters.MIN);
+		return result;
+	}
+
 	/**
 	 * Add maximum filter to current feature stack.
 	 * @param radius radius of the maximum filter in pixels
 	 */
 	public void addMax(float radius)
 	{
-		final ImageProcessor ip = originalImage.getProcessor().duplicate();
-		final RankFilters filter = new RankFilters();
-		filter.rank(ip, radius, RankFilters.MAX);
-		wholeStack.addSlice(availableFeatures[MAXIMUM]+ "_"  + radius, ip);
+		final ImageProcessor ip = filterMinMax(originalImage.getProcessor(), radius, true, Prefs.getThreads());
+		addFeatureSlice(availableFeatures[MAXIMUM]+ "_"  + radius, ip);
 	}
 	
 	/**
@@ -748,10 +1115,8 @@ public class FeatureStack
 		
 		return new Callable<ImagePlus>(){
 			public ImagePlus call(){
-		
-				final ImageProcessor ip = originalImage.getProcessor().duplicate();
-				final RankFilters filter = new RankFilters();
-				filter.rank(ip, radius, RankFilters.MAX);
+				// single thread, the features are already computed in parallel
+				final ImageProcessor ip = filterMinMax(originalImage.getProcessor(), radius, true, 1);
 				return new ImagePlus (availableFeatures[MAXIMUM]+ "_"  + radius, ip);
 			}
 		};
@@ -766,7 +1131,7 @@ public class FeatureStack
 		final ImageProcessor ip = originalImage.getProcessor().duplicate();
 		final RankFilters filter = new RankFilters();
 		filter.rank(ip, radius, RankFilters.MEDIAN);
-		wholeStack.addSlice(availableFeatures[MEDIAN]+ "_"  + radius, ip);
+		addFeatureSlice(availableFeatures[MEDIAN]+ "_"  + radius, ip);
 	}
 	
 	/**
@@ -801,14 +1166,15 @@ public class FeatureStack
 	 */
 	public void writeConfigurationToFile(String filename)
 	{
+		ensureLoaded();
 		try{
 			BufferedWriter out = new BufferedWriter(
 					new OutputStreamWriter(
 							new FileOutputStream(filename), StandardCharsets.UTF_8) );
 			try{	
-				for (int i=1; i <= wholeStack.getSize(); i++)
+				for (int i=1; i <= getSize(); i++)
 				{
-					out.write(wholeStack.getSliceLabel(i));
+					out.write(getSliceLabel(i));
 					out.newLine();
 				}
 				out.close();
@@ -825,25 +1191,20 @@ public class FeatureStack
 	 */
 	public void addGradient(float sigma)
 	{
-		// Get channel(s) to process
-		ImagePlus[] channels = extractChannels(originalImage);
+		// Get channel(s) to process, already blurred
+		FloatProcessor[] blurred = getScaleSpace(originalImage).getBlurredChannels(sigma);
 		
-		ImagePlus[] results = new ImagePlus[ channels.length ];
+		ImagePlus[] results = new ImagePlus[ blurred.length ];
 		
-		for(int ch=0; ch < channels.length; ch++)
+		for(int ch=0; ch < blurred.length; ch++)
 		{
 
-			GaussianBlur gs = new GaussianBlur();
-			ImageProcessor ip_x = channels[ch].getProcessor().duplicate().convertToFloat();
-			//gs.blur(ip_x, sigma);
-			gs.blurGaussian(ip_x, 0.4 * sigma, 0.4 * sigma,  0.0002);
+			ImageProcessor ip_x = blurred[ch].duplicate();
 			Convolver c = new Convolver();
 			float[] sobelFilter_x = {1f,2f,1f,0f,0f,0f,-1f,-2f,-1f};
 			c.convolveFloat(ip_x, sobelFilter_x, 3, 3);
 
-			ImageProcessor ip_y = channels[ch].getProcessor().duplicate().convertToFloat();
-			//gs.blur(ip_y, sigma);
-			gs.blurGaussian(ip_y, 0.4 * sigma, 0.4 * sigma,  0.0002);
+			ImageProcessor ip_y = blurred[ch].duplicate();
 			c = new Convolver();
 			float[] sobelFilter_y = {1f,0f,-1f,2f,0f,-2f,1f,0f,-1f};
 			c.convolveFloat(ip_y, sobelFilter_y, 3, 3);
@@ -861,7 +1222,7 @@ public class FeatureStack
 		}
 		
 		ImagePlus merged = mergeResultChannels(results);		
-		wholeStack.addSlice(merged.getTitle(), merged.getImageStack().getProcessor(1));
+		addFeatureSlice(merged.getTitle(), merged.getImageStack().getProcessor(1));
 	}
 	
 	/**
@@ -881,25 +1242,21 @@ public class FeatureStack
 		return new Callable<ImagePlus>(){
 			public ImagePlus call(){
 		
-				// Get channel(s) to process
-				ImagePlus[] channels = extractChannels(originalImage);
+				// Get channel(s) to process, already blurred
+				final GaussianScaleSpace scales = getScaleSpace(originalImage);
+				FloatProcessor[] blurred = scales.getBlurredChannels(sigma);
 				
-				ImagePlus[] results = new ImagePlus[ channels.length ];
+				ImagePlus[] results = new ImagePlus[ blurred.length ];
 				
-				for(int ch=0; ch < channels.length; ch++)
+				for(int ch=0; ch < blurred.length; ch++)
 				{
 
-					GaussianBlur gs = new GaussianBlur();
-					ImageProcessor ip_x = channels[ch].getProcessor().duplicate().convertToFloat();
-					//gs.blur(ip_x, sigma);
-					gs.blurGaussian(ip_x, 0.4 * sigma, 0.4 * sigma,  0.0002);
+					ImageProcessor ip_x = blurred[ch].duplicate();
 					Convolver c = new Convolver();
 					float[] sobelFilter_x = {1f,2f,1f,0f,0f,0f,-1f,-2f,-1f};
 					c.convolveFloat(ip_x, sobelFilter_x, 3, 3);
 
-					ImageProcessor ip_y = channels[ch].getProcessor().duplicate().convertToFloat();
-					//gs.blur(ip_y, sigma);
-					gs.blurGaussian(ip_y, 0.4 * sigma, 0.4 * sigma,  0.0002);
+					ImageProcessor ip_y = blurred[ch].duplicate();
 					c = new Convolver();
 					float[] sobelFilter_y = {1f,0f,-1f,2f,0f,-2f,1f,0f,-1f};
 					c.convolveFloat(ip_y, sobelFilter_y, 3, 3);
@@ -915,6 +1272,7 @@ public class FeatureStack
 					}
 					results[ ch ] = new ImagePlus(availableFeatures[SOBEL]+ "_"  +sigma, ip);
 				}
+				scales.release(sigma);
 				
 				return mergeResultChannels(results);
 			}
@@ -931,10 +1289,10 @@ public class FeatureStack
 	 */
 	public void addHessian(float sigma)
 	{
-		ImagePlus merged = calculateHessian(originalImage, sigma);
+		ImagePlus merged = calculateHessian(originalImage, sigma, Prefs.getThreads());
 
 		for(int i=1; i<=merged.getImageStackSize(); i++)
-			wholeStack.addSlice(merged.getImageStack().getSliceLabel(i), merged.getImageStack().getPixels(i));
+			addFeatureSlice(merged.getImageStack().getSliceLabel(i), merged.getImageStack().getPixels(i));
 	}
 
 	/**
@@ -956,121 +1314,46 @@ public class FeatureStack
 		
 		return new Callable<ImagePlus>(){
 			public ImagePlus call(){
-				return calculateHessian(originalImage, sigma);
+				// single thread, the features are already computed in parallel
+				return calculateHessian(originalImage, sigma, 1);
 			}
 		};
 	}
 
 	/** Helper method to addHessian and getHessian */
-	private ImagePlus calculateHessian(ImagePlus originalImage, float sigma) {
-		ImagePlus[] channels = extractChannels(originalImage);
-		ImagePlus[] results = new ImagePlus[ channels.length ];
+	private ImagePlus calculateHessian(ImagePlus originalImage, float sigma, int numThreads) {
+		final GaussianScaleSpace scales = getScaleSpace(originalImage);
+		FloatProcessor[] blurred = scales.getBlurredChannels(sigma);
+		ImagePlus[] results = new ImagePlus[ blurred.length ];
 
-		for(int ch=0; ch < channels.length; ch++)
-			results[ ch ] = calculateHessianOnChannel(channels[ch], sigma);
+		for(int ch=0; ch < blurred.length; ch++)
+			results[ ch ] = calculateHessianOnChannel(blurred[ch], sigma, numThreads);
+		scales.release(sigma);
 
 		return mergeResultChannels(results);
 	}
 
-	/** Helper method to addHessian and getHessian */
-	private ImagePlus calculateHessianOnChannel(ImagePlus channel, float sigma)
+	/**
+	 * Helper method to addHessian and getHessian
+	 * @param blurred channel already blurred with the Gaussian sigma (not modified)
+	 * @param sigma Gaussian sigma (used in the slice labels)
+	 * @param numThreads number of threads to use
+	 */
+	private ImagePlus calculateHessianOnChannel(FloatProcessor blurred, float sigma, int numThreads)
 	{
-		float[] sobelFilter_x = {1f,2f,1f,0f,0f,0f,-1f,-2f,-1f};
-		float[] sobelFilter_y = {1f,0f,-1f,2f,0f,-2f,1f,0f,-1f};
-
-		Convolver c = new Convolver();
-		GaussianBlur gs = new GaussianBlur();
-
-		int width = channel.getWidth();
-		int height = channel.getHeight();
-
-		ImageProcessor ip_x = channel.getProcessor().duplicate().convertToFloat();
-		gs.blurGaussian(ip_x, 0.4 * sigma, 0.4 * sigma,  0.0002);
-		c.convolveFloat(ip_x, sobelFilter_x, 3, 3);
-
-		ImageProcessor ip_y = channel.getProcessor().duplicate().convertToFloat();
-		gs.blurGaussian(ip_y, 0.4 * sigma, 0.4 * sigma,  0.0002);
-		c.convolveFloat(ip_y, sobelFilter_y, 3, 3);
-
-		ImageProcessor ip_xx = ip_x.duplicate();
-		c.convolveFloat(ip_xx, sobelFilter_x, 3, 3);
-
-		ImageProcessor ip_xy = ip_x.duplicate();
-		c.convolveFloat(ip_xy, sobelFilter_y, 3, 3);
-
-		ImageProcessor ip_yy = ip_y.duplicate();
-		c.convolveFloat(ip_yy, sobelFilter_y, 3, 3);
-
-		ImageProcessor ip = new FloatProcessor(width, height);
-		ImageProcessor ipTr = new FloatProcessor(width, height);
-		ImageProcessor ipDet = new FloatProcessor(width, height);
-		//ImageProcessor ipRatio = new FloatProcessor(width, height);
-		ImageProcessor ipEig1 = new FloatProcessor(width, height);
-		ImageProcessor ipEig2 = new FloatProcessor(width, height);
-		ImageProcessor ipOri = new FloatProcessor(width, height);
-		ImageProcessor ipSed = new FloatProcessor(width, height);
-		ImageProcessor ipNed = new FloatProcessor(width, height);
-
-		final double t = Math.pow(1, 0.75);
-
-		for (int x=0; x<width; x++){
-			for (int y=0; y<height; y++)
-			{
-				// a
-				float s_xx = ip_xx.getf(x,y);
-				// b, c
-				float s_xy = ip_xy.getf(x,y);
-				// d
-				float s_yy = ip_yy.getf(x,y);
-				// Hessian module: sqrt (a^2 + b*c + d^2)
-				ip.setf(x,y, (float) Math.sqrt(s_xx*s_xx + s_xy*s_xy+ s_yy*s_yy));
-				// Trace: a + d
-				final float trace = s_xx + s_yy;
-				ipTr.setf(x,y,  trace);
-				// Determinant: a*d - c*b
-				final float determinant = s_xx*s_yy-s_xy*s_xy;
-				ipDet.setf(x,y, determinant);
-
-				// Ratio
-				//ipRatio.setf(x,y, (float)(trace*trace) / determinant);
-				// First and second eigenvalues
-				if( this.isOldHessianFormat() )
-				{
-					// First eigenvalue: (a + d) / 2 + sqrt( ( 4*b^2 + (a - d)^2) / 2 )
-					ipEig1.setf(x,y, (float) ( trace/2.0 + Math.sqrt((4*s_xy*s_xy + (s_xx - s_yy)*(s_xx - s_yy)) / 2.0 ) ) );
-					// Second eigenvalue: (a + d) / 2 - sqrt( ( 4*b^2 + (a - d)^2) / 2 )
-					ipEig2.setf(x,y, (float) ( trace/2.0 - Math.sqrt((4*s_xy*s_xy + (s_xx - s_yy)*(s_xx - s_yy)) / 2.0 ) ) );
-				}
-				else
-				{
-					// First eigenvalue: (a + d + sqrt( ( 4*b^2 + (a - d)^2 ) ) / 2
-					ipEig1.setf(x,y, (float) ( trace + Math.sqrt((4*s_xy*s_xy + (s_xx - s_yy)*(s_xx - s_yy)) ) ) / 2 );
-					// Second eigenvalue: (a + d - sqrt( ( 4*b^2 + (a - d)^2) ) / 2
-					ipEig2.setf(x,y, (float) ( trace - Math.sqrt((4*s_xy*s_xy + (s_xx - s_yy)*(s_xx - s_yy)) ) ) / 2 );
-				}
-				// Orientation
-				if (s_xy < 0.0) // -0.5 * acos( (a-d) / sqrt( 4*b^2 + (a - d)^2)) )
-				{
-					float orientation =(float)( -0.5 * Math.acos((s_xx	- s_yy)
-							/ Math.sqrt(4.0 * s_xy * s_xy + (s_xx - s_yy) * (s_xx - s_yy)) ));
-					if (Float.isNaN(orientation))
-						orientation = 0;
-					ipOri.setf(x, y,  orientation);
-				}
-				else 	// 0.5 * acos( (a-d) / sqrt( 4*b^2 + (a - d)^2)) )
-				{
-					float orientation =(float)( 0.5 * Math.acos((s_xx	- s_yy)
-							/ Math.sqrt(4.0 * s_xy * s_xy + (s_xx - s_yy) * (s_xx - s_yy)) ));
-					if (Float.isNaN(orientation))
-						orientation = 0;
-					ipOri.setf(x, y,  orientation);
-				}
-				// Gamma-normalized square eigenvalue difference
-				ipSed.setf(x, y, (float) ( Math.pow(t,4) * trace*trace * ( (s_xx - s_yy)*(s_xx - s_yy) + 4*s_xy*s_xy ) ) );
-				// Square of Gamma-normalized eigenvalue difference
-				ipNed.setf(x, y, (float) ( Math.pow(t,2) * ( (s_xx - s_yy)*(s_xx - s_yy) + 4*s_xy*s_xy ) ) );
-			}
-		}
+		int width = blurred.getWidth();
+		int height = blurred.getHeight();
+
+		final float[][] features = HessianFeatures.compute( (float[]) blurred.getPixels(),
+				width, height, this.isOldHessianFormat(), numThreads );
+		ImageProcessor ip = new FloatProcessor(width, height, features[ 0 ]);
+		ImageProcessor ipTr = new FloatProcessor(width, height, features[ 1 ]);
+		ImageProcessor ipDet = new FloatProcessor(width, height, features[ 2 ]);
+		ImageProcessor ipEig1 = new FloatProcessor(width, height, features[ 3 ]);
+		ImageProcessor ipEig2 = new FloatProcessor(width, height, features[ 4 ]);
+		ImageProcessor ipOri = new FloatProcessor(width, height, features[ 5 ]);
+		ImageProcessor ipSed = new FloatProcessor(width, height, features[ 6 ]);
+		ImageProcessor ipNed = new FloatProcessor(width, height, features[ 7 ]);
 
 		ImageStack hessianStack = new ImageStack(width, height);
 		hessianStack.addSlice(availableFeatures[HESSIAN] + "_"  + sigma, ip);
@@ -1093,21 +1376,17 @@ public class FeatureStack
 	 */
 	public void addDoG(float sigma1, float sigma2)
 	{
-		GaussianBlur gs = new GaussianBlur();
-		
-		// Get channel(s) to process
-		ImagePlus[] channels = extractChannels(originalImage);
+		// Get channel(s) to process, blurred with both sigmas
+		final GaussianScaleSpace scales = getScaleSpace(originalImage);
+		FloatProcessor[] blurred1 = scales.getBlurredChannels(sigma1);
+		FloatProcessor[] blurred2 = scales.getBlurredChannels(sigma2);
 
-		ImagePlus[] results = new ImagePlus[ channels.length ];
+		ImagePlus[] results = new ImagePlus[ blurred1.length ];
 
-		for(int ch=0; ch < channels.length; ch++)
+		for(int ch=0; ch < blurred1.length; ch++)
 		{
-			ImageProcessor ip_1 = channels[ch].getProcessor().duplicate();
-			//gs.blur(ip_1, sigma1);
-			gs.blurGaussian(ip_1, 0.4 * sigma1, 0.4 * sigma1,  0.0002);
-			ImageProcessor ip_2 = channels[ch].getProcessor().duplicate();			
-			//gs.blur(ip_2, sigma2);
-			gs.blurGaussian(ip_2, 0.4 * sigma2, 0.4 * sigma2,  0.0002);
+			ImageProcessor ip_1 = blurred1[ch];
+			ImageProcessor ip_2 = blurred2[ch];
 
 			ImageProcessor ip = new FloatProcessor(width, height);
 
@@ -1123,7 +1402,7 @@ public class FeatureStack
 		}
 		
 		ImagePlus merged = mergeResultChannels(results);		
-		wholeStack.addSlice(merged.getTitle(), merged.getImageStack().getProcessor(1));
+		addFeatureSlice(merged.getTitle(), merged.getImageStack().getProcessor(1));
 	}
 	
 	/**
@@ -1147,20 +1426,17 @@ public class FeatureStack
 				final int width = originalImage.getWidth();
 				final int height = originalImage.getHeight();
 				
-				GaussianBlur gs = new GaussianBlur();
-				// Get channel(s) to process
-				ImagePlus[] channels = extractChannels(originalImage);
+				// Get channel(s) to process, blurred with both sigmas
+				final GaussianScaleSpace scales = getScaleSpace(originalImage);
+				FloatProcessor[] blurred1 = scales.getBlurredChannels(sigma1);
+				FloatProcessor[] blurred2 = scales.getBlurredChannels(sigma2);
 
-				ImagePlus[] results = new ImagePlus[ channels.length ];
+				ImagePlus[] results = new ImagePlus[ blurred1.length ];
 
-				for(int ch=0; ch < channels.length; ch++)
+				for(int ch=0; ch < blurred1.length; ch++)
 				{
-					ImageProcessor ip_1 = channels[ch].getProcessor().duplicate();
-					//gs.blur(ip_1, sigma1);
-					gs.blurGaussian(ip_1, 0.4 * sigma1, 0.4 * sigma1,  0.0002);
-					ImageProcessor ip_2 = channels[ch].getProcessor().duplicate();
-					//gs.blur(ip_2, sigma2);
-					gs.blurGaussian(ip_2, 0.4 * sigma2, 0.4 * sigma2,  0.0002);
+					ImageProcessor ip_1 = blurred1[ch];
+					ImageProcessor ip_2 = blurred2[ch];
 
 					ImageProcessor ip = new FloatProcessor(width, height);
 
@@ -1174,6 +1450,8 @@ public class FeatureStack
 				
 					results[ ch ] = new ImagePlus(availableFeatures[DOG]+ "_"+sigma1+"_"+sigma2, ip);
 				}
+				scales.release(sigma1);
+				scales.release(sigma2);
 				
 				return mergeResultChannels(results);
 			}
@@ -1187,143 +1465,157 @@ public class FeatureStack
 	 */
 	public void addMembraneFeatures(int patchSize, int membraneSize)
 	{
-		//create membrane patch
-		ImageProcessor membranePatch = new FloatProcessor(patchSize, patchSize);
-		int middle = Math.round(patchSize / 2);
-		int startX = middle - (int) Math.floor(membraneSize/2.0);
-		int endX = middle + (int) Math.ceil(membraneSize/2.0);
-		
-		for (int x=startX; x<=endX; x++)
-			for (int y=0; y<patchSize; y++)
-				membranePatch.setf(x, y, 1f);
-											
-		ImageProcessor rotatedPatch;
-
-        final double rotationAngle = 180/nAngles;
-        
         // Get channel(s) to process
 		ImagePlus[] channels = extractChannels(originalImage);
 
 		ImagePlus[] results = new ImagePlus[ channels.length ];
 
-		final Convolver c = new Convolver();
+		final FFTConvolver convolver = createMembraneConvolver(
+				width, height, patchSize, membraneSize, nAngles );
 		
 		for(int ch=0; ch < channels.length; ch++)
 		{
         
-			ImageStack is = new ImageStack(width, height);
-			
-			// Rotate kernel "nAngles" degrees up to 180
-			for (int i=0; i<nAngles; i++)
-			{
-				rotatedPatch = membranePatch.duplicate();
-				rotatedPatch.rotate(i*rotationAngle);				
-
-				float[] kernel = (float[]) rotatedPatch.getPixels();
-				ImageProcessor ip = channels[ ch ].getProcessor().duplicate();
-				c.convolveFloat(ip, kernel, patchSize, patchSize);
-
-				is.addSlice("Membrane_"+patchSize+"_"+membraneSize, ip);
-				//    wholeStack.addSlice("Membrane_"+patchSize+"_"+membraneSize, ip.convertToByte(true));
-			}
-
-			ImagePlus projectStack = new ImagePlus("membraneStack",is);
-			//projectStack.show();
+			// Filter with the kernel rotated "nAngles" degrees up to 180
+			final float[][] filtered = convolver.filter(
+					(float[]) channels[ ch ].getProcessor().getPixels(), null );
 
-			ImageStack membraneStack = new ImageStack(width, height);
-
-			ZProjector zp = new ZProjector(projectStack);
-			zp.setStopSlice(is.getSize());
-			for (int i=0;i<6; i++){
-				zp.setMethod(i);
-				zp.doProjection();
-				membraneStack.addSlice(availableFeatures[MEMBRANE] + "_" +i+"_"+patchSize+"_"+membraneSize, zp.getProjection().getChannelProcessor());
-			}
-			results[ ch ] =  new ImagePlus ("membrane stack", membraneStack);
+			results[ ch ] =  new ImagePlus ("membrane stack",
+					projectMembraneResponses( filtered, width, height, patchSize, membraneSize ) );
 		}
 		
 		ImagePlus merged = mergeResultChannels( results );
 		for(int i=1; i<=merged.getImageStackSize(); i++)
-			wholeStack.addSlice(merged.getImageStack().getSliceLabel(i), merged.getImageStack().getPixels(i));
+			addFeatureSlice(merged.getImageStack().getSliceLabel(i), merged.getImageStack().getPixels(i));
 	}
 	
 	/**
-	 * Get membrane features (to be submitted in an ExecutorService)
-	 * @param originalImage input image
-	 * @param patchSize orientation kernel size
-	 * @param membraneSize expected membrane thickness
-	 * @return image stack with elongated membrane projections using all methods ("Average Intensity", "Max Intensity", "Min Intensity", "Sum Slices", "Standard Deviation", "Median")
+	 * Helper method to addMembraneFeatures and getMembraneFeatures: get
+	 * the filter with the membrane patch rotated "nAngles" degrees up to 180.
+	 * The kernels are normalized and correlated with the image directly, so
+	 * the features are exactly the ones of ImageJ's Convolver. Both the
+	 * kernels and the filter are taken from the kernel cache when possible.
 	 */
-	public Callable<ImagePlus> getMembraneFeatures(
-			final ImagePlus originalImage,
-			final int patchSize, 
-			final int membraneSize)
+	private static FFTConvolver createMembraneConvolver(
+			final int width,
+			final int height,
+			final int patchSize,
+			final int membraneSize,
+			final int nAngles )
 	{
-		if (Thread.currentThread().isInterrupted()) 
-			return null;
-		
-		return new Callable<ImagePlus>(){
-			public ImagePlus call(){
-		
-				 final int width = originalImage.getWidth();
-                 final int height = originalImage.getHeight();
+		final KernelCache cache = KernelCache.getInstance();
+		return cache.get(
+				KernelCache.key( "Membrane filter", width, height, patchSize, membraneSize, nAngles ),
+				new Callable<FFTConvolver>(){
+					public FFTConvolver call()
+					{
+						final float[][] kernels = cache.get(
+								KernelCache.key( "Membrane kernels", patchSize, membraneSize, nAngles ),
+								new Callable<float[][]>(){
+									public float[][] call()
+									{
+										return createMembraneKernels( patchSize, membraneSize, nAngles );
+									}
+								});
+						return new FFTConvolver( width, height, kernels,
+								patchSize, patchSize, true );
+					}
+				});
+	}
+
+	/**
+	 * Helper method to createMembraneConvolver: create the membrane patch
+	 * and rotate it "nAngles" degrees up to 180 (the filter normalizes them).
+	 */
+	private static float[][] createMembraneKernels(
+			final int patchSize,
+			final int membraneSize,
+			final int nAngles )
+	{
+		//create membrane patch
+		final ImageProcessor membranePatch = new FloatProcessor(patchSize, patchSize);
+		int middle = Math.round(patchSize / 2);
+		int startX = middle - (int) Math.floor(membraneSize/2.0);
+		int endX = middle + (int) Math.ceil(membraneSize/2.0);
 
-                 //create membrane patch
-                 final ImageProcessor membranePatch = new FloatProcessor(patchSize, patchSize);
-                 int middle = Math.round(patchSize / 2);
-                 int startX = middle - (int) Math.floor(membraneSize/2.0);
-                 int endX = middle + (int) Math.ceil(membraneSize/2.0);
+		for (int x=startX; x<=endX; x++)
+			for (int y=0; y<patchSize; y++)
+				membranePatch.setf(x, y, 1f);
 
-                 for (int x=startX; x<=endX; x++){
-                         for (int y=0; y<patchSize; y++){
-                                 membranePatch.setf(x, y, 1f);
-                         }
-                 }
+		final double rotationAngle = 180/nAngles;
+		final float[][] kernels = new float[ nAngles ][];
+		for (int i=0; i<nAngles; i++)
+		{
+			final ImageProcessor rotatedPatch = membranePatch.duplicate();
+			rotatedPatch.rotate(i*rotationAngle);
+			kernels[ i ] = (float[]) rotatedPatch.getPixels();
+		}
+		return kernels;
+	}
 
-                 
-                 ImageProcessor rotatedPatch;
+	/**
+	 * Helper method to addMembraneFeatures and getMembraneFeatures: project
+	 * the responses to all orientations with all methods ("Average
+	 * Intensity", "Max Intensity", "Min Intensity", "Sum Slices", "Standard
+	 * Deviation", "Median") in a single pass.
+	 */
+	private ImageStack projectMembraneResponses(
+			final float[][] responses,
+			final int width,
+			final int height,
+			final int patchSize,
+			final int membraneSize )
+	{
+		final float[][] projections = OrientationProjection.project( responses,
+				OrientationProjection.AVERAGE, OrientationProjection.MAX,
+				OrientationProjection.MIN, OrientationProjection.SUM,
+				OrientationProjection.STANDARD_DEVIATION, OrientationProjection.MEDIAN );
+
+		final ImageStack membraneStack = new ImageStack(width, height);
+		for (int i=0;i<projections.length; i++)
+			membraneStack.addSlice(availableFeatures[MEMBRANE] + "_" +i+"_"+patchSize+"_"+membraneSize,
+					new FloatProcessor( width, height, projections[ i ] ));
+		return membraneStack;
+	}
+
+	/**
+	 * Get membrane features (to be submitted in an ExecutorService)
+	 * @param originalImage input image
+	 * @param patchSize orientation kernel size
+	 * @param membraneSize expected membrane thickness
+	 * @return image stack with elongated membrane projections using all methods ("Average Intensity", "Max Intensity", "Min Intensity", "Sum Slices", "Standard Deviation", "Median")
+	 */
+	public Callable<ImagePlus> getMembraneFeatures(
+			final ImagePlus originalImage,
+			final int patchSize, 
+			final int membraneSize)
+	{
+		if (Thread.currentThread().isInterrupted()) 
+			return null;
+		
+		return new Callable<ImagePlus>(){
+			public ImagePlus call(){
+		
+				 final int width = originalImage.getWidth();
+                 final int height = originalImage.getHeight();
 
-                 final double rotationAngle = 180/nAngles;
-                 
                  // Get channel(s) to process
  				ImagePlus[] channels = extractChannels(originalImage);
 
  				ImagePlus[] results = new ImagePlus[ channels.length ];
 
- 				final Convolver c = new Convolver();
+ 				final FFTConvolver convolver = createMembraneConvolver(
+ 						width, height, patchSize, membraneSize, nAngles );
  				
  				for(int ch=0; ch < channels.length; ch++)
  				{
                  
- 					ImageStack is = new ImageStack(width, height);
- 					
- 					// Rotate kernel "nAngles" degrees up to 180
- 					for (int i=0; i<nAngles; i++)
- 					{
- 						rotatedPatch = membranePatch.duplicate();
- 						rotatedPatch.rotate(i*rotationAngle); 						
-
- 						float[] kernel = (float[]) rotatedPatch.getPixels();
- 						ImageProcessor ip = channels[ ch ].getProcessor().duplicate();
- 						c.convolveFloat(ip, kernel, patchSize, patchSize);
-
- 						is.addSlice("Membrane_"+patchSize+"_"+membraneSize, ip);
- 						//    wholeStack.addSlice("Membrane_"+patchSize+"_"+membraneSize, ip.convertToByte(true));
- 					}
-
- 					ImagePlus projectStack = new ImagePlus("membraneStack",is);
- 					//projectStack.show();
-
- 					ImageStack membraneStack = new ImageStack(width, height);
-
- 					ZProjector zp = new ZProjector(projectStack);
- 					zp.setStopSlice(is.getSize());
- 					for (int i=0;i<6; i++){
- 						zp.setMethod(i);
- 						zp.doProjection();
- 						membraneStack.addSlice(availableFeatures[MEMBRANE] + "_" +i+"_"+patchSize+"_"+membraneSize, zp.getProjection().getChannelProcessor());
- 					}
- 					results[ ch ] =  new ImagePlus ("membrane stack", membraneStack);
+ 					// Filter with the kernel rotated "nAngles" degrees up to 180
+ 					final float[][] filtered = convolver.filter(
+ 							(float[]) channels[ ch ].getProcessor().getPixels(), null );
+
+ 					results[ ch ] =  new ImagePlus ("membrane stack",
+ 							projectMembraneResponses( filtered, width, height, patchSize, membraneSize ) );
  				}
  				
  				return mergeResultChannels( results );
@@ -1479,7 +1771,7 @@ public class FeatureStack
 				
 				for(int ch=0; ch < channels.length; ch++)
 				{
-					results[ch] = ImageScience.computeDerivativeImage(sigma, xOrder, yOrder, channels[ch]);
+					results[ch] = computeDerivativeImage(sigma, xOrder, yOrder, channels[ch]);
 				}
 						
 				ImagePlus newimp = mergeResultChannels(results);
@@ -1511,14 +1803,52 @@ public class FeatureStack
 		
 		for(int ch=0; ch < channels.length; ch++)
 		{
-			results[ch] = ImageScience.computeDerivativeImage(sigma, xOrder, yOrder, channels[ch]);
+			results[ch] = computeDerivativeImage(sigma, xOrder, yOrder, channels[ch]);
 		
 		}
 		ImagePlus newimp = mergeResultChannels(results);
-		wholeStack.addSlice(availableFeatures[DERIVATIVES] +"_" + xOrder + "_" +yOrder+"_"+sigma, newimp.getProcessor());		
+		addFeatureSlice(availableFeatures[DERIVATIVES] +"_" + xOrder + "_" +yOrder+"_"+sigma, newimp.getProcessor());		
 	}	
 	
 	
+	/**
+	 * Helper method to getDerivatives and addDerivatives: compute a
+	 * derivative image with the recursive Gaussian filter if it is enabled
+	 * and supports the orders, otherwise with ImageScience.
+	 */
+	private ImagePlus computeDerivativeImage(
+			double sigma,
+			int xOrder,
+			int yOrder,
+			ImagePlus channel)
+	{
+		if( !useRecursiveGaussian || xOrder > RecursiveGaussian.MAX_ORDER
+				|| yOrder > RecursiveGaussian.MAX_ORDER )
+			return ImageScience.computeDerivativeImage(sigma, xOrder, yOrder, channel);
+		final float[][] result = RecursiveGaussian.derivative(
+				new float[][]{ (float[]) channel.getProcessor().getPixels() },
+				width, height, new double[]{ sigma, sigma }, new int[]{ xOrder, yOrder }, 1 );
+		return new ImagePlus(channel.getTitle(), new FloatProcessor(width, height, result[ 0 ]));
+	}
+
+	/**
+	 * Helper method to getLaplacian and addLaplacian: compute the Laplacian
+	 * with the recursive Gaussian filter if it is enabled, otherwise with
+	 * ImageScience.
+	 */
+	private ImagePlus computeLaplacianImage(double sigma, ImagePlus channel)
+	{
+		if( !useRecursiveGaussian )
+			return ImageScience.computeLaplacianImage(sigma, channel);
+		final float[][] pixels = new float[][]{ (float[]) channel.getProcessor().getPixels() };
+		final double[] sigmas = new double[]{ sigma, sigma };
+		final float[] dxx = RecursiveGaussian.derivative( pixels, width, height, sigmas, new int[]{ 2, 0 }, 1 )[ 0 ];
+		final float[] dyy = RecursiveGaussian.derivative( pixels, width, height, sigmas, new int[]{ 0, 2 }, 1 )[ 0 ];
+		for( int i = 0; i < dxx.length; i++ )
+			dxx[ i ] += dyy[ i ];
+		return new ImagePlus(channel.getTitle(), new FloatProcessor(width, height, dxx));
+	}
+
 	/**
 	 * Get Laplacian features (to be submitted in an ExecutorService)
 	 *
@@ -1545,7 +1875,7 @@ public class FeatureStack
 				
 				for(int ch=0; ch < channels.length; ch++)
 				{
-					results[ch] = ImageScience.computeLaplacianImage(sigma, channels[ ch ]);
+					results[ch] = computeLaplacianImage(sigma, channels[ ch ]);
 				}
 				
 				ImagePlus newimp = mergeResultChannels(results);
@@ -1574,13 +1904,13 @@ public class FeatureStack
 		
 		for(int ch=0; ch < channels.length; ch++)
 		{
-			results[ch] = ImageScience.computeLaplacianImage(sigma, channels[ch]);
+			results[ch] = computeLaplacianImage(sigma, channels[ch]);
 			
 		}
 		
 		ImagePlus newimp = mergeResultChannels(results);
 				
-		wholeStack.addSlice(availableFeatures[LAPLACIAN] +"_" + sigma, newimp.getProcessor());
+		addFeatureSlice(availableFeatures[LAPLACIAN] +"_" + sigma, newimp.getProcessor());
 		
 	}
 	
@@ -1628,8 +1958,8 @@ public class FeatureStack
 			
 		ImagePlus merged = computeStructure(originalImage, sigma, integrationScale);
 		
-		wholeStack.addSlice(merged.getImageStack().getSliceLabel( 1 ), merged.getImageStack().getProcessor( 1 ) );
-		wholeStack.addSlice(merged.getImageStack().getSliceLabel( 2 ), merged.getImageStack().getProcessor( 2 ) );				
+		addFeatureSlice(merged.getImageStack().getSliceLabel( 1 ), merged.getImageStack().getProcessor( 1 ) );
+		addFeatureSlice(merged.getImageStack().getSliceLabel( 2 ), merged.getImageStack().getProcessor( 2 ) );				
 	}	
 	
 	/**
@@ -1662,95 +1992,25 @@ public class FeatureStack
 			{	
 				final int width = originalImage.getWidth();
 				final int height = originalImage.getHeight();
-				
-				// Apply aspect ratio to the Gaussian curves
-				final double sigma_x = sigma;
-				final double sigma_y = sigma / gamma;
-				
-				// Decide size of the filters based on the sigma
-				int largerSigma = (sigma_x > sigma_y) ? (int) sigma_x : (int) sigma_y;
-				if(largerSigma < 1)
-					largerSigma = 1;
-				
-				// Create set of filters			
-				final int filterSizeX = 6 * largerSigma + 1;
-				final int filterSizeY = 6 * largerSigma + 1;
-				
-				final int middleX = Math.round(filterSizeX / 2);
-				final int middleY = Math.round(filterSizeY / 2);
-							
-				final ImageStack kernels = new ImageStack(filterSizeX, filterSizeY);
-
-				final double rotationAngle = Math.PI/nAngles;
-				final double sigma_x2 = sigma_x * sigma_x;
-				final double sigma_y2 = sigma_y * sigma_y;
-
-				
-				// Rotate kernel from 0 to 180 degrees
-				for (int i=0; i<nAngles; i++)
-				{	
-					final double theta = rotationAngle * i;
-					final ImageProcessor filter = new FloatProcessor(filterSizeX, filterSizeY);	
-					for (int x=-middleX; x<=middleX; x++)
-					{
-						for (int y=-middleY; y<=middleY; y++)
-						{			
-							final double xPrime = x * Math.cos(theta) + y * Math.sin(theta);
-						    final double yPrime = y * Math.cos(theta) - x * Math.sin(theta);
-						        
-							final double a = 1.0 / ( 2* Math.PI * sigma_x * sigma_y ) * Math.exp(-0.5 * (xPrime*xPrime / sigma_x2 + yPrime*yPrime / sigma_y2) );
-							final double c = Math.cos( 2 * Math.PI * (frequency * xPrime) / filterSizeX + psi); 
-							
-							filter.setf(x+middleX, y+middleY, (float)(a*c) );
-						}
-					}
-					kernels.addSlice("kernel angle = " + i, filter);
-				}
 
 				// Get channel(s) to process
 				ImagePlus[] channels = extractChannels(originalImage);
 				
 				ImagePlus[] results = new ImagePlus[ channels.length ];
+
+				// kernel spectra are shared by all channels (and cached)
+				final FFTConvolver convolver = createGaborConvolver(
+						width, height, sigma, gamma, psi, frequency, nAngles );
 			
 				for(int ch=0; ch < channels.length; ch++)
 				{
 
-					final ImageStack is = new ImageStack(width, height);
 					// Apply kernels
-					for (int i=0; i<nAngles; i++)
-					{
-						ImagePlus ip2 = channels[ ch ].duplicate();
-						Img<FloatType> kernel = ImagePlusAdapter.wrap( new ImagePlus("", kernels.getProcessor(i+1)) );
-						Img<FloatType> image2 = ImagePlusAdapter.wrap( ip2 );
-
-						// compute Fourier convolution
-						FFTConvolution< FloatType > c = 
-								new FFTConvolution< FloatType >( image2, kernel, exec );
-						c.convolve();
-						
-						ip2 = ImageJFunctions.wrap( image2, "" );
-
-						is.addSlice("gabor angle = " + i, ip2.getProcessor() );
-
-					}
-					
-					// Normalize filtered stack (it seems necessary to have proper results)					
-					final ImagePlus projectStack = new ImagePlus("filtered stack", Utils.normalize( is ));
-
-					final ImageStack resultStack = new ImageStack(width, height);
+					final float[][] filtered = convolver.filter(
+							(float[]) channels[ ch ].getProcessor().getPixels(), exec );
 
-					final ZProjector zp = new ZProjector(projectStack);
-					zp.setStopSlice(is.getSize());
-					for (int i=1;i<=2; i++)
-					{
-						zp.setMethod(i);
-						zp.doProjection();
-						resultStack.addSlice(availableFeatures[GABOR] + "_" + i 
-								+"_"+sigma+"_" + gamma + "_"+ (int) (psi / (Math.PI/4) ) +"_"+frequency, 
-								zp.getProjection().getChannelProcessor());
-					}					
-					
-					results[ ch ] = new ImagePlus ("Gabor stack", resultStack);									
+					results[ ch ] = new ImagePlus ("Gabor stack", projectGaborResponses(
+							filtered, width, height, sigma, gamma, psi, frequency ) );									
 					
 				}
 				
@@ -1760,46 +2020,80 @@ public class FeatureStack
 	}	
 	
 	/**
-	 * Add Gabor features to current stack
-	 * @param originalImage input image
-	 * @param sigma size of the Gaussian envelope
-	 * @param gamma spatial aspect ratio, it specifies the ellipticity of the support of the Gabor function
-	 * @param psi phase offset
-	 * @param frequency frequency of the sinusoidal component
-	 * @param nAngles number of filter orientations
+	 * Helper method to getGabor and addGabor: get the filter to convolve
+	 * the channels with all the Gabor kernels (with mirrored borders, as the
+	 * imglib2 FFT convolution used before). Both the kernels and the filter
+	 * are taken from the kernel cache when possible.
 	 */
-	public void addGabor(
-			final ImagePlus originalImage,
+	private static FFTConvolver createGaborConvolver(
+			final int width,
+			final int height,
 			final double sigma,
 			final double gamma,
 			final double psi,
 			final double frequency,
-			final int nAngles)
+			final int nAngles )
 	{
-		if (Thread.currentThread().isInterrupted()) 
-			return;
-
-
-		final int width = originalImage.getWidth();
-		final int height = originalImage.getHeight();
+		final KernelCache cache = KernelCache.getInstance();
+		return cache.get(
+				KernelCache.key( "Gabor filter", width, height, sigma, gamma, psi, frequency, nAngles ),
+				new Callable<FFTConvolver>(){
+					public FFTConvolver call()
+					{
+						final float[][] kernels = cache.get(
+								KernelCache.key( "Gabor kernels", sigma, gamma, psi, frequency, nAngles ),
+								new Callable<float[][]>(){
+									public float[][] call()
+									{
+										return createGaborKernels( sigma, gamma, psi, frequency, nAngles );
+									}
+								});
+						final int filterSize = gaborFilterSize( sigma, gamma );
+						return new FFTConvolver( width, height, kernels,
+								filterSize, filterSize, false );
+					}
+				});
+	}
 
+	/**
+	 * Helper method to createGaborConvolver: decide the size of the Gabor
+	 * filters based on the sigma.
+	 */
+	private static int gaborFilterSize( final double sigma, final double gamma )
+	{
 		// Apply aspect ratio to the Gaussian curves
 		final double sigma_x = sigma;
 		final double sigma_y = sigma / gamma;
 
-		// Decide size of the filters based on the sigma
 		int largerSigma = (sigma_x > sigma_y) ? (int) sigma_x : (int) sigma_y;
 		if(largerSigma < 1)
 			largerSigma = 1;
+		return 6 * largerSigma + 1;
+	}
+
+	/**
+	 * Helper method to createGaborConvolver: create the set of Gabor
+	 * kernels, rotated from 0 to 180 degrees.
+	 */
+	private static float[][] createGaborKernels(
+			final double sigma,
+			final double gamma,
+			final double psi,
+			final double frequency,
+			final int nAngles )
+	{
+		// Apply aspect ratio to the Gaussian curves
+		final double sigma_x = sigma;
+		final double sigma_y = sigma / gamma;
 
-		// Create set of filters			
-		final int filterSizeX = 6 * largerSigma + 1;
-		final int filterSizeY = 6 * largerSigma + 1;
+		// Create set of filters
+		final int filterSizeX = gaborFilterSize( sigma, gamma );
+		final int filterSizeY = filterSizeX;
 
 		final int middleX = Math.round(filterSizeX / 2);
 		final int middleY = Math.round(filterSizeY / 2);
 
-		final ImageStack kernels = new ImageStack(filterSizeX, filterSizeY);
+		final float[][] kernels = new float[ nAngles ][];
 
 		final double rotationAngle = Math.PI/nAngles;
 		final double sigma_x2 = sigma_x * sigma_x;
@@ -1807,74 +2101,101 @@ public class FeatureStack
 
 		// Rotate kernel from 0 to 180 degrees
 		for (int i=0; i<nAngles; i++)
-		{	
+		{
 			final double theta = rotationAngle * i;
-			final ImageProcessor filter = new FloatProcessor(filterSizeX, filterSizeY);	
+			final float[] filter = new float[ filterSizeX * filterSizeY ];
 			for (int x=-middleX; x<=middleX; x++)
 			{
 				for (int y=-middleY; y<=middleY; y++)
-				{			
+				{
 					final double xPrime = x * Math.cos(theta) + y * Math.sin(theta);
 					final double yPrime = y * Math.cos(theta) - x * Math.sin(theta);
 
 					final double a = 1.0 / ( 2* Math.PI * sigma_x * sigma_y ) * Math.exp(-0.5 * (xPrime*xPrime / sigma_x2 + yPrime*yPrime / sigma_y2) );
-					final double c = Math.cos( 2 * Math.PI * (frequency * xPrime) / filterSizeX + psi); 
+					final double c = Math.cos( 2 * Math.PI * (frequency * xPrime) / filterSizeX + psi);
 
-					filter.setf(x+middleX, y+middleY, (float)(a*c) );
+					filter[ x+middleX + (y+middleY) * filterSizeX ] = (float)(a*c);
 				}
 			}
-			kernels.addSlice("kernel angle = " + i, filter);
+			kernels[ i ] = filter;
 		}
+		return kernels;
+	}
+
+	/**
+	 * Helper method to getGabor and addGabor: normalize the responses to
+	 * all orientations (it seems necessary to have proper results) and
+	 * project them with "Max Intensity" and "Min Intensity" in a single pass.
+	 */
+	private ImageStack projectGaborResponses(
+			final float[][] responses,
+			final int width,
+			final int height,
+			final double sigma,
+			final double gamma,
+			final double psi,
+			final double frequency )
+	{
+		OrientationProjection.standardize( responses );
+		final int[] methods = new int[]{ OrientationProjection.MAX, OrientationProjection.MIN };
+		final float[][] projections = OrientationProjection.project( responses, methods );
+
+		final ImageStack resultStack = new ImageStack(width, height);
+		for (int i=0; i<methods.length; i++)
+			resultStack.addSlice(availableFeatures[GABOR] + "_" + methods[ i ]
+					+"_"+sigma+"_" + gamma + "_"+ (int) (psi / (Math.PI/4) ) +"_"+frequency,
+					new FloatProcessor( width, height, projections[ i ] ));
+		return resultStack;
+	}
+
+	/**
+	 * Add Gabor features to current stack
+	 * @param originalImage input image
+	 * @param sigma size of the Gaussian envelope
+	 * @param gamma spatial aspect ratio, it specifies the ellipticity of the support of the Gabor function
+	 * @param psi phase offset
+	 * @param frequency frequency of the sinusoidal component
+	 * @param nAngles number of filter orientations
+	 */
+	public void addGabor(
+			final ImagePlus originalImage,
+			final double sigma,
+			final double gamma,
+			final double psi,
+			final double frequency,
+			final int nAngles)
+	{
+		if (Thread.currentThread().isInterrupted()) 
+			return;
+
+
+		final int width = originalImage.getWidth();
+		final int height = originalImage.getHeight();
 
 		// Get channel(s) to process
 		ImagePlus[] channels = extractChannels(originalImage);
 		
 		ImagePlus[] results = new ImagePlus[ channels.length ];
+
+		// kernel spectra are shared by all channels (and cached)
+		final FFTConvolver convolver = createGaborConvolver(
+				width, height, sigma, gamma, psi, frequency, nAngles );
 		
 		for(int ch=0; ch < channels.length; ch++)
 		{
 
-			final ImageStack is = new ImageStack(width, height);
 			// Apply kernels
-			for (int i=0; i<nAngles; i++)
-			{
-				ImagePlus ip2 = channels[ ch ].duplicate();
-				Img<FloatType> kernel = ImagePlusAdapter.wrap( new ImagePlus("", kernels.getProcessor(i+1)) );
-				Img<FloatType> image2 = ImagePlusAdapter.wrap( ip2 );
-
-				// compute Fourier convolution
-				FFTConvolution< FloatType > c = 
-						new FFTConvolution< FloatType >( image2, kernel );
-				c.convolve();
-				
-				ip2 = ImageJFunctions.wrap( image2, "" );
-				
-				is.addSlice( "gabor angle = " + i, ip2.getProcessor() );					
-			}			
-
-			// Normalize filtered stack (it seems necessary to have proper results)
-			final ImagePlus projectStack = new ImagePlus("filtered stack", Utils.normalize( is ));
-
+			final float[][] filtered = convolver.filter(
+					(float[]) channels[ ch ].getProcessor().getPixels(), null );
 
-			final ImageStack resultStack = new ImageStack(width, height);
-
-			final ZProjector zp = new ZProjector(projectStack);
-			zp.setStopSlice(is.getSize());
-			for (int i=1;i<=2; i++)
-			{
-				zp.setMethod(i);
-				zp.doProjection();
-				resultStack.addSlice(availableFeatures[GABOR] + "_" + i 
-						+"_"+sigma+"_" + gamma + "_"+ (int) (psi / (Math.PI/4) ) +"_"+frequency, 
-						zp.getProjection().getChannelProcessor());
-			}
-			results[ ch ] = new ImagePlus ("Gabor stack", resultStack);
+			results[ ch ] = new ImagePlus ("Gabor stack", projectGaborResponses(
+					filtered, width, height, sigma, gamma, psi, frequency ) );
 		}
 		
 		ImagePlus merged = mergeResultChannels(results);
 		
 		for(int i=1; i<=merged.getImageStackSize(); i++)
-			wholeStack.addSlice(merged.getImageStack().getSliceLabel(i), merged.getImageStack().getPixels(i));
+			addFeatureSlice(merged.getImageStack().getSliceLabel(i), merged.getImageStack().getPixels(i));
 	}	
 	
 	/**
@@ -1942,7 +2263,7 @@ public class FeatureStack
 		
 		ImagePlus merged = mergeResultChannels(results);
 		
-		wholeStack.addSlice(merged.getTitle(), merged.getProcessor());
+		addFeatureSlice(merged.getTitle(), merged.getProcessor());
 	}
 	
 	/**
@@ -1971,36 +2292,8 @@ public class FeatureStack
 				if (Thread.currentThread().isInterrupted()) 
 					return null;
 				
-				Anisotropic_Diffusion_2D ad = new Anisotropic_Diffusion_2D();
-				
-				ad.setup("", originalImage);
-				
-				ad.setSaveSteps(saveSteps);
-				ad.setNumOfIterations(nb_iter);
-				ad.setLimiterMinimalVariations(a1);
-				ad.setLimiterMaximalVariations(a2);
-				ad.setSmoothings(nb_smoothings);
-				ad.setEdgeThreshold(edgeThreshold);
-				
-				final ImagePlus result = ad.runTD(originalImage.getProcessor());
-				
-				if (Thread.currentThread().isInterrupted()) 
-					return null;
-				
-				if(result.getImageStackSize() == 1)
-				{
-					return new ImagePlus (availableFeatures[ANISOTROPIC_DIFFUSION] + "_" + nb_iter + "_" + nb_smoothings + "_" + a1 + "_" + a2 + "_" + edgeThreshold, result.getProcessor());
-				}
-				else
-				{
-					final ImageStack slices = result.getImageStack();
-					slices.deleteSlice(1); // delete original image
-					for(int i = 1; i <= slices.getSize() ; i++)
-						slices.setSliceLabel(availableFeatures[ANISOTROPIC_DIFFUSION] + "_" + (saveSteps * i) + "_" + nb_smoothings + "_" + a1 + "_" + a2 +"_" + edgeThreshold, i);
-					
-					return new ImagePlus("Anisotropic diffusion", slices);
-				}
-				
+				// single thread, the features are already computed in parallel
+				return anisotropicDiffusion(originalImage, nb_iter, saveSteps, nb_smoothings, a1, a2, edgeThreshold, 1);
 			}
 		};
 	}
@@ -2025,31 +2318,111 @@ public class FeatureStack
 			final float a2,
 			final float edgeThreshold)
 	{
-		Anisotropic_Diffusion_2D ad = new Anisotropic_Diffusion_2D();
+		final ImagePlus result = anisotropicDiffusion(originalImage, nb_iter, saveSteps,
+				nb_smoothings, a1, a2, edgeThreshold, Prefs.getThreads());
+		if( null == result )
+			return;
+		final ImageStack slices = result.getImageStack();
+		for(int i = 1; i <= slices.getSize() ; i++)
+			addFeatureSlice(slices.getSliceLabel(i), slices.getProcessor(i));
+	}
+
+	/**
+	 * Helper method to the anisotropic diffusion features: diffuse the
+	 * image with the tensor-driven diffusion of the Anisotropic_Diffusion_2D
+	 * plugin or, if {@link #setUseFastAnisotropicDiffusion(boolean)} is set,
+	 * diffuse the channels of the image together with
+	 * {@link AnisotropicDiffusion}, the iterations computed by bands of rows
+	 * in parallel.
+	 * 
+	 * @param originalImage input image
+	 * @param nb_iter number of iterations
+	 * @param saveSteps number of steps after which we save the intermediate results
+	 * @param nb_smoothings number of smoothings of the structure tensor per iteration
+	 * @param a1 diffusion limiter along minimal variations
+	 * @param a2 diffusion limiter along maximal variations
+	 * @param edgeThreshold edge threshold
+	 * @param numThreads number of threads used by {@link AnisotropicDiffusion}
+	 * @return result image (one slice per saved step)
+	 */
+	private ImagePlus anisotropicDiffusion(
+			final ImagePlus originalImage,
+			final int nb_iter, 
+			final int saveSteps,
+			final int nb_smoothings,
+			final float a1,
+			final float a2,
+			final float edgeThreshold,
+			final int numThreads)
+	{
+		if( !useFastAnisotropicDiffusion )
+		{
+			Anisotropic_Diffusion_2D ad = new Anisotropic_Diffusion_2D();
+
+			ad.setup("", originalImage);
+
+			ad.setSaveSteps(saveSteps);
+			ad.setNumOfIterations(nb_iter);
+			ad.setLimiterMinimalVariations(a1);
+			ad.setLimiterMaximalVariations(a2);
+			ad.setSmoothings(nb_smoothings);
+			ad.setEdgeThreshold(edgeThreshold);
 
-		ad.setup("", originalImage);
+			final ImagePlus result = ad.runTD(originalImage.getProcessor());
 
-		ad.setSaveSteps(saveSteps);
-		ad.setNumOfIterations(nb_iter);
-		ad.setLimiterMinimalVariations(a1);
-		ad.setLimiterMaximalVariations(a2);
-		ad.setSmoothings(nb_smoothings);
-		ad.setEdgeThreshold(edgeThreshold);
+			if (Thread.currentThread().isInterrupted()) 
+				return null;
 
-		final ImagePlus result = ad.runTD(originalImage.getProcessor());
+			if(result.getImageStackSize() == 1)
+			{
+				return new ImagePlus (availableFeatures[ANISOTROPIC_DIFFUSION] + "_" + nb_iter + "_" + nb_smoothings + "_" + a1 + "_" + a2 + "_" + edgeThreshold, result.getProcessor());
+			}
+			else
+			{
+				final ImageStack slices = result.getImageStack();
+				slices.deleteSlice(1); // delete original image
+				for(int i = 1; i <= slices.getSize() ; i++)
+					slices.setSliceLabel(availableFeatures[ANISOTROPIC_DIFFUSION] + "_" + (saveSteps * i) + "_" + nb_smoothings + "_" + a1 + "_" + a2 +"_" + edgeThreshold, i);
 
+				return new ImagePlus("Anisotropic diffusion", slices);
+			}
+		}
 
-		if(result.getImageStackSize() == 1)
+		final ImageProcessor ip = originalImage.getProcessor();
+		final float[][] channels;
+		if( ip instanceof ColorProcessor )
 		{
-			wholeStack.addSlice(availableFeatures[ANISOTROPIC_DIFFUSION] + "_" + nb_iter + "_" + nb_smoothings + "_" + a1 + "_" + a2 + "_" + edgeThreshold, result.getProcessor());
+			final int size = ip.getWidth() * ip.getHeight();
+			final byte[][] rgb = new byte[ 3 ][ size ];
+			((ColorProcessor) ip).getRGB( rgb[ 0 ], rgb[ 1 ], rgb[ 2 ] );
+			channels = new float[ 3 ][ size ];
+			for( int c = 0; c < 3; c++ )
+				for( int i = 0; i < size; i++ )
+					channels[ c ][ i ] = rgb[ c ][ i ] & 0xff;
 		}
 		else
+			channels = new float[][]{ (float[]) ip.convertToFloat().getPixels() };
+
+		final float[][][] steps = AnisotropicDiffusion.filter( channels, ip.getWidth(), ip.getHeight(),
+				nb_iter, saveSteps, nb_smoothings, a1, a2, edgeThreshold, numThreads );
+		if( null == steps )
+			return null; // interrupted
+
+		// one stack per channel, merged into a color stack for color images
+		final ImageStack[] slices = new ImageStack[ channels.length ];
+		for( int c = 0; c < channels.length; c++ )
 		{
-			final ImageStack slices = result.getImageStack();
-			slices.deleteSlice(1); // delete original image
-			for(int i = 1; i <= slices.getSize() ; i++)
-				wholeStack.addSlice(availableFeatures[ANISOTROPIC_DIFFUSION] + "_" + (saveSteps * i) + "_" + nb_smoothings + "_" + a1 + "_" + a2 +"_" + edgeThreshold, slices.getProcessor(i));										
-		}					
+			slices[ c ] = new ImageStack( ip.getWidth(), ip.getHeight() );
+			for( int i = 0; i < steps.length; i++ )
+			{
+				final String label = steps.length == 1 ?
+						availableFeatures[ANISOTROPIC_DIFFUSION] + "_" + nb_iter + "_" + nb_smoothings + "_" + a1 + "_" + a2 + "_" + edgeThreshold :
+						availableFeatures[ANISOTROPIC_DIFFUSION] + "_" + (saveSteps * (i + 1)) + "_" + nb_smoothings + "_" + a1 + "_" + a2 +"_" + edgeThreshold;
+				slices[ c ].addSlice( label, steps[ i ][ c ] );
+			}
+		}
+		final ImageStack result = channels.length == 1 ? slices[ 0 ] : mergeStacks( slices[ 0 ], slices[ 1 ], slices[ 2 ] );
+		return new ImagePlus( result.getSliceLabel( 1 ), result );
 	}
 	
 	/**
@@ -2064,42 +2437,48 @@ public class FeatureStack
 			final ImagePlus originalImage,					
 			final double spatialRadius,
 			final double rangeRadius)
+	{
+		return getBilateralFilters(originalImage, spatialRadius, new double[]{ rangeRadius });
+	}	
+
+	/**
+	 * Apply bilateral filter with several range radii in a concurrent way
+	 * (to be submitted in an ExecutorService). The bilateral grid, if used,
+	 * is shared by all range radii.
+	 * 
+	 * @param originalImage input image
+	 * @param spatialRadius spatial radius
+	 * @param rangeRadii range radii
+	 * @return result image (one slice per range radius)
+	 */
+	public Callable<ImagePlus> getBilateralFilters(
+			final ImagePlus originalImage,					
+			final double spatialRadius,
+			final double[] rangeRadii)
 	{
 		return new Callable<ImagePlus>(){
 			public ImagePlus call()
 			{							
-				//IJ.log("calling bilateral filter with spatiaRadius =" + spatialRadius + " and rangeRadius = " + rangeRadius);
-				// Get channel(s) to process
-				ImagePlus[] channels = extractChannels(originalImage);
-				
-				ImagePlus[] results = new ImagePlus[ channels.length ];
-				
-				for(int ch=0; ch < channels.length; ch++)
-				{
-					final ImagePlus result = BilateralFilter.filter(
-							new ImagePlus("", channels[ch].getProcessor().convertToByte(true)), spatialRadius, rangeRadius);								
-
-					results[ ch ] = new ImagePlus (availableFeatures[BILATERAL] + "_" + spatialRadius + "_" + rangeRadius, result.getProcessor().convertToFloat());
-				}
-				
-				return mergeResultChannels(results);
+				return bilateralFilter(originalImage, spatialRadius, rangeRadii);
 			}
 		};
-	}	
-	
+	}
+
 	/**
-	 * Add bilateral filter image to current stack
+	 * Helper method to the bilateral filter features: filter each channel
+	 * of an image (converted to 8-bit) with vib.BilateralFilter or, if
+	 * {@link #setUseBilateralGrid(boolean)} is set, on a bilateral grid.
 	 * 
 	 * @param originalImage input image
 	 * @param spatialRadius spatial radius
-	 * @param rangeRadius range radius	  
+	 * @param rangeRadii range radii
+	 * @return result image (one slice per range radius)
 	 */
-	public void addBilateralFilter(
-			final ImagePlus originalImage,					
+	private ImagePlus bilateralFilter(
+			final ImagePlus originalImage,
 			final double spatialRadius,
-			final double rangeRadius)
-	{			
-		//IJ.log("calling bilateral filter with spatiaRadius =" + spatialRadius + " and rangeRadius = " + rangeRadius);
+			final double[] rangeRadii)
+	{
 		// Get channel(s) to process
 		ImagePlus[] channels = extractChannels(originalImage);
 		
@@ -2107,21 +2486,51 @@ public class FeatureStack
 		
 		for(int ch=0; ch < channels.length; ch++)
 		{
-			final ImagePlus result = BilateralFilter.filter(
-					new ImagePlus("", channels[ch].getProcessor().convertToByte(true)), spatialRadius, rangeRadius);								
-
-			results[ ch ] = new ImagePlus (availableFeatures[BILATERAL] + "_" + spatialRadius + "_" + rangeRadius, result.getProcessor().convertToFloat());
-		}					
-
-		ImagePlus merged = mergeResultChannels(results);
-		wholeStack.addSlice(merged.getTitle(), merged.getImageStack().getProcessor(1));								
-	}		
-	
-	/**
-	 * Apply Lipschitz filter in a concurrent way (to be submitted in an ExecutorService)
-	 * 
-	 * @param originalImage input image
-	 * @param downHat flag to indicate covering from top to bottom
+			final ImageProcessor ip = channels[ch].getProcessor().convertToByte(true);
+			final ImageStack stack = new ImageStack(ip.getWidth(), ip.getHeight());
+			if( useBilateralGrid )
+			{
+				final float[][] filtered = BilateralGrid.filter(
+						(float[]) ip.convertToFloat().getPixels(), ip.getWidth(), ip.getHeight(), spatialRadius, rangeRadii);
+				for(int i=0; i < rangeRadii.length; i++)
+					stack.addSlice(availableFeatures[BILATERAL] + "_" + spatialRadius + "_" + rangeRadii[i], filtered[i]);
+			}
+			else
+			{
+				for(int i=0; i < rangeRadii.length; i++)
+				{
+					final ImagePlus result = BilateralFilter.filter(
+							new ImagePlus("", ip), spatialRadius, rangeRadii[i]);
+					stack.addSlice(availableFeatures[BILATERAL] + "_" + spatialRadius + "_" + rangeRadii[i], result.getProcessor().convertToFloat());
+				}
+			}
+			results[ ch ] = new ImagePlus (stack.getSliceLabel(1), stack);
+		}
+		
+		return mergeResultChannels(results);
+	}
+	
+	/**
+	 * Add bilateral filter image to current stack
+	 * 
+	 * @param originalImage input image
+	 * @param spatialRadius spatial radius
+	 * @param rangeRadius range radius	  
+	 */
+	public void addBilateralFilter(
+			final ImagePlus originalImage,					
+			final double spatialRadius,
+			final double rangeRadius)
+	{			
+		ImagePlus merged = bilateralFilter(originalImage, spatialRadius, new double[]{ rangeRadius });
+		addFeatureSlice(merged.getTitle(), merged.getImageStack().getProcessor(1));								
+	}		
+	
+	/**
+	 * Apply Lipschitz filter in a concurrent way (to be submitted in an ExecutorService)
+	 * 
+	 * @param originalImage input image
+	 * @param downHat flag to indicate covering from top to bottom
 	 * @param topHat flat to indicate computing lower (upper) Lipschitz cover
 	 * @param slope maximum allowed difference between two neighboring pixels
 	 * @return result image
@@ -2131,52 +2540,55 @@ public class FeatureStack
 			final boolean downHat,
 			final boolean topHat,
 			final double slope)
+	{
+		return getLipschitzFilters(originalImage, downHat, topHat, new double[]{ slope });
+	}
+
+	/**
+	 * Apply Lipschitz filter with several slopes in a concurrent way (to be
+	 * submitted in an ExecutorService). All slopes are computed in the same
+	 * sweeps over the image.
+	 * 
+	 * @param originalImage input image
+	 * @param downHat flag to indicate covering from top to bottom
+	 * @param topHat flat to indicate computing lower (upper) Lipschitz cover
+	 * @param slopes maximum allowed differences between two neighboring pixels
+	 * @return result image (one slice per slope)
+	 */
+	public Callable<ImagePlus> getLipschitzFilters(
+			final ImagePlus originalImage,					
+			final boolean downHat,
+			final boolean topHat,
+			final double[] slopes)
 	{
 		return new Callable<ImagePlus>(){
 			public ImagePlus call()
 			{							
-				final Lipschitz_ filter = new Lipschitz_();
-				filter.setDownHat(downHat);
-				filter.setTopHat(topHat);
-				filter.m_Slope = slope;
-				
-				// Get channel(s) to process
-				ImagePlus[] channels = extractChannels(originalImage);
-				
-				ImagePlus[] results = new ImagePlus[ channels.length ];
-				
-				for(int ch=0; ch < channels.length; ch++)
-				{
-					ImageProcessor result = channels[ ch ].getProcessor().duplicate().convertToByte(true);
-					filter.Lipschitz2D(result);
-				
-					results[ ch ] = new ImagePlus (availableFeatures[LIPSCHITZ] + "_" + downHat + "_" + topHat + "_" + slope, result.convertToFloat());
-				}
-				
-				return mergeResultChannels(results);
+				// single thread, the features are already computed in parallel
+				return lipschitzFilter(originalImage, downHat, topHat, slopes, 1);
 			}
 		};
-	}	
+	}
 
 	/**
-	 * Add Lipschitz filter image to current stack
+	 * Helper method to the Lipschitz filter features: filter each channel
+	 * of an image (converted to 8-bit) with all slopes at once (see
+	 * {@link LipschitzEnvelope}).
 	 * 
 	 * @param originalImage input image
 	 * @param downHat flag to indicate covering from top to bottom
 	 * @param topHat flat to indicate computing lower (upper) Lipschitz cover
-	 * @param slope maximum allowed difference between two neighboring pixels
- 	 */
-	public void addLipschitzFilter(
-			final ImagePlus originalImage,					
+	 * @param slopes maximum allowed differences between two neighboring pixels
+	 * @param numThreads number of threads to use
+	 * @return result image (one slice per slope)
+	 */
+	private ImagePlus lipschitzFilter(
+			final ImagePlus originalImage,
 			final boolean downHat,
 			final boolean topHat,
-			final double slope)
+			final double[] slopes,
+			final int numThreads)
 	{
-		final Lipschitz_ filter = new Lipschitz_();
-		filter.setDownHat(downHat);
-		filter.setTopHat(topHat);
-		filter.m_Slope = slope;
-
 		// Get channel(s) to process
 		ImagePlus[] channels = extractChannels(originalImage);
 		
@@ -2184,14 +2596,35 @@ public class FeatureStack
 		
 		for(int ch=0; ch < channels.length; ch++)
 		{
-			ImageProcessor result = channels[ ch ].getProcessor().duplicate().convertToByte(true);
-			filter.Lipschitz2D(result);
-		
-			results[ ch ] = new ImagePlus (availableFeatures[LIPSCHITZ] + "_" + downHat + "_" + topHat + "_" + slope, result.convertToFloat());
+			final ImageProcessor ip = channels[ ch ].getProcessor().duplicate().convertToByte(true);
+			final float[][] filtered = LipschitzEnvelope.filter( (byte[]) ip.getPixels(),
+					ip.getWidth(), ip.getHeight(), slopes, downHat, topHat, numThreads );
+			
+			final ImageStack stack = new ImageStack(ip.getWidth(), ip.getHeight());
+			for(int i=0; i < slopes.length; i++)
+				stack.addSlice(availableFeatures[LIPSCHITZ] + "_" + downHat + "_" + topHat + "_" + slopes[i], filtered[i]);
+			results[ ch ] = new ImagePlus (stack.getSliceLabel(1), stack);
 		}
 		
-		ImagePlus merged = mergeResultChannels(results);
-		wholeStack.addSlice(merged.getTitle(), merged.getImageStack().getProcessor(1));		
+		return mergeResultChannels(results);
+	}
+
+	/**
+	 * Add Lipschitz filter image to current stack
+	 * 
+	 * @param originalImage input image
+	 * @param downHat flag to indicate covering from top to bottom
+	 * @param topHat flat to indicate computing lower (upper) Lipschitz cover
+	 * @param slope maximum allowed difference between two neighboring pixels
+ 	 */
+	public void addLipschitzFilter(
+			final ImagePlus originalImage,					
+			final boolean downHat,
+			final boolean topHat,
+			final double slope)
+	{
+		ImagePlus merged = lipschitzFilter(originalImage, downHat, topHat, new double[]{ slope }, Prefs.getThreads());
+		addFeatureSlice(merged.getTitle(), merged.getImageStack().getProcessor(1));		
 	}
 	
 	/**
@@ -2202,7 +2635,17 @@ public class FeatureStack
 	 * @return slice image processor
 	 */
 	public ImageProcessor getProcessor(int index) {
-		return wholeStack.getProcessor(index);
+		ensureLoaded();
+		final ImageStack stack = wholeStack;
+		final NeighborhoodPlane neighbors = getNeighborFeatures( stack );
+		// (the stack may have got the NEIGHBORS features as slices meanwhile)
+		if( null == neighbors || index <= stack.getSize() )
+			return wholeStack.getProcessor(index);
+		// NEIGHBORS feature
+		final Object pixels = neighbors.getPixels( index - stack.getSize() - 1 );
+		if( pixels instanceof int[] )
+			return new ColorProcessor( stack.getWidth(), stack.getHeight(), (int[]) pixels );
+		return new FloatProcessor( stack.getWidth(), stack.getHeight(), (float[]) pixels );
 	}
 	
 	/**
@@ -2216,13 +2659,14 @@ public class FeatureStack
 	{
 		if (Thread.currentThread().isInterrupted()) 
 			return null;
+		ensureLoaded();
 		
 		if( oldColorFormat ) 
 			IJ.log( "Using old color format...");
 		
 		ArrayList<Attribute> attributes = new ArrayList<Attribute>();
-		for (int i=1; i<=wholeStack.getSize(); i++){
-			String attString = wholeStack.getSliceLabel(i);
+		for (int i=1; i<=getSize(); i++){
+			String attString = getSliceLabel(i);
 			attributes.add(new Attribute(attString));
 		}
 		
@@ -2259,18 +2703,24 @@ public class FeatureStack
 	public void addDefaultFeatures()
 	{
 		int counter = 1;
-		for (float i=1.0f; i<maximumSigma; i*=2){
-			IJ.showStatus("Creating feature stack...   " + counter);
-			this.addGaussianBlur(i); counter++;
-			IJ.showStatus("Creating feature stack...   " + counter);			
-			this.addGradient(i); counter++;
-			IJ.showStatus("Creating feature stack...   " + counter);			
-			this.addHessian(i); counter++;
-			for (float j=1.0f; j<i; j*=2){
-				IJ.showStatus("Creating feature stack...   " + counter);				
-				this.addDoG(i, j); counter++;
+		scaleSpace = createScaleSpace( originalImage );
+		try{
+			for (float i=1.0f; i<maximumSigma; i*=2){
+				IJ.showStatus("Creating feature stack...   " + counter);
+				this.addGaussianBlur(i); counter++;
+				IJ.showStatus("Creating feature stack...   " + counter);			
+				this.addGradient(i); counter++;
+				IJ.showStatus("Creating feature stack...   " + counter);			
+				this.addHessian(i); counter++;
+				for (float j=1.0f; j<i; j*=2){
+					IJ.showStatus("Creating feature stack...   " + counter);				
+					this.addDoG(i, j); counter++;
+				}
 			}
 		}
+		finally{
+			scaleSpace = null;
+		}
 		this.addMembraneFeatures(19, 1);
 		
 		IJ.showProgress(1.0);
@@ -2283,6 +2733,8 @@ public class FeatureStack
 	public void updateFeatures()
 	{
 		wholeStack = new ImageStack(width, height);
+		spilledFeatures = null;
+		neighborFeatures = null;
 		if( originalImage.getType() == ImagePlus.COLOR_RGB)
 		{		
 			wholeStack.addSlice("original", originalImage.getProcessor().duplicate());
@@ -2499,6 +2951,8 @@ public class FeatureStack
 	{
 		exe = Executors.newFixedThreadPool( Prefs.getThreads() );
 		wholeStack = new ImageStack(width, height);
+		spilledFeatures = null;
+		neighborFeatures = null;
 		//wholeStack.addSlice("original", originalImage.getProcessor().duplicate());
 
 		
@@ -2554,8 +3008,32 @@ public class FeatureStack
 	 * @return true if the features are correctly updated 
 	 */
 	public boolean updateFeaturesST()
+	{
+		final String key = getCacheKey( "ST" );
+		if( loadCachedFeatures( key ) )
+			return true;
+		// blurred images are shared by the features during the update
+		scaleSpace = createScaleSpace( originalImage );
+		beginFeatureUpdate();
+		boolean updated = false;
+		try{
+			updated = computeFeaturesST();
+		}
+		finally{
+			scaleSpace = null;
+			endFeatureUpdate( updated );
+		}
+		if( updated && null != key )
+			featureCache.store( key, wholeStack );
+		return updated;
+	}
+
+	/** Helper method to updateFeaturesST */
+	private boolean computeFeaturesST()
 	{
 		wholeStack = new ImageStack(width, height);
+		spilledFeatures = null;
+		neighborFeatures = null;
 		if( originalImage.getType() == ImagePlus.COLOR_RGB)
 		{		
 			wholeStack.addSlice("original", originalImage.getProcessor().duplicate());
@@ -2574,7 +3052,8 @@ public class FeatureStack
 					if (Thread.currentThread().isInterrupted()) 
 						return false;
 
-					addAnisotropicDiffusion(originalImage, 20, 20,(int) i, j, 0.9f, (float) membraneSize)  ;
+					if( computeFeature( ANISOTROPIC_DIFFUSION, (int) i, j, membraneSize ) )
+						addAnisotropicDiffusion(originalImage, 20, 20,(int) i, j, 0.9f, (float) membraneSize);
 				}
 		}				
 
@@ -2587,7 +3066,8 @@ public class FeatureStack
 					if (Thread.currentThread().isInterrupted()) 
 						return false;
 					//IJ.log( n++ +": Calculating bilateral filter (" + i + ", " + j + ")");
-					addBilateralFilter(originalImage, i, j);
+					if( computeFeature( BILATERAL, i, j ) )
+						addBilateralFilter(originalImage, i, j);
 				}
 		}
 
@@ -2599,7 +3079,8 @@ public class FeatureStack
 				if (Thread.currentThread().isInterrupted()) 
 					return false;
 				//IJ.log( n++ +": Calculating Lipschitz filter (true, true, " + i + ")");
-				addLipschitzFilter(originalImage, true, true, i);
+				if( computeFeature( LIPSCHITZ, i ) )
+					addLipschitzFilter(originalImage, true, true, i);
 			}
 		}
 
@@ -2611,7 +3092,8 @@ public class FeatureStack
 				if (Thread.currentThread().isInterrupted()) 
 					return false;
 				//IJ.log( n++ +": Calculating Kuwahara filter (" + membranePatchSize + ", " + nAngles + ", " + i + ")");
-				addKuwaharaFeatures(originalImage, membranePatchSize, nAngles, i);
+				if( computeFeature( KUWAHARA, membranePatchSize, nAngles, i ) )
+					addKuwaharaFeatures(originalImage, membranePatchSize, nAngles, i);
 			}
 		}
 
@@ -2627,7 +3109,8 @@ public class FeatureStack
 							return false;
 						final double psi = Math.PI / 2 * i;
 						//IJ.log( n++ +": Calculating Gabor filter (1.0, " + gamma + ", " + psi + ", " + frequency + ", " + nAngles + ")");
-						addGabor( originalImage, 1.0, gamma, psi, frequency, nAngles ) ;
+						if( computeFeature( GABOR, 1.0, gamma, psi, frequency, nAngles ) )
+							addGabor( originalImage, 1.0, gamma, psi, frequency, nAngles );
 					}
 			// elongated filters in x- axis (sigma = [2.0 - 4.0], gamma = [1.0 - 2.0])
 			for(int i=0; i < 2; i++)
@@ -2639,7 +3122,8 @@ public class FeatureStack
 								return false;
 							final double psi = Math.PI / 2 * i;
 							//IJ.log( n++ +": Calculating Gabor filter (" + sigma + " , " + gamma + ", " + psi + ", " + frequency + ", " + nAngles + ")");
-							addGabor( originalImage, sigma, gamma, psi, frequency, nAngles ) ;
+							if( computeFeature( GABOR, sigma, gamma, psi, frequency, nAngles ) )
+								addGabor( originalImage, sigma, gamma, psi, frequency, nAngles );
 						}								
 		}
 
@@ -2649,7 +3133,8 @@ public class FeatureStack
 			if ( Thread.currentThread().isInterrupted() ) 
 				return false;
 			//IJ.log(n++ + ": Calculating Sobel filter (0.0)");
-			addGradient(0);
+			if( computeFeature( SOBEL, 0f ) )
+				addGradient(0);
 		}
 		// Hessian (no blur)
 		if(enableFeatures[HESSIAN] && minimumSigma < 2)
@@ -2657,7 +3142,8 @@ public class FeatureStack
 			if (Thread.currentThread().isInterrupted()) 
 				return false;
 			//IJ.log( n++ +": Calculating Hessian filter (0.0)");
-			addHessian(0);
+			if( computeFeature( HESSIAN, 0f ) )
+				addHessian(0);
 		}
 
 
@@ -2669,19 +3155,22 @@ public class FeatureStack
 			if(enableFeatures[GAUSSIAN])
 			{
 				//IJ.log( n++ +": Calculating Gaussian filter ("+ i + ")");
-				addGaussianBlur(i);
+				if( computeFeature( GAUSSIAN, i ) )
+					addGaussianBlur(i);
 			}
 			// Sobel
 			if(enableFeatures[SOBEL])
 			{
 				//IJ.log( n++ +": Calculating Sobel filter ("+ i + ")");
-				addGradient(i);
+				if( computeFeature( SOBEL, i ) )
+					addGradient(i);
 			}
 			// Hessian
 			if(enableFeatures[HESSIAN])
 			{
 				//IJ.log("Calculating Hessian filter ("+ i + ")");
-				addHessian(i);
+				if( computeFeature( HESSIAN, i ) )
+					addHessian(i);
 			}
 			// Difference of gaussians
 			if(enableFeatures[DOG])
@@ -2689,67 +3178,77 @@ public class FeatureStack
 				for (float j=minimumSigma; j<i; j*=2)
 				{
 					//IJ.log( n++ +": Calculating DoG filter ("+ i + ", " + j + ")");
-					addDoG(i, j);
+					if( computeFeature( DOG, i, j ) )
+						addDoG(i, j);
 				}
 			}
 			// Variance
 			if(enableFeatures[VARIANCE])
 			{
 				//IJ.log( n++ +": Calculating Variance filter ("+ i + ")");
-				addVariance(i);
+				if( computeFeature( VARIANCE, i ) )
+					addVariance(i);
 			}
 			// Mean
 			if(enableFeatures[MEAN])
 			{
 				//IJ.log( n++ +": Calculating Mean filter ("+ i + ")");
-				addMean(i);
+				if( computeFeature( MEAN, i ) )
+					addMean(i);
 			}
 
 			// Min
 			if(enableFeatures[MINIMUM])
 			{
 				//IJ.log( n++ +": Calculating Minimum filter ("+ i + ")");
-				addMin(i);
+				if( computeFeature( MINIMUM, i ) )
+					addMin(i);
 			}
 			// Max
 			if(enableFeatures[MAXIMUM])
 			{
 				//IJ.log( n++ +": Calculating Maximum filter ("+ i + ")");
-				addMax(i);
+				if( computeFeature( MAXIMUM, i ) )
+					addMax(i);
 			}
 			
 			// Median
 			if(enableFeatures[MEDIAN])
 			{
 				//IJ.log( n++ +": Calculating Median filter ("+ i + ")");
-				addMedian(i);
+				if( computeFeature( MEDIAN, i ) )
+					addMedian(i);
 			}
 			
 			// Derivatives
 			if(enableFeatures[DERIVATIVES])
 			{					
 				for(int order = minDerivativeOrder; order<=maxDerivativeOrder; order++)
-					addDerivatives( i, order, order );
+					if( computeFeature( DERIVATIVES, i, order ) )
+						addDerivatives( i, order, order );
 			}
 			
 			// Laplacian
 			if(enableFeatures[LAPLACIAN])
 			{
-				addLaplacian(i);
+				if( computeFeature( LAPLACIAN, i ) )
+					addLaplacian(i);
 			}
 			
 			// Structure tensor
 			if(enableFeatures[ STRUCTURE ])
 			{					
 				for(int integrationScale = 1; integrationScale <= 3; integrationScale+=2)
-					addStructure(i, integrationScale );
+					if( computeFeature( STRUCTURE, i, integrationScale ) )
+						addStructure(i, integrationScale );
 			}
 			
 			// Entropy
 			if(enableFeatures[ ENTROPY ])
 			{
 				for(int nBins = 32; nBins <= 256; nBins *=2)
-					addEntropy((int)i, nBins);
+					if( computeFeature( ENTROPY, (int) i, nBins ) )
+						addEntropy((int)i, nBins);
 			}
 
 		}
@@ -2759,18 +3258,143 @@ public class FeatureStack
 			if (Thread.currentThread().isInterrupted()) 
 				return false;
 			//IJ.log( n++ +": Calculating Membranes projections ("+ membranePatchSize + ", " + membraneSize + ")");
-			addMembraneFeatures(membranePatchSize, membraneSize);
+			if( computeFeature( MEMBRANE, membranePatchSize, membraneSize ) )
+				addMembraneFeatures(membranePatchSize, membraneSize);
 		}
 		
-		// Neighbors
+		finishFeature();
+		
+		// Neighbors (shifted reads of the original image, not stack slices)
 		if( enableFeatures[ NEIGHBORS ])
-			addNeighbors( (int)minimumSigma, (int)maximumSigma );
+			setNeighborFeatures( (int)minimumSigma, (int)maximumSigma );
 		
 		IJ.showProgress(1.0);
 		IJ.showStatus("Features stack is updated now!");
 		return true;
 	}
 
+	/**
+	 * Start the bookkeeping of the planes of each feature for an update. The
+	 * planes of the previous update are reused if the settings that are not
+	 * feature parameters (Hessian format, Gaussian filter) did not change.
+	 */
+	private void beginFeatureUpdate()
+	{
+		loadPlanes();
+		final String settings = "oldHessian=" + oldHessianFormat
+				+ ";recursiveGaussian=" + useRecursiveGaussian
+				+ ";fastAnisotropicDiffusion=" + useFastAnisotropicDiffusion
+				+ ";bilateralGrid=" + useBilateralGrid;
+		if( settings.equals( featurePlanesSettings ) )
+			previousPlanes = featurePlanes;
+		else
+			previousPlanes = new HashMap< List<Object>, ImageStack >();
+		featurePlanesSettings = settings;
+		updatedPlanes = new HashMap< List<Object>, ImageStack >();
+		pendingFeature = null;
+	}
+	
+	/**
+	 * Finish the bookkeeping of the planes of each feature. If the update
+	 * succeeded, only the planes of its features are kept (the planes of
+	 * the features that are not enabled anymore are dropped).
+	 * @param updated true if the update succeeded
+	 */
+	private void endFeatureUpdate( boolean updated )
+	{
+		if( updated )
+			featurePlanes = updatedPlanes;
+		previousPlanes = null;
+		updatedPlanes = null;
+		pendingFeature = null;
+	}
+	
+	/**
+	 * Record the slices added to the stack since a given index as the
+	 * planes of a feature.
+	 * @param key feature name and parameters
+	 * @param first index of the slice before the first plane of the feature
+	 */
+	private void recordPlanes( List<Object> key, int first )
+	{
+		if( wholeStack.getSize() == first )
+			return;
+		final ImageStack planes = new ImageStack( width, height );
+		for( int i = first + 1; i <= wholeStack.getSize(); i++ )
+			planes.addSlice( wholeStack.getSliceLabel( i ), wholeStack.getPixels( i ) );
+		updatedPlanes.put( key, planes );
+	}
+	
+	/**
+	 * Check if a feature must be computed by a single-thread update. If the
+	 * previous update computed it, its planes are added to the stack instead.
+	 * The planes added since the previous call are recorded as the planes
+	 * of the previous feature.
+	 * 
+	 * @param params feature name and parameters
+	 * @return true if the feature must be computed (added to the stack)
+	 */
+	private boolean computeFeature( Object... params )
+	{
+		finishFeature();
+		final List<Object> key = Arrays.asList( params );
+		final ImageStack planes = previousPlanes.get( key );
+		if( null != planes )
+		{
+			for( int i = 1; i <= planes.getSize(); i++ )
+				wholeStack.addSlice( planes.getSliceLabel( i ), planes.getPixels( i ) );
+			updatedPlanes.put( key, planes );
+			return false;
+		}
+		pendingFeature = key;
+		pendingFirst = wholeStack.getSize();
+		return true;
+	}
+	
+	/**
+	 * Record the planes of the last feature checked with
+	 * {@link #computeFeature(Object...)}.
+	 */
+	private void finishFeature()
+	{
+		if( null != pendingFeature )
+			recordPlanes( pendingFeature, pendingFirst );
+		pendingFeature = null;
+	}
+	
+	/**
+	 * Jobs of a multi-thread update, in the order their planes are added to
+	 * the stack. The features computed by the previous update are not
+	 * submitted again.
+	 */
+	private class FeatureJobs
+	{
+		/** results of the jobs (null for the features of the previous update) */
+		final ArrayList< Future<ImagePlus> > futures = new ArrayList< Future<ImagePlus> >();
+		/** feature name and parameters of each job */
+		final ArrayList< List<Object> > keys = new ArrayList< List<Object> >();
+		
+		/**
+		 * Check if a feature must be computed.
+		 * @param params feature name and parameters
+		 * @return true if the job of the feature must be submitted next
+		 */
+		boolean compute( Object... params )
+		{
+			final List<Object> key = Arrays.asList( params );
+			keys.add( key );
+			if( !previousPlanes.containsKey( key ) )
+				return true;
+			futures.add( null );
+			return false;
+		}
+		
+		void submit( Callable<ImagePlus> job )
+		{
+			futures.add( exe.submit( job ) );
+		}
+	}
+	
 	/**
 	 * Add HSB features
 	 */
@@ -2780,7 +3404,7 @@ public class FeatureStack
 		ImageConverter ic = new ImageConverter( hsb );
 		ic.convertToHSB();
 		for(int n=1; n<=hsb.getImageStackSize(); n++)
-			wholeStack.addSlice(hsb.getImageStack().getSliceLabel(n), hsb.getImageStack().getProcessor(n).convertToRGB());
+			addFeatureSlice(hsb.getImageStack().getSliceLabel(n), hsb.getImageStack().getProcessor(n).convertToRGB());
 	}
 	
 	/**
@@ -2826,10 +3450,34 @@ public class FeatureStack
 	{
 		if (Thread.currentThread().isInterrupted() )
 			return false;
-		
-		exe = Executors.newFixedThreadPool( numThreads );
+		final String key = getCacheKey( "MT" );
+		if( loadCachedFeatures( key ) )
+			return true;
+		beginFeatureUpdate();
+		boolean updated = false;
+		try{
+			updated = computeFeaturesMT( numThreads );
+		}
+		finally{
+			endFeatureUpdate( updated );
+		}
+		if( updated && null != key )
+			featureCache.store( key, wholeStack );
+		return updated;
+	}
+	
+	/** Helper method to updateFeaturesMT */
+	private boolean computeFeaturesMT( int numThreads )
+	{
+		// work-stealing pool: tasks waiting for sub-tasks (such as the
+		// Gabor FFT convolutions) help running them instead of blocking
+		exe = new ForkJoinPool( numThreads );
+		// blurred images are shared by the features during the update
+		scaleSpace = createScaleSpace( originalImage );
 				
 		wholeStack = new ImageStack(width, height);
+		spilledFeatures = null;
+		neighborFeatures = null;
 		if( originalImage.getType() == ImagePlus.COLOR_RGB)
 			wholeStack.addSlice("original", originalImage.getProcessor().duplicate());
 		else
@@ -2841,7 +3489,7 @@ public class FeatureStack
 			if(enableFeatures[i])
 				finalIndex ++;
 
-		final ArrayList< Future<ImagePlus> > futures = new ArrayList< Future<ImagePlus> >();
+		final FeatureJobs jobs = new FeatureJobs();
 		//int n=0;
 		
 		int currentIndex = 0;
@@ -2860,38 +3508,40 @@ public class FeatureStack
 						//IJ.log( n++ +": Calculating anisotropic diffusion (20, 20, " + i + ", " + j + ", 0.9f" + ", " + membraneSize + ")");
 					//for(float j = 0.10f; j <= 0.5f; j+= 0.2f)
 						//for(float k = 0.5f; k < 6f; k+= 1f)
-							futures.add(exe.submit( getAnisotropicDiffusion(originalImage, 20, 20,(int) i, j, 0.9f, (float) membraneSize) ) );
+							if( jobs.compute( ANISOTROPIC_DIFFUSION, (int) i, j, membraneSize ) )
+								jobs.submit( getAnisotropicDiffusion(originalImage, 20, 20,(int) i, j, 0.9f, (float) membraneSize) );
 							//futures.add(exe.submit( getAnisotropicDiffusion(originalImage, 20, 20, (int) i, j, 0.9f, k) ) );
 					}				
 			}
 			
 			// HSB
 			if( originalImage.getType() == ImagePlus.COLOR_RGB)
-				futures.add(exe.submit( getHSB(originalImage) ) );
+				if( jobs.compute( "HSB" ) )
+					jobs.submit( getHSB(originalImage) );
 			
 			// Bilateral filter
 			if(enableFeatures[BILATERAL])			
 			{
+				// one job per spatial radius, so the range radii share the grid (if used)
+				final double[] rangeRadii = new double[]{ 50, 100 };
 				for(double i = 5; i < 20; i *= 2)
-					for(double j = 50; j <= 100; j*= 2)
-					{
-						if (Thread.currentThread().isInterrupted()) 
-							return false;
-						//IJ.log( n++ +": Calculating bilateral filter (" + i + ", " + j + ")");
-						futures.add(exe.submit( getBilateralFilter(originalImage, i, j) ) );
-					}
+				{
+					if (Thread.currentThread().isInterrupted()) 
+						return false;
+					if( jobs.compute( BILATERAL, i ) )
+						jobs.submit( getBilateralFilters(originalImage, i, rangeRadii) );
+				}
 			}
 			
 			// Lipschitz filter
 			if(enableFeatures[LIPSCHITZ])			
 			{
-				for(double i = 5; i < 30; i += 5)					
-				{
-					if (Thread.currentThread().isInterrupted()) 
-						return false;
-					//IJ.log( n++ +": Calculating Lipschitz filter (true, true, " + i + ")");
-					futures.add(exe.submit( getLipschitzFilter(originalImage, true, true, i) ) );
-				}
+				// one job for all slopes, so they share the sweeps over the image
+				final double[] slopes = new double[]{ 5, 10, 15, 20, 25 };
+				if (Thread.currentThread().isInterrupted()) 
+					return false;
+				if( jobs.compute( LIPSCHITZ ) )
+					jobs.submit( getLipschitzFilters(originalImage, true, true, slopes) );
 			}
 			
 			// Kuwahara filter
@@ -2902,7 +3552,8 @@ public class FeatureStack
 					if (Thread.currentThread().isInterrupted()) 
 						return false;
 					//IJ.log( n++ +": Calculating Kuwahara filter (" + membranePatchSize + ", " + nAngles + ", " + i + ")");
-					futures.add(exe.submit( getKuwaharaFeatures(originalImage, membranePatchSize, nAngles, i) ) );
+					if( jobs.compute( KUWAHARA, membranePatchSize, nAngles, i ) )
+						jobs.submit( getKuwaharaFeatures(originalImage, membranePatchSize, nAngles, i) );
 				}
 			}
 			
@@ -2918,18 +3569,8 @@ public class FeatureStack
 								return false;
 							final double psi = Math.PI / 2 * i;
 							//System.out.println( " Calculating Gabor filter (1.0, " + gamma + ", " + psi + ", " + frequency + ", " + nAngles + ")");
-							final ImagePlus res = exe.submit( getGabor(originalImage, 1.0, gamma, psi, frequency, nAngles, exe) ).get() ;
-							currentIndex ++;
-							IJ.showStatus("Updating features...");
-							IJ.showProgress(currentIndex, finalIndex);
-							if(res.getImageStackSize() == 1)
-								this.wholeStack.addSlice(res.getTitle(), res.getProcessor());
-							else
-							{
-								final ImageStack slices = res.getImageStack();
-								for(int s = 1; s <= slices.getSize() ; s++)
-									this.wholeStack.addSlice(slices.getSliceLabel(s), slices.getProcessor(s));
-							}
+							if( jobs.compute( GABOR, 1.0, gamma, psi, frequency, nAngles ) )
+								jobs.submit( getGabor(originalImage, 1.0, gamma, psi, frequency, nAngles, exe) );
 						}
 				// elongated filters in x- axis (sigma = [2.0 - 4.0], gamma = [1.0 - 2.0])
 				for(int i=0; i < 2; i++)
@@ -2941,18 +3582,8 @@ public class FeatureStack
 									return false;
 								final double psi = Math.PI / 2 * i;
 								//System.out.println( " Calculating Gabor filter (" + sigma + " , " + gamma + ", " + psi + ", " + frequency + ", " + nAngles + ")");
-								final ImagePlus res = exe.submit( getGabor(originalImage, sigma, gamma, psi, frequency, nAngles, exe ) ).get();
-								currentIndex ++;
-								IJ.showStatus("Updating features...");
-								IJ.showProgress(currentIndex, finalIndex);
-								if(res.getImageStackSize() == 1)
-									this.wholeStack.addSlice(res.getTitle(), res.getProcessor());
-								else
-								{
-									final ImageStack slices = res.getImageStack();
-									for(int s = 1; s <= slices.getSize() ; s++)
-										this.wholeStack.addSlice(slices.getSliceLabel(s), slices.getProcessor(s));
-								}
+								if( jobs.compute( GABOR, sigma, gamma, psi, frequency, nAngles ) )
+									jobs.submit( getGabor(originalImage, sigma, gamma, psi, frequency, nAngles, exe ) );
 							}								
 			}
 			
@@ -2962,7 +3593,11 @@ public class FeatureStack
 				if ( Thread.currentThread().isInterrupted() ) 
 					return false;
 				//IJ.log(n++ + ": Calculating Sobel filter (0.0)");
-				futures.add(exe.submit( getGradient(originalImage, 0)) );
+				if( jobs.compute( SOBEL, 0f ) )
+				{
+					scaleSpace.expect( 0 );
+					jobs.submit( getGradient(originalImage, 0) );
+				}
 			}
 			// Hessian (no blur)
 			if(enableFeatures[HESSIAN] && minimumSigma < 2)
@@ -2970,7 +3605,11 @@ public class FeatureStack
 				if (Thread.currentThread().isInterrupted()) 
 					return false;
 				//IJ.log( n++ +": Calculating Hessian filter (0.0)");
-				futures.add(exe.submit( getHessian(originalImage, 0)) );
+				if( jobs.compute( HESSIAN, 0f ) )
+				{
+					scaleSpace.expect( 0 );
+					jobs.submit( getHessian(originalImage, 0) );
+				}
 			}
 			
 			
@@ -2982,19 +3621,31 @@ public class FeatureStack
 				if(enableFeatures[GAUSSIAN])
 				{
 					//IJ.log( n++ +": Calculating Gaussian filter ("+ i + ")");
-					futures.add(exe.submit( getGaussianBlur(originalImage, i)) );
+					if( jobs.compute( GAUSSIAN, i ) )
+					{
+						scaleSpace.expect( i );
+						jobs.submit( getGaussianBlur(originalImage, i) );
+					}
 				}
 				// Sobel
 				if(enableFeatures[SOBEL])
 				{
 					//IJ.log( n++ +": Calculating Sobel filter ("+ i + ")");
-					futures.add(exe.submit( getGradient(originalImage, i)) );
+					if( jobs.compute( SOBEL, i ) )
+					{
+						scaleSpace.expect( i );
+						jobs.submit( getGradient(originalImage, i) );
+					}
 				}
 				// Hessian
 				if(enableFeatures[HESSIAN])
 				{
 					//IJ.log("Calculating Hessian filter ("+ i + ")");
-					futures.add(exe.submit( getHessian(originalImage, i)) );
+					if( jobs.compute( HESSIAN, i ) )
+					{
+						scaleSpace.expect( i );
+						jobs.submit( getHessian(originalImage, i) );
+					}
 				}
 				// Difference of gaussians
 				if(enableFeatures[DOG])
@@ -3002,67 +3653,81 @@ public class FeatureStack
 					for (float j=minimumSigma; j<i; j*=2)
 					{
 						//IJ.log( n++ +": Calculating DoG filter ("+ i + ", " + j + ")");
-						futures.add(exe.submit( getDoG(originalImage, i, j)) );
+						if( jobs.compute( DOG, i, j ) )
+						{
+							scaleSpace.expect( i );
+							scaleSpace.expect( j );
+							jobs.submit( getDoG(originalImage, i, j) );
+						}
 					}
 				}
 				// Variance
 				if(enableFeatures[VARIANCE])
 				{
 					//IJ.log( n++ +": Calculating Variance filter ("+ i + ")");
-					futures.add(exe.submit( getVariance(originalImage, i)) );
+					if( jobs.compute( VARIANCE, i ) )
+						jobs.submit( getVariance(originalImage, i) );
 				}
 				// Mean
 				if(enableFeatures[MEAN])
 				{
 					//IJ.log( n++ +": Calculating Mean filter ("+ i + ")");
-					futures.add(exe.submit( getMean(originalImage, i)) );
+					if( jobs.compute( MEAN, i ) )
+						jobs.submit( getMean(originalImage, i) );
 				}
 
 				// Min
 				if(enableFeatures[MINIMUM])
 				{
 					//IJ.log( n++ +": Calculating Minimum filter ("+ i + ")");
-					futures.add(exe.submit( getMin(originalImage, i)) );
+					if( jobs.compute( MINIMUM, i ) )
+						jobs.submit( getMin(originalImage, i) );
 				}
 				// Max
 				if(enableFeatures[MAXIMUM])
 				{
 					//IJ.log( n++ +": Calculating Maximum filter ("+ i + ")");
-					futures.add(exe.submit( getMax(originalImage, i)) );
+					if( jobs.compute( MAXIMUM, i ) )
+						jobs.submit( getMax(originalImage, i) );
 				}
 			
 				// Median
 				if(enableFeatures[MEDIAN])
 				{
 					//IJ.log( n++ +": Calculating Median filter ("+ i + ")");
-					futures.add(exe.submit( getMedian(originalImage, i)) );
+					if( jobs.compute( MEDIAN, i ) )
+						jobs.submit( getMedian(originalImage, i) );
 				}
 				
 				// Derivatives
 				if(enableFeatures[DERIVATIVES])
 				{					
 					for(int order = minDerivativeOrder; order<=maxDerivativeOrder; order++)
-						futures.add(exe.submit( getDerivatives(originalImage, i, order, order)) );
+						if( jobs.compute( DERIVATIVES, i, order ) )
+							jobs.submit( getDerivatives(originalImage, i, order, order) );
 				}
 				
 				// Laplacian
 				if(enableFeatures[LAPLACIAN])
 				{
-					futures.add(exe.submit( getLaplacian(originalImage, i)) );
+					if( jobs.compute( LAPLACIAN, i ) )
+						jobs.submit( getLaplacian(originalImage, i) );
 				}
 				
 				// Structure tensor
 				if(enableFeatures[ STRUCTURE ])
 				{					
 					for(int integrationScale = 1; integrationScale <= 3; integrationScale+=2)
-						futures.add(exe.submit( getStructure(originalImage, i, integrationScale )) );
+						if( jobs.compute( STRUCTURE, i, integrationScale ) )
+							jobs.submit( getStructure(originalImage, i, integrationScale ) );
 				}
 				
 				// Entropy
 				if(enableFeatures[ENTROPY])
 				{
 					for(int nBins = 32; nBins <= 256; nBins *=2)
-						futures.add(exe.submit( getEntropy(originalImage, (int) i, nBins)) );
+						if( jobs.compute( ENTROPY, (int) i, nBins ) )
+							jobs.submit( getEntropy(originalImage, (int) i, nBins) );
 				}
 
 			}
@@ -3072,32 +3737,50 @@ public class FeatureStack
 				if (Thread.currentThread().isInterrupted()) 
 					return false;
 				//IJ.log( n++ +": Calculating Membranes projections ("+ membranePatchSize + ", " + membraneSize + ")");
-				futures.add(exe.submit( getMembraneFeatures(originalImage, membranePatchSize, membraneSize) ));
+				if( jobs.compute( MEMBRANE, membranePatchSize, membraneSize ) )
+					jobs.submit( getMembraneFeatures(originalImage, membranePatchSize, membraneSize) );
 			}
 
-			// Neighbors
-			if( enableFeatures[ NEIGHBORS ])
-				futures.add(exe.submit( getNeighbors( originalImage, (int)minimumSigma, (int)maximumSigma ) ) );
+			// all uses of the blurred images are known now, so each of them
+			// can be dropped as soon as its last feature is done
+			scaleSpace.seal();
 			
-			// Wait for the jobs to be done
-			for(Future<ImagePlus> f : futures)
+			// Wait for the jobs to be done (in submission order, so the
+			// slices are always assembled in the same order)
+			for(int n = 0; n < jobs.futures.size(); n++)
 			{
-				final ImagePlus res = f.get();
+				final Future<ImagePlus> f = jobs.futures.get( n );
+				final int first = wholeStack.getSize();
 				currentIndex ++;
 				IJ.showStatus("Updating features...");
 				IJ.showProgress(currentIndex, finalIndex);
-				if(res.getImageStackSize() == 1)
+				if( null == f )
 				{
-					this.wholeStack.addSlice(res.getTitle(), res.getProcessor());
+					// planes of the previous update
+					final ImageStack slices = previousPlanes.get( jobs.keys.get( n ) );
+					for(int i = 1; i <= slices.getSize() ; i++)
+						this.wholeStack.addSlice(slices.getSliceLabel(i), slices.getProcessor(i));
 				}
 				else
 				{
-					final ImageStack slices = res.getImageStack();
-					for(int i = 1; i <= slices.getSize() ; i++)
-						this.wholeStack.addSlice(slices.getSliceLabel(i), slices.getProcessor(i));
+					final ImagePlus res = f.get();
+					if(res.getImageStackSize() == 1)
+					{
+						this.wholeStack.addSlice(res.getTitle(), res.getProcessor());
+					}
+					else
+					{
+						final ImageStack slices = res.getImageStack();
+						for(int i = 1; i <= slices.getSize() ; i++)
+							this.wholeStack.addSlice(slices.getSliceLabel(i), slices.getProcessor(i));
+					}
 				}
+				recordPlanes( jobs.keys.get( n ), first );
 			}
-		
+			
+			// Neighbors (shifted reads of the original image, not stack slices)
+			if( enableFeatures[ NEIGHBORS ])
+				setNeighborFeatures( (int)minimumSigma, (int)maximumSigma );
 		}
 		catch(InterruptedException ie)
 		{
@@ -3112,6 +3795,7 @@ public class FeatureStack
 		}
 		finally{
 			exe.shutdownNow();
+			scaleSpace = null;
 		}	
 		
 		IJ.showProgress(1.0);
@@ -3181,7 +3865,7 @@ public class FeatureStack
 	 */
 	public boolean isEmpty()
 	{
-		return (null == this.wholeStack || this.wholeStack.getSize() < 2);
+		return getSize() < 2;
 	}
 	
 	/**
@@ -3191,6 +3875,8 @@ public class FeatureStack
 	 */
 	public boolean saveStackAsTiff(final String filename)
 	{
+		ensureLoaded();
+		materializeNeighbors();
 		final ImagePlus ip = new ImagePlus("feature-stack", this.wholeStack);
 		//ip.show();
 		//IJ.log("path = " + filename);
@@ -3205,13 +3891,38 @@ public class FeatureStack
 	 */
 	public void removeFeature(String featureName) 
 	{
+		ensureLoaded();
+		materializeNeighbors();
 		for(int n=1; n<=wholeStack.getSize(); n++)
 			if(featureName.equalsIgnoreCase(wholeStack.getSliceLabel(n)))
 			{
+				packedFeatures = null;
+				forgetPlanes( wholeStack.getPixels(n) );
 				this.wholeStack.deleteSlice(n);
 				return;
 			}		
 	}
+	
+	/**
+	 * Drop the planes of the feature a removed slice belongs to, so they are
+	 * not kept in memory (the feature is computed again by the next update
+	 * if it is still enabled).
+	 * @param pixels pixels of the removed slice
+	 */
+	private void forgetPlanes( Object pixels )
+	{
+		final Iterator< ImageStack > it = featurePlanes.values().iterator();
+		while( it.hasNext() )
+		{
+			final ImageStack planes = it.next();
+			for( int i = 1; i <= planes.getSize(); i++ )
+				if( planes.getPixels( i ) == pixels )
+				{
+					it.remove();
+					return;
+				}
+		}
+	}
 
 	/**
 	 * Set the minimum sigma to use in the filters
@@ -3247,38 +3958,12 @@ public class FeatureStack
 		final int extra = useNeighbors ? 8 : 0;
 		
 		final double[] values = new double[ getSize() + 1 + extra ];
-		int n = 0;
-		
-		if(!colorFeatures || oldColorFormat)
-		{
-			for (int z=0; z<getSize(); z++, n++)		
-				values[ z ] = this.wholeStack.getVoxel( x, y, z );
-		}
-		else
-		{
-			for (int z=0; z < getSize(); z++, n++)		
-			{
-				int c  = (int) wholeStack.getVoxel( x, y, z );
-				int r = (c&0xff0000)>>16;
-				int g = (c&0xff00)>>8;
-				int b = c&0xff;
-				values[ z ] = (r + g + b) / 3.0;
-			}
-		}
+		int n = readFeatures( x, y, values );
 		
 		
 		// Test: add neighbors of original image
 		if(useNeighbors)
-		{
-			for(int i=-1;  i < 2; i++)
-				for(int j = -1; j < 2; j++)
-				{
-					if(i==0 && j==0)
-						continue;				
-					values[n] = getPixelMirrorConditions(getProcessor(1), x+i, y+j);
-					n++;
-				}
-		}
+			getNeighborhood(x, y, values, n);
 		// Assign class
 		values[values.length-1] = (double) classValue;
 		
@@ -3299,36 +3984,10 @@ public class FeatureStack
 		final int extra = useNeighbors ? 8 : 0;
 
 		final double[] values = new double[ getSize() + extra ];
-		int n = 0;
-
-		if(!colorFeatures || oldColorFormat)
-		{
-			for (int z=0; z<getSize(); z++, n++)
-				values[ z ] = this.wholeStack.getVoxel( x, y, z );
-		}
-		else
-		{
-			for (int z=0; z < getSize(); z++, n++)
-			{
-				int c  = (int) wholeStack.getVoxel( x, y, z );
-				int r = (c&0xff0000)>>16;
-				int g = (c&0xff00)>>8;
-				int b = c&0xff;
-				values[ z ] = (r + g + b) / 3.0;
-			}
-		}
+		int n = readFeatures( x, y, values );
 		// Test: add neighbors of original image
 		if(useNeighbors)
-		{
-			for(int i=-1;  i < 2; i++)
-				for(int j = -1; j < 2; j++)
-				{
-					if(i==0 && j==0)
-						continue;
-					values[n] = getPixelMirrorConditions(getProcessor(1), x+i, y+j);
-					n++;
-				}
-		}
+			getNeighborhood(x, y, values, n);
 		return new DenseInstance(1.0, values);
 	}
 	
@@ -3353,38 +4012,19 @@ public class FeatureStack
 			return;
 		}
 		
-		int n = 0;
-		
-		if(!colorFeatures || oldColorFormat)
-		{
-			for (int z=0; z<getSize(); z++, n++)		
-				ins.setValue( z, wholeStack.getVoxel( x, y, z ) );
-		}
-		else
-		{
-			for (int z=0; z<getSize(); z++, n++)
-			{
-				int c  = (int) wholeStack.getVoxel( x, y, z );
-				int r = (c&0xff0000)>>16;
-				int g = (c&0xff00)>>8;
-				int b = c&0xff;
-				ins.setValue( z, (r + g + b) / 3.0 );
-			}
-				
-		}
+		final double[] values = new double[ getSize() ];
+		int n = readFeatures( x, y, values );
+		for (int z=0; z<n; z++)
+			ins.setValue( z, values[ z ] );
 		
 		
 		// Test: add neighbors of original image
 		if( useNeighbors )
 		{
-			for(int i=-1;  i < 2; i++)
-				for(int j = -1; j < 2; j++)
-				{
-					if(i==0 && j==0)
-						continue;				
-					ins.setValue( n, getPixelMirrorConditions(getProcessor(1), x+i, y+j) );
-					n++;
-				}
+			final double[] neighborhood = new double[ 8 ];
+			getNeighborhood(x, y, neighborhood, 0);
+			for(int i=0; i<8; i++, n++)
+				ins.setValue( n, neighborhood[ i ] );
 		}
 		// Assign class		
 		ins.setClassValue(classValue);
@@ -3403,40 +4043,13 @@ public class FeatureStack
 			final ReusableDenseInstance ins,
 			final double[] auxArray )
 	{
-		int n = 0;
-
 		// fill auxiliary array
-		if(!colorFeatures || oldColorFormat)
-		{
-			for (int z=0; z<getSize(); z++, n++)
-				auxArray[ z ] = this.wholeStack.getVoxel( x, y, z );
-		}
-		else
-		{
-			for (int z=0; z < getSize(); z++, n++)
-			{
-				int c  = (int) wholeStack.getVoxel( x, y, z );
-				int r = (c&0xff0000)>>16;
-				int g = (c&0xff00)>>8;
-				int b = c&0xff;
-				auxArray[ z ] = (r + g + b) / 3.0;
-			}
-		}
+		int n = readFeatures( x, y, auxArray );
 
 
 		// Test: add neighbors of original image
 		if(useNeighbors)
-		{
-			for(int i=-1;  i < 2; i++)
-				for(int j = -1; j < 2; j++)
-				{
-					if(i==0 && j==0)
-						continue;
-					auxArray[n] =
-							getPixelMirrorConditions(getProcessor(1), x+i, y+j);
-					n++;
-				}
-		}
+			getNeighborhood(x, y, auxArray, n);
 
 		// Set attribute values to input instance
 		ins.setValues( 1.0, auxArray );
@@ -3460,48 +4073,435 @@ public class FeatureStack
 			final ReusableDenseInstance ins, 
 			final double[] auxArray )
 	{		
-		int n = 0;
-		
 		// fill auxiliary array
-		if(!colorFeatures || oldColorFormat)
+		int n = readFeatures( x, y, auxArray );
+		
+		
+		// Test: add neighbors of original image
+		if(useNeighbors)
+			getNeighborhood(x, y, auxArray, n);
+		// Assign class
+		auxArray[auxArray.length-1] = (double) classValue;
+		
+		// Set attribute values to input instance
+		ins.setValues( 1.0, auxArray );		
+		return;
+	}
+	
+	/**
+	 * Read the feature vector of a pixel (from the packed features, the
+	 * stack slices or the spilled features, whichever is current, followed
+	 * by the NEIGHBORS features that are not stack slices).
+	 * 
+	 * @param x x- pixel coordinate
+	 * @param y y- pixel coordinate
+	 * @param values output array
+	 * @return number of features
+	 */
+	private int readFeatures( int x, int y, double[] values )
+	{
+		final boolean colorAverage = colorFeatures && !oldColorFormat;
+		final PackedFeatures packed = getPackedFeatures();
+		if( null != packed )
 		{
-			for (int z=0; z<getSize(); z++, n++)		
-				auxArray[ z ] = this.wholeStack.getVoxel( x, y, z );
+			packed.get( x, y, values );
+			return readNeighborFeatures( packed.source, x, y, values, packed.numFeatures, colorAverage );
 		}
-		else
+		
+		// the stack may be spilled or loaded by another thread meanwhile
+		ImageStack stack = wholeStack;
+		SpilledFeatures spilled = null;
+		if( null == stack )
+		{
+			spilled = spilledFeatures;
+			if( null == spilled )
+				stack = wholeStack;
+		}
+		
+		final int size = null != stack ? stack.getSize() : spilled.getSize();
+		for (int z=0; z<size; z++)
 		{
-			for (int z=0; z < getSize(); z++, n++)		
+			final double v = null != stack ? stack.getVoxel( x, y, z ) : spilled.getVoxel( x, y, z );
+			if( colorAverage )
 			{
-				int c  = (int) wholeStack.getVoxel( x, y, z );
+				int c  = (int) v;
 				int r = (c&0xff0000)>>16;
 				int g = (c&0xff00)>>8;
 				int b = c&0xff;
-				auxArray[ z ] = (r + g + b) / 3.0;
+				values[ z ] = (r + g + b) / 3.0;
 			}
+			else
+				values[ z ] = v;
 		}
-		
-		
-		// Test: add neighbors of original image
-		if(useNeighbors)
+		return readNeighborFeatures( null != stack ? stack : spilled, x, y, values, size, colorAverage );
+	}
+	
+	/**
+	 * Read the NEIGHBORS features of a pixel that are not stack slices.
+	 * 
+	 * @param source stack (or spilled features) the other features were read from
+	 * @param x x- pixel coordinate
+	 * @param y y- pixel coordinate
+	 * @param values output array
+	 * @param offset index in values of the first NEIGHBORS feature
+	 * @param colorAverage read the average of the RGB channels
+	 * @return number of features
+	 */
+	private int readNeighborFeatures( Object source, int x, int y, double[] values,
+			int offset, boolean colorAverage )
+	{
+		final NeighborhoodPlane neighbors = getNeighborFeatures( source );
+		if( null == neighbors )
+			// spilled, loaded back or extended meanwhile
+			return isCurrent( source ) ? offset : readFeatures( x, y, values );
+		for( int k = 0; k < neighbors.labels.length; k++ )
+			values[ offset++ ] = neighbors.getValue( x, y, k, colorAverage );
+		return offset;
+	}
+	
+	/**
+	 * Write the features to a scratch file, memory-map it and release the
+	 * stack slices from memory. The instance methods (createInstance,
+	 * setInstance) and the size and slice labels read the mapped features
+	 * directly; the other methods that need the stack (such as
+	 * {@link #getStack()} or {@link #getProcessor(int)}) load it back into
+	 * memory first. Features cannot be added to a spilled stack before it is
+	 * loaded back or updated.
+	 * 
+	 * @param directory directory of the scratch file (null for the default
+	 * temporary directory)
+	 * @return true if the features are spilled
+	 */
+	public boolean spill( File directory )
+	{
+		synchronized( this )
+		{
+			if( null != spilledFeatures )
+				return true;
+			if( null == wholeStack || wholeStack.getSize() == 0 )
+				return false;
+			try{
+				spilledFeatures = SpilledFeatures.spill( wholeStack, directory );
+			}
+			catch( IOException e )
+			{
+				IJ.log( "Error when writing features to scratch file: " + e.getMessage() );
+				return false;
+			}
+			packedFeatures = null;
+			// the planes of the features would keep the stack in memory
+			featurePlanes = new HashMap< List<Object>, ImageStack >();
+			// the neighbors are still read from the padded plane, if it is up to date
+			final NeighborhoodPlane plane = neighborhoodPlane;
+			if( null != plane && plane.source != wholeStack.getPixels( 1 ) )
+				neighborhoodPlane = null;
+			final NeighborhoodPlane neighbors = getNeighborFeatures( wholeStack );
+			if( null != neighbors )
+				neighborFeatures = neighbors.bind( spilledFeatures, wholeStack );
+			wholeStack = null;
+			if( null != neighbors )
+				neighborFeatures = neighbors.bind( spilledFeatures );
+			return true;
+		}
+	}
+	
+	/**
+	 * Check if the features are spilled to disk (see {@link #spill(File)}).
+	 * @return true if the stack slices are not in memory
+	 */
+	public boolean isSpilled()
+	{
+		return null != spilledFeatures;
+	}
+	
+	/**
+	 * Get the memory taken by the features: the stack slices, the packed
+	 * features, the planes kept for the next update that are not stack
+	 * slices and the padded images the neighbors are read from.
+	 * @return size in bytes (spilled slices are not counted)
+	 */
+	public long getMemorySize()
+	{
+		long size = 0;
+		final Set<Object> slices = Collections.newSetFromMap( new IdentityHashMap<Object, Boolean>() );
+		final ImageStack stack = wholeStack;
+		if( null != stack )
+		{
+			for( int i = 1; i <= stack.getSize(); i++ )
+				slices.add( stack.getPixels( i ) );
+			size += SpilledFeatures.getMemorySize( stack );
+		}
+		final HashMap< List<Object>, ImageStack > kept = featurePlanes;
+		for( ImageStack planes : kept.values() )
+			for( int i = 1; i <= planes.getSize(); i++ )
+				if( slices.add( planes.getPixels( i ) ) )
+					size += getMemorySize( planes.getPixels( i ) );
+		final PackedFeatures packed = packedFeatures;
+		if( null != packed )
+			size += packed.getMemorySize();
+		final NeighborhoodPlane neighbors = neighborFeatures;
+		if( null != neighbors )
+			size += neighbors.getMemorySize();
+		final NeighborhoodPlane plane = neighborhoodPlane;
+		if( null != plane )
+			size += plane.getMemorySize();
+		return size;
+	}
+	
+	/**
+	 * Get the memory taken by the pixels of a slice.
+	 * @param pixels slice pixels (8, 16, 32-bit or RGB)
+	 * @return size in bytes
+	 */
+	private static long getMemorySize( Object pixels )
+	{
+		if( pixels instanceof byte[] )
+			return ( (byte[]) pixels ).length;
+		if( pixels instanceof short[] )
+			return 2L * ( (short[]) pixels ).length;
+		if( pixels instanceof int[] )
+			return 4L * ( (int[]) pixels ).length;
+		return 4L * ( (float[]) pixels ).length;
+	}
+	
+	/**
+	 * Release the memory that can be freed without losing the features:
+	 * the stack slices are spilled (see {@link #spill(File)}), and the packed
+	 * features and the planes kept for the next update are dropped.
+	 * @param directory directory of the scratch file (null for the default
+	 * temporary directory)
+	 * @return released memory (in bytes)
+	 */
+	long releaseMemory( File directory )
+	{
+		synchronized( this )
+		{
+			final long size = getMemorySize();
+			if( null != wholeStack && wholeStack.getSize() > 0 )
+				spill( directory );
+			else
+			{
+				packedFeatures = null;
+				featurePlanes = new HashMap< List<Object>, ImageStack >();
+			}
+			return size - getMemorySize();
+		}
+	}
+
+	/**
+	 * Count the slices (original image included) {@link #updateFeaturesMT()}
+	 * creates with the current settings, without computing them. Used to
+	 * estimate the memory of a feature update before starting it.
+	 * @return number of slices of the updated stack
+	 */
+	public int estimateNumOfFeatures()
+	{
+		int n = 1;
+		if( colorFeatures )
+			n += 3; // HSB
+		int numSigmas = 0;
+		for (float i=minimumSigma; i<= maximumSigma; i *=2)
+			numSigmas ++;
+		if( enableFeatures[ ANISOTROPIC_DIFFUSION ] )
+			n += 2 * numSigmas;
+		if( enableFeatures[ BILATERAL ] )
+			n += 2 * 2;
+		if( enableFeatures[ LIPSCHITZ ] )
+			n += 5;
+		if( enableFeatures[ KUWAHARA ] )
+			n += 3;
+		if( enableFeatures[ GABOR ] )
+			n += 2 * ( 6 + 16 ); // max and min projections
+		if( enableFeatures[ SOBEL ] )
+			n += numSigmas + ( minimumSigma < 2 ? 1 : 0 );
+		if( enableFeatures[ HESSIAN ] )
+			n += 8 * ( numSigmas + ( minimumSigma < 2 ? 1 : 0 ) );
+		if( enableFeatures[ GAUSSIAN ] )
+			n += numSigmas;
+		if( enableFeatures[ DOG ] )
+			n += numSigmas * ( numSigmas - 1 ) / 2;
+		for( int feature : new int[]{ VARIANCE, MEAN, MINIMUM, MAXIMUM, MEDIAN, LAPLACIAN } )
+			if( enableFeatures[ feature ] )
+				n += numSigmas;
+		if( enableFeatures[ DERIVATIVES ] )
+			n += numSigmas * ( maxDerivativeOrder - minDerivativeOrder + 1 );
+		if( enableFeatures[ STRUCTURE ] )
+			n += numSigmas * 2 * 2;
+		if( enableFeatures[ ENTROPY ] )
+			n += numSigmas * 4;
+		if( enableFeatures[ MEMBRANE ] )
+			n += 6;
+		if( enableFeatures[ NEIGHBORS ] )
+			for (int i=Math.max( 1, (int) minimumSigma ); i<=(int) maximumSigma; i *=2)
+				n += 8;
+		return n;
+	}
+
+	/**
+	 * Set the action to run after spilled features are loaded back into
+	 * memory (used by {@link FeatureStackArray} to keep its memory budget).
+	 * @param listener action to run (or null)
+	 */
+	void setLoadListener( Runnable listener )
+	{
+		this.loadListener = listener;
+	}
+	
+	/**
+	 * Load spilled features back into memory (see {@link #spill(File)}).
+	 */
+	private void ensureLoaded()
+	{
+		final Runnable listener;
+		synchronized( this )
+		{
+			final SpilledFeatures spilled = spilledFeatures;
+			if( null == spilled )
+				return;
+			final ImageStack stack = spilled.load();
+			final NeighborhoodPlane plane = neighborhoodPlane;
+			if( null != plane )
+				neighborhoodPlane = plane.bind( stack.getPixels( 1 ) );
+			final NeighborhoodPlane neighbors = getNeighborFeatures( spilled );
+			if( null != neighbors )
+				neighborFeatures = neighbors.bind( stack, spilled );
+			wholeStack = stack;
+			spilledFeatures = null;
+			if( null != neighbors )
+				neighborFeatures = neighbors.bind( stack );
+			listener = loadListener;
+		}
+		// outside of the lock, the listener may spill other stacks
+		if( null != listener )
+			listener.run();
+	}
+	
+	/**
+	 * Copy the features into a buffer laid out pixel by pixel, so the
+	 * instance methods (createInstance, setInstance) read the feature vector
+	 * of a pixel at once instead of one stack slice per feature. This takes
+	 * as much memory as the stack itself, so it is only done if it fits in
+	 * the available memory. The buffer is dropped when the stack changes
+	 * (it must be packed again if the stack returned by {@link #getStack()}
+	 * is modified).
+	 * 
+	 * @return true if the features were packed
+	 */
+	public boolean packFeatures()
+	{
+		return packFeatures( IJ.maxMemory() - IJ.currentMemory() );
+	}
+	
+	/**
+	 * Pack the features (see {@link #packFeatures()}) if they fit in a given
+	 * amount of memory, so the caller can keep room for its own arrays.
+	 * 
+	 * @param availableMemory memory the packed features can take (in bytes)
+	 * @return true if the features were packed
+	 */
+	public boolean packFeatures( long availableMemory )
+	{
+		// spilled features are not loaded back just to be packed
+		final ImageStack wholeStack = this.wholeStack;
+		if( null == wholeStack || wholeStack.getSize() == 0 )
+			return false;
+		if( PackedFeatures.getMemorySize( wholeStack ) > availableMemory )
+			return false;
+		packedFeatures = PackedFeatures.pack( wholeStack, colorFeatures && !oldColorFormat );
+		return null != packedFeatures;
+	}
+	
+	/**
+	 * Release the buffer of packed features (see {@link #packFeatures()}).
+	 */
+	public void unpackFeatures()
+	{
+		packedFeatures = null;
+	}
+	
+	/**
+	 * Check if the features are packed (see {@link #packFeatures()}).
+	 * @return true if the instance methods read the packed features
+	 */
+	public boolean isPacked()
+	{
+		return null != getPackedFeatures();
+	}
+	
+	/**
+	 * Get the packed features if they are up to date with the stack.
+	 * @return packed features or null
+	 */
+	private PackedFeatures getPackedFeatures()
+	{
+		final PackedFeatures packed = packedFeatures;
+		final ImageStack stack = wholeStack;
+		if( null == packed || null == stack || packed.source != stack
+				|| packed.numFeatures != stack.getSize() )
+			return null;
+		return packed;
+	}
+	
+	/**
+	 * Get the values of the 8 neighbors of a pixel in the first slice of the
+	 * stack (mirror boundary conditions). They are read from a padded copy of
+	 * the slice, built the first time they are requested.
+	 * 
+	 * @param x x- pixel coordinate
+	 * @param y y- pixel coordinate
+	 * @param values output array
+	 * @param offset index in values of the first neighbor
+	 */
+	void getNeighborhood(int x, int y, double[] values, int offset)
+	{
+		NeighborhoodPlane plane = neighborhoodPlane;
+		ImageStack stack = wholeStack;
+		// spilled stacks keep the plane they were spilled with
+		if( null == stack && ( null == plane || !isSpilled() ) )
 		{
-			for(int i=-1;  i < 2; i++)
+			ensureLoaded();
+			stack = wholeStack;
+		}
+		if( null != stack && ( null == plane || plane.source != stack.getPixels( 1 ) ) )
+		{
+			final int paddedWidth = stack.getWidth() + 2;
+			final int[] shifts = new int[ 8 ];
+			for(int i=-1, k=0;  i < 2; i++)
 				for(int j = -1; j < 2; j++)
 				{
 					if(i==0 && j==0)
-						continue;				
-					auxArray[n] = 
-							getPixelMirrorConditions(getProcessor(1), x+i, y+j);
-					n++;
+						continue;
+					shifts[ k++ ] = j * paddedWidth + i;
 				}
+			plane = new NeighborhoodPlane( stack.getPixels( 1 ),
+					new float[][]{ getMirrorPadded( stack.getProcessor( 1 ), 1 ) },
+					paddedWidth, 1, shifts, null );
+			neighborhoodPlane = plane;
 		}
-		// Assign class
-		auxArray[auxArray.length-1] = (double) classValue;
 		
-		// Set attribute values to input instance
-		ins.setValues( 1.0, auxArray );		
-		return;
+		for(int k=0; k<8; k++)
+			values[ offset++ ] = plane.getValue( x, y, k, false );
 	}
 	
+	/**
+	 * Copy of an image extended on each side with mirror boundary conditions
+	 * (see {@link #getPixelMirrorConditions(ImageProcessor, int, int)}).
+	 * 
+	 * @param ip input image
+	 * @param pad number of pixels to add on each side
+	 * @return padded pixels (row by row)
+	 */
+	float[] getMirrorPadded(ImageProcessor ip, int pad)
+	{
+		final int paddedWidth = ip.getWidth() + 2 * pad;
+		final int paddedHeight = ip.getHeight() + 2 * pad;
+		final float[] padded = new float[ paddedWidth * paddedHeight ];
+		for(int y=0, n=0; y<paddedHeight; y++)
+			for(int x=0; x<paddedWidth; x++, n++)
+				padded[ n ] = (float) getPixelMirrorConditions( ip, x - pad, y - pad );
+		return padded;
+	}
+
 	/**
 	 * Get pixel value from an ImageProcessor with mirror boundary conditions
 	 * @param ip input image
@@ -3526,19 +4526,108 @@ public class FeatureStack
 	/**
 	 * Set an arbitrary stack as feature stack. Note: this method is not 
 	 * compatible with the plugin GUI use since the feature names will not match.
-	 * @param stack new stack of image features
+	 * A null stack releases the features; the planes kept for the next update
+	 * are then written to scratch files until that update.
+	 * @param stack new stack of image features (null to release them)
 	 */
 	public void setStack(ImageStack stack)
 	{
+		this.spilledFeatures = null;
+		this.neighborFeatures = null;
+		this.packedFeatures = null;
 		this.wholeStack = stack;
+		if( null != stack )
+		{
+			this.featurePlanes = new HashMap< List<Object>, ImageStack >();
+			this.spilledPlanes = null;
+		}
+		else
+			// an empty stack keeps the planes for the next update (on disk)
+			spillPlanes();
 	}
 	
 	/**
-	 * Get current stack of image features.
+	 * Write the planes kept for the next update to scratch files, so they
+	 * do not take memory while there is no stack. The next update reads them
+	 * back (see {@link #loadPlanes()}). If they cannot be written, they are
+	 * dropped.
+	 */
+	private void spillPlanes()
+	{
+		final HashMap< List<Object>, ImageStack > planes = featurePlanes;
+		featurePlanes = new HashMap< List<Object>, ImageStack >();
+		if( planes.isEmpty() )
+			return;
+		// a stack of slices of the same pixel type per scratch file
+		final HashMap< Class<?>, ImageStack > slices = new HashMap< Class<?>, ImageStack >();
+		final HashMap< Class<?>, List< List<Object> > > keys = new HashMap< Class<?>, List< List<Object> > >();
+		for( Map.Entry< List<Object>, ImageStack > entry : planes.entrySet() )
+			for( int i = 1; i <= entry.getValue().getSize(); i++ )
+			{
+				final Object pixels = entry.getValue().getPixels( i );
+				if( ! slices.containsKey( pixels.getClass() ) )
+				{
+					slices.put( pixels.getClass(), new ImageStack( width, height ) );
+					keys.put( pixels.getClass(), new ArrayList< List<Object> >() );
+				}
+				slices.get( pixels.getClass() ).addSlice( entry.getValue().getSliceLabel( i ), pixels );
+				keys.get( pixels.getClass() ).add( entry.getKey() );
+			}
+		final ArrayList< SpilledFeatures > spilled = new ArrayList< SpilledFeatures >();
+		final ArrayList< List< List<Object> > > spilledKeys = new ArrayList< List< List<Object> > >();
+		try{
+			for( Class<?> type : slices.keySet() )
+			{
+				spilled.add( SpilledFeatures.spill( slices.get( type ), null ) );
+				spilledKeys.add( keys.get( type ) );
+			}
+			spilledPlanes = spilled;
+			spilledPlaneKeys = spilledKeys;
+		}
+		catch( IOException e )
+		{
+			IJ.log( "Error when writing feature planes to scratch file: " + e.getMessage() );
+		}
+	}
+	
+	/**
+	 * Read back the planes written to scratch files by {@link #spillPlanes()}.
+	 */
+	private void loadPlanes()
+	{
+		final ArrayList< SpilledFeatures > spilled = spilledPlanes;
+		if( null == spilled )
+			return;
+		final HashMap< List<Object>, ImageStack > planes = new HashMap< List<Object>, ImageStack >();
+		for( int n = 0; n < spilled.size(); n++ )
+		{
+			final ImageStack slices = spilled.get( n ).load();
+			for( int i = 1; i <= slices.getSize(); i++ )
+			{
+				final List<Object> key = spilledPlaneKeys.get( n ).get( i - 1 );
+				ImageStack stack = planes.get( key );
+				if( null == stack )
+				{
+					stack = new ImageStack( width, height );
+					planes.put( key, stack );
+				}
+				stack.addSlice( slices.getSliceLabel( i ), slices.getPixels( i ) );
+			}
+		}
+		featurePlanes = planes;
+		spilledPlanes = null;
+		spilledPlaneKeys = null;
+	}
+	
+	/**
+	 * Get current stack of image features. The NEIGHBORS features are
+	 * added to it as slices if they are not yet.
 	 * @return current stack of image features
 	 */
 	public ImageStack getStack()
 	{
+		ensureLoaded();
+		materializeNeighbors();
 		return wholeStack;
 	}
 	
@@ -3549,6 +4638,7 @@ public class FeatureStack
 	public void setOldColorFormat( boolean b )
 	{
 		this.oldColorFormat = b;
+		this.packedFeatures = null;
 	}
 	
 	/**
@@ -3560,6 +4650,76 @@ public class FeatureStack
 	{
 		return this.oldColorFormat;
 	}
+	/**
+	 * Set the use of the recursive Gaussian filter for the Gaussian blur,
+	 * Sobel, Hessian, difference of Gaussians, derivatives (up to order 2)
+	 * and Laplacian features. Its cost does not depend on sigma, but the
+	 * features differ slightly from the default (convolution) ones: away
+	 * from the image borders, by up to 0.2% of the peak response for the
+	 * Gaussian blur, 1% for first derivatives, 2% for second derivatives
+	 * and 3% for higher mixed derivatives (see RecursiveGaussianTest).
+	 * @param b flag to use the recursive Gaussian filter
+	 */
+	public void setUseRecursiveGaussian( boolean b )
+	{
+		this.useRecursiveGaussian = b;
+	}
+
+	/**
+	 * Check if the Gaussian-based features are computed with the recursive
+	 * Gaussian filter.
+	 * @return true if the recursive Gaussian filter is used
+	 */
+	public boolean isUseRecursiveGaussian()
+	{
+		return this.useRecursiveGaussian;
+	}
+
+	/**
+	 * Set the use of the multi-threaded {@link AnisotropicDiffusion} for the
+	 * anisotropic diffusion features instead of the Anisotropic_Diffusion_2D
+	 * plugin. The model is the same but the numerical details differ, so
+	 * the features are close to the default ones but not equal, and
+	 * classifiers trained with the default features should be trained again.
+	 * @param b flag to use the multi-threaded anisotropic diffusion
+	 */
+	public void setUseFastAnisotropicDiffusion( boolean b )
+	{
+		this.useFastAnisotropicDiffusion = b;
+	}
+
+	/**
+	 * Check if the anisotropic diffusion features are computed with
+	 * {@link AnisotropicDiffusion}.
+	 * @return true if the multi-threaded anisotropic diffusion is used
+	 */
+	public boolean isUseFastAnisotropicDiffusion()
+	{
+		return this.useFastAnisotropicDiffusion;
+	}
+
+	/**
+	 * Set the use of a {@link BilateralGrid} for the bilateral filter
+	 * features instead of vib.BilateralFilter. Its cost does not depend on
+	 * the filter radii, but it approximates the brute-force filter, so the
+	 * features differ slightly from the default ones.
+	 * @param b flag to use the bilateral grid
+	 */
+	public void setUseBilateralGrid( boolean b )
+	{
+		this.useBilateralGrid = b;
+	}
+
+	/**
+	 * Check if the bilateral filter features are computed on a
+	 * {@link BilateralGrid}.
+	 * @return true if the bilateral grid is used
+	 */
+	public boolean isUseBilateralGrid()
+	{
+		return this.useBilateralGrid;
+	}
+
 	/**
 	 * Set the use of old Hessian format.
 	 * @param b flag to set the use of old color format
@@ -3578,6 +4738,79 @@ public class FeatureStack
 	{
 		return this.oldHessianFormat;
 	}
+
+	/**
+	 * Set the on-disk cache of the features. When it is set, the update
+	 * methods (updateFeaturesMT, updateFeaturesST) read the features from
+	 * the cache if they were already computed for the same image and
+	 * settings, and store them otherwise.
+	 * @param cache feature cache (null to always compute the features)
+	 */
+	public void setFeatureCache( FeatureCache cache )
+	{
+		this.featureCache = cache;
+	}
+
+	/**
+	 * Get the on-disk cache of the features.
+	 * @return feature cache (null if the features are always computed)
+	 */
+	public FeatureCache getFeatureCache()
+	{
+		return this.featureCache;
+	}
+
+	/**
+	 * Build the key of the features in the cache from the original image
+	 * and every setting the updated features depend on.
+	 * @param method update method (the slice order depends on it)
+	 * @return cache key, or null if there is no cache (or original image)
+	 */
+	private String getCacheKey( String method )
+	{
+		if( null == featureCache || null == originalImage )
+			return null;
+		// the version changes with the values of the features (v5: recursive
+		// Gaussian derivatives, v6: Kuwahara window sums in double precision),
+		// the optional filters (recursive Gaussian, anisotropic diffusion,
+		// bilateral grid) are settings
+		final String settings = "features-v6"
+				+ ";method=" + method
+				+ ";enabled=" + Arrays.toString( enableFeatures )
+				+ ";sigma=" + minimumSigma + "-" + maximumSigma
+				+ ";membrane=" + membraneSize + "," + membranePatchSize
+				+ ";angles=" + nAngles
+				+ ";derivatives=" + minDerivativeOrder + "-" + maxDerivativeOrder
+				+ ";oldColor=" + oldColorFormat
+				+ ";oldHessian=" + oldHessianFormat
+				+ ";recursiveGaussian=" + useRecursiveGaussian
+				+ ";fastAnisotropicDiffusion=" + useFastAnisotropicDiffusion
+				+ ";bilateralGrid=" + useBilateralGrid;
+		return FeatureCache.key( originalImage.getProcessor(), settings );
+	}
+
+	/**
+	 * Set the features from the cache.
+	 * @param key cache key (see {@link #getCacheKey(String)})
+	 * @return true if the features were cached
+	 */
+	private boolean loadCachedFeatures( String key )
+	{
+		if( null == key )
+			return false;
+		final ImageStack cached = featureCache.load( key );
+		if( null == cached || cached.getWidth() != width || cached.getHeight() != height )
+			return false;
+		spilledFeatures = null;
+		neighborFeatures = null;
+		featurePlanes = new HashMap< List<Object>, ImageStack >();
+		spilledPlanes = null;
+		wholeStack = cached;
+		// the NEIGHBORS features are not stored in the cache
+		if( enableFeatures[ NEIGHBORS ])
+			setNeighborFeatures( (int)minimumSigma, (int)maximumSigma );
+		return true;
+	}
 	// -- Helper methods --
 
 	private ImagePlus computeStructure(final ImagePlus imp, final double sigma,
@@ -3611,7 +4844,10 @@ public class FeatureStack
 	{
 		if ( null == data )
 			return false;
+		ensureLoaded();
+		materializeNeighbors();
 		Enumeration<Attribute> attributes = data.enumerateAttributes();
+		packedFeatures = null;
 
 		int i = 0;
 		while(attributes.hasMoreElements())
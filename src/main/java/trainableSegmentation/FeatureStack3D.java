@@ -70,6 +70,7 @@ import ij.measure.Calibration;
 import ij.plugin.Filters3D;
 import ij.process.ByteProcessor;
 import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
 import ij.process.ImageConverter;
 import ij.process.ImageProcessor;
 import net.imglib2.RandomAccessible;
@@ -81,6 +82,9 @@ import net.imglib2.img.Img;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.view.Views;
+import trainableSegmentation.filters.Entropy_Filter;
+import trainableSegmentation.filters.MinMaxFilter;
+import trainableSegmentation.filters.RecursiveGaussian;
 
 /**
  * This class defines 3D images features to be used for classification/segmentation.
@@ -172,7 +176,22 @@ public class FeatureStack3D
 	
 	private int minDerivativeOrder = 1;
 	private int maxDerivativeOrder = 5;
+	/** largest integration scale of the structure tensor features */
+	private static final int MAX_INTEGRATION_SCALE = 3;
+	/** half-width (in sigmas) of the Gaussian kernels of Gauss3 and
+	 * ImageScience, covered by the halo of the blocks */
+	private static final double GAUSSIAN_SUPPORT = 3;
+	/** half-width (in sigmas) of the ImageScience kernels of first and
+	 * second order derivatives */
+	private static final double SECOND_ORDER_SUPPORT = 4;
+	/** half-width (in sigmas) of the ImageScience kernels of higher order
+	 * derivatives, and distance beyond which the responses of the recursive
+	 * Gaussian filter (whose support is not bounded) are negligible */
+	private static final double HIGHER_ORDER_SUPPORT = 5;
 	private double[] scaleFactor = null;
+	/** flag to compute the Gaussian-based features with the recursive
+	 * Gaussian filter, whose cost does not depend on sigma */
+	private boolean useRecursiveGaussian = false;
 
 	private ExecutorService exe;
 
@@ -188,20 +207,8 @@ public class FeatureStack3D
 		
 		wholeStack = new ArrayList<ImagePlus>();
 		
-		ImageStack is = new ImageStack ( width, height );
-		
-		if( image.getType() == ImagePlus.COLOR_RGB)
-		{			
-			colorFeatures = true;
-			for(int i=1; i<=image.getImageStackSize(); i++)
-				is.addSlice("original-slice-" + i, image.getImageStack().getProcessor(i) );
-		}
-		else
-		{
-			colorFeatures = false;
-			for(int i=1; i<=image.getImageStackSize(); i++)
-				is.addSlice("original-slice-" + i, image.getImageStack().getProcessor(i).convertToFloat() );
-		}
+		// the original slices are added to the features on update
+		colorFeatures = image.getType() == ImagePlus.COLOR_RGB;
 		// calculate scale factors to make sigmas isotropic
 		scaleFactor = new double[ 3 ];
 		scaleFactor[ 0 ] = 1.0;
@@ -266,6 +273,18 @@ public class FeatureStack3D
 				for(int ch=0; ch < channels.length; ch++)
 				{
 					results[ ch ] = new ArrayList<ImagePlus>();
+
+					if( useRecursiveGaussian && xOrder <= RecursiveGaussian.MAX_ORDER
+							&& yOrder <= RecursiveGaussian.MAX_ORDER
+							&& zOrder <= RecursiveGaussian.MAX_ORDER )
+					{
+						final String title = xOrder + yOrder + zOrder == 0 ?
+								availableFeatures[GAUSSIAN] +"_" + sigma :
+								availableFeatures[DERIVATIVES] +"_" + xOrder + "_" +yOrder+"_"+zOrder+ "_"+sigma;
+						results[ ch ].add( createImage( title,
+								recursiveDerivative( channels[ ch ], sigma, xOrder, yOrder, zOrder ) ) );
+						continue;
+					}
 					
 					// pad image on the back and the front
 					final ImagePlus channel = channels [ ch ].duplicate();
@@ -447,6 +466,22 @@ public class FeatureStack3D
 				for(int ch=0; ch < channels.length; ch++)
 				{
 					results[ ch ] = new ArrayList<ImagePlus>();
+
+					if( useRecursiveGaussian )
+					{
+						// sum of the second derivatives along each axis
+						final float[][] laplacian = recursiveDerivative( channels[ ch ], sigma, 2, 0, 0 );
+						for( int d = 1; d < 3; d++ )
+						{
+							final float[][] dd = recursiveDerivative( channels[ ch ], sigma,
+									0, d == 1 ? 2 : 0, d == 2 ? 2 : 0 );
+							for( int z = 0; z < laplacian.length; z++ )
+								for( int i = 0; i < laplacian[ z ].length; i++ )
+									laplacian[ z ][ i ] += dd[ z ][ i ];
+						}
+						results[ ch ].add( createImage( availableFeatures[LAPLACIAN] +"_" + sigma, laplacian ) );
+						continue;
+					}
 					
 					// pad image on the back and the front
 					final ImagePlus channel = channels [ ch ].duplicate();
@@ -501,6 +536,25 @@ public class FeatureStack3D
 				for(int ch=0; ch < channels.length; ch++)
 				{
 					results[ ch ] = new ArrayList<ImagePlus>();
+
+					if( useRecursiveGaussian )
+					{
+						// gradient magnitude
+						final float[][] edges = new float[ channels[ ch ].getImageStackSize() ][ width * height ];
+						for( int d = 0; d < 3; d++ )
+						{
+							final float[][] dd = recursiveDerivative( channels[ ch ], sigma,
+									d == 0 ? 1 : 0, d == 1 ? 1 : 0, d == 2 ? 1 : 0 );
+							for( int z = 0; z < edges.length; z++ )
+								for( int i = 0; i < edges[ z ].length; i++ )
+									edges[ z ][ i ] += dd[ z ][ i ] * dd[ z ][ i ];
+						}
+						for( int z = 0; z < edges.length; z++ )
+							for( int i = 0; i < edges[ z ].length; i++ )
+								edges[ z ][ i ] = (float) Math.sqrt( edges[ z ][ i ] );
+						results[ ch ].add( createImage( availableFeatures[EDGES] +"_" + sigma, edges ) );
+						continue;
+					}
 					
 					// pad image on the back and the front
 					final ImagePlus channel = channels [ ch ].duplicate();
@@ -557,10 +611,11 @@ public class FeatureStack3D
 
 				ArrayList<ImagePlus> result = new ArrayList<ImagePlus>();
 				
-				final ImageStack is = Filters3D.filter(im.getImageStack(), Filters3D.MIN,
+				// single thread, the features are already computed in parallel
+				final ImageStack is = filterMinMax(im.getImageStack(),
 						(float) (sigma * scaleFactor[0]),
 						(float) (sigma * scaleFactor[1]),
-						(float) (sigma * scaleFactor[2]));
+						(float) (sigma * scaleFactor[2]), false, 1);
 				final ImagePlus ip = new ImagePlus( availableFeatures[ MINIMUM ] +"_" + sigma, is );							
 				
 				result.add( ip );
@@ -569,6 +624,42 @@ public class FeatureStack3D
 		};
 	}
 
+	/**
+	 * Filter a stack with the ellipsoidal kernel of Filters3D. Grayscale
+	 * stacks use the van Herk-Gil-Werman filter, whose cost grows with the
+	 * radius squared instead of cubed, and color stacks Filters3D.
+	 *
+	 * @param stack input stack
+	 * @param radiusX filter radius along X
+	 * @param radiusY filter radius along Y
+	 * @param radiusZ filter radius along Z
+	 * @param maximum true for the maximum filter, false for the minimum filter
+	 * @param numThreads number of threads to use
+	 * @return filtered stack
+	 */
+	private static ImageStack filterMinMax(
+			final ImageStack stack,
+			final float radiusX,
+			final float radiusY,
+			final float radiusZ,
+			final boolean maximum,
+			final int numThreads)
+	{
+		if( stack.getBitDepth() != 32 )
+			return Filters3D.filter( stack, maximum ? Filters3D.MAX : Filters3D.MIN,
+					radiusX, radiusY, radiusZ );
+
+		final float[][] slices = new float[ stack.getSize() ][];
+		for( int z = 0; z < slices.length; z++ )
+			slices[ z ] = (float[]) stack.getPixels( z + 1 );
+		final float[][] filtered = MinMaxFilter.filter3D( slices, stack.getWidth(), stack.getHeight(),
+				radiusX, radiusY, radiusZ, maximum, numThreads );
+		final ImageStack result = new ImageStack( stack.getWidth(), stack.getHeight() );
+		for( int z = 0; z < filtered.length; z++ )
+			result.addSlice( stack.getSliceLabel( z + 1 ), filtered[ z ] );
+		return result;
+	}
+
 	/**
 	 * Get Gaussian features (to be submitted to an ExecutorService). Sigma values will be adjusted
 	 * based on original image calibration.
@@ -597,6 +688,13 @@ public class FeatureStack3D
 				{
 					results[ ch ] = new ArrayList<ImagePlus>();
 
+					if( useRecursiveGaussian )
+					{
+						results[ ch ].add( createImage( availableFeatures[ GAUSSIAN ] +"_" + sigma,
+								recursiveDerivative( channels[ ch ], sigma, 0, 0, 0 ) ) );
+						continue;
+					}
+
 					final ImagePlus im = channels [ ch ].duplicate();
 					final Img<FloatType> image2 = ImagePlusAdapter.wrap( im );
 
@@ -653,10 +751,11 @@ public class FeatureStack3D
 
 				ArrayList<ImagePlus> result = new ArrayList<ImagePlus>();
 				
-				final ImageStack is = Filters3D.filter(im.getImageStack(), Filters3D.MAX,
+				// single thread, the features are already computed in parallel
+				final ImageStack is = filterMinMax(im.getImageStack(),
 						(float) (sigma * scaleFactor[0]),
 						(float) (sigma * scaleFactor[1]),
-						(float) (sigma * scaleFactor[2]));
+						(float) (sigma * scaleFactor[2]), true, 1);
 				final ImagePlus ip = new ImagePlus( availableFeatures[ MAXIMUM ] +"_" + sigma, is );
 				
 				result.add( ip );
@@ -787,6 +886,50 @@ public class FeatureStack3D
 	}
 	
 	
+	/**
+	 * Get entropy features (to be submitted to an ExecutorService), using
+	 * an ellipsoidal window whose radius is adjusted based on original image
+	 * calibration. This is the 3D counterpart of the 2D "Entropy" feature.
+	 *
+	 * @param originalImage input image
+	 * @param radius window radius (in pixels)
+	 * @param numBins number of bins to use in the histogram
+	 * @return filter entropy filter image
+	 */
+	public Callable<ArrayList< ImagePlus >> getEntropy(
+			final ImagePlus originalImage,
+			final double radius,
+			final int numBins)
+	{
+		if (Thread.currentThread().isInterrupted()) 
+			return null;
+		
+		return new Callable<ArrayList< ImagePlus >>()
+		{
+			public ArrayList< ImagePlus > call()
+			{
+				// Get channel(s) to process
+				ImagePlus[] channels = extractChannels(originalImage);
+
+				ArrayList<ImagePlus>[] results = new ArrayList[ channels.length ];
+
+				for(int ch=0; ch < channels.length; ch++)
+				{
+					results[ ch ] = new ArrayList<ImagePlus>();
+					// single thread, the features are already computed in parallel
+					final ImageStack is = Entropy_Filter.getEntropy3D( channels[ ch ].getImageStack(),
+							radius * scaleFactor[0],
+							radius * scaleFactor[1],
+							radius * scaleFactor[2],
+							numBins, 1 );
+					results[ ch ].add( new ImagePlus( "Entropy_" + radius + "_" + numBins, is ) );
+				}
+
+				return mergeResultChannels(results);
+			}
+		};
+	}
+
 	/**
 	 * Get structure tensor features (to be submitted in an ExecutorService).
 	 * It computes, for all pixels in the input image, the eigenvalues of the so-called structure tensor.
@@ -909,6 +1052,61 @@ public class FeatureStack3D
 		return colorStack;
 	}
 	
+	/**
+	 * Compute a Gaussian derivative of a (float) channel with the recursive
+	 * Gaussian filter. Sigma is scaled as in the rest of features to make it
+	 * isotropic, and so are the derivatives.
+	 *
+	 * @param channel input channel
+	 * @param sigma isotropic smoothing scale
+	 * @param xOrder x-order of differentiation
+	 * @param yOrder y-order of differentiation
+	 * @param zOrder z-order of differentiation
+	 * @return pixels of the derivative slices
+	 */
+	private float[][] recursiveDerivative(
+			final ImagePlus channel,
+			final double sigma,
+			final int xOrder,
+			final int yOrder,
+			final int zOrder)
+	{
+		final ImageStack stack = channel.getImageStack();
+		final float[][] slices = new float[ stack.getSize() ][];
+		for( int i = 0; i < slices.length; i++ )
+			slices[ i ] = (float[]) stack.getPixels( i + 1 );
+
+		final int[] order = new int[]{ xOrder, yOrder, zOrder };
+		final double[] isoSigma = new double[ 3 ];
+		double factor = 1;
+		for( int d = 0; d < 3; d++ )
+		{
+			isoSigma[ d ] = sigma * scaleFactor[ d ];
+			factor *= Math.pow( scaleFactor[ d ], order[ d ] );
+		}
+		final float[][] result = RecursiveGaussian.derivative(
+				slices, width, height, isoSigma, order, 1 );
+		if( factor != 1 )
+			for( float[] slice : result )
+				for( int i = 0; i < slice.length; i++ )
+					slice[ i ] *= factor;
+		return result;
+	}
+
+	/**
+	 * Create a float image out of the pixels of its slices.
+	 * @param title image title
+	 * @param slices pixels of each slice
+	 * @return image
+	 */
+	private ImagePlus createImage( String title, float[][] slices )
+	{
+		final ImageStack stack = new ImageStack( width, height );
+		for( float[] slice : slices )
+			stack.addSlice( "", new FloatProcessor( width, height, slice ) );
+		return new ImagePlus( title, stack );
+	}
+
 	/**
 	 * Extract channels from input image if it is RGB
 	 * @param originalImage input image
@@ -1059,7 +1257,7 @@ public class FeatureStack3D
 				// Structure tensor
 				if(enableFeatures[ STRUCTURE ])
 				{					
-					for(int integrationScale = 1; integrationScale <= 3; integrationScale+=2)
+					for(int integrationScale = 1; integrationScale <= MAX_INTEGRATION_SCALE; integrationScale+=2)
 						futures.add(exe.submit( getStructure(originalImage, i, integrationScale )) );
 				}
 				
@@ -1137,31 +1335,154 @@ public class FeatureStack3D
 	 */
 	public FeatureStackArray getFeatureStackArray()
 	{
-		// create empty feature stack array, with space for one stack per slice in the original image 
+		return getFeatureStackArray( new int[ 3 ],
+				new int[]{ width, height, originalImage.getImageStackSize() } );
+	}
+
+	/**
+	 * Convert a box of the FeatureStack3D into a feature stack array (one
+	 * feature stack per slice of the box).
+	 * @param offset coordinates of the first voxel of the box (x, y, z, zero-based)
+	 * @param size box dimensions (x, y, z)
+	 * @return array of feature stacks
+	 */
+	private FeatureStackArray getFeatureStackArray( int[] offset, int[] size )
+	{
+		// create empty feature stack array, with space for one stack per slice of the box
 		FeatureStackArray fsa = new FeatureStackArray(
-				originalImage.getImageStackSize(), minimumSigma, maximumSigma,
+				size[ 2 ], minimumSigma, maximumSigma,
 				false, 0, 0, enableFeatures );
 		
 		// Initialize each feature stack (one per slice)
-		for(int i=0; i<originalImage.getImageStackSize(); i++)
+		for(int i=0; i<size[ 2 ]; i++)
 		{
-			FeatureStack fs = new FeatureStack( width, height, colorFeatures );
+			FeatureStack fs = new FeatureStack( size[ 0 ], size[ 1 ], colorFeatures );
 			fsa.set(fs, i);
 		}
 		
 		// now, read current 3D features and add them to the 2D feature stacks
 		for( final ImagePlus ip : wholeStack)
 		{
-			//IJ.log(" Adding feature '"+ ip.getTitle() + "' from 3D stack to feature stack array... ");
-			for(int n=1; n<=ip.getImageStackSize(); n++)
+			for(int n=0; n<size[ 2 ]; n++)
 			{
-				final ImageProcessor slice = ip.getImageStack().getProcessor( n ).duplicate();
-				fsa.get( n-1 ).getStack().addSlice( ip.getTitle(), slice );
+				final ImageProcessor slice = ip.getImageStack().getProcessor( offset[ 2 ] + n + 1 );
+				slice.setRoi( offset[ 0 ], offset[ 1 ], size[ 0 ], size[ 1 ] );
+				fsa.get( n ).getStack().addSlice( ip.getTitle(), slice.crop() );
 			}
 		}
 		
 		return fsa;
 	}
+
+	/**
+	 * Get the number of voxels a block is padded with on each side (see
+	 * {@link #getBlockFeatures(int[], int[])}): the largest half-width of
+	 * the kernels of the enabled filters at the largest sigma, adjusted to
+	 * the image calibration as the filter sigmas. The ImageScience kernels
+	 * are wider for higher derivative orders (3 sigmas for the Gaussian, 4
+	 * for first and second order derivatives, 5 above), and the structure
+	 * tensor smooths the gradient products with the integration scale.
+	 *
+	 * @return halo along x, y and z
+	 */
+	public int[] getHalo()
+	{
+		final double gaussian = useRecursiveGaussian ? HIGHER_ORDER_SUPPORT : GAUSSIAN_SUPPORT;
+		final double secondOrder = Math.max( gaussian, SECOND_ORDER_SUPPORT );
+		double radius = 0;
+		if( enableFeatures[ GAUSSIAN ] || enableFeatures[ DOG ] )
+			radius = Math.max( radius, gaussian * maximumSigma );
+		if( enableFeatures[ HESSIAN ] || enableFeatures[ LAPLACIAN ] || enableFeatures[ EDGES ] )
+			radius = Math.max( radius, secondOrder * maximumSigma );
+		if( enableFeatures[ DERIVATIVES ] )
+			radius = Math.max( radius, ( maxDerivativeOrder > 2 ?
+					HIGHER_ORDER_SUPPORT : secondOrder ) * maximumSigma );
+		if( enableFeatures[ STRUCTURE ] )
+			radius = Math.max( radius, SECOND_ORDER_SUPPORT * maximumSigma
+					+ GAUSSIAN_SUPPORT * MAX_INTEGRATION_SCALE );
+		for( int feature : new int[]{ MINIMUM, MAXIMUM, MEAN, MEDIAN, VARIANCE } )
+			if( enableFeatures[ feature ] )
+				radius = Math.max( radius, maximumSigma );
+		final int[] halo = new int[ 3 ];
+		for( int d = 0; d < 3; d++ )
+			halo[ d ] = (int) Math.ceil( radius * scaleFactor[ d ] ) + 1;
+		return halo;
+	}
+
+	/**
+	 * Compute the features of a block of the volume. The block is padded
+	 * with the halo (see {@link #getHalo()}) within the volume, the
+	 * features of the padded block are computed and only the slices of the
+	 * block itself are kept, so the memory taken is proportional to the
+	 * block size and not to the volume size. The features of each voxel are
+	 * those of the whole volume up to the filter tails beyond the halo.
+	 *
+	 * @param origin coordinates of the first voxel of the block (x, y, z, zero-based)
+	 * @param size block dimensions (x, y, z)
+	 * @return feature stacks of the block slices, or null if the features
+	 * could not be computed
+	 */
+	public FeatureStackArray getBlockFeatures( int[] origin, int[] size )
+	{
+		final int[] dims = new int[]{ width, height, originalImage.getImageStackSize() };
+		final int[] halo = getHalo();
+		final int[] start = new int[ 3 ];
+		final int[] end = new int[ 3 ];
+		final int[] offset = new int[ 3 ];
+		for( int d = 0; d < 3; d++ )
+		{
+			start[ d ] = Math.max( 0, origin[ d ] - halo[ d ] );
+			end[ d ] = Math.min( dims[ d ], origin[ d ] + size[ d ] + halo[ d ] );
+			offset[ d ] = origin[ d ] - start[ d ];
+		}
+		final ImagePlus block = new ImagePlus( originalImage.getShortTitle() + "-block",
+				originalImage.getImageStack().crop( start[ 0 ], start[ 1 ], start[ 2 ],
+						end[ 0 ] - start[ 0 ], end[ 1 ] - start[ 1 ], end[ 2 ] - start[ 2 ] ) );
+		block.setCalibration( originalImage.getCalibration() );
+
+		final FeatureStack3D blockFeatures = new FeatureStack3D( block );
+		blockFeatures.setMinimumSigma( minimumSigma );
+		blockFeatures.setMaximumSigma( maximumSigma );
+		blockFeatures.setEnableFeatures( enableFeatures );
+		blockFeatures.setUseRecursiveGaussian( useRecursiveGaussian );
+		if( !blockFeatures.updateFeaturesMT() )
+			return null;
+		return blockFeatures.getFeatureStackArray( offset, size );
+	}
+
+	/**
+	 * Count the features {@link #updateFeaturesMT()} computes with the
+	 * current settings, without computing them.
+	 *
+	 * @return number of features (original image included)
+	 */
+	public int estimateNumOfFeatures()
+	{
+		int n = 1;
+		for( float i = minimumSigma; i <= maximumSigma; i *= 2 )
+		{
+			if( enableFeatures[ GAUSSIAN ] )
+				n++;
+			if( enableFeatures[ DOG ] )
+				for( float j = minimumSigma; j < i; j *= 2 )
+					n++;
+			if( enableFeatures[ HESSIAN ] )
+				n += 3;
+			if( enableFeatures[ DERIVATIVES ] )
+				n += maxDerivativeOrder - minDerivativeOrder + 1;
+			if( enableFeatures[ LAPLACIAN ] )
+				n++;
+			if( enableFeatures[ EDGES ] )
+				n++;
+			if( enableFeatures[ STRUCTURE ] )
+				for( int integrationScale = 1; integrationScale <= MAX_INTEGRATION_SCALE; integrationScale += 2 )
+					n += 3;
+			for( int feature : new int[]{ MINIMUM, MAXIMUM, MEAN, MEDIAN, VARIANCE } )
+				if( enableFeatures[ feature ] )
+					n++;
+		}
+		return n;
+	}
 	
 	/**
 	 * Set the minimum sigma (or filter radius) of the features
@@ -1179,6 +1500,29 @@ public class FeatureStack3D
 	{
 		this.maximumSigma = maximumSigma;
 	}
+	/**
+	 * Set the use of the recursive Gaussian filter for the Gaussian blur,
+	 * derivatives (up to order 2 along each axis), Laplacian and edges
+	 * features. Its cost does not depend on sigma, but the features differ
+	 * slightly from the default ones: away from the image borders, by up to
+	 * 0.2% of the peak response for the Gaussian blur, 1% for first
+	 * derivatives, 2% for second derivatives and 3% for higher mixed
+	 * derivatives (see RecursiveGaussianTest).
+	 * @param useRecursiveGaussian flag to use the recursive Gaussian filter
+	 */
+	public void setUseRecursiveGaussian( boolean useRecursiveGaussian )
+	{
+		this.useRecursiveGaussian = useRecursiveGaussian;
+	}
+	/**
+	 * Check if the Gaussian-based features are computed with the recursive
+	 * Gaussian filter.
+	 * @return true if the recursive Gaussian filter is used
+	 */
+	public boolean isUseRecursiveGaussian()
+	{
+		return this.useRecursiveGaussian;
+	}
 	/**
 	 * Set the boolean flags to enable/disable features
 	 * @param enableFeatures array of flags
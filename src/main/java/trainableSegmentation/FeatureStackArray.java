@@ -47,7 +47,9 @@ import ij.ImagePlus;
 import ij.Prefs;
 import weka.core.Instances;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -88,6 +90,20 @@ public class FeatureStackArray
 	/** flag to specify the use of the old (wrong) Hessian format (fixed in
 	 * version 3.2.25 of TWS) */
 	private boolean oldHessianFormat = false;
+	
+	/** maximum memory taken by the feature stacks in memory (in bytes),
+	 * the least recently used ones are spilled to scratch files beyond it */
+	private long memoryBudget = Long.MAX_VALUE;
+	/** directory of the scratch files (null for the default temporary directory) */
+	private File scratchDirectory = null;
+	/** last access of each feature stack (in number of accesses) */
+	private long[] lastAccess;
+	/** number of accesses to the feature stacks */
+	private long accessCount = 0;
+	/** flags of the feature stacks being updated (they cannot be spilled) */
+	private boolean[] updating;
+	/** on-disk cache of the features (null to always compute them) */
+	private FeatureCache featureCache = null;
 	/**
 	 * Initialize a feature stack list of a specific size (with default values
 	 * for the rest of parameters).
@@ -97,6 +113,8 @@ public class FeatureStackArray
 	public FeatureStackArray( final int num )
 	{
 		this.featureStackArray = new FeatureStack[ num ];
+		this.lastAccess = new long[ num ];
+		this.updating = new boolean[ num ];
 	}
 
 	/**
@@ -120,6 +138,8 @@ public class FeatureStackArray
 			final boolean[] enabledFeatures)
 	{
 		this.featureStackArray = new FeatureStack[num]; 
+		this.lastAccess = new long[ num ];
+		this.updating = new boolean[ num ];
 		this.minimumSigma = minimumSigma;
 		this.maximumSigma = maximumSigma;
 		this.useNeighbors = useNeighbors;
@@ -139,12 +159,14 @@ public class FeatureStackArray
 			final ImagePlus filters)
 	{
 		this.featureStackArray = new FeatureStack[ inputImage.getImageStackSize() ];
-		
+		this.lastAccess = new long[ featureStackArray.length ];
+		this.updating = new boolean[ featureStackArray.length ];
 		
 		for(int i=1; i <= featureStackArray.length; i++)
 		{		
 			featureStackArray[ i-1 ] = new FeatureStack(new ImagePlus("slice " + i, inputImage.getImageStack().getProcessor(i)));			
 			featureStackArray[ i-1 ].addFeaturesMT( filters );			 
+			featureStackArray[ i-1 ].setLoadListener( createLoadListener( i-1 ) );
 		}
 	}
 	
@@ -165,6 +187,8 @@ public class FeatureStackArray
 	 */
 	public FeatureStack get(int n)
 	{
+		if( memoryBudget != Long.MAX_VALUE )
+			recordAccess( n );
 		return featureStackArray[n];
 	}
 	/**
@@ -175,7 +199,7 @@ public class FeatureStackArray
 	{
 		if( this.referenceStackIndex != -1 )
 			return this.featureStackArray[ referenceStackIndex ]
-					.getStack().getBitDepth() == 24;
+					.getProcessor( 1 ).getBitDepth() == 24;
 		else
 		{
 			IJ.log("Warning. Error in FeatureStackArray: trying to access empty array!");
@@ -190,10 +214,114 @@ public class FeatureStackArray
 	public void set(FeatureStack fs, int index)
 	{
 		this.featureStackArray[ index ] = fs;
+		if( null != fs )
+			fs.setLoadListener( createLoadListener( index ) );
 		if( this.referenceStackIndex == -1 )
 			setReference( index );
 	}
 	
+	/**
+	 * Set the maximum memory taken by the feature stacks in memory. Beyond
+	 * it, the least recently used feature stacks are spilled to memory-mapped
+	 * scratch files (see {@link FeatureStack#spill(File)}) and loaded back
+	 * when they are needed again. The packed features and the planes kept
+	 * for the next update count in the budget too.
+	 * 
+	 * @param memoryBudget memory budget in bytes (Long.MAX_VALUE to keep
+	 * all feature stacks in memory)
+	 */
+	public void setMemoryBudget( long memoryBudget )
+	{
+		this.memoryBudget = memoryBudget;
+		enforceMemoryBudget( -1 );
+	}
+	
+	/**
+	 * Get the maximum memory taken by the feature stacks in memory.
+	 * @return memory budget in bytes (Long.MAX_VALUE if there is no limit)
+	 */
+	public long getMemoryBudget()
+	{
+		return memoryBudget;
+	}
+	
+	/**
+	 * Set the directory of the scratch files of the spilled feature stacks.
+	 * @param directory scratch directory (null for the default temporary directory)
+	 */
+	public void setScratchDirectory( File directory )
+	{
+		this.scratchDirectory = directory;
+	}
+	
+	/**
+	 * Record an access to a feature stack (for the least recently used order).
+	 * @param n position of the feature stack
+	 */
+	private synchronized void recordAccess( int n )
+	{
+		lastAccess[ n ] = ++accessCount;
+	}
+	
+	/**
+	 * Create the action run when a spilled feature stack is loaded back into
+	 * memory: it becomes the most recently used one and others are spilled
+	 * if the memory budget is exceeded.
+	 * @param n position of the feature stack
+	 * @return load listener of the feature stack
+	 */
+	private Runnable createLoadListener( final int n )
+	{
+		return new Runnable(){
+			public void run(){
+				recordAccess( n );
+				enforceMemoryBudget( n );
+			}
+		};
+	}
+	
+	/**
+	 * Get the memory taken by the feature stacks (see
+	 * {@link FeatureStack#getMemorySize()}).
+	 * @return memory size in bytes
+	 */
+	public long getMemorySize()
+	{
+		long total = 0;
+		for( FeatureStack fs : featureStackArray )
+			if( null != fs )
+				total += fs.getMemorySize();
+		return total;
+	}
+
+	/**
+	 * Release the memory of the least recently used feature stacks (see
+	 * {@link FeatureStack#releaseMemory(File)}) until the features in memory
+	 * fit in the memory budget. Feature stacks being updated are kept.
+	 * @param keep position of a feature stack to keep in memory (-1 for none)
+	 */
+	private synchronized void enforceMemoryBudget( int keep )
+	{
+		if( memoryBudget == Long.MAX_VALUE )
+			return;
+		long total = getMemorySize();
+		// each feature stack releases its memory once at most
+		final boolean[] released = new boolean[ featureStackArray.length ];
+		while( total > memoryBudget )
+		{
+			int leastRecent = -1;
+			for( int i = 0; i < featureStackArray.length; i++ )
+				if( i != keep && null != featureStackArray[ i ] && !updating[ i ]
+						&& !released[ i ] && featureStackArray[ i ].getMemorySize() > 0
+						&& ( leastRecent == -1 || lastAccess[ i ] < lastAccess[ leastRecent ] ) )
+					leastRecent = i;
+			if( leastRecent == -1 )
+				return;
+			released[ leastRecent ] = true;
+			total -= featureStackArray[ leastRecent ].releaseMemory( scratchDirectory );
+		}
+	}
+	
 	/**
 	 * Update specific feature stacks in the list (multi-thread fashion)
 	 * 
@@ -209,6 +337,7 @@ public class FeatureStackArray
 		final ExecutorService exe = Executors.newFixedThreadPool( numProcessors );
 		
 		final ArrayList< Future<Boolean> > futures = new ArrayList< Future<Boolean> >();
+		final ArrayList< Integer > indices = new ArrayList< Integer >();
 		
 		try{
 			for(int i=0; i<featureStackArray.length; i++)
@@ -225,13 +354,18 @@ public class FeatureStackArray
 						featureStackArray[i].setUseNeighbors(useNeighbors);
 						featureStackArray[i].setOldColorFormat(oldColorFormat);
 						featureStackArray[i].setOldHessianFormat(oldHessianFormat);
+						featureStackArray[i].setFeatureCache(featureCache);
 						if ( featureStackArray.length == 1 )
 						{
 							if( !featureStackArray[i].updateFeaturesMT() )
 								return false;							
 						}
 						else
+						{
+							setUpdating( i, true );
 							futures.add(exe.submit( updateFeatures( featureStackArray[i] ) ));
+							indices.add( i );
+						}
 
 						if(referenceStackIndex == -1)
 							this.referenceStackIndex = i;
@@ -239,11 +373,12 @@ public class FeatureStackArray
 			}
 			
 			// Wait for the jobs to be done
-			for(Future<Boolean> f : futures)
+			for(int j=0; j<futures.size(); j++)
 			{
-				final boolean result = f.get();
+				final boolean result = futures.get( j ).get();
 				if(!result)
 					return false;
+				finishUpdate( indices.get( j ) );
 			}			
 		}
 		catch (InterruptedException e) 
@@ -261,6 +396,7 @@ public class FeatureStackArray
 		}
 		finally{
 			exe.shutdown();
+			clearUpdating();
 		}	
 		
 		
@@ -276,6 +412,7 @@ public class FeatureStackArray
 		final int numProcessors = Prefs.getThreads();
 		final ExecutorService exe = Executors.newFixedThreadPool( numProcessors );
 		final ArrayList< Future<Boolean> > futures = new ArrayList< Future<Boolean> >();
+		final ArrayList< Integer > indices = new ArrayList< Integer >();
 		
 		IJ.showStatus("Updating features...");
 		
@@ -294,13 +431,18 @@ public class FeatureStackArray
 					featureStackArray[i].setUseNeighbors(useNeighbors);
 					featureStackArray[i].setOldColorFormat(oldColorFormat);
 					featureStackArray[i].setOldHessianFormat(oldHessianFormat);
+					featureStackArray[i].setFeatureCache(featureCache);
 					if ( featureStackArray.length == 1 )
 					{
 						if(!featureStackArray[i].updateFeaturesMT())
 							return false;						
 					}
 					else
+					{
+						setUpdating( i, true );
 						futures.add(exe.submit( updateFeatures( featureStackArray[i] ) ));
+						indices.add( i );
+					}
 
 					if(referenceStackIndex == -1)
 						this.referenceStackIndex = i;
@@ -310,14 +452,15 @@ public class FeatureStackArray
 			// Wait for the jobs to be done
 			int currentIndex = 0;
 			final int finalIndex = featureStackArray.length;
-			for(Future<Boolean> f : futures)
+			for(int j=0; j<futures.size(); j++)
 			{
-				final boolean result = f.get();
+				final boolean result = futures.get( j ).get();
 				currentIndex++;
 				IJ.showStatus("Updating features...");
 				IJ.showProgress(currentIndex, finalIndex);
 				if(!result)
 					return false;
+				finishUpdate( indices.get( j ) );
 			}			
 		
 		} 
@@ -338,12 +481,43 @@ public class FeatureStackArray
 		}
 		finally{
 			exe.shutdown();
+			clearUpdating();
 		}	
 		
 		
 		return true;
 	}
 	
+	/**
+	 * Flag a feature stack as being updated, so it is not spilled meanwhile.
+	 * @param n position of the feature stack
+	 * @param flag true while the feature stack is being updated
+	 */
+	private synchronized void setUpdating( int n, boolean flag )
+	{
+		updating[ n ] = flag;
+	}
+	
+	/**
+	 * Clear the update flags of all feature stacks.
+	 */
+	private synchronized void clearUpdating()
+	{
+		Arrays.fill( updating, false );
+	}
+	
+	/**
+	 * Mark a feature stack as updated and spill the least recently used
+	 * ones if the memory budget is exceeded.
+	 * @param n position of the feature stack
+	 */
+	private void finishUpdate( int n )
+	{
+		setUpdating( n, false );
+		recordAccess( n );
+		enforceMemoryBudget( -1 );
+	}
+	
 	/**
 	 * Update features of a feature stack (to be submitted to an Executor Service)
 	 * 
@@ -589,6 +763,25 @@ public class FeatureStackArray
 	{
 		return this.oldHessianFormat;
 	}
+	
+	/**
+	 * Set the on-disk cache of the features, used when the feature stacks
+	 * are updated (see {@link FeatureStack#setFeatureCache(FeatureCache)}).
+	 * @param cache feature cache (null to always compute the features)
+	 */
+	public void setFeatureCache( FeatureCache cache )
+	{
+		this.featureCache = cache;
+	}
+	
+	/**
+	 * Get the on-disk cache of the features.
+	 * @return feature cache (null if the features are always computed)
+	 */
+	public FeatureCache getFeatureCache()
+	{
+		return this.featureCache;
+	}
 	/**
 	 * Reorder the features of each stack based on the order of attributes given
 	 * by a set of instances.
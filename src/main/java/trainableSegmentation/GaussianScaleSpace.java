@@ -0,0 +1,230 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package trainableSegmentation;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import ij.ImagePlus;
+import ij.plugin.filter.GaussianBlur;
+import ij.process.FloatProcessor;
+import trainableSegmentation.filters.RecursiveGaussian;
+
+/**
+ * Gaussian scale-space of an image, shared by the feature families that
+ * start by blurring the image (Gaussian blur, Sobel filter, Hessian and
+ * difference of Gaussians). Every channel is blurred only once per sigma,
+ * the first time that sigma is requested, and the result is reused by all
+ * later requests. Concurrent requests of the same sigma wait for the single
+ * computation in progress.
+ * <p>
+ * The blurred images are shared, so they must not be modified by the
+ * callers (duplicate them first).
+ * <p>
+ * To bound the number of blurred images alive at the same time, the uses
+ * of each sigma can be declared in advance with {@link #expect(float)} and
+ * finished with {@link #release(float)}. Once the scale-space is
+ * {@link #seal() sealed}, a sigma is dropped as soon as its last declared
+ * use is released. Sigmas without declared uses are kept.
+ */
+public class GaussianScaleSpace
+{
+	/** image the scale-space belongs to */
+	private final ImagePlus image;
+	/** channels of the image (single float channel for grayscale images) */
+	private final ImagePlus[] channels;
+	/** flag to blur with the recursive Gaussian filter instead of GaussianBlur */
+	private final boolean recursive;
+	/** blurred channels, indexed by sigma */
+	private final ConcurrentHashMap<Float, FutureTask<FloatProcessor[]>> scales =
+			new ConcurrentHashMap<Float, FutureTask<FloatProcessor[]>>();
+	/** number of declared uses not released yet, indexed by sigma */
+	private final HashMap<Float, Integer> pendingUses = new HashMap<Float, Integer>();
+	/** flag to drop the sigmas once all their declared uses are released */
+	private boolean sealed = false;
+
+	/**
+	 * Create an empty scale-space.
+	 *
+	 * @param image image the scale-space belongs to
+	 * @param channels float channels of the image to blur
+	 */
+	public GaussianScaleSpace( ImagePlus image, ImagePlus[] channels )
+	{
+		this( image, channels, false );
+	}
+
+	/**
+	 * Create an empty scale-space.
+	 *
+	 * @param image image the scale-space belongs to
+	 * @param channels float channels of the image to blur
+	 * @param recursive flag to blur with the recursive Gaussian filter
+	 * (see {@link RecursiveGaussian}) instead of {@link GaussianBlur}
+	 */
+	public GaussianScaleSpace( ImagePlus image, ImagePlus[] channels, boolean recursive )
+	{
+		this.image = image;
+		this.channels = channels;
+		this.recursive = recursive;
+	}
+
+	/**
+	 * Get the image this scale-space belongs to.
+	 * @return image used to create the scale-space
+	 */
+	public ImagePlus getImage()
+	{
+		return image;
+	}
+
+	/**
+	 * Get the channels of the image blurred with a given sigma, computing
+	 * them if this is the first request for that sigma. The blur is the same
+	 * used by the 2D features ({@link GaussianBlur}, or the recursive filter
+	 * if enabled, with a standard deviation of 0.4 * sigma).
+	 *
+	 * @param sigma Gaussian sigma (0 returns copies of the channels)
+	 * @return blurred channels (must not be modified)
+	 */
+	public FloatProcessor[] getBlurredChannels( final float sigma )
+	{
+		FutureTask<FloatProcessor[]> task = scales.get( sigma );
+		if( null == task )
+		{
+			final FutureTask<FloatProcessor[]> newTask =
+					new FutureTask<FloatProcessor[]>( new Callable<FloatProcessor[]>(){
+						public FloatProcessor[] call()
+						{
+							return blur( sigma );
+						}
+					});
+			task = scales.putIfAbsent( sigma, newTask );
+			if( null == task )
+			{
+				task = newTask;
+				task.run();
+			}
+		}
+		try {
+			return task.get();
+		} catch ( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( "Interrupted while waiting for the "
+					+ "Gaussian blur (sigma = " + sigma + ")", e );
+		} catch ( ExecutionException e ) {
+			throw new RuntimeException( e.getCause() );
+		}
+	}
+
+	/**
+	 * Declare a future use of the channels blurred with a given sigma.
+	 *
+	 * @param sigma Gaussian sigma
+	 */
+	public synchronized void expect( float sigma )
+	{
+		final Integer uses = pendingUses.get( sigma );
+		pendingUses.put( sigma, null == uses ? 1 : uses + 1 );
+	}
+
+	/**
+	 * Finish a use of the channels blurred with a given sigma. If it was the
+	 * last declared use and the scale-space is sealed, the blurred channels
+	 * are dropped. Sigmas without declared uses are not affected.
+	 *
+	 * @param sigma Gaussian sigma
+	 */
+	public synchronized void release( float sigma )
+	{
+		final Integer uses = pendingUses.get( sigma );
+		if( null == uses )
+			return;
+		if( uses > 1 )
+			pendingUses.put( sigma, uses - 1 );
+		else
+		{
+			pendingUses.put( sigma, 0 );
+			if( sealed )
+				drop( sigma );
+		}
+	}
+
+	/**
+	 * Mark that all uses have been declared: from now on, every sigma is
+	 * dropped when its last declared use is released (immediately if that
+	 * already happened).
+	 */
+	public synchronized void seal()
+	{
+		sealed = true;
+		for( Iterator<Map.Entry<Float, Integer>> it = pendingUses.entrySet().iterator(); it.hasNext(); )
+		{
+			final Map.Entry<Float, Integer> entry = it.next();
+			if( entry.getValue() <= 0 )
+			{
+				scales.remove( entry.getKey() );
+				it.remove();
+			}
+		}
+	}
+
+	/** Forget the blurred channels of a sigma and its use count. */
+	private void drop( float sigma )
+	{
+		scales.remove( sigma );
+		pendingUses.remove( sigma );
+	}
+
+	/**
+	 * Blur all channels with a given sigma.
+	 */
+	private FloatProcessor[] blur( float sigma )
+	{
+		final GaussianBlur gs = new GaussianBlur();
+		final FloatProcessor[] blurred = new FloatProcessor[ channels.length ];
+		for( int ch = 0; ch < channels.length; ch++ )
+		{
+			if( recursive )
+			{
+				final FloatProcessor channel = (FloatProcessor)
+						channels[ ch ].getProcessor().convertToFloat();
+				final float[][] result = RecursiveGaussian.smooth(
+						new float[][]{ (float[]) channel.getPixels() },
+						channel.getWidth(), channel.getHeight(),
+						new double[]{ 0.4 * sigma, 0.4 * sigma }, 1 );
+				blurred[ ch ] = new FloatProcessor( channel.getWidth(),
+						channel.getHeight(), result[ 0 ] );
+				continue;
+			}
+			blurred[ ch ] = (FloatProcessor)
+					channels[ ch ].getProcessor().duplicate().convertToFloat();
+			gs.blurGaussian( blurred[ ch ], 0.4 * sigma, 0.4 * sigma, 0.0002 );
+		}
+		return blurred;
+	}
+}
@@ -0,0 +1,528 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package trainableSegmentation;
+
+import trainableSegmentation.filters.KernelCache;
+
+/**
+ * Estimate of the memory a feature update or a classification takes, and
+ * the execution mode chosen to keep it within the available memory.
+ * <p>
+ * The estimate is the sum of:
+ * <ul>
+ * <li>the feature stacks (one float per pixel and feature),</li>
+ * <li>the Weka instances created from them to classify a slice,</li>
+ * <li>the classification results (one plane per class for probability
+ * maps),</li>
+ * <li>the working buffers of the filters of each thread.</li>
+ * </ul>
+ * It is an approximation: it does not account for the garbage the
+ * filters leave behind, nor for the memory already taken by the caller.
+ */
+public class MemoryEstimate
+{
+	/** execution modes, from the fastest to the one taking less memory */
+	public enum Mode
+	{
+		/** the whole image (all slices at once when possible) */
+		WHOLE_IMAGE,
+		/** fewer slices at once, as fewer threads process them */
+		REDUCED_THREADS,
+		/** tiles of the image, padded by the largest filter radius */
+		TILED,
+		/** blocks of a volume, padded by the halo of the 3D filters */
+		BLOCKS,
+		/** slabs of slices of a volume, padded by the halo of the 3D filters along z */
+		SLABS,
+		/** feature stacks spilled to disk beyond a memory budget */
+		SPILLED
+	}
+
+	/** bytes of a feature value in the feature stacks */
+	static final long BYTES_PER_FEATURE = 4;
+	/** bytes of an attribute value in the Weka instances */
+	static final long BYTES_PER_ATTRIBUTE = 8;
+	/** bytes of a Weka instance besides its values (object and array headers) */
+	static final long BYTES_PER_INSTANCE = 48;
+	/** planes of working memory of the filters of a thread */
+	static final long WORKING_PLANES_PER_THREAD = 12;
+	/** maximum number of tiles (or blocks) per dimension tried by {@link #forClassification} and {@link #forVolume} */
+	static final int MAX_TILES_PER_DIM = 16;
+
+	private final long featureBytes;
+	private final long instanceBytes;
+	private final long resultBytes;
+	private final long workingBytes;
+	private final long available;
+	private final Mode mode;
+	private final int numThreads;
+	private final int tilesPerDim;
+	private final long memoryBudget;
+
+	private MemoryEstimate(
+			long featureBytes,
+			long instanceBytes,
+			long resultBytes,
+			long workingBytes,
+			long available,
+			Mode mode,
+			int numThreads,
+			int tilesPerDim,
+			long memoryBudget )
+	{
+		this.featureBytes = featureBytes;
+		this.instanceBytes = instanceBytes;
+		this.resultBytes = resultBytes;
+		this.workingBytes = workingBytes;
+		this.available = available;
+		this.mode = mode;
+		this.numThreads = numThreads;
+		this.tilesPerDim = tilesPerDim;
+		this.memoryBudget = memoryBudget;
+	}
+
+	/**
+	 * Estimate the memory to classify an image slice by slice (features,
+	 * instances and classification of each slice), and choose how to run
+	 * it: the whole image with the requested threads if it fits in the
+	 * available memory, else with fewer threads (so fewer slices are
+	 * processed at once), else (single images only) in tiles. If nothing
+	 * fits, the mode taking less memory is chosen.
+	 *
+	 * @param width image width
+	 * @param height image height
+	 * @param numSlices number of slices
+	 * @param numFeatures number of features of a slice
+	 * @param numClasses number of classes
+	 * @param numThreads requested number of threads
+	 * @param probabilityMaps true for probability maps, false for labels
+	 * @param padding pixels added on each side of the tiles
+	 * @param available available memory in bytes
+	 * @return estimate of the chosen mode
+	 */
+	public static MemoryEstimate forClassification(
+			int width,
+			int height,
+			int numSlices,
+			int numFeatures,
+			int numClasses,
+			int numThreads,
+			boolean probabilityMaps,
+			int padding,
+			long available )
+	{
+		numThreads = Math.max( 1, numThreads );
+		final long pixels = (long) width * height;
+		final long resultPlanes = probabilityMaps ? numClasses : 1;
+		// the results of all slices are kept until the end
+		final long resultBytes = numSlices * resultPlanes * pixels * BYTES_PER_FEATURE;
+
+		MemoryEstimate estimate = null;
+		for( int threads = numThreads; threads > 0; threads-- )
+		{
+			estimate = classification( pixels, Math.min( numSlices, threads ),
+					numFeatures, resultPlanes, resultBytes, threads, available,
+					threads == numThreads ? Mode.WHOLE_IMAGE : Mode.REDUCED_THREADS, 1 );
+			if( estimate.fits() )
+				return estimate;
+		}
+
+		// tiles are classified one after the other, each with all threads
+		if( numSlices == 1 )
+			for( int tiles = 2; tiles <= MAX_TILES_PER_DIM; tiles++ )
+			{
+				final long tileWidth = Math.min( width, width / tiles + width % tiles + 2L * padding );
+				final long tileHeight = Math.min( height, height / tiles + height % tiles + 2L * padding );
+				final MemoryEstimate tiled = classification( tileWidth * tileHeight, 1,
+						numFeatures, resultPlanes, resultBytes, numThreads, available,
+						Mode.TILED, tiles );
+				if( tiled.fits() )
+					return tiled;
+				if( tiled.getTotal() < estimate.getTotal() )
+					estimate = tiled;
+			}
+		return estimate;
+	}
+
+	private static MemoryEstimate classification(
+			long pixels,
+			int numSlicesAtOnce,
+			int numFeatures,
+			long resultPlanes,
+			long resultBytes,
+			int numThreads,
+			long available,
+			Mode mode,
+			int tilesPerDim )
+	{
+		final long featureBytes = numSlicesAtOnce * numFeatures * pixels * BYTES_PER_FEATURE;
+		// one attribute per feature plus the class
+		final long instanceBytes = numSlicesAtOnce * pixels *
+				( ( numFeatures + 1 ) * BYTES_PER_ATTRIBUTE + BYTES_PER_INSTANCE );
+		// results of the slices (or tiles) being classified
+		final long sliceResultBytes = numSlicesAtOnce * resultPlanes * pixels * BYTES_PER_FEATURE;
+		final long workingBytes = numThreads * WORKING_PLANES_PER_THREAD * pixels * BYTES_PER_FEATURE;
+		return new MemoryEstimate( featureBytes, instanceBytes, resultBytes + sliceResultBytes,
+				workingBytes, available, mode, numThreads, tilesPerDim, Long.MAX_VALUE );
+	}
+
+	/**
+	 * Estimate the memory to classify a volume with 3D features, and choose
+	 * how to run it: the whole volume if it fits in the available memory,
+	 * else in blocks (padded by the halo of the filters) whose features are
+	 * classified one block after the other. If nothing fits, the mode
+	 * taking less memory is chosen.
+	 * <p>
+	 * The features of a volume are kept twice (the 3D features and their
+	 * slices), and its instances are the feature vectors read at once and
+	 * the class scores of each voxel.
+	 *
+	 * @param width image width
+	 * @param height image height
+	 * @param depth number of slices
+	 * @param numFeatures number of 3D features
+	 * @param numClasses number of classes
+	 * @param numThreads number of threads
+	 * @param probabilityMaps true for probability maps, false for labels
+	 * @param halo voxels added on each side of the blocks along x, y and z
+	 * @param available available memory in bytes
+	 * @return estimate of the chosen mode
+	 */
+	public static MemoryEstimate forVolume(
+			int width,
+			int height,
+			int depth,
+			int numFeatures,
+			int numClasses,
+			int numThreads,
+			boolean probabilityMaps,
+			int[] halo,
+			long available )
+	{
+		numThreads = Math.max( 1, numThreads );
+		final long resultPlanes = probabilityMaps ? numClasses : 1;
+		final long resultBytes = resultPlanes * width * height * depth * BYTES_PER_FEATURE;
+
+		MemoryEstimate estimate = volume( (long) width * height * depth, numFeatures,
+				resultPlanes, resultBytes, numThreads, available, Mode.WHOLE_IMAGE, 1 );
+		if( estimate.fits() )
+			return estimate;
+
+		for( int blocks = 2; blocks <= MAX_TILES_PER_DIM; blocks++ )
+		{
+			final long voxels = paddedBlock( width, blocks, halo[ 0 ] )
+					* paddedBlock( height, blocks, halo[ 1 ] )
+					* paddedBlock( depth, blocks, halo[ 2 ] );
+			final MemoryEstimate blocked = volume( voxels, numFeatures, resultPlanes,
+					resultBytes, numThreads, available, Mode.BLOCKS, blocks );
+			if( blocked.fits() )
+				return blocked;
+			if( blocked.getTotal() < estimate.getTotal() )
+				estimate = blocked;
+		}
+		return estimate;
+	}
+
+	/**
+	 * Estimate the memory to classify a volume with 3D features in slabs
+	 * of slices written to a sink as they are classified, and choose the
+	 * number of slabs: the fewest (deepest slabs) that fit in the available
+	 * memory, else one slab per slice. The results are not counted, as
+	 * they are written to the sink.
+	 *
+	 * @param width image width
+	 * @param height image height
+	 * @param depth number of slices
+	 * @param numFeatures number of 3D features
+	 * @param numClasses number of classes
+	 * @param numThreads number of threads
+	 * @param probabilityMaps true for probability maps, false for labels
+	 * @param halo slices added above and below the slabs
+	 * @param available available memory in bytes
+	 * @return estimate of the chosen number of slabs
+	 */
+	public static MemoryEstimate forSlabs(
+			int width,
+			int height,
+			int depth,
+			int numFeatures,
+			int numClasses,
+			int numThreads,
+			boolean probabilityMaps,
+			int halo,
+			long available )
+	{
+		numThreads = Math.max( 1, numThreads );
+		depth = Math.max( 1, depth );
+		final long resultPlanes = probabilityMaps ? numClasses : 1;
+		MemoryEstimate estimate = null;
+		for( int slabs = 1; slabs <= depth; slabs++ )
+		{
+			final long voxels = (long) width * height * paddedBlock( depth, slabs, halo );
+			estimate = volume( voxels, numFeatures, resultPlanes, 0, numThreads,
+					available, Mode.SLABS, slabs );
+			if( estimate.fits() )
+				return estimate;
+		}
+		return estimate;
+	}
+
+	/**
+	 * Get the size of a block along a dimension, padded on both sides.
+	 *
+	 * @param size image size along the dimension
+	 * @param blocks number of blocks along the dimension
+	 * @param halo padding on each side
+	 * @return padded block size (at most the image size)
+	 */
+	static long paddedBlock( int size, int blocks, int halo )
+	{
+		return Math.min( size, getBlockSize( size, blocks ) + 2L * halo );
+	}
+
+	/**
+	 * Get the size of the blocks dividing a dimension (the last one may be
+	 * smaller).
+	 *
+	 * @param size image size along the dimension
+	 * @param blocks number of blocks along the dimension
+	 * @return block size
+	 */
+	public static int getBlockSize( int size, int blocks )
+	{
+		return Math.max( 1, ( size + blocks - 1 ) / blocks );
+	}
+
+	private static MemoryEstimate volume(
+			long voxels,
+			int numFeatures,
+			long resultPlanes,
+			long resultBytes,
+			int numThreads,
+			long available,
+			Mode mode,
+			int blocksPerDim )
+	{
+		final long featureBytes = 2 * voxels * numFeatures * BYTES_PER_FEATURE;
+		final long instanceBytes = voxels *
+				( numFeatures * BYTES_PER_FEATURE + resultPlanes * BYTES_PER_ATTRIBUTE );
+		final long workingBytes = numThreads * WORKING_PLANES_PER_THREAD * voxels * BYTES_PER_FEATURE;
+		return new MemoryEstimate( featureBytes, instanceBytes, resultBytes, workingBytes,
+				available, mode, numThreads, blocksPerDim, Long.MAX_VALUE );
+	}
+
+	/**
+	 * Estimate the memory to compute the training features of a stack (the
+	 * feature stacks of all slices are kept), and choose how to run it: in
+	 * memory if it fits in the available memory, else spilling the feature
+	 * stacks beyond a memory budget to disk.
+	 *
+	 * @param width image width
+	 * @param height image height
+	 * @param numSlices number of slices
+	 * @param numFeatures number of features of a slice
+	 * @param numThreads number of threads
+	 * @param available available memory in bytes
+	 * @return estimate of the chosen mode
+	 */
+	public static MemoryEstimate forTraining(
+			int width,
+			int height,
+			int numSlices,
+			int numFeatures,
+			int numThreads,
+			long available )
+	{
+		numThreads = Math.max( 1, numThreads );
+		final long pixels = (long) width * height;
+		final long stackBytes = numFeatures * pixels * BYTES_PER_FEATURE;
+		final long featureBytes = numSlices * stackBytes;
+		final long workingBytes = numThreads * WORKING_PLANES_PER_THREAD * pixels * BYTES_PER_FEATURE;
+		final MemoryEstimate estimate = new MemoryEstimate( featureBytes, 0, 0, workingBytes,
+				available, Mode.WHOLE_IMAGE, numThreads, 1, Long.MAX_VALUE );
+		if( estimate.fits() || numSlices == 1 )
+			return estimate;
+		// keep at least the stack being used in memory
+		final long budget = Math.max( stackBytes, available - workingBytes );
+		return new MemoryEstimate( featureBytes, 0, 0, workingBytes, available,
+				Mode.SPILLED, numThreads, 1, budget );
+	}
+
+	/**
+	 * Get the memory available to a new task: the given fraction of the
+	 * maximum heap minus the memory in use. The memory of the kernels in
+	 * the shared {@link KernelCache} is counted as available, as the
+	 * garbage collector releases them when the memory is needed.
+	 *
+	 * @param maxHeapFraction fraction of the maximum heap (0 to 1)
+	 * @return available memory in bytes (0 if the fraction is already used)
+	 */
+	public static long getAvailableMemory( double maxHeapFraction )
+	{
+		final Runtime runtime = Runtime.getRuntime();
+		final long used = runtime.totalMemory() - runtime.freeMemory()
+				- KernelCache.getInstance().getSize();
+		return Math.max( 0, (long) ( maxHeapFraction * runtime.maxMemory() ) - used );
+	}
+
+	/**
+	 * Get the memory available to a new task (see
+	 * {@link #getAvailableMemory(double)}), measured after a garbage
+	 * collection so that unreachable objects are not counted as used. Used
+	 * to choose an execution mode, which then does not depend on when the
+	 * garbage was last collected.
+	 *
+	 * @param maxHeapFraction fraction of the maximum heap (0 to 1)
+	 * @return available memory in bytes (0 if the fraction is already used)
+	 */
+	public static long getAvailableMemoryAfterGC( double maxHeapFraction )
+	{
+		System.gc();
+		return getAvailableMemory( maxHeapFraction );
+	}
+
+	/**
+	 * @return estimated memory of the feature stacks in bytes
+	 */
+	public long getFeatureBytes()
+	{
+		return featureBytes;
+	}
+
+	/**
+	 * @return estimated memory of the Weka instances in bytes
+	 */
+	public long getInstanceBytes()
+	{
+		return instanceBytes;
+	}
+
+	/**
+	 * @return estimated memory of the classification results in bytes
+	 */
+	public long getResultBytes()
+	{
+		return resultBytes;
+	}
+
+	/**
+	 * @return estimated working memory of the filters in bytes
+	 */
+	public long getWorkingBytes()
+	{
+		return workingBytes;
+	}
+
+	/**
+	 * Get the total estimated memory. In {@link Mode#SPILLED} mode, only
+	 * the memory budget of the feature stacks is taken in memory.
+	 * @return estimated memory in bytes
+	 */
+	public long getTotal()
+	{
+		return Math.min( featureBytes, memoryBudget ) + instanceBytes + resultBytes + workingBytes;
+	}
+
+	/**
+	 * @return memory available when the estimate was made, in bytes
+	 */
+	public long getAvailable()
+	{
+		return available;
+	}
+
+	/**
+	 * @return true if the estimated memory fits in the available memory
+	 */
+	public boolean fits()
+	{
+		return getTotal() <= available;
+	}
+
+	/**
+	 * @return chosen execution mode
+	 */
+	public Mode getMode()
+	{
+		return mode;
+	}
+
+	/**
+	 * @return number of threads to use
+	 */
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
+
+	/**
+	 * @return number of tiles (or blocks) per dimension ({@link Mode#TILED}
+	 * and {@link Mode#BLOCKS} modes), or number of slabs ({@link Mode#SLABS}
+	 * mode), 1 otherwise
+	 */
+	public int getTilesPerDim()
+	{
+		return tilesPerDim;
+	}
+
+	/**
+	 * @return memory budget of the feature stacks in bytes
+	 * ({@link Mode#SPILLED} mode, Long.MAX_VALUE otherwise)
+	 */
+	public long getMemoryBudget()
+	{
+		return memoryBudget;
+	}
+
+	@Override
+	public String toString()
+	{
+		String s = "Estimated memory: " + megabytes( getTotal() ) + " ("
+				+ megabytes( featureBytes ) + " features";
+		if( instanceBytes > 0 )
+			s += ", " + megabytes( instanceBytes ) + " instances";
+		if( resultBytes > 0 )
+			s += ", " + megabytes( resultBytes ) + " results";
+		s += ", " + megabytes( workingBytes ) + " working buffers) of "
+				+ megabytes( available ) + " available";
+		switch( mode )
+		{
+			case WHOLE_IMAGE:
+				return s + ", using the whole image with " + numThreads + " thread(s).";
+			case REDUCED_THREADS:
+				return s + ", reducing to " + numThreads + " thread(s).";
+			case TILED:
+				return s + ", using " + tilesPerDim + "x" + tilesPerDim + " tiles.";
+			case BLOCKS:
+				return s + ", using " + tilesPerDim + "x" + tilesPerDim + "x" + tilesPerDim + " blocks.";
+			case SLABS:
+				return s + ", using " + tilesPerDim + " slab(s) of slices.";
+			default:
+				return s + ", spilling the features beyond " + megabytes( memoryBudget ) + " to disk.";
+		}
+	}
+
+	private static String megabytes( long bytes )
+	{
+		return ( bytes >> 20 ) + "MB";
+	}
+}
@@ -0,0 +1,165 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package trainableSegmentation;
+
+import ij.ImageStack;
+
+/**
+ * Copy of the features of a feature stack laid out pixel by pixel, so the
+ * feature vector of a pixel is read from a single contiguous run of the
+ * array instead of one slice of the stack per feature.
+ * <p>
+ * The pixels are grouped in square tiles, so pixels close in X and Y (as
+ * visited by the row- and column-major classification loops) are close in
+ * memory too. The values are stored as floats, which is exact for 8, 16
+ * and 32-bit stacks; for RGB stacks the sum of the three channels is stored
+ * and the feature value is their average, as in the unpacked stack.
+ */
+final class PackedFeatures
+{
+	/** log2 of the side of the tiles (in pixels) */
+	private static final int TILE_BITS = 4;
+	/** side of the tiles (in pixels) */
+	private static final int TILE_SIZE = 1 << TILE_BITS;
+	/** mask to get the coordinates within a tile */
+	private static final int TILE_MASK = TILE_SIZE - 1;
+
+	/** stack the features were copied from */
+	final ImageStack source;
+	/** number of features per pixel */
+	final int numFeatures;
+	/** number of tiles along X */
+	private final int tilesX;
+	/** true if the values are sums of RGB channels */
+	private final boolean colorSums;
+	/** feature values, tile by tile and pixel by pixel */
+	private final float[] values;
+
+	private PackedFeatures( ImageStack source, boolean colorSums, int tilesX, float[] values )
+	{
+		this.source = source;
+		this.numFeatures = source.getSize();
+		this.colorSums = colorSums;
+		this.tilesX = tilesX;
+		this.values = values;
+	}
+
+	/**
+	 * Get the number of bytes needed to pack a stack.
+	 * @param stack feature stack
+	 * @return size of the packed features in bytes
+	 */
+	static long getMemorySize( ImageStack stack )
+	{
+		final long tilesX = ( stack.getWidth() + TILE_MASK ) >> TILE_BITS;
+		final long tilesY = ( stack.getHeight() + TILE_MASK ) >> TILE_BITS;
+		return 4L * tilesX * tilesY * TILE_SIZE * TILE_SIZE * stack.getSize();
+	}
+
+	/**
+	 * Pack the slices of a stack.
+	 *
+	 * @param stack feature stack (8, 16, 32-bit or RGB)
+	 * @param colorFeatures true to store the sum of the channels of RGB
+	 * slices, false to pack only non-RGB stacks
+	 * @return packed features, or null if the stack cannot be packed
+	 */
+	static PackedFeatures pack( ImageStack stack, boolean colorFeatures )
+	{
+		final int bitDepth = stack.getBitDepth();
+		if( bitDepth == 24 && !colorFeatures )
+			return null;
+		if( getMemorySize( stack ) / 4 > Integer.MAX_VALUE )
+			return null;
+
+		final int width = stack.getWidth();
+		final int height = stack.getHeight();
+		final int n = stack.getSize();
+		final int tilesX = ( width + TILE_MASK ) >> TILE_BITS;
+		final float[] values = new float[ (int) ( getMemorySize( stack ) / 4 ) ];
+		final PackedFeatures packed = new PackedFeatures( stack, bitDepth == 24, tilesX, values );
+
+		for( int z = 0; z < n; z++ )
+		{
+			final Object pixels = stack.getPixels( z + 1 );
+			for( int y = 0, i = 0; y < height; y++ )
+				for( int x = 0; x < width; x++, i++ )
+				{
+					final float v;
+					switch( bitDepth )
+					{
+						case 8:
+							v = ( (byte[]) pixels )[ i ] & 0xff;
+							break;
+						case 16:
+							v = ( (short[]) pixels )[ i ] & 0xffff;
+							break;
+						case 24:
+							final int c = ( (int[]) pixels )[ i ];
+							v = ( ( c & 0xff0000 ) >> 16 ) + ( ( c & 0xff00 ) >> 8 ) + ( c & 0xff );
+							break;
+						default:
+							v = ( (float[]) pixels )[ i ];
+					}
+					values[ packed.offset( x, y ) + z ] = v;
+				}
+		}
+		return packed;
+	}
+
+	/**
+	 * Index in the values of the first feature of a pixel.
+	 */
+	private int offset( int x, int y )
+	{
+		final int tile = ( y >> TILE_BITS ) * tilesX + ( x >> TILE_BITS );
+		final int pixel = ( ( y & TILE_MASK ) << TILE_BITS ) | ( x & TILE_MASK );
+		return ( ( tile << ( 2 * TILE_BITS ) ) + pixel ) * numFeatures;
+	}
+
+	/**
+	 * Get the memory taken by the packed features.
+	 * @return size in bytes
+	 */
+	long getMemorySize()
+	{
+		return 4L * values.length;
+	}
+
+	/**
+	 * Copy the feature vector of a pixel.
+	 *
+	 * @param x x- pixel coordinate
+	 * @param y y- pixel coordinate
+	 * @param features output array (its first numFeatures values are set)
+	 */
+	void get( int x, int y, double[] features )
+	{
+		final int offset = offset( x, y );
+		if( colorSums )
+			for( int z = 0; z < numFeatures; z++ )
+				features[ z ] = values[ offset + z ] / 3.0;
+		else
+			for( int z = 0; z < numFeatures; z++ )
+				features[ z ] = values[ offset + z ];
+	}
+}
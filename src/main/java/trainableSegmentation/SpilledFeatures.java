@@ -0,0 +1,220 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package trainableSegmentation;
+
+import ij.ImageStack;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Slices of a feature stack written to a scratch file and memory-mapped,
+ * so they do not take heap memory. Single feature values are read directly
+ * from the mapping (the operating system pages the file in and out as
+ * needed) and the whole stack can be loaded back into memory.
+ * <p>
+ * The scratch file is deleted as soon as it is mapped (or when the virtual
+ * machine exits if the platform does not allow deleting mapped files); its
+ * disk space is released when the mapping is garbage collected.
+ */
+final class SpilledFeatures
+{
+	/** stack width */
+	private final int width;
+	/** stack height */
+	private final int height;
+	/** bit depth of the slices (8, 16, 24 or 32) */
+	private final int bitDepth;
+	/** slice labels */
+	private final String[] labels;
+	/** mapped slices (in native byte order) */
+	private final ByteBuffer[] planes;
+
+	private SpilledFeatures( int width, int height, int bitDepth, String[] labels, ByteBuffer[] planes )
+	{
+		this.width = width;
+		this.height = height;
+		this.bitDepth = bitDepth;
+		this.labels = labels;
+		this.planes = planes;
+	}
+
+	/**
+	 * Get the memory taken by the slices of a stack.
+	 * @param stack feature stack
+	 * @return size of the slices in bytes
+	 */
+	static long getMemorySize( ImageStack stack )
+	{
+		return (long) stack.getWidth() * stack.getHeight() * stack.getSize()
+				* bytesPerPixel( stack.getBitDepth() );
+	}
+
+	private static int bytesPerPixel( int bitDepth )
+	{
+		return bitDepth == 8 ? 1 : ( bitDepth == 16 ? 2 : 4 );
+	}
+
+	/**
+	 * Write the slices of a stack to a scratch file and map it.
+	 *
+	 * @param stack feature stack
+	 * @param directory directory of the scratch file (null for the default
+	 * temporary directory)
+	 * @return mapped slices
+	 * @throws IOException if the scratch file cannot be written or mapped
+	 */
+	static SpilledFeatures spill( ImageStack stack, File directory ) throws IOException
+	{
+		final int width = stack.getWidth();
+		final int height = stack.getHeight();
+		final int bitDepth = stack.getBitDepth();
+		final long planeBytes = (long) width * height * bytesPerPixel( bitDepth );
+		if( planeBytes > Integer.MAX_VALUE )
+			throw new IOException( "Feature slices larger than 2 GB cannot be mapped" );
+
+		final String[] labels = new String[ stack.getSize() ];
+		final ByteBuffer[] planes = new ByteBuffer[ stack.getSize() ];
+		final File file = File.createTempFile( "features", ".raw", directory );
+		final RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+		try{
+			final FileChannel channel = raf.getChannel();
+			final ByteBuffer buffer = ByteBuffer.allocate( (int) planeBytes ).order( ByteOrder.nativeOrder() );
+			for( int z = 0; z < planes.length; z++ )
+			{
+				labels[ z ] = stack.getSliceLabel( z + 1 );
+				final Object pixels = stack.getPixels( z + 1 );
+				buffer.clear();
+				switch( bitDepth )
+				{
+					case 8:
+						buffer.put( (byte[]) pixels );
+						break;
+					case 16:
+						buffer.asShortBuffer().put( (short[]) pixels );
+						break;
+					case 24:
+						buffer.asIntBuffer().put( (int[]) pixels );
+						break;
+					default:
+						buffer.asFloatBuffer().put( (float[]) pixels );
+				}
+				buffer.position( 0 ).limit( (int) planeBytes );
+				long position = z * planeBytes;
+				while( buffer.hasRemaining() )
+					position += channel.write( buffer, position );
+			}
+			for( int z = 0; z < planes.length; z++ )
+			{
+				final MappedByteBuffer plane = channel.map( FileChannel.MapMode.READ_ONLY, z * planeBytes, planeBytes );
+				planes[ z ] = plane.order( ByteOrder.nativeOrder() );
+			}
+		}
+		finally{
+			raf.close();
+			if( !file.delete() )
+				file.deleteOnExit();
+		}
+		return new SpilledFeatures( width, height, bitDepth, labels, planes );
+	}
+
+	int getWidth()
+	{
+		return width;
+	}
+
+	int getHeight()
+	{
+		return height;
+	}
+
+	int getSize()
+	{
+		return planes.length;
+	}
+
+	/**
+	 * @param index slice index (from 1 to size)
+	 */
+	String getSliceLabel( int index )
+	{
+		return labels[ index - 1 ];
+	}
+
+	/**
+	 * Get a feature value, as ImageStack.getVoxel would return it.
+	 */
+	double getVoxel( int x, int y, int z )
+	{
+		final int i = x + y * width;
+		switch( bitDepth )
+		{
+			case 8:
+				return planes[ z ].get( i ) & 0xff;
+			case 16:
+				return planes[ z ].getShort( 2 * i ) & 0xffff;
+			case 24:
+				return planes[ z ].getInt( 4 * i );
+			default:
+				return planes[ z ].getFloat( 4 * i );
+		}
+	}
+
+	/**
+	 * Read the slices back into memory.
+	 * @return feature stack
+	 */
+	ImageStack load()
+	{
+		final ImageStack stack = new ImageStack( width, height );
+		for( int z = 0; z < planes.length; z++ )
+		{
+			final ByteBuffer plane = planes[ z ].duplicate().order( ByteOrder.nativeOrder() );
+			final Object pixels;
+			switch( bitDepth )
+			{
+				case 8:
+					pixels = new byte[ width * height ];
+					plane.get( (byte[]) pixels );
+					break;
+				case 16:
+					pixels = new short[ width * height ];
+					plane.asShortBuffer().get( (short[]) pixels );
+					break;
+				case 24:
+					pixels = new int[ width * height ];
+					plane.asIntBuffer().get( (int[]) pixels );
+					break;
+				default:
+					pixels = new float[ width * height ];
+					plane.asFloatBuffer().get( (float[]) pixels );
+			}
+			stack.addSlice( labels[ z ], pixels );
+		}
+		return stack;
+	}
+}
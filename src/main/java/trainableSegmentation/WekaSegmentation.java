@@ -59,7 +59,10 @@ import java.util.zip.GZIPOutputStream;
 
 import org.jogamp.vecmath.Point3f;
 
+import ai.BalancedRandomForest;
+import hr.irb.fastRandomForest.DataCache;
 import hr.irb.fastRandomForest.FastRandomForest;
+import hr.irb.fastRandomForest.PackedForest;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
@@ -75,6 +78,9 @@ import ij.process.FloatPolygon;
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 import ij.process.ImageStatistics;
+import trainableSegmentation.utils.BinaryModel;
+import trainableSegmentation.utils.BinaryTrainingData;
+import trainableSegmentation.utils.SliceSink;
 import trainableSegmentation.utils.Utils;
 import weka.attributeSelection.BestFirst;
 import weka.attributeSelection.CfsSubsetEval;
@@ -132,9 +138,24 @@ public class WekaSegmentation {
 	private ImagePlus classifiedImage;
 	/** features to be used in the training */
 	private FeatureStackArray featureStackArray = null;
+	/** maximum memory taken by the feature stacks in memory (in bytes) */
+	private long featureMemoryBudget = Long.MAX_VALUE;
+	/** on-disk cache of the features (null to always compute them) */
+	private FeatureCache featureCache = null;
+	/** fraction of the maximum heap a feature update or classification may take */
+	private double maxHeapFraction = 0.9;
+	/** memory estimate of the last feature update or classification */
+	private MemoryEstimate lastMemoryEstimate = null;
+	/** minimum fraction of the pixels of a slice sampled for training for
+	 * its features to be packed first (see {@link FeatureStack#packFeatures(long)}) */
+	private static final double MIN_PACKED_SAMPLES_FRACTION = 0.1;
 
 	/** set of instances from loaded data (previously saved segmentation) */
 	private Instances loadedTrainingData = null;
+	/** binary training data file the loaded data was read from (null for ARFF files) */
+	private String loadedTrainingDataFile = null;
+	/** number of instances read from the binary training data file */
+	private int loadedTrainingDataSize = 0;
 	/** set of instances from the user's traces */
 	private Instances traceTrainingData = null;
 	/** current classifier */
@@ -257,6 +278,8 @@ public class WekaSegmentation {
 		featureStackArray = new FeatureStackArray(trainingImage.getImageStackSize(),
 				minimumSigma, maximumSigma, useNeighbors, membraneThickness, membranePatchSize,
 				enabledFeatures);
+		featureStackArray.setMemoryBudget( featureMemoryBudget );
+		featureStackArray.setFeatureCache( featureCache );
 
 		featureStackToUpdateTrain = new boolean[trainingImage.getImageStackSize()];
 		featureStackToUpdateTest = new boolean[trainingImage.getImageStackSize()];
@@ -338,6 +361,8 @@ public class WekaSegmentation {
 		featureStackArray = new FeatureStackArray(trainingImage.getImageStackSize(),
 				minimumSigma, maximumSigma, useNeighbors, membraneThickness, membranePatchSize,
 				enabledFeatures );
+		featureStackArray.setMemoryBudget( featureMemoryBudget );
+		featureStackArray.setFeatureCache( featureCache );
 
 		featureStackToUpdateTrain = new boolean[trainingImage.getImageStackSize()];
 		featureStackToUpdateTest = new boolean[trainingImage.getImageStackSize()];
@@ -509,13 +534,25 @@ public class WekaSegmentation {
 	/**
 	 * Load training data
 	 *
-	 * @param pathname complete path name of the training data file (.arff)
+	 * @param pathname complete path name of the training data file (.arff
+	 * or binary training data file)
 	 * @return false if error
 	 */
 	public boolean loadTrainingData(String pathname)
 	{
 		IJ.log("Loading data from " + pathname + "...");
-		loadedTrainingData = readDataFromARFF(pathname);
+		forgetLoadedTrainingDataFile();
+		if( BinaryTrainingData.isBinaryTrainingData( pathname ) )
+		{
+			loadedTrainingData = readDataFromBinary( pathname );
+			if( null != loadedTrainingData )
+			{
+				loadedTrainingDataFile = pathname;
+				loadedTrainingDataSize = loadedTrainingData.numInstances();
+			}
+		}
+		else
+			loadedTrainingData = readDataFromARFF(pathname);
 		if( null == loadedTrainingData )
 		{
 			IJ.log( "Unable to load training data from " + pathname );
@@ -578,6 +615,7 @@ public class WekaSegmentation {
 						+ "</ul>"
 						+ "Please adjust names in GUI before loading ARFF." );
 				loadedTrainingData = null;
+				forgetLoadedTrainingDataFile();
 				return false;
 			}
 			j++;
@@ -589,6 +627,7 @@ public class WekaSegmentation {
 					"ERROR: Loaded number of classes and current number do not "
 					+ "match!" );
 			loadedTrainingData = null;
+			forgetLoadedTrainingDataFile();
 			return false;
 		}
 
@@ -611,7 +650,10 @@ public class WekaSegmentation {
 		}
 
 		if (!adjustSegmentationStateToData(loadedTrainingData))
+		{
 			loadedTrainingData = null;
+			forgetLoadedTrainingDataFile();
+		}
 		else
 			IJ.log("Loaded data: " + loadedTrainingData.numInstances() + " instances (" + loadedTrainingData.numAttributes() + " attributes)");
 
@@ -715,6 +757,23 @@ public class WekaSegmentation {
 		AbstractClassifier newClassifier = null;
 		Instances newHeader = null;
 		File selected = new File(filename);
+		if( BinaryModel.isBinaryModel( filename ) )
+		{
+			try {
+				final long start = System.currentTimeMillis();
+				final PackedForest forest = BinaryModel.read( filename );
+				IJ.log( "Loaded binary model with " + forest.getNumTrees()
+						+ " trees in " + ( System.currentTimeMillis() - start )
+						+ "ms" );
+				return checkUpdateClassifier( forest, forest.getHeader() );
+			}
+			catch (Exception e)
+			{
+				IJ.error("Load Failed", "Error while loading binary model");
+				e.printStackTrace();
+				return false;
+			}
+		}
 		try {
 			InputStream is = new FileInputStream( selected );
 			if (selected.getName().endsWith(ClassifierPanel.PMML_FILE_EXTENSION))
@@ -931,12 +990,20 @@ public class WekaSegmentation {
 
 		try {
 			sFile = new File(filename);
-			OutputStream os = new FileOutputStream(sFile);
-			if (sFile.getName().endsWith(".gz"))
+			if( BinaryModel.isBinaryModel( filename ) )
 			{
-				os = new GZIPOutputStream(os);
+				trainHeader = trainHeader.stringFreeStructure();
+				BinaryModel.write( classifier, trainHeader, filename );
+			}
+			else
+			{
+				OutputStream os = new FileOutputStream(sFile);
+				if (sFile.getName().endsWith(".gz"))
+				{
+					os = new GZIPOutputStream(os);
+				}
+				saveOK = saveClassifier(os);
 			}
-			saveOK = saveClassifier(os);
 		}
 		catch (Exception e)
 		{
@@ -973,7 +1040,8 @@ public class WekaSegmentation {
 	}
 
 	/**
-	 * Save training data into a file (.arff)
+	 * Save training data into a file (.arff or, if the path name has the
+	 * binary training data extension, binary training data file)
 	 * @param pathname complete path name
 	 * @return false if error
 	 */
@@ -997,6 +1065,8 @@ public class WekaSegmentation {
 		if(featureStackArray.isEmpty() || updateFeatures)
 		{
 			IJ.log("Creating feature stack...");
+			if ( !isProcessing3D )
+				admitTrainingFeatures();
 			if ( !isProcessing3D &&
 				 !featureStackArray.updateFeaturesMT(
 						 featureStackToUpdateTrain ) )
@@ -1038,7 +1108,13 @@ public class WekaSegmentation {
 
 		//IJ.log("Data: " + data.numAttributes() +" attributes, " + data.numClasses() + " classes");
 
-		writeDataToARFF(data, pathname);
+		if( BinaryTrainingData.isBinaryTrainingData( pathname ) )
+		{
+			if( !writeDataToBinary( data, pathname ) )
+				return false;
+		}
+		else
+			writeDataToARFF(data, pathname);
 		IJ.log("Saved training data: " + pathname);
 
 		return true;
@@ -1109,6 +1185,7 @@ public class WekaSegmentation {
 				loadedClassNames.add(getClassLabel( i ));
 			attributes.add(new Attribute("class", loadedClassNames));
 			loadedTrainingData = new Instances("segment", attributes, 1);
+			forgetLoadedTrainingDataFile();
 
 			loadedTrainingData.setClassIndex(loadedTrainingData.numAttributes()-1);
 		}
@@ -1219,6 +1296,7 @@ public class WekaSegmentation {
 				loadedClassNames.add(getClassLabel( i ));
 			attributes.add(new Attribute("class", loadedClassNames));
 			loadedTrainingData = new Instances("segment", attributes, 1);
+			forgetLoadedTrainingDataFile();
 
 			loadedTrainingData.setClassIndex(loadedTrainingData.numAttributes()-1);
 		}
@@ -1230,6 +1308,7 @@ public class WekaSegmentation {
 		int n1 = 0;
 		int n2 = 0;
 		int classIndex = -1;
+		final boolean packed = packForSampling( featureStack, (long) width * height );
 
 		for(int y = 0 ; y < height; y++)
 			for(int x = 0 ; x < width ; x++)
@@ -1255,6 +1334,8 @@ public class WekaSegmentation {
 				*/
 				loadedTrainingData.add(featureStack.createInstance(x, y, classIndex));
 			}
+		if( packed )
+			featureStack.unpackFeatures();
 
 		IJ.log("Added " + n1 + " instances of '" + className1 +"'.");
 		IJ.log("Added " + n2 + " instances of '" + className2 +"'.");
@@ -1317,6 +1398,7 @@ public class WekaSegmentation {
 				loadedClassNames.add( getClassLabel( i ) );
 			attributes.add( new Attribute( "class", loadedClassNames ) );
 			loadedTrainingData = new Instances( "segment", attributes, 1 );
+			forgetLoadedTrainingDataFile();
 
 			loadedTrainingData.setClassIndex( loadedTrainingData.numAttributes() - 1 );
 		}
@@ -1403,6 +1485,7 @@ public class WekaSegmentation {
 
 			attributes.add(new Attribute("class", loadedClassNames));
 			loadedTrainingData = new Instances("segment", attributes, 1);
+			forgetLoadedTrainingDataFile();
 
 			loadedTrainingData.setClassIndex(loadedTrainingData.numAttributes()-1);
 		}
@@ -1425,6 +1508,7 @@ public class WekaSegmentation {
 			}
 
 		// Select random samples from each class
+		final boolean packed = packForSampling( featureStack, (long) numSamples * numOfClasses );
 		Random rand = new Random();
 		for( int i=0; i<numSamples; i++ )
 		{
@@ -1439,6 +1523,8 @@ public class WekaSegmentation {
 				}
 			}
 		}
+		if( packed )
+			featureStack.unpackFeatures();
 
 		for( int j = 0; j < numOfClasses ; j ++ )
 			IJ.log("Added " + numSamples + " instances of '" + loadedClassNames.get( j ) +"'.");
@@ -1508,6 +1594,7 @@ public class WekaSegmentation {
 
 			attributes.add(new Attribute("class", loadedClassNames));
 			loadedTrainingData = new Instances("segment", attributes, 1);
+			forgetLoadedTrainingDataFile();
 
 			loadedTrainingData.setClassIndex(loadedTrainingData.numAttributes()-1);
 		}
@@ -1536,6 +1623,7 @@ public class WekaSegmentation {
 
 		// Select random samples from each class
 		int[] numClassSamples = new int [ numOfClasses ];
+		final boolean packed = packForSampling( featureStack, (long) numSamples * numOfClasses );
 		Random rand = new Random();
 		for( int i=0; i<numSamples; i++ )
 		{
@@ -1551,6 +1639,8 @@ public class WekaSegmentation {
 				}
 			}
 		}
+		if( packed )
+			featureStack.unpackFeatures();
 
 		for( int j = 0; j < numOfClasses ; j ++ )
 			IJ.log("Added " + numClassSamples[ j ] + " instances of '" + loadedClassNames.get( j ) +"'.");
@@ -1640,6 +1730,7 @@ public class WekaSegmentation {
 
 			attributes.add(new Attribute("class", loadedClassNames));
 			loadedTrainingData = new Instances("segment", attributes, 1);
+			forgetLoadedTrainingDataFile();
 
 			loadedTrainingData.setClassIndex(loadedTrainingData.numAttributes()-1);
 		}
@@ -1767,6 +1858,7 @@ public class WekaSegmentation {
 
 			attributes.add(new Attribute("class", loadedClassNames));
 			loadedTrainingData = new Instances("segment", attributes, 1);
+			forgetLoadedTrainingDataFile();
 
 			loadedTrainingData.setClassIndex(loadedTrainingData.numAttributes()-1);
 		}
@@ -1884,6 +1976,7 @@ public class WekaSegmentation {
 
 			attributes.add(new Attribute("class", loadedClassNames));
 			loadedTrainingData = new Instances("segment", attributes, 1);
+			forgetLoadedTrainingDataFile();
 
 			loadedTrainingData.setClassIndex(loadedTrainingData.numAttributes()-1);
 		}
@@ -1983,6 +2076,7 @@ public class WekaSegmentation {
 
 			attributes.add(new Attribute("class", loadedClassNames));
 			loadedTrainingData = new Instances("segment", attributes, 1);
+			forgetLoadedTrainingDataFile();
 
 			loadedTrainingData.setClassIndex(loadedTrainingData.numAttributes()-1);
 		}
@@ -2095,6 +2189,7 @@ public class WekaSegmentation {
 				loadedClassNames.add(getClassLabel( i ));
 			attributes.add(new Attribute("class", loadedClassNames));
 			loadedTrainingData = new Instances("segment", attributes, 1);
+			forgetLoadedTrainingDataFile();
 
 			loadedTrainingData.setClassIndex(loadedTrainingData.numAttributes()-1);
 		}
@@ -2228,6 +2323,7 @@ public class WekaSegmentation {
 				loadedClassNames.add(getClassLabel( i ));
 			attributes.add(new Attribute("class", loadedClassNames));
 			loadedTrainingData = new Instances("segment", attributes, 1);
+			forgetLoadedTrainingDataFile();
 
 			loadedTrainingData.setClassIndex(loadedTrainingData.numAttributes()-1);
 		}
@@ -2326,6 +2422,7 @@ public class WekaSegmentation {
 				loadedClassNames.add(getClassLabel( i ));
 			attributes.add(new Attribute("class", loadedClassNames));
 			loadedTrainingData = new Instances("segment", attributes, 1);
+			forgetLoadedTrainingDataFile();
 
 			loadedTrainingData.setClassIndex(loadedTrainingData.numAttributes()-1);
 		}
@@ -2424,6 +2521,7 @@ public class WekaSegmentation {
 				loadedClassNames.add(getClassLabel( i ));
 			attributes.add(new Attribute("class", loadedClassNames));
 			loadedTrainingData = new Instances("segment", attributes, 1);
+			forgetLoadedTrainingDataFile();
 
 			loadedTrainingData.setClassIndex(loadedTrainingData.numAttributes()-1);
 		}
@@ -2562,6 +2660,7 @@ public class WekaSegmentation {
 				loadedClassNames.add(getClassLabel( i ));
 			attributes.add(new Attribute("class", loadedClassNames));
 			loadedTrainingData = new Instances("segment", attributes, 1);
+			forgetLoadedTrainingDataFile();
 
 			loadedTrainingData.setClassIndex(loadedTrainingData.numAttributes()-1);
 		}
@@ -2700,6 +2799,7 @@ public class WekaSegmentation {
 				loadedClassNames.add(getClassLabel( i ));
 			attributes.add(new Attribute("class", loadedClassNames));
 			loadedTrainingData = new Instances("segment", attributes, 1);
+			forgetLoadedTrainingDataFile();
 
 			loadedTrainingData.setClassIndex(loadedTrainingData.numAttributes()-1);
 		}
@@ -2757,6 +2857,91 @@ public class WekaSegmentation {
 		return this.featureStackArray;
 	}
 
+	/**
+	 * Set the maximum memory taken by the training feature stacks in memory.
+	 * Beyond it, the least recently used feature stacks are spilled to
+	 * memory-mapped scratch files (see {@link FeatureStackArray#setMemoryBudget(long)}).
+	 *
+	 * @param budget memory budget in bytes (Long.MAX_VALUE to keep all
+	 * feature stacks in memory)
+	 */
+	public void setFeatureMemoryBudget( long budget )
+	{
+		this.featureMemoryBudget = budget;
+		if( null != featureStackArray )
+			featureStackArray.setMemoryBudget( budget );
+	}
+
+	/**
+	 * Get the maximum memory taken by the training feature stacks in memory.
+	 *
+	 * @return memory budget in bytes (Long.MAX_VALUE if there is no limit)
+	 */
+	public long getFeatureMemoryBudget()
+	{
+		return featureMemoryBudget;
+	}
+
+	/**
+	 * Set the on-disk cache of the features, used both to train and to
+	 * apply the classifier: the features of an image are read from the
+	 * cache if they were already computed with the same settings (in this
+	 * or a previous session).
+	 *
+	 * @param cache feature cache (null to always compute the features)
+	 */
+	public void setFeatureCache( FeatureCache cache )
+	{
+		this.featureCache = cache;
+		if( null != featureStackArray )
+			featureStackArray.setFeatureCache( cache );
+	}
+
+	/**
+	 * Get the on-disk cache of the features.
+	 *
+	 * @return feature cache (null if the features are always computed)
+	 */
+	public FeatureCache getFeatureCache()
+	{
+		return featureCache;
+	}
+
+	/**
+	 * Set the fraction of the maximum heap a feature update or a
+	 * classification may take. The memory they need is estimated before
+	 * starting them, and the execution mode is chosen to stay within it
+	 * (see {@link MemoryEstimate}).
+	 *
+	 * @param fraction fraction of the maximum heap (between 0 and 1, 0.9 by default)
+	 */
+	public void setMaxHeapFraction( double fraction )
+	{
+		this.maxHeapFraction = fraction;
+	}
+
+	/**
+	 * Get the fraction of the maximum heap a feature update or a
+	 * classification may take.
+	 *
+	 * @return fraction of the maximum heap
+	 */
+	public double getMaxHeapFraction()
+	{
+		return maxHeapFraction;
+	}
+
+	/**
+	 * Get the memory estimate of the last training feature update or
+	 * classification (the same one written to the log).
+	 *
+	 * @return last memory estimate (null if none was made yet)
+	 */
+	public MemoryEstimate getLastMemoryEstimate()
+	{
+		return lastMemoryEstimate;
+	}
+
 	/**
 	 * Get loaded (or accumulated) training instances
 	 *
@@ -2809,6 +2994,7 @@ public class WekaSegmentation {
 		if(featureStackArray.isEmpty() || updateFeatures)
 		{
 			IJ.log("Creating feature stack...");
+			admitTrainingFeatures();
 			if (!featureStackArray.updateFeaturesMT(featureStackToUpdateTrain))
 				return false;
 			Arrays.fill(featureStackToUpdateTrain, false);
@@ -2836,6 +3022,7 @@ public class WekaSegmentation {
 
 		// Store merged data as loaded data
 		loadedTrainingData = data;
+		forgetLoadedTrainingDataFile();
 
 		if(null != loadedTrainingData)
 		{
@@ -2864,6 +3051,8 @@ public class WekaSegmentation {
 		featureStackArray = new FeatureStackArray(trainingImage.getImageStackSize(),
 				minimumSigma, maximumSigma, useNeighbors, membraneThickness, membranePatchSize,
 				enabledFeatures);
+		featureStackArray.setMemoryBudget( featureMemoryBudget );
+		featureStackArray.setFeatureCache( featureCache );
 
 		// Remove traces from the lists and ROI overlays and initialize each feature stack
 		IJ.log("Removing previous markings...");
@@ -3974,6 +4163,7 @@ public class WekaSegmentation {
 	public void setLoadedTrainingData(Instances data)
 	{
 		this.loadedTrainingData = data;
+		forgetLoadedTrainingDataFile();
 	}
 
 	/**
@@ -4059,6 +4249,7 @@ public class WekaSegmentation {
 			e.printStackTrace();
 		}
 		this.loadedTrainingData = filteredIns;
+		forgetLoadedTrainingDataFile();
 	}
 
 	/**
@@ -4076,6 +4267,7 @@ public class WekaSegmentation {
 		}
 		// Select attributes by BestFirst
 		loadedTrainingData = selectAttributes(loadedTrainingData);
+		forgetLoadedTrainingDataFile();
 		// Update list of features to use
 		this.featureNames = new ArrayList<String>();
 		IJ.log("Selected attributes:");
@@ -4597,6 +4789,8 @@ public class WekaSegmentation {
 		}
 
 		updateDataClassification(this.loadedTrainingData, labels, classIndex1, classIndex2);
+		// the classes do not match the file anymore
+		forgetLoadedTrainingDataFile();
 	}
 
 	/**
@@ -4769,6 +4963,47 @@ public class WekaSegmentation {
 
 	}
 
+	/**
+	 * Read instances from a binary training data file
+	 * @param filename binary training data file name
+	 * @return set of instances read from the file
+	 * @see BinaryTrainingData
+	 */
+	public Instances readDataFromBinary(String filename)
+	{
+		try{
+			return BinaryTrainingData.read( filename );
+		}
+		catch(IOException e){
+			IJ.log("Error: couldn't read instances from " + filename);
+			IJ.showMessage("IOException: wrong file format!");
+			e.printStackTrace();
+		}
+		return null;
+	}
+
+	/**
+	 * Write current instances into a binary training data file
+	 * @param data set of instances
+	 * @param filename binary training data file name
+	 * @return false if error
+	 * @see BinaryTrainingData
+	 */
+	public boolean writeDataToBinary(Instances data, String filename)
+	{
+		try{
+			BinaryTrainingData.write( data, filename );
+		}
+		catch(IOException e)
+		{
+			IJ.log("Error: couldn't write instances into binary training data file.");
+			IJ.showMessage("Exception while saving data as binary training data file");
+			e.printStackTrace();
+			return false;
+		}
+		return true;
+	}
+
 	/**
 	 * Adjust current segmentation state (attributes and classes) to
 	 * loaded data
@@ -5048,12 +5283,23 @@ public class WekaSegmentation {
 
 		IJ.log("Training input:");
 
+		// Multiplicity of each traced pixel of the current slice and class.
+		// Pixel-aligned traces are collected here first so that overlapping
+		// or repeated traces produce a single weighted instance per pixel.
+		final int[] traceCounts = new int[ trainingImage.getWidth()
+		                                   * trainingImage.getHeight() ];
+		// bounding box of the traced pixels: { minX, minY, maxX, maxY }
+		final int[] traceBounds = new int[ 4 ];
+
 		// For all classes
 		for(int classIndex = 0; classIndex < numOfClasses; classIndex++)
 		{
 			int nl = 0;
+			int unique = 0;
 			// Read all lists of examples
 			for(int sliceNum = 1; sliceNum <= trainingImage.getImageStackSize(); sliceNum ++)
+			{
+				resetTraceBounds( traceBounds );
 				for(int j=0; j < examples[sliceNum-1].get( classIndex ).size(); j++)
 				{
 					Roi r = examples[ sliceNum-1 ].get( classIndex ).get(j);
@@ -5062,27 +5308,39 @@ public class WekaSegmentation {
 					if( r instanceof PolygonRoi && r.getType() == Roi.FREELINE )
 					{
 						if(r.getStrokeWidth() == 1)
-							nl += addThinFreeLineSamples(trainingData, classIndex,
-									sliceNum, r);
+							nl += addThinFreeLineSamples( traceCounts,
+									traceBounds, r );
 
 						else // For thicker lines, include also neighbors
-							nl += addThickFreeLineInstances(trainingData,
-									colorFeatures, classIndex, sliceNum, r);
+						{
+							final int n = addThickFreeLineInstances(
+									trainingData, colorFeatures, classIndex,
+									sliceNum, r );
+							nl += n;
+							unique += n;
+						}
 					}
 					else if( r instanceof Line )
 					{
 						// Get all coordinates in the line
-						nl += addLineInstances(trainingData, colorFeatures, classIndex,
-								sliceNum, r);
+						final int n = addLineInstances( trainingData,
+								colorFeatures, classIndex, sliceNum, r );
+						nl += n;
+						unique += n;
 					}
 					// for regular rectangles
 					else if ( r.getType() == Roi.RECTANGLE && r.getCornerDiameter() == 0 )
-						nl += addRectangleRoiInstances( trainingData, classIndex, sliceNum, r );
+						nl += addRectangleRoiInstances( traceCounts, traceBounds, r );
 					else // for the rest of rois we get ALL points inside the roi
-						nl += addShapeRoiInstances( trainingData, classIndex, sliceNum, r );
+						nl += addShapeRoiInstances( traceCounts, traceBounds, r );
 				}
+				// create one (weighted) instance per traced pixel
+				unique += addTraceInstances( trainingData, classIndex, sliceNum,
+						traceCounts, traceBounds );
+			}
 
-			IJ.log("# of pixels selected as " + getClassLabel( classIndex ) + ": " +nl);
+			IJ.log("# of pixels selected as " + getClassLabel( classIndex )
+					+ ": " + nl + " (" + unique + " instances)");
 		}
 
 		if (trainingData.numInstances() == 0)
@@ -5092,53 +5350,157 @@ public class WekaSegmentation {
 	}
 
 	/**
-	 * Add training samples from a FreeRoi with thickness of 1 pixel
+	 * Reset the bounding box of the traced pixels to an empty box.
+	 *
+	 * @param traceBounds bounding box to reset ({ minX, minY, maxX, maxY })
+	 */
+	private static void resetTraceBounds( final int[] traceBounds )
+	{
+		traceBounds[ 0 ] = Integer.MAX_VALUE;
+		traceBounds[ 1 ] = Integer.MAX_VALUE;
+		traceBounds[ 2 ] = -1;
+		traceBounds[ 3 ] = -1;
+	}
+
+	/**
+	 * Mark a pixel as traced, increasing its multiplicity. Pixels out of the
+	 * training image are ignored.
+	 *
+	 * @param traceCounts multiplicity of each pixel of the current slice
+	 * @param traceBounds bounding box of the traced pixels
+	 * @param x x- coordinate of the pixel
+	 * @param y y- coordinate of the pixel
+	 * @return 1 if the pixel was marked, 0 otherwise
+	 */
+	private int markTracePixel(
+			final int[] traceCounts,
+			final int[] traceBounds,
+			final int x,
+			final int y )
+	{
+		final int width = trainingImage.getWidth();
+		if( x < 0 || y < 0 || x >= width || y >= trainingImage.getHeight() )
+			return 0;
+		traceCounts[ x + y * width ] ++;
+		if( x < traceBounds[ 0 ] )
+			traceBounds[ 0 ] = x;
+		if( y < traceBounds[ 1 ] )
+			traceBounds[ 1 ] = y;
+		if( x > traceBounds[ 2 ] )
+			traceBounds[ 2 ] = x;
+		if( y > traceBounds[ 3 ] )
+			traceBounds[ 3 ] = y;
+		return 1;
+	}
+
+	/**
+	 * Add one instance per traced pixel of a slice, using the number of times
+	 * the pixel was traced as the instance weight. The pixel multiplicities
+	 * are reset to zero afterwards.
 	 *
 	 * @param trainingData set of instances to add to
 	 * @param classIndex class index value
 	 * @param sliceNum number of 2d slice being processed
-	 * @param r thin free line roi
+	 * @param traceCounts multiplicity of each pixel of the slice
+	 * @param traceBounds bounding box of the traced pixels
 	 * @return number of instances added
 	 */
-	private int addThinFreeLineSamples(final Instances trainingData, int classIndex,
-			int sliceNum, Roi r)
+	private int addTraceInstances(
+			final Instances trainingData,
+			int classIndex,
+			int sliceNum,
+			final int[] traceCounts,
+			final int[] traceBounds )
 	{
 		int numInstances = 0;
+		final int width = trainingImage.getWidth();
+		final FeatureStack fs = featureStackArray.get( sliceNum - 1 );
+
+		int numTraced = 0;
+		for( int y = traceBounds[ 1 ]; y <= traceBounds[ 3 ]; y++ )
+			for( int x = traceBounds[ 0 ], i = x + y * width;
+					x <= traceBounds[ 2 ]; x++, i++ )
+				if( traceCounts[ i ] > 0 )
+					numTraced ++;
+		final boolean packed = packForSampling( fs, numTraced );
+
+		for( int y = traceBounds[ 1 ]; y <= traceBounds[ 3 ]; y++ )
+			for( int x = traceBounds[ 0 ], i = x + y * width;
+					x <= traceBounds[ 2 ]; x++, i++ )
+				if( traceCounts[ i ] > 0 )
+				{
+					final DenseInstance ins =
+							fs.createInstance( x, y, classIndex );
+					ins.setWeight( traceCounts[ i ] );
+					trainingData.add( ins );
+					traceCounts[ i ] = 0;
+					// increase number of instances for this class
+					numInstances ++;
+				}
+		if( packed )
+			fs.unpackFeatures();
+		resetTraceBounds( traceBounds );
+		return numInstances;
+	}
+
+	/**
+	 * Pack the features of a slice (see {@link FeatureStack#packFeatures(long)})
+	 * before sampling its pixels, if enough of them are sampled for the
+	 * packing (a single pass over the features) to pay off and the packed
+	 * features fit in the available memory.
+	 *
+	 * @param fs features of the slice
+	 * @param numSamples number of pixels to sample
+	 * @return true if the features were packed here (and must be unpacked
+	 * after sampling)
+	 */
+	private boolean packForSampling(
+			final FeatureStack fs,
+			final long numSamples )
+	{
+		if( fs.isPacked() || numSamples
+				< MIN_PACKED_SAMPLES_FRACTION * fs.getWidth() * fs.getHeight() )
+			return false;
+		return fs.packFeatures( MemoryEstimate.getAvailableMemory( maxHeapFraction ) );
+	}
+
+	/**
+	 * Collect training samples from a FreeRoi with thickness of 1 pixel
+	 *
+	 * @param traceCounts multiplicity of each pixel of the current slice
+	 * @param traceBounds bounding box of the traced pixels
+	 * @param r thin free line roi
+	 * @return number of traced pixels
+	 */
+	private int addThinFreeLineSamples(
+			final int[] traceCounts,
+			final int[] traceBounds,
+			Roi r)
+	{
+		int numPixels = 0;
 		int[] x = r.getPolygon().xpoints;
 		int[] y = r.getPolygon().ypoints;
 		final int n = r.getPolygon().npoints;
 
 		for (int i=0; i<n; i++)
-		{
-			double[] values = new double[featureStackArray.getNumOfFeatures()+1];
-
-			for (int z=1; z<=featureStackArray.getNumOfFeatures(); z++)
-				values[z-1] = featureStackArray.get(sliceNum-1).getProcessor(z).getPixelValue(x[i], y[i]);
-
-			values[featureStackArray.getNumOfFeatures()] = classIndex;
-			trainingData.add(new DenseInstance(1.0, values));
-			// increase number of instances for this class
-			numInstances ++;
-		}
-		return numInstances;
+			numPixels += markTracePixel( traceCounts, traceBounds, x[i], y[i] );
+		return numPixels;
 	}
 
 	/**
-	 * Add training samples from a ShapeRoi
+	 * Collect training samples from a ShapeRoi
 	 *
-	 * @param trainingData set of instances to add to
-	 * @param classIndex class index value
-	 * @param sliceNum number of 2d slice being processed
+	 * @param traceCounts multiplicity of each pixel of the current slice
+	 * @param traceBounds bounding box of the traced pixels
 	 * @param r shape roi
-	 * @return number of instances added
+	 * @return number of traced pixels
 	 */
 	private int addShapeRoiInstances(
-			final Instances trainingData,
-			int classIndex,
-			int sliceNum,
+			final int[] traceCounts,
+			final int[] traceBounds,
 			Roi r)
 	{
-		int numInstances = 0;
+		int numPixels = 0;
 		final ShapeRoi shapeRoi = new ShapeRoi(r);
 		final Rectangle rect = shapeRoi.getBounds();
 
@@ -5151,8 +5513,6 @@ public class WekaSegmentation {
 		int firstX = Math.max( rect.x, 0 );
 		int firstY = Math.max( rect.y, 0 );
 
-		final FeatureStack fs = featureStackArray.get( sliceNum - 1 );
-
 		// create equivalent binary image to speed up the checking
 		// of each pixel belonging to the shape
 		final ByteProcessor bp = new ByteProcessor( rect.width, rect.height );
@@ -5160,34 +5520,27 @@ public class WekaSegmentation {
 		shapeRoi.setLocation( 0 , 0 );
 		bp.fill( shapeRoi );
 
-		for( int x = firstX, rectX = 0; x < lastX; x++, rectX++ )
-			for( int y = firstY, rectY = 0; y < lastY; y++, rectY++ )
+		for( int y = firstY, rectY = firstY - rect.y; y < lastY; y++, rectY++ )
+			for( int x = firstX, rectX = firstX - rect.x; x < lastX; x++, rectX++ )
 				if( bp.getf(rectX, rectY) > 0 )
-				{
-					trainingData.add( fs.createInstance( x, y, classIndex ) );
-
-					// increase number of instances for this class
-					numInstances ++;
-				}
-		return numInstances;
+					numPixels += markTracePixel( traceCounts, traceBounds, x, y );
+		return numPixels;
 	}
 
 	/**
-	 * Add training samples from a rectangular roi
+	 * Collect training samples from a rectangular roi
 	 *
-	 * @param trainingData set of instances to add to
-	 * @param classIndex class index value
-	 * @param sliceNum number of 2d slice being processed
+	 * @param traceCounts multiplicity of each pixel of the current slice
+	 * @param traceBounds bounding box of the traced pixels
 	 * @param r shape roi
-	 * @return number of instances added
+	 * @return number of traced pixels
 	 */
 	private int addRectangleRoiInstances(
-			final Instances trainingData,
-			int classIndex,
-			int sliceNum,
+			final int[] traceCounts,
+			final int[] traceBounds,
 			Roi r)
 	{
-		int numInstances = 0;
+		int numPixels = 0;
 
 		final Rectangle rect = r.getBounds();
 
@@ -5197,17 +5550,10 @@ public class WekaSegmentation {
 		final int lastX = x0 + rect.width;
 		final int lastY = y0 + rect.height;
 
-		final FeatureStack fs = featureStackArray.get( sliceNum - 1 );
-
-		for( int x = x0; x < lastX; x++ )
-			for( int y = y0; y < lastY; y++ )
-			{
-				trainingData.add( fs.createInstance(x, y, classIndex) );
-
-				// increase number of instances for this class
-				numInstances ++;
-			}
-		return numInstances;
+		for( int y = y0; y < lastY; y++ )
+			for( int x = x0; x < lastX; x++ )
+				numPixels += markTracePixel( traceCounts, traceBounds, x, y );
+		return numPixels;
 	}
 
 	/**
@@ -5388,6 +5734,8 @@ public class WekaSegmentation {
 			// set the reference slice to one with traces
 			featureStackArray.setReference( sliceWithTraces );
 
+			if ( !isProcessing3D )
+				admitTrainingFeatures();
 			if ( !isProcessing3D &&
 				 !featureStackArray.updateFeaturesMT(featureStackToUpdateTrain))
 			{
@@ -5417,18 +5765,8 @@ public class WekaSegmentation {
 					+ " slice(s) with " + featureStackArray.getNumOfFeatures()
 					+ " feature(s), took " + (end-start) + "ms).");
 
-			double memory = 0;
-			for (int i = 0; i < featureStackArray.getSize(); i++)
-			{
-				FeatureStack featureStack = featureStackArray.get( i );
-				ImageStack imageStack = featureStack.getStack();
-				int bitDepth = imageStack.getBitDepth();
-				int size = imageStack.getSize();
-				int height = imageStack.getHeight();
-				int width = imageStack.getWidth();
-				memory += size * height * width * bitDepth;
-			}
-			memory /= 8000000000L; // convert from bit to gigabyte
+			double memory = featureStackArray.getMemorySize();
+			memory /= 1000000000L; // convert from byte to gigabyte
 			IJ.log("Feature stack array size is " + memory + " giga-byte");
 
 		}
@@ -5467,8 +5805,37 @@ public class WekaSegmentation {
 		// Update train header
 		this.trainHeader = new Instances(data, 0);
 
-		// Resample data if necessary
-		if(balanceClasses)
+		// Models loaded from binary files cannot be trained again, so a new
+		// forest with the same options is trained instead
+		if( classifier instanceof PackedForest )
+		{
+			try{
+				classifier = ( (PackedForest) classifier ).createForest();
+			}
+			catch( Exception e )
+			{
+				IJ.log( "Error: the options of the loaded model are not valid." );
+				e.printStackTrace();
+				return false;
+			}
+			IJ.log( "Training a new FastRandomForest with the options of the "
+					+ "loaded binary model..." );
+		}
+
+		// Balance classes if necessary. The random forests in this library
+		// balance the classes internally (without copying the data), the
+		// rest of classifiers are trained on a resampled copy of the data
+		boolean weightBalanced = false;
+		if( balanceClasses && classifier instanceof FastRandomForest
+				&& !( (FastRandomForest) classifier ).getBalanceClasses() )
+		{
+			IJ.log("Balancing classes distribution by instance weights...");
+			( (FastRandomForest) classifier ).setBalanceClasses( true );
+			weightBalanced = true;
+		}
+		else if( balanceClasses && classifier instanceof BalancedRandomForest )
+			IJ.log("Classes distribution is balanced by the classifier.");
+		else if( balanceClasses && !( classifier instanceof FastRandomForest ) )
 		{
 			final long start = System.currentTimeMillis();
 			IJ.showStatus("Balancing classes distribution...");
@@ -5490,7 +5857,11 @@ public class WekaSegmentation {
 		// Train the classifier on the current data
 		final long start = System.currentTimeMillis();
 		try{
-			classifier.buildClassifier(data);
+			final DataCache cache = nonEmpty < 1 ? readLoadedDataCache() : null;
+			if( null != cache )
+				( (FastRandomForest) classifier ).buildClassifier( cache, trainHeader );
+			else
+				classifier.buildClassifier(data);
 		}
 		catch (InterruptedException ie)
 		{
@@ -5502,6 +5873,11 @@ public class WekaSegmentation {
 			e.printStackTrace();
 			return false;
 		}
+		finally{
+			// restore the user's classifier options
+			if( weightBalanced )
+				( (FastRandomForest) classifier ).setBalanceClasses( false );
+		}
 
 		// Print classifier information
 		IJ.log( this.classifier.toString() );
@@ -5512,6 +5888,46 @@ public class WekaSegmentation {
 		return true;
 	}
 
+	/**
+	 * Forget the binary training data file the loaded training data was
+	 * read from, once the loaded data is replaced or relabeled, so it is
+	 * not read again in its place (see {@link #readLoadedDataCache()}).
+	 */
+	private void forgetLoadedTrainingDataFile()
+	{
+		loadedTrainingDataFile = null;
+		loadedTrainingDataSize = 0;
+	}
+
+	/**
+	 * Read the loaded training data straight into a {@link DataCache} to
+	 * train a FastRandomForest, when it was loaded from a binary training
+	 * data file and no instances were added to it since. The columns are
+	 * read from the memory-mapped file (and kept in the scratch directory
+	 * of the forest, if any) instead of being copied out of the instances.
+	 *
+	 * @return data cache of the loaded training data, or null if it cannot be used
+	 */
+	private DataCache readLoadedDataCache()
+	{
+		if( null == loadedTrainingDataFile || null == loadedTrainingData
+				|| loadedTrainingData.numInstances() != loadedTrainingDataSize
+				|| !( classifier instanceof FastRandomForest ) )
+			return null;
+		final String scratch = ( (FastRandomForest) classifier ).getScratchDirectory();
+		try{
+			IJ.log( "Reading training data from " + loadedTrainingDataFile + "..." );
+			return BinaryTrainingData.readDataCache( loadedTrainingDataFile,
+					scratch.isEmpty() ? null : new File( scratch ) );
+		}
+		catch( Exception e )
+		{
+			IJ.log( "Unable to read " + loadedTrainingDataFile
+					+ " as a data cache, using the loaded instances instead." );
+			return null;
+		}
+	}
+
 	/**
 	 * Apply current classifier to a given image. If the input image is a
 	 * stack, the classification task will be carried out by slice in
@@ -5549,13 +5965,136 @@ public class WekaSegmentation {
 		if (numThreads == 0)
 			numThreads = Prefs.getThreads();
 
+		final MemoryEstimate estimate = estimateMemory( imp, numThreads, probabilityMaps );
+		lastMemoryEstimate = estimate;
+		IJ.log( estimate.toString() );
+		if( estimate.getMode() == MemoryEstimate.Mode.TILED )
+			return applyClassifier( imp,
+					new int[]{ estimate.getTilesPerDim(), estimate.getTilesPerDim() },
+					estimate.getNumThreads(), probabilityMaps );
+		if( estimate.getMode() == MemoryEstimate.Mode.BLOCKS )
+		{
+			final int blocks = estimate.getTilesPerDim();
+			return applyClassifierInBlocks( imp,
+					new int[]{ MemoryEstimate.getBlockSize( imp.getWidth(), blocks ),
+							MemoryEstimate.getBlockSize( imp.getHeight(), blocks ),
+							MemoryEstimate.getBlockSize( imp.getImageStackSize(), blocks ) },
+					estimate.getNumThreads(), probabilityMaps );
+		}
+		return applyClassifierBySlices( imp, estimate.getNumThreads(), probabilityMaps );
+	}
+
+	/**
+	 * Estimate the memory {@link #applyClassifier(ImagePlus, int, boolean)}
+	 * takes to classify an image, and the execution mode it will choose to
+	 * stay within the maximum heap fraction (see
+	 * {@link #setMaxHeapFraction(double)}): the whole image, fewer threads
+	 * (fewer slices at once) or tiles (single images only) in 2D, and the
+	 * whole volume or blocks of it in 3D.
+	 *
+	 * @param imp image (2D single image or stack)
+	 * @param numThreads The number of threads to use. Set to zero for
+	 * auto-detection (set by the user on the ImageJ preferences)
+	 * @param probabilityMaps create probability maps for each class instead of
+	 * a classification
+	 * @return memory estimate
+	 */
+	public MemoryEstimate estimateMemory(
+			final ImagePlus imp,
+			int numThreads,
+			final boolean probabilityMaps)
+	{
+		if (numThreads == 0)
+			numThreads = Prefs.getThreads();
+		if( isProcessing3D )
+		{
+			final FeatureStack3D features = create3DFeatures( imp );
+			return MemoryEstimate.forVolume( imp.getWidth(), imp.getHeight(),
+					imp.getImageStackSize(), features.estimateNumOfFeatures(),
+					numOfClasses, numThreads, probabilityMaps, features.getHalo(),
+					MemoryEstimate.getAvailableMemoryAfterGC( maxHeapFraction ) );
+		}
+		return MemoryEstimate.forClassification( imp.getWidth(), imp.getHeight(),
+				imp.getStackSize(), estimateNumOfFeatures( imp.getType() == ImagePlus.COLOR_RGB ),
+				numOfClasses, numThreads, probabilityMaps, (int) maximumSigma,
+				MemoryEstimate.getAvailableMemoryAfterGC( maxHeapFraction ) );
+	}
+
+	/**
+	 * Count the features of a 2D slice with the current settings.
+	 *
+	 * @param color color image flag
+	 * @return number of features (original image included)
+	 */
+	private int estimateNumOfFeatures( boolean color )
+	{
+		final FeatureStack features = new FeatureStack( 1, 1, color );
+		features.setEnabledFeatures( enabledFeatures );
+		features.setMaximumSigma( maximumSigma );
+		features.setMinimumSigma( minimumSigma );
+		features.setMembranePatchSize( membranePatchSize );
+		features.setMembraneSize( membraneThickness );
+		return features.estimateNumOfFeatures();
+	}
+
+	/**
+	 * Create the 3D features of an image with the current settings (the
+	 * features are not computed).
+	 *
+	 * @param imp image (3D stack)
+	 * @return 3D features of the image
+	 */
+	private FeatureStack3D create3DFeatures( ImagePlus imp )
+	{
+		final FeatureStack3D features = new FeatureStack3D( imp );
+		features.setMaximumSigma( maximumSigma );
+		features.setMinimumSigma( minimumSigma );
+		features.setEnableFeatures( enabled3Dfeatures );
+		return features;
+	}
+
+	/**
+	 * Estimate the memory taken by the training features and, if they do
+	 * not fit within the maximum heap fraction, spill the training feature
+	 * stacks beyond the available memory to disk. The estimate is logged
+	 * before the update starts. The memory of the current training feature
+	 * stacks counts as available, since the estimate includes the stacks
+	 * they become.
+	 */
+	private void admitTrainingFeatures()
+	{
+		final long available = MemoryEstimate.getAvailableMemoryAfterGC( maxHeapFraction )
+				+ featureStackArray.getMemorySize();
+		final MemoryEstimate estimate = MemoryEstimate.forTraining(
+				trainingImage.getWidth(), trainingImage.getHeight(),
+				trainingImage.getImageStackSize(),
+				estimateNumOfFeatures( trainingImage.getType() == ImagePlus.COLOR_RGB ),
+				Prefs.getThreads(), available );
+		lastMemoryEstimate = estimate;
+		IJ.log( estimate.toString() );
+		featureStackArray.setMemoryBudget(
+				Math.min( featureMemoryBudget, estimate.getMemoryBudget() ) );
+	}
+
+	/**
+	 * Apply current classifier to a given image, slice by slice (the number
+	 * of threads is not adjusted to the available memory).
+	 *
+	 * @param imp image (2D single image or stack)
+	 * @param numThreads The number of threads to use
+	 * @param probabilityMaps create probability maps for each class instead of
+	 * a classification
+	 * @return result image
+	 */
+	private ImagePlus applyClassifierBySlices(
+			final ImagePlus imp,
+			int numThreads,
+			final boolean probabilityMaps)
+	{
 		if( isProcessing3D )
 		{
 			long start = System.currentTimeMillis();
-			FeatureStack3D fs3d = new FeatureStack3D( imp );
-			fs3d.setMaximumSigma( maximumSigma );
-			fs3d.setMinimumSigma( minimumSigma );
-			fs3d.setEnableFeatures( enabled3Dfeatures );
+			FeatureStack3D fs3d = create3DFeatures( imp );
 			fs3d.updateFeaturesMT();
 			FeatureStackArray fsa = fs3d.getFeatureStackArray();
 			if( null != trainHeader)
@@ -5575,10 +6114,6 @@ public class WekaSegmentation {
 					result.setOpenAsHyperStack( true );
 			}
 			result.setCalibration( imp.getCalibration() );
-			// force garbage collection
-			fs3d = null;
-			fsa = null;
-			System.gc();
 			return result;
 		}
 
@@ -5639,6 +6174,7 @@ public class WekaSegmentation {
                     sliceFeatures.setMinimumSigma(minimumSigma);
                     sliceFeatures.setMembranePatchSize(membranePatchSize);
                     sliceFeatures.setMembraneSize(membraneThickness);
+                    sliceFeatures.setFeatureCache(featureCache);
                     sliceFeatures.updateFeaturesMT( numFurtherThreads );
                     if( null != trainHeader)
                     	sliceFeatures.reorderFeatures(trainHeader);
@@ -5658,10 +6194,6 @@ public class WekaSegmentation {
 					classImage.setTitle("classified_" + slice.getTitle());
 
 					classifiedSlices[i-1] = classImage;
-					// force garbage collection
-					sliceFeatures = null;
-					sliceData = null;
-					System.gc();
 				}
 			}
 		}
@@ -5881,7 +6413,8 @@ public class WekaSegmentation {
 			try {
 				// The Weka random forest classifiers do not need to be duplicated on each thread
 				// (that saves much memory)
-				if( classifier instanceof FastRandomForest || classifier instanceof RandomForest )
+				if( classifier instanceof FastRandomForest || classifier instanceof RandomForest
+						|| classifier instanceof PackedForest )
 					classifierCopy[ i ] = classifier;
 				else
 					classifierCopy[ i ] = (AbstractClassifier) (AbstractClassifier.makeCopy( classifier ));
@@ -6039,6 +6572,7 @@ public class WekaSegmentation {
 				sliceFeatures.setMinimumSigma(minimumSigma);
 				sliceFeatures.setMembranePatchSize(membranePatchSize);
 				sliceFeatures.setMembraneSize(membraneThickness);
+				sliceFeatures.setFeatureCache(featureCache);
 				if(!sliceFeatures.updateFeaturesST())
 				{
 					IJ.log("Classifier execution was interrupted.");
@@ -6047,7 +6581,6 @@ public class WekaSegmentation {
 				if( null != trainHeader)
 					sliceFeatures.reorderFeatures(trainHeader);
 				filterFeatureStackByList(featureNames, sliceFeatures);
-
 				final int width = slice.getWidth();
 				final int height = slice.getHeight();
 				final int numClasses = dataInfo.numClasses();
@@ -6056,6 +6589,11 @@ public class WekaSegmentation {
 
 				final int numInstances = width * height;
 
+				// read the feature vector of each pixel at once, keeping
+				// room for the results of the slice
+				sliceFeatures.packFeatures( MemoryEstimate.getAvailableMemory( maxHeapFraction )
+						- 12L * numClasses * numInstances );
+
 				final double[][] probArray;
 
 				if (probabilityMaps)
@@ -6167,7 +6705,6 @@ public class WekaSegmentation {
 					if( null != trainHeader)
 						sliceFeatures.reorderFeatures(trainHeader);
 					filterFeatureStackByList(featureNames, sliceFeatures);
-
 					final int width = image.getWidth();
 					final int height = image.getHeight();
 					final int numClasses = dataInfo.numClasses();
@@ -6176,6 +6713,11 @@ public class WekaSegmentation {
 
 					final int numInstances = width * height;
 
+					// read the feature vector of each pixel at once, keeping
+					// room for the results of the slice
+					sliceFeatures.packFeatures( MemoryEstimate.getAvailableMemory( maxHeapFraction )
+							- 12L * numClasses * numInstances );
+
 					final double[][] probArray;
 
 					if (probabilityMaps)
@@ -6622,6 +7164,230 @@ public class WekaSegmentation {
 				(end-start) + "ms." );
 		return result;
 	}
+	/**
+	 * Apply the current classifier to a volume (TWS 3D) block by block. The
+	 * 3D features of each block are computed with a halo based on the
+	 * maximum sigma (see {@link FeatureStack3D#getBlockFeatures(int[], int[])})
+	 * and classified right away, and only the classification of the block
+	 * is written to the result, so the memory taken by the features is
+	 * proportional to the block size.
+	 *
+	 * @param imp volume to classify
+	 * @param blockSize block dimensions (x, y, z), the last blocks along each
+	 * dimension may be smaller
+	 * @param numThreads number of threads to classify each block (0 for autodetection)
+	 * @param probabilityMaps flag to get labels or probability maps (false = labels)
+	 * @return classified image with probability maps or labels (null if an error occurs)
+	 */
+	public ImagePlus applyClassifierInBlocks(
+			final ImagePlus imp,
+			final int[] blockSize,
+			int numThreads,
+			final boolean probabilityMaps )
+	{
+		if( !isProcessing3D || blockSize.length != 3 )
+		{
+			IJ.log( "Error in applyClassifierInBlocks: blocks of 3 dimensions are only used in 3D." );
+			return null;
+		}
+		if (numThreads == 0)
+			numThreads = Prefs.getThreads();
+
+		final long start = System.currentTimeMillis();
+		final int[] dims = new int[]{ imp.getWidth(), imp.getHeight(), imp.getImageStackSize() };
+		final int[] step = new int[ 3 ];
+		for( int d = 0; d < 3; d++ )
+			step[ d ] = Math.max( 1, blockSize[ d ] );
+		final int numChannels = probabilityMaps ? numOfClasses : 1;
+
+		// create empty output image
+		final ImageStack classified = new ImageStack( dims[ 0 ], dims[ 1 ] );
+		for( int z = 0; z < dims[ 2 ]; z++ )
+			for( int c = 0; c < numChannels; c++ )
+				classified.addSlice( probabilityMaps ? getClassLabel( c ) : "",
+						probabilityMaps ? new FloatProcessor( dims[ 0 ], dims[ 1 ] ) :
+							new ByteProcessor( dims[ 0 ], dims[ 1 ] ) );
+
+		final FeatureStack3D features = create3DFeatures( imp );
+		final int[] halo = features.getHalo();
+		IJ.log( "Classifying " + imp.getTitle() + " in blocks of " + step[ 0 ] + "x"
+				+ step[ 1 ] + "x" + step[ 2 ] + " voxels (halo of " + halo[ 0 ] + "x"
+				+ halo[ 1 ] + "x" + halo[ 2 ] + ")..." );
+
+		final int[] origin = new int[ 3 ];
+		final int[] size = new int[ 3 ];
+		for( origin[ 2 ] = 0; origin[ 2 ] < dims[ 2 ]; origin[ 2 ] += step[ 2 ] )
+			for( origin[ 1 ] = 0; origin[ 1 ] < dims[ 1 ]; origin[ 1 ] += step[ 1 ] )
+				for( origin[ 0 ] = 0; origin[ 0 ] < dims[ 0 ]; origin[ 0 ] += step[ 0 ] )
+				{
+					if( Thread.currentThread().isInterrupted() )
+						return null;
+					for( int d = 0; d < 3; d++ )
+						size[ d ] = Math.min( step[ d ], dims[ d ] - origin[ d ] );
+
+					final FeatureStackArray fsa = features.getBlockFeatures( origin, size );
+					if( null == fsa )
+					{
+						IJ.log( "Error when computing the features of the block at ("
+								+ origin[ 0 ] + ", " + origin[ 1 ] + ", " + origin[ 2 ] + ")." );
+						return null;
+					}
+					if( null != trainHeader )
+						fsa.reorderFeatures( trainHeader );
+					final ImagePlus blockResult = applyClassifier( fsa, numThreads, probabilityMaps );
+					if( null == blockResult )
+						return null;
+
+					// write the classification of the block into the result
+					final ImageStack blockStack = blockResult.getImageStack();
+					for( int z = 0; z < size[ 2 ]; z++ )
+						for( int c = 0; c < numChannels; c++ )
+							classified.getProcessor( ( origin[ 2 ] + z ) * numChannels + c + 1 ).insert(
+									blockStack.getProcessor( z * numChannels + c + 1 ),
+									origin[ 0 ], origin[ 1 ] );
+				}
+
+		final ImagePlus result = new ImagePlus( probabilityMaps ?
+				"Probability maps" : "Classification result", classified );
+		if( probabilityMaps )
+		{
+			result.setDimensions( numOfClasses, imp.getNSlices(), imp.getNFrames() );
+			if (imp.getNSlices()*imp.getNFrames() > 1)
+				result.setOpenAsHyperStack(true);
+			result.resetDisplayRange();
+		}
+		result.setCalibration( imp.getCalibration() );
+		final long end = System.currentTimeMillis();
+		IJ.log( "Finished classification of " + imp.getTitle() + " in blocks in " +
+				(end-start) + "ms." );
+		return result;
+	}
+
+	/**
+	 * Apply the current classifier to a volume (TWS 3D) in slabs of slices
+	 * streamed to a sink, so the first slices are available early and only
+	 * the features of a slab are in memory. The slab depth is chosen to
+	 * stay within the maximum heap fraction (see
+	 * {@link MemoryEstimate#forSlabs}).
+	 *
+	 * @param imp volume to classify
+	 * @param numThreads number of threads to classify each slab (0 for autodetection)
+	 * @param probabilityMaps flag to get labels or probability maps (false = labels)
+	 * @param sink destination of the classified slices (it is not closed)
+	 * @return false if an error occurs, true otherwise
+	 */
+	public boolean applyClassifierInSlabs(
+			final ImagePlus imp,
+			int numThreads,
+			final boolean probabilityMaps,
+			final SliceSink sink )
+	{
+		if( !isProcessing3D )
+		{
+			IJ.log( "Error in applyClassifierInSlabs: slabs are only used in 3D." );
+			return false;
+		}
+		if (numThreads == 0)
+			numThreads = Prefs.getThreads();
+		final FeatureStack3D features = create3DFeatures( imp );
+		final MemoryEstimate estimate = MemoryEstimate.forSlabs( imp.getWidth(),
+				imp.getHeight(), imp.getImageStackSize(), features.estimateNumOfFeatures(),
+				numOfClasses, numThreads, probabilityMaps, features.getHalo()[ 2 ],
+				MemoryEstimate.getAvailableMemoryAfterGC( maxHeapFraction ) );
+		lastMemoryEstimate = estimate;
+		IJ.log( estimate.toString() );
+		return applyClassifierInSlabs( imp,
+				MemoryEstimate.getBlockSize( imp.getImageStackSize(), estimate.getTilesPerDim() ),
+				numThreads, probabilityMaps, sink );
+	}
+
+	/**
+	 * Apply the current classifier to a volume (TWS 3D) in slabs of slices
+	 * streamed to a sink. A window of slices slides through the volume: the
+	 * 3D features of each slab are computed with a halo of slices above and
+	 * below it (see {@link FeatureStack3D#getBlockFeatures(int[], int[])}),
+	 * the slices of the slab are classified and written to the sink in
+	 * order, and the window moves on to the next slab. Only the features of
+	 * a slab are in memory, and so is the result if the sink does not keep it
+	 * (see {@link trainableSegmentation.utils.TiffSliceWriter}).
+	 *
+	 * @param imp volume to classify
+	 * @param slabDepth number of slices classified at once (the last slab may be thinner)
+	 * @param numThreads number of threads to classify each slab (0 for autodetection)
+	 * @param probabilityMaps flag to get labels or probability maps (false = labels)
+	 * @param sink destination of the classified slices (it is not closed)
+	 * @return false if an error occurs, true otherwise
+	 */
+	public boolean applyClassifierInSlabs(
+			final ImagePlus imp,
+			final int slabDepth,
+			int numThreads,
+			final boolean probabilityMaps,
+			final SliceSink sink )
+	{
+		if( !isProcessing3D )
+		{
+			IJ.log( "Error in applyClassifierInSlabs: slabs are only used in 3D." );
+			return false;
+		}
+		if (numThreads == 0)
+			numThreads = Prefs.getThreads();
+
+		final long start = System.currentTimeMillis();
+		final int depth = imp.getImageStackSize();
+		final int step = Math.max( 1, slabDepth );
+		final int numChannels = probabilityMaps ? numOfClasses : 1;
+		final FeatureStack3D features = create3DFeatures( imp );
+		IJ.log( "Classifying " + imp.getTitle() + " in slabs of " + step
+				+ " slice(s) (halo of " + features.getHalo()[ 2 ] + " slice(s))..." );
+
+		final int[] origin = new int[ 3 ];
+		final int[] size = new int[]{ imp.getWidth(), imp.getHeight(), 0 };
+		try{
+			for( origin[ 2 ] = 0; origin[ 2 ] < depth; origin[ 2 ] += step )
+			{
+				if( Thread.currentThread().isInterrupted() )
+					return false;
+				size[ 2 ] = Math.min( step, depth - origin[ 2 ] );
+
+				final FeatureStackArray fsa = features.getBlockFeatures( origin, size );
+				if( null == fsa )
+				{
+					IJ.log( "Error when computing the features of slices " + ( origin[ 2 ] + 1 )
+							+ " to " + ( origin[ 2 ] + size[ 2 ] ) + "." );
+					return false;
+				}
+				if( null != trainHeader )
+					fsa.reorderFeatures( trainHeader );
+				final ImagePlus slabResult = applyClassifier( fsa, numThreads, probabilityMaps );
+				if( null == slabResult )
+					return false;
+
+				// emit the classified slices in order
+				final ImageStack slabStack = slabResult.getImageStack();
+				for( int z = 0; z < size[ 2 ]; z++ )
+				{
+					final ImageStack slice = new ImageStack( imp.getWidth(), imp.getHeight() );
+					for( int c = 0; c < numChannels; c++ )
+						slice.addSlice( slabStack.getSliceLabel( z * numChannels + c + 1 ),
+								slabStack.getProcessor( z * numChannels + c + 1 ) );
+					sink.write( slice );
+				}
+				IJ.log( "Classified slices " + ( origin[ 2 ] + 1 ) + " to "
+						+ ( origin[ 2 ] + size[ 2 ] ) + " of " + depth + "." );
+			}
+		}
+		catch( IOException e )
+		{
+			IJ.log( "Error when writing the classified slices: " + e.getMessage() );
+			return false;
+		}
+		final long end = System.currentTimeMillis();
+		IJ.log( "Finished classification of " + imp.getTitle() + " in slabs in " +
+				(end-start) + "ms." );
+		return true;
+	}
+
 	/**
 	 * Apply current classifier to a user-defined ROI of a given image.
 	 * Use a 2D ROI for single images and a 3D ROI for TWS 3D. Notice a
@@ -6708,7 +7474,9 @@ public class WekaSegmentation {
 		final Duplicator dup = new Duplicator();
 		final ImagePlus cropImage = dup.run( imp, initSlice, endSlice );
 		cropImage.setTitle( imp.getShortTitle() + "-crop-" + origin[ 0 ] + "-" + origin[ 1 ] );
-		ImagePlus result = applyClassifier( cropImage, numThreads, probabilityMaps );
+		if (numThreads == 0)
+			numThreads = Prefs.getThreads();
+		ImagePlus result = applyClassifierBySlices( cropImage, numThreads, probabilityMaps );
 		// Remove padding
 		result.setRoi(pad[ 0 ][ 0 ],
 					pad[ 1 ][ 0 ],
@@ -6863,7 +7631,8 @@ public class WekaSegmentation {
 			try {
 				// The Weka random forest classifiers do not need to be duplicated on each thread
 				// (that saves much memory)
-				if( classifier instanceof FastRandomForest || classifier instanceof RandomForest )
+				if( classifier instanceof FastRandomForest || classifier instanceof RandomForest
+						|| classifier instanceof PackedForest )
 					classifierCopy = classifier;
 				else
 					classifierCopy = (AbstractClassifier) (AbstractClassifier.makeCopy( classifier ));
@@ -7004,6 +7773,15 @@ public class WekaSegmentation {
 
 		final long start = System.currentTimeMillis();
 
+		// read the feature vector of each pixel at once (while classifying),
+		// keeping room for the partial and final results
+		final long resultBytes = 2L * 8 * numChannels * numInstances
+				+ 4L * numChannels * numInstances;
+		for(int i = 0; i < fsa.getSize(); i++)
+			if( null != fsa.get( i ) )
+				fsa.get( i ).packFeatures(
+						MemoryEstimate.getAvailableMemory( maxHeapFraction ) - resultBytes );
+
 		exe = Executors.newFixedThreadPool(numThreads);
 		final double[][][] results = new double[numThreads][][];
 		final int partialSize = numInstances / numThreads;
@@ -7014,7 +7792,12 @@ public class WekaSegmentation {
 		for(int i = 0; i < numThreads; i++)
 		{
 			if (Thread.currentThread().isInterrupted())
+			{
+				for(int j = 0; j < fsa.getSize(); j++)
+					if( null != fsa.get( j ) )
+						fsa.get( j ).unpackFeatures();
 				return null;
+			}
 
 			int first = i*partialSize;
 			int size = (i == numThreads - 1) ? numInstances - i*partialSize : partialSize;
@@ -7024,7 +7807,8 @@ public class WekaSegmentation {
 			try {
 				// The Weka random forest classifiers do not need to be duplicated on each thread
 				// (that saves much memory)
-				if( classifier instanceof FastRandomForest || classifier instanceof RandomForest )
+				if( classifier instanceof FastRandomForest || classifier instanceof RandomForest
+						|| classifier instanceof PackedForest )
 					classifierCopy = classifier;
 				else
 					classifierCopy = (AbstractClassifier) (AbstractClassifier.makeCopy( classifier ));
@@ -7064,6 +7848,9 @@ public class WekaSegmentation {
 			task.cancel(true);
 			monitor.shutdownNow();
 			IJ.showProgress(1);
+			for(int i = 0; i < fsa.getSize(); i++)
+				if( null != fsa.get( i ) )
+					fsa.get( i ).unpackFeatures();
 		}
 
 		// Create final array
@@ -103,6 +103,8 @@ import javax.swing.JScrollPane;
 import javax.swing.SwingUtilities;
 import javax.swing.WindowConstants;
 
+import trainableSegmentation.utils.BinaryModel;
+
 import weka.classifiers.AbstractClassifier;
 import weka.classifiers.Classifier;
 import weka.classifiers.evaluation.EvaluationUtils;
@@ -2136,17 +2138,22 @@ public class Weka_Segmentation implements PlugIn
 
 		try {
 			sFile = new File(filename);
-			OutputStream os = new FileOutputStream(sFile);
-			if (sFile.getName().endsWith(".gz"))
+			if( BinaryModel.isBinaryModel( filename ) )
+				BinaryModel.write( classifier, trainHeader, filename );
+			else
 			{
-				os = new GZIPOutputStream(os);
+				OutputStream os = new FileOutputStream(sFile);
+				if (sFile.getName().endsWith(".gz"))
+				{
+					os = new GZIPOutputStream(os);
+				}
+				ObjectOutputStream objectOutputStream = new ObjectOutputStream(os);
+				objectOutputStream.writeObject(classifier);
+				if (trainHeader != null)
+					objectOutputStream.writeObject(trainHeader);
+				objectOutputStream.flush();
+				objectOutputStream.close();
 			}
-			ObjectOutputStream objectOutputStream = new ObjectOutputStream(os);
-			objectOutputStream.writeObject(classifier);
-			if (trainHeader != null)
-				objectOutputStream.writeObject(trainHeader);
-			objectOutputStream.flush();
-			objectOutputStream.close();
 		}
 		catch (Exception e)
 		{
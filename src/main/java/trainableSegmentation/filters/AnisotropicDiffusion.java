@@ -0,0 +1,415 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package trainableSegmentation.filters;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Tensor-driven anisotropic diffusion of a (multi-channel) 2D image, after
+ * D. Tschumperl&eacute; and R. Deriche, "Vector-valued image regularization
+ * with PDEs: a common framework for different applications", IEEE PAMI
+ * 27(4), 2005.
+ * <p>
+ * Each iteration computes the structure tensor of the image (summed over
+ * the channels and smoothed), derives from its eigenvalues a diffusion
+ * tensor that smooths along the edges more than across them, and moves
+ * the image along the resulting velocity with an adaptive time step. The
+ * iterations stop early when the velocity vanishes (steady state).
+ * <p>
+ * All steps are computed by bands of rows in parallel.
+ * <p>
+ * This is an opt-in alternative to the tensor-driven diffusion of the
+ * Anisotropic_Diffusion_2D plugin ({@code runTD}), which computes the
+ * anisotropic diffusion features by default. The model is the same but the
+ * numerical details differ (for instance the early stop at steady state),
+ * so the features are close to the plugin's ones but not equal.
+ */
+public class AnisotropicDiffusion
+{
+	/** largest change of a pixel in one iteration */
+	public static final float TIME_STEP = 20f;
+	/** velocity (relative to the image range) below which the diffusion stops */
+	private static final double CONVERGENCE = 1e-4;
+
+	private AnisotropicDiffusion()
+	{
+	}
+
+	/**
+	 * Diffuse an image.
+	 *
+	 * @param channels channels of the image (row by row), not modified
+	 * @param width image width
+	 * @param height image height
+	 * @param numIterations number of iterations
+	 * @param saveSteps number of iterations after which the intermediate result is saved
+	 * @param numSmoothings number of 3x3 smoothings of the structure tensor
+	 * @param a1 diffusion limiter along minimal variations
+	 * @param a2 diffusion limiter along maximal variations
+	 * @param edgeThreshold gradient norm from which the diffusion across edges is limited
+	 * @param numThreads number of threads to use (each one processes a band of rows)
+	 * @return saved steps (every saveSteps iterations, or the last iteration
+	 * if saveSteps is larger than the number of iterations), each one with
+	 * all channels
+	 */
+	public static float[][][] filter(
+			final float[][] channels,
+			final int width,
+			final int height,
+			final int numIterations,
+			final int saveSteps,
+			final int numSmoothings,
+			final float a1,
+			final float a2,
+			final float edgeThreshold,
+			final int numThreads )
+	{
+		final int numSaved = saveSteps > 0 && saveSteps <= numIterations ? numIterations / saveSteps : 1;
+		final float[][][] saved = new float[ numSaved ][][];
+
+		final Diffusion diffusion = new Diffusion( channels, width, height, numSmoothings, a1, a2,
+				edgeThreshold, Math.max( 1, Math.min( numThreads, height ) ) );
+		try{
+			int numDone = 0;
+			for( int i = 1; i <= numIterations && numDone < numSaved; i++ )
+			{
+				if( Thread.currentThread().isInterrupted() )
+					return null;
+				final boolean converged = !diffusion.iterate();
+				if( converged )
+				{
+					// the remaining steps are all the same
+					while( numDone < numSaved )
+						saved[ numDone++ ] = diffusion.copyImage();
+				}
+				else if( saveSteps > 0 && saveSteps <= numIterations ? i % saveSteps == 0 : i == numIterations )
+					saved[ numDone++ ] = diffusion.copyImage();
+			}
+			while( numDone < numSaved )
+				saved[ numDone++ ] = diffusion.copyImage();
+		}
+		finally{
+			diffusion.shutdown();
+		}
+		return saved;
+	}
+
+	/**
+	 * State of a diffusion: the image, the tensor fields and the threads
+	 * processing them.
+	 */
+	private static class Diffusion
+	{
+		private final float[][] image;
+		private final int width;
+		private final int height;
+		private final int numSmoothings;
+		private final float a1;
+		private final float a2;
+		/** inverse of the squared edge threshold */
+		private final float edgeScale;
+		private final float tolerance;
+		/** structure tensor (xx, xy, yy) and smoothing buffer */
+		private final float[][] tensor;
+		private final float[][] buffer;
+		private final float[][] velocity;
+		/** largest absolute velocity of each band */
+		private final float[] bandMaximum;
+		private final int bands;
+		private final ExecutorService exe;
+
+		Diffusion( float[][] channels, int width, int height, int numSmoothings,
+				float a1, float a2, float edgeThreshold, int bands )
+		{
+			this.width = width;
+			this.height = height;
+			this.numSmoothings = numSmoothings;
+			this.a1 = a1;
+			this.a2 = a2;
+			this.edgeScale = edgeThreshold > 0 ? 1f / ( edgeThreshold * edgeThreshold ) : 1f;
+			this.bands = bands;
+			this.exe = bands > 1 ? Executors.newFixedThreadPool( bands ) : null;
+
+			image = new float[ channels.length ][];
+			float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+			for( int c = 0; c < channels.length; c++ )
+			{
+				image[ c ] = channels[ c ].clone();
+				for( float v : image[ c ] )
+				{
+					min = Math.min( min, v );
+					max = Math.max( max, v );
+				}
+			}
+			tolerance = (float) ( CONVERGENCE * Math.max( 1, max - min ) );
+			tensor = new float[ 3 ][ width * height ];
+			buffer = new float[ 3 ][ width * height ];
+			velocity = new float[ channels.length ][ width * height ];
+			bandMaximum = new float[ bands ];
+		}
+
+		/**
+		 * Run one iteration.
+		 * @return false if the image did not change (steady state)
+		 */
+		boolean iterate()
+		{
+			forEachBand( new Band(){
+				public void run( int band, int y0, int y1 )
+				{
+					structureTensor( y0, y1 );
+					if( numSmoothings > 0 )
+						smoothRows( tensor, buffer, y0, y1 );
+				}
+			});
+			for( int n = 0; n < numSmoothings; n++ )
+			{
+				// the columns of a band depend on the rows of its neighbors
+				if( n > 0 )
+					forEachBand( new Band(){
+						public void run( int band, int y0, int y1 )
+						{
+							smoothRows( tensor, buffer, y0, y1 );
+						}
+					});
+				forEachBand( new Band(){
+					public void run( int band, int y0, int y1 )
+					{
+						smoothColumns( buffer, tensor, y0, y1 );
+					}
+				});
+			}
+			forEachBand( new Band(){
+				public void run( int band, int y0, int y1 )
+				{
+					bandMaximum[ band ] = velocity( y0, y1 );
+				}
+			});
+			float maximum = 0;
+			for( float m : bandMaximum )
+				maximum = Math.max( maximum, m );
+			if( maximum <= tolerance )
+				return false;
+
+			final float dt = TIME_STEP / maximum;
+			forEachBand( new Band(){
+				public void run( int band, int y0, int y1 )
+				{
+					for( int c = 0; c < image.length; c++ )
+						for( int i = y0 * width; i < y1 * width; i++ )
+							image[ c ][ i ] += dt * velocity[ c ][ i ];
+				}
+			});
+			return true;
+		}
+
+		float[][] copyImage()
+		{
+			final float[][] copy = new float[ image.length ][];
+			for( int c = 0; c < image.length; c++ )
+				copy[ c ] = image[ c ].clone();
+			return copy;
+		}
+
+		void shutdown()
+		{
+			if( null != exe )
+				exe.shutdownNow();
+		}
+
+		/**
+		 * Structure tensor of the rows of a band (central differences,
+		 * summed over the channels).
+		 */
+		private void structureTensor( int y0, int y1 )
+		{
+			final float[] xx = tensor[ 0 ], xy = tensor[ 1 ], yy = tensor[ 2 ];
+			for( int y = y0; y < y1; y++ )
+			{
+				final int up = Math.max( y - 1, 0 ) * width;
+				final int down = Math.min( y + 1, height - 1 ) * width;
+				for( int x = 0; x < width; x++ )
+				{
+					final int left = Math.max( x - 1, 0 );
+					final int right = Math.min( x + 1, width - 1 );
+					float sxx = 0, sxy = 0, syy = 0;
+					for( float[] ch : image )
+					{
+						final float ix = 0.5f * ( ch[ y * width + right ] - ch[ y * width + left ] );
+						final float iy = 0.5f * ( ch[ down + x ] - ch[ up + x ] );
+						sxx += ix * ix;
+						sxy += ix * iy;
+						syy += iy * iy;
+					}
+					final int i = y * width + x;
+					xx[ i ] = sxx;
+					xy[ i ] = sxy;
+					yy[ i ] = syy;
+				}
+			}
+		}
+
+		/** [1 2 1] / 4 smoothing along the rows of a band */
+		private void smoothRows( float[][] in, float[][] out, int y0, int y1 )
+		{
+			for( int k = 0; k < in.length; k++ )
+				for( int y = y0; y < y1; y++ )
+				{
+					final int row = y * width;
+					for( int x = 0; x < width; x++ )
+						out[ k ][ row + x ] = 0.25f * ( in[ k ][ row + Math.max( x - 1, 0 ) ]
+								+ 2 * in[ k ][ row + x ] + in[ k ][ row + Math.min( x + 1, width - 1 ) ] );
+				}
+		}
+
+		/** [1 2 1] / 4 smoothing along the columns, for the rows of a band */
+		private void smoothColumns( float[][] in, float[][] out, int y0, int y1 )
+		{
+			for( int k = 0; k < in.length; k++ )
+				for( int y = y0; y < y1; y++ )
+				{
+					final int up = Math.max( y - 1, 0 ) * width;
+					final int row = y * width;
+					final int down = Math.min( y + 1, height - 1 ) * width;
+					for( int x = 0; x < width; x++ )
+						out[ k ][ row + x ] = 0.25f * ( in[ k ][ up + x ]
+								+ 2 * in[ k ][ row + x ] + in[ k ][ down + x ] );
+				}
+		}
+
+		/**
+		 * Diffusion velocity of the rows of a band: trace of the product of
+		 * the diffusion tensor and the Hessian of each channel.
+		 * @return largest absolute velocity of the band
+		 */
+		private float velocity( int y0, int y1 )
+		{
+			float maximum = 0;
+			for( int y = y0; y < y1; y++ )
+			{
+				final int up = Math.max( y - 1, 0 ) * width;
+				final int row = y * width;
+				final int down = Math.min( y + 1, height - 1 ) * width;
+				for( int x = 0; x < width; x++ )
+				{
+					final int i = row + x;
+					final float a = tensor[ 0 ][ i ], b = tensor[ 1 ][ i ], c = tensor[ 2 ][ i ];
+					// eigenvalues and direction of maximal variation (u)
+					final float half = 0.5f * ( a - c );
+					final float root = (float) Math.sqrt( half * half + b * b );
+					final float l1 = 0.5f * ( a + c ) + root;
+					final float l2 = 0.5f * ( a + c ) - root;
+					float ux, uy;
+					if( b != 0 )
+					{
+						ux = b;
+						uy = l1 - a;
+						final float norm = (float) Math.sqrt( ux * ux + uy * uy );
+						ux /= norm;
+						uy /= norm;
+					}
+					else if( a >= c )
+					{
+						ux = 1;
+						uy = 0;
+					}
+					else
+					{
+						ux = 0;
+						uy = 1;
+					}
+					// smooth along the edges (v) more than across them (u)
+					final double n = 1 + ( l1 + l2 ) * edgeScale;
+					final float fv = (float) Math.pow( n, -a1 );
+					final float fu = (float) Math.pow( n, -a2 );
+					final float txx = fv * uy * uy + fu * ux * ux;
+					final float txy = ( fu - fv ) * ux * uy;
+					final float tyy = fv * ux * ux + fu * uy * uy;
+
+					final int left = Math.max( x - 1, 0 );
+					final int right = Math.min( x + 1, width - 1 );
+					for( int ch = 0; ch < image.length; ch++ )
+					{
+						final float[] p = image[ ch ];
+						final float center = p[ i ];
+						final float ixx = p[ row + right ] + p[ row + left ] - 2 * center;
+						final float iyy = p[ down + x ] + p[ up + x ] - 2 * center;
+						final float ixy = 0.25f * ( p[ down + right ] + p[ up + left ]
+								- p[ up + right ] - p[ down + left ] );
+						final float v = txx * ixx + 2 * txy * ixy + tyy * iyy;
+						velocity[ ch ][ i ] = v;
+						maximum = Math.max( maximum, Math.abs( v ) );
+					}
+				}
+			}
+			return maximum;
+		}
+
+		/**
+		 * Run a task on every band of rows and wait for all of them.
+		 */
+		private void forEachBand( final Band task )
+		{
+			if( null == exe )
+			{
+				task.run( 0, 0, height );
+				return;
+			}
+			try{
+				final ArrayList< Future<?> > futures = new ArrayList< Future<?> >();
+				for( int b = 0; b < bands; b++ )
+				{
+					final int band = b;
+					final int y0 = b * height / bands;
+					final int y1 = ( b + 1 ) * height / bands;
+					futures.add( exe.submit( new Runnable(){
+						public void run()
+						{
+							task.run( band, y0, y1 );
+						}
+					}));
+				}
+				for( Future<?> f : futures )
+					f.get();
+			}
+			catch( InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				throw new RuntimeException( "Interrupted while computing anisotropic diffusion", e );
+			}
+			catch( ExecutionException e )
+			{
+				throw new RuntimeException( e.getCause() );
+			}
+		}
+	}
+
+	/** task on a band of rows */
+	private interface Band
+	{
+		void run( int band, int y0, int y1 );
+	}
+}
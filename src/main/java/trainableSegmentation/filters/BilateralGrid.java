@@ -0,0 +1,259 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package trainableSegmentation.filters;
+
+/**
+ * Bilateral filter computed on a bilateral grid (Chen, Paris and Durand,
+ * "Real-time edge-aware image processing with the bilateral grid", 2007).
+ * <p>
+ * The image is splatted into a 3D grid (X, Y and intensity) subsampled by
+ * the spatial and range standard deviations, the grid is blurred with a
+ * Gaussian kernel, and the result is read back at every pixel by trilinear
+ * interpolation. The cost is linear in the number of pixels whatever the
+ * filter radii, at the price of a (small) approximation of the brute-force
+ * filter.
+ * <p>
+ * The kernels are Gaussians of approximately the same width as the
+ * truncated Gaussian kernels of the brute-force bilateral filter of the
+ * VIB library (see {@link #sigma(double)}).
+ */
+public class BilateralGrid
+{
+	private BilateralGrid()
+	{
+	}
+
+	/**
+	 * Standard deviation of the Gaussian kernel of a filter radius.
+	 * @param radius spatial (in pixels) or range (in intensity levels) radius
+	 * @return standard deviation of the kernel
+	 */
+	public static double sigma( double radius )
+	{
+		return 0.4 * ( radius + 1 );
+	}
+
+	/**
+	 * Bilateral filter of an image with several range radii. The grid is
+	 * built and blurred along X and Y only once, so each extra range radius
+	 * only costs a blur along the intensity axis and the slicing.
+	 *
+	 * @param pixels image pixels (row by row)
+	 * @param width image width
+	 * @param height image height
+	 * @param spatialRadius spatial radius (in pixels)
+	 * @param rangeRadii range radii (in intensity levels)
+	 * @return filtered pixels for each range radius
+	 */
+	public static float[][] filter(
+			final float[] pixels,
+			final int width,
+			final int height,
+			final double spatialRadius,
+			final double[] rangeRadii )
+	{
+		float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+		for( float v : pixels )
+		{
+			if( v < min )
+				min = v;
+			if( v > max )
+				max = v;
+		}
+
+		// sample the intensity axis with the smallest range kernel
+		double minRangeRadius = rangeRadii[ 0 ];
+		for( double r : rangeRadii )
+			minRangeRadius = Math.min( minRangeRadius, r );
+		final double spatialStep = sigma( spatialRadius );
+		final double rangeStep = sigma( minRangeRadius );
+
+		final int gw = (int) ( ( width - 1 ) / spatialStep ) + 2;
+		final int gh = (int) ( ( height - 1 ) / spatialStep ) + 2;
+		final int gd = (int) ( ( max - min ) / rangeStep ) + 2;
+
+		// homogeneous grid: sums of the values and of the weights
+		final float[] values = new float[ gw * gh * gd ];
+		final float[] weights = new float[ gw * gh * gd ];
+		for( int y = 0; y < height; y++ )
+			for( int x = 0; x < width; x++ )
+			{
+				final float v = pixels[ x + y * width ];
+				splat( values, weights, gw, gh, gd,
+						x / spatialStep, y / spatialStep, ( v - min ) / rangeStep, v );
+			}
+
+		// the grid is sampled at the spatial standard deviation
+		final float[] kernel = gaussianKernel( 1.0 );
+		blur( values, gw, gh, gd, kernel, 0 );
+		blur( weights, gw, gh, gd, kernel, 0 );
+		blur( values, gw, gh, gd, kernel, 1 );
+		blur( weights, gw, gh, gd, kernel, 1 );
+
+		final float[][] results = new float[ rangeRadii.length ][];
+		for( int r = 0; r < rangeRadii.length; r++ )
+		{
+			final float[] rangeKernel = gaussianKernel( sigma( rangeRadii[ r ] ) / rangeStep );
+			final float[] v = values.clone();
+			final float[] w = weights.clone();
+			blur( v, gw, gh, gd, rangeKernel, 2 );
+			blur( w, gw, gh, gd, rangeKernel, 2 );
+
+			final float[] result = new float[ width * height ];
+			for( int y = 0; y < height; y++ )
+				for( int x = 0; x < width; x++ )
+				{
+					final int i = x + y * width;
+					result[ i ] = slice( v, w, gw, gh, gd, x / spatialStep, y / spatialStep,
+							( pixels[ i ] - min ) / rangeStep, pixels[ i ] );
+				}
+			results[ r ] = result;
+		}
+		return results;
+	}
+
+	/**
+	 * Add a value to the 8 grid cells around a position, with trilinear
+	 * weights.
+	 */
+	private static void splat(
+			final float[] values,
+			final float[] weights,
+			final int gw,
+			final int gh,
+			final int gd,
+			final double gx,
+			final double gy,
+			final double gz,
+			final float value )
+	{
+		final int x0 = (int) gx, y0 = (int) gy, z0 = (int) gz;
+		final double fx = gx - x0, fy = gy - y0, fz = gz - z0;
+		for( int k = 0; k < 2; k++ )
+		{
+			final double wz = k == 0 ? 1 - fz : fz;
+			for( int j = 0; j < 2; j++ )
+			{
+				final double wy = j == 0 ? 1 - fy : fy;
+				for( int i = 0; i < 2; i++ )
+				{
+					final float w = (float) ( ( i == 0 ? 1 - fx : fx ) * wy * wz );
+					final int index = ( ( y0 + j ) * gw + x0 + i ) * gd + z0 + k;
+					values[ index ] += w * value;
+					weights[ index ] += w;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Trilinear interpolation of the filtered value at a grid position.
+	 */
+	private static float slice(
+			final float[] values,
+			final float[] weights,
+			final int gw,
+			final int gh,
+			final int gd,
+			final double gx,
+			final double gy,
+			final double gz,
+			final float original )
+	{
+		final int x0 = (int) gx, y0 = (int) gy, z0 = (int) gz;
+		final double fx = gx - x0, fy = gy - y0, fz = gz - z0;
+		double value = 0, weight = 0;
+		for( int k = 0; k < 2; k++ )
+		{
+			final double wz = k == 0 ? 1 - fz : fz;
+			for( int j = 0; j < 2; j++ )
+			{
+				final double wy = j == 0 ? 1 - fy : fy;
+				for( int i = 0; i < 2; i++ )
+				{
+					final double w = ( i == 0 ? 1 - fx : fx ) * wy * wz;
+					final int index = ( ( y0 + j ) * gw + x0 + i ) * gd + z0 + k;
+					value += w * values[ index ];
+					weight += w * weights[ index ];
+				}
+			}
+		}
+		return weight > 0 ? (float) ( value / weight ) : original;
+	}
+
+	/**
+	 * Normalized Gaussian kernel (center and right half), truncated at three
+	 * standard deviations.
+	 */
+	private static float[] gaussianKernel( final double sigma )
+	{
+		final int radius = Math.max( 1, (int) Math.ceil( 3 * sigma ) );
+		final float[] kernel = new float[ radius + 1 ];
+		double total = 0;
+		for( int i = 0; i <= radius; i++ )
+		{
+			kernel[ i ] = (float) Math.exp( -0.5 * i * i / ( sigma * sigma ) );
+			total += i == 0 ? kernel[ i ] : 2 * kernel[ i ];
+		}
+		for( int i = 0; i <= radius; i++ )
+			kernel[ i ] /= total;
+		return kernel;
+	}
+
+	/**
+	 * Convolve the grid with a symmetric kernel along one of its axes (0 for
+	 * X, 1 for Y and 2 for the intensity). Cells outside of the grid are
+	 * empty.
+	 */
+	private static void blur(
+			final float[] grid,
+			final int gw,
+			final int gh,
+			final int gd,
+			final float[] kernel,
+			final int axis )
+	{
+		final int length = axis == 0 ? gw : ( axis == 1 ? gh : gd );
+		final int stride = axis == 0 ? gd : ( axis == 1 ? gw * gd : 1 );
+		final float[] line = new float[ length ];
+		for( int start = 0; start < grid.length; start++ )
+		{
+			// visit each line once, from its first cell
+			if( ( start / stride ) % length != 0 )
+				continue;
+			for( int i = 0; i < length; i++ )
+				line[ i ] = grid[ start + i * stride ];
+			for( int i = 0; i < length; i++ )
+			{
+				double sum = kernel[ 0 ] * line[ i ];
+				for( int k = 1; k < kernel.length; k++ )
+				{
+					if( i - k >= 0 )
+						sum += kernel[ k ] * line[ i - k ];
+					if( i + k < length )
+						sum += kernel[ k ] * line[ i + k ];
+				}
+				grid[ start + i * stride ] = (float) sum;
+			}
+		}
+	}
+}
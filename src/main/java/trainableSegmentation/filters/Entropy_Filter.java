@@ -21,8 +21,17 @@
  */
 package trainableSegmentation.filters;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
 import ij.gui.GenericDialog;
 import ij.gui.OvalRoi;
 import ij.plugin.filter.PlugInFilter;
@@ -99,43 +108,349 @@ public class Entropy_Filter implements PlugInFilter
 			int radius,
 			int numBins)
 	{
-		final double log2=Math.log(2.0);
+		return getEntropy( ip, radius, numBins, Prefs.getThreads() );
+	}
+
+	/**
+	 * Get the entropy filter version of an image. The histogram of the
+	 * circular window (the mask of an oval ROI of diameter 2*radius+1) is
+	 * updated incrementally as the window slides along each row, together
+	 * with the sum of n*log(n) over its bins, so every pixel costs only the
+	 * pixels entering and leaving the window.
+	 *
+	 * @param ip input image
+	 * @param radius radius to use (in pixels)
+	 * @param numBins number of bins to use in the histogram
+	 * @param numThreads number of threads to use (each one filters a band of rows)
+	 * @return entropy image (32-bit)
+	 */
+	public FloatProcessor getEntropy(
+			ImageProcessor ip, 
+			int radius,
+			int numBins,
+			int numThreads)
+	{
 		ip.resetMinAndMax();
 		final ByteProcessor bp = (ByteProcessor) ip.convertToByte(true);
 		
-		bp.setHistogramRange( 0, 255 );
-		bp.setHistogramSize( numBins );
-		
-		final FloatProcessor fp = new FloatProcessor(bp.getWidth(), bp.getHeight());
-		
 		final int size = 2 * radius + 1;
-		
-		for(int i=0; i<bp.getWidth(); i++)
-		{			
-			for(int j=0; j<bp.getHeight(); j++)
+
+		// one run of pixels per row of the oval mask
+		final ImageProcessor mask = new OvalRoi(0, 0, size, size).getMask();
+		final ArrayList<int[]> window = new ArrayList<int[]>();
+		for(int v=0; v<size; v++)
+		{
+			int first = -1, last = -1;
+			for(int u=0; u<size; u++)
+				if(null == mask || mask.get(u, v) != 0)
+				{
+					if(first < 0)
+						first = u;
+					last = u;
+				}
+			if(first >= 0)
+				window.add( new int[]{ first - radius, last - radius, v - radius, 0 } );
+		}
+
+		final float[][] entropy = filter( new byte[][]{ (byte[]) bp.getPixels() },
+				bp.getWidth(), bp.getHeight(), window, numBins, numThreads );
+		return new FloatProcessor( bp.getWidth(), bp.getHeight(), entropy[ 0 ] );
+	}
+
+	/**
+	 * Get the 3D entropy filter version of an image stack, using an
+	 * ellipsoidal window. Images that are not 8-bit are scaled to 0-255
+	 * using the minimum and maximum of the whole stack.
+	 *
+	 * @param stack input image stack
+	 * @param radiusX radius of the window along X (in pixels)
+	 * @param radiusY radius of the window along Y (in pixels)
+	 * @param radiusZ radius of the window along Z (in slices)
+	 * @param numBins number of bins to use in the histogram
+	 * @param numThreads number of threads to use (each one filters a band of rows)
+	 * @return entropy image stack (32-bit)
+	 */
+	public static ImageStack getEntropy3D(
+			ImageStack stack,
+			double radiusX,
+			double radiusY,
+			double radiusZ,
+			int numBins,
+			int numThreads)
+	{
+		final int width = stack.getWidth();
+		final int height = stack.getHeight();
+		final byte[][] slices = toByte( stack );
+
+		// one run of pixels per row of the ellipsoid
+		final int rx = (int) Math.ceil( radiusX );
+		final int ry = (int) Math.ceil( radiusY );
+		final int rz = (int) Math.ceil( radiusZ );
+		final ArrayList<int[]> window = new ArrayList<int[]>();
+		for(int dz=-rz; dz<=rz; dz++)
+			for(int dy=-ry; dy<=ry; dy++)
+			{
+				final double remaining = 1.0 - squaredRatio( dy, radiusY )
+						- squaredRatio( dz, radiusZ );
+				if( remaining < 0 )
+					continue;
+				final int dx = Math.min( rx, (int) Math.floor( radiusX * Math.sqrt( remaining ) ) );
+				window.add( new int[]{ -dx, dx, dy, dz } );
+			}
+
+		final float[][] entropy = filter( slices, width, height, window, numBins, numThreads );
+		final ImageStack result = new ImageStack( width, height );
+		for(int z=0; z<entropy.length; z++)
+			result.addSlice( stack.getSliceLabel( z + 1 ), entropy[ z ] );
+		return result;
+	}
+
+	/**
+	 * Squared ratio between an offset and a radius (infinite for non-zero
+	 * offsets if the radius is zero).
+	 */
+	private static double squaredRatio( int offset, double radius )
+	{
+		if( offset == 0 )
+			return 0;
+		return radius > 0 ? ( offset * offset ) / ( radius * radius ) : Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Get the 8-bit pixels of a stack, scaling the values to 0-255 if the
+	 * stack is not 8-bit.
+	 */
+	private static byte[][] toByte( ImageStack stack )
+	{
+		final int depth = stack.getSize();
+		final byte[][] slices = new byte[ depth ][];
+		if( stack.getBitDepth() == 8 )
+		{
+			for(int z=0; z<depth; z++)
+				slices[ z ] = (byte[]) stack.getPixels( z + 1 );
+			return slices;
+		}
+
+		double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+		for(int z=0; z<depth; z++)
+		{
+			final ImageProcessor ip = stack.getProcessor( z + 1 );
+			for(int i=0; i<ip.getPixelCount(); i++)
+			{
+				final float v = ip.getf( i );
+				if( v < min )
+					min = v;
+				if( v > max )
+					max = v;
+			}
+		}
+		final double scale = max > min ? 255.0 / ( max - min ) : 0;
+		for(int z=0; z<depth; z++)
+		{
+			final ImageProcessor ip = stack.getProcessor( z + 1 );
+			slices[ z ] = new byte[ ip.getPixelCount() ];
+			for(int i=0; i<slices[ z ].length; i++)
+				slices[ z ][ i ] = (byte) (int) ( ( ip.getf( i ) - min ) * scale + 0.5 );
+		}
+		return slices;
+	}
+
+	/**
+	 * Filter all rows of an image (2D or 3D) with a window given as runs of
+	 * pixels along X.
+	 *
+	 * @param slices 8-bit pixels of each slice
+	 * @param window runs of the window: first and last X offset, Y offset and Z offset
+	 * @param numBins number of bins (gray levels not below it are ignored, as
+	 * in the 256-bin histograms of ImageJ)
+	 * @param numThreads number of threads to use
+	 * @return entropy of every pixel
+	 */
+	private static float[][] filter(
+			final byte[][] slices,
+			final int width,
+			final int height,
+			final ArrayList<int[]> window,
+			final int numBins,
+			final int numThreads)
+	{
+		final int depth = slices.length;
+		final float[][] result = new float[ depth ][ width * height ];
+		final int[][] runs = window.toArray( new int[ window.size() ][] );
+
+		// n * log(n) for every possible bin count
+		int windowSize = 0;
+		for( int[] run : runs )
+			windowSize += run[ 1 ] - run[ 0 ] + 1;
+		final double[] nLogN = new double[ windowSize + 1 ];
+		for(int n=1; n<=windowSize; n++)
+			nLogN[ n ] = n * Math.log( n );
+
+		final int numRows = height * depth;
+		final int rowsPerThread = ( numRows + Math.max( 1, numThreads ) - 1 ) / Math.max( 1, numThreads );
+		if( numThreads <= 1 || rowsPerThread >= numRows )
+		{
+			new RowFilter( slices, width, height, runs, numBins, nLogN, result, 0, numRows ).run();
+			return result;
+		}
+
+		final ExecutorService exe = Executors.newFixedThreadPool( numThreads );
+		try{
+			final ArrayList< Future<?> > futures = new ArrayList< Future<?> >();
+			for( int first = 0; first < numRows; first += rowsPerThread )
+				futures.add( exe.submit( new RowFilter( slices, width, height, runs, numBins,
+						nLogN, result, first, Math.min( numRows, first + rowsPerThread ) ) ) );
+			for( Future<?> f : futures )
+				f.get();
+		}
+		catch( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( "Interrupted while filtering", e );
+		}
+		catch( ExecutionException e )
+		{
+			throw new RuntimeException( e.getCause() );
+		}
+		finally{
+			exe.shutdown();
+		}
+		return result;
+	}
+
+	/**
+	 * Entropy filter of a band of rows, sliding the window histogram along
+	 * each row.
+	 */
+	private static class RowFilter implements Runnable
+	{
+		final byte[][] slices;
+		final int width;
+		final int height;
+		final int[][] runs;
+		final int numLevels;
+		final double[] nLogN;
+		final float[][] result;
+		final int firstRow;
+		final int lastRow;
+
+		/** window histogram */
+		final int[] histogram = new int[ 256 ];
+		/** number of pixels in the window histogram */
+		int total;
+		/** number of non-empty bins */
+		int nonEmpty;
+		/** sum of n*log(n) over the bins */
+		double sum;
+
+		RowFilter(
+				byte[][] slices,
+				int width,
+				int height,
+				int[][] runs,
+				int numBins,
+				double[] nLogN,
+				float[][] result,
+				int firstRow,
+				int lastRow )
+		{
+			this.slices = slices;
+			this.width = width;
+			this.height = height;
+			this.runs = runs;
+			this.numLevels = Math.min( numBins, 256 );
+			this.nLogN = nLogN;
+			this.result = result;
+			this.firstRow = firstRow;
+			this.lastRow = lastRow;
+		}
+
+		public void run()
+		{
+			final double log2 = Math.log( 2.0 );
+			// pixels and row offsets of the runs inside the image
+			final byte[][] runPixels = new byte[ runs.length ][];
+			final int[] runOffsets = new int[ runs.length ];
+			final int[] runStarts = new int[ runs.length ];
+			final int[] runEnds = new int[ runs.length ];
+
+			for( int row = firstRow; row < lastRow; row++ )
 			{
-				final OvalRoi roi = new OvalRoi(i-radius, j-radius, size, size);				
-				bp.setRoi( roi );
-				final int[] histogram = bp.getHistogram(); // Get histogram from the ROI
-				
-				double total = 0;
-				for (int k = 0 ; k < numBins ; k++ )
-					total +=histogram[ k ];
-
-				double entropy = 0;
-				for (int k = 0 ; k < numBins ; k++ )
+				if( Thread.currentThread().isInterrupted() )
+					return;
+				final int y = row % height;
+				final int z = row / height;
+
+				int numRuns = 0;
+				for( int[] run : runs )
+				{
+					final int yy = y + run[ 2 ];
+					final int zz = z + run[ 3 ];
+					if( yy < 0 || yy >= height || zz < 0 || zz >= slices.length )
+						continue;
+					runPixels[ numRuns ] = slices[ zz ];
+					runOffsets[ numRuns ] = yy * width;
+					runStarts[ numRuns ] = run[ 0 ];
+					runEnds[ numRuns ] = run[ 1 ];
+					numRuns++;
+				}
+
+				// window of the first pixel of the row
+				Arrays.fill( histogram, 0 );
+				total = 0;
+				nonEmpty = 0;
+				sum = 0;
+				for( int r = 0; r < numRuns; r++ )
 				{
-					if (histogram[k]>0)
-					{   
-						double p = histogram[k]/total; // calculate p
-		  				entropy += -p * Math.log(p)/log2;						
+					final int end = Math.min( width - 1, runEnds[ r ] );
+					for( int x = Math.max( 0, runStarts[ r ] ); x <= end; x++ )
+						add( runPixels[ r ][ runOffsets[ r ] + x ] & 0xff );
+				}
+
+				final float[] out = result[ z ];
+				for( int x = 0; x < width; x++ )
+				{
+					// entropy = log(total) - sum( n * log(n) ) / total
+					out[ x + y * width ] = nonEmpty > 1 ?
+							(float) ( ( Math.log( total ) - sum / total ) / log2 ) : 0f;
+
+					if( x == width - 1 )
+						break;
+					// slide the window one pixel
+					for( int r = 0; r < numRuns; r++ )
+					{
+						final int leaving = x + runStarts[ r ];
+						if( leaving >= 0 && leaving < width )
+							remove( runPixels[ r ][ runOffsets[ r ] + leaving ] & 0xff );
+						final int entering = x + 1 + runEnds[ r ];
+						if( entering >= 0 && entering < width )
+							add( runPixels[ r ][ runOffsets[ r ] + entering ] & 0xff );
 					}
 				}
-				fp.putPixelValue(i, j, entropy );
 			}
 		}
-		
-		return fp;
+
+		private void add( int level )
+		{
+			if( level >= numLevels )
+				return;
+			final int n = histogram[ level ]++;
+			if( n == 0 )
+				nonEmpty++;
+			sum += nLogN[ n + 1 ] - nLogN[ n ];
+			total++;
+		}
+
+		private void remove( int level )
+		{
+			if( level >= numLevels )
+				return;
+			final int n = histogram[ level ]--;
+			if( n == 1 )
+				nonEmpty--;
+			sum -= nLogN[ n ] - nLogN[ n - 1 ];
+			total--;
+		}
 	}
 	
 	/**
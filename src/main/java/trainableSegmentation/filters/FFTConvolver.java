@@ -0,0 +1,636 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package trainableSegmentation.filters;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import trainableSegmentation.MemoryEstimate;
+
+/**
+ * Filters 2D images with a fixed set of kernels of the same size (for
+ * example, the rotations of an oriented kernel), choosing automatically
+ * between direct and frequency-domain filtering.
+ * <p>
+ * In the frequency domain, the spectra of the kernels are computed once
+ * (when the filter is created) and every image is transformed only once,
+ * so each kernel only costs a product of spectra and an inverse transform.
+ * Kernels are processed in pairs: being real, two of them fit into a single
+ * complex transform (one as real part and the other as imaginary part).
+ * The transforms use a mixed radix (2, 3, 5) FFT, so images are only padded
+ * to the next size with no other prime factors.
+ * <p>
+ * The filter can either convolve (as imglib2's FFTConvolution, with the
+ * image mirrored at the borders) or correlate (as ImageJ's Convolver, with
+ * normalized kernels and the edge pixels replicated) the images with the
+ * kernels. Both paths give the same result up to rounding, and the direct
+ * correlation reproduces ImageJ's Convolver exactly, so correlations are
+ * only filtered in the frequency domain when requested explicitly.
+ * Convolutions take the faster path, as long as the spectra fit in memory.
+ */
+public class FFTConvolver
+{
+	/** cost of a complex FFT per element and per log2 of its size, in
+	 * multiply-adds of the direct filtering (measured) */
+	private static final double FFT_COST = 12.0;
+	/** maximum fraction of the available memory taken by the spectra */
+	private static final double MAX_FFT_MEMORY_FRACTION = 0.25;
+
+	/** image width */
+	private final int width;
+	/** image height */
+	private final int height;
+	/** kernel width */
+	private final int kernelWidth;
+	/** kernel height */
+	private final int kernelHeight;
+	/** kernels (row by row) */
+	private final float[][] kernels;
+	/** scale of the result of each kernel (1 / sum of the kernel for correlations) */
+	private final double[] scales;
+	/** flag to convolve and mirror the image at its borders instead of
+	 * correlating and replicating the edge pixels */
+	private final boolean mirror;
+	/** number of pixels the image is extended on each side */
+	private final int padX;
+	private final int padY;
+	/** size of the frequency-domain images (0 if filtering directly) */
+	private final int fftWidth;
+	private final int fftHeight;
+	/** spectra of the kernel pairs (real and imaginary parts) */
+	private double[][] kernelSpectraRe = null;
+	private double[][] kernelSpectraIm = null;
+	/** FFTs along both dimensions */
+	private FFT fftX = null;
+	private FFT fftY = null;
+
+	/**
+	 * Create a filter for a set of kernels.
+	 *
+	 * @param width width of the images to filter
+	 * @param height height of the images to filter
+	 * @param kernels kernel pixels (row by row), all of the same size
+	 * @param kernelWidth kernel width
+	 * @param kernelHeight kernel height
+	 * @param correlate true to correlate the images with the normalized
+	 * kernels and replicate the edge pixels (as ImageJ's Convolver), false
+	 * to convolve them and mirror the borders (as imglib2's FFTConvolution)
+	 */
+	public FFTConvolver(
+			final int width,
+			final int height,
+			final float[][] kernels,
+			final int kernelWidth,
+			final int kernelHeight,
+			final boolean correlate )
+	{
+		this( width, height, kernels, kernelWidth, kernelHeight, correlate, null );
+	}
+
+	/**
+	 * Create a filter for a set of kernels, forcing one of the paths.
+	 *
+	 * @param width width of the images to filter
+	 * @param height height of the images to filter
+	 * @param kernels kernel pixels (row by row), all of the same size
+	 * @param kernelWidth kernel width
+	 * @param kernelHeight kernel height
+	 * @param correlate true to correlate the images with the normalized
+	 * kernels and replicate the edge pixels (as ImageJ's Convolver), false
+	 * to convolve them and mirror the borders (as imglib2's FFTConvolution)
+	 * @param useFFT true to filter in the frequency domain, false to filter
+	 * directly, null to choose automatically (correlations are then always
+	 * filtered directly)
+	 */
+	public FFTConvolver(
+			final int width,
+			final int height,
+			final float[][] kernels,
+			final int kernelWidth,
+			final int kernelHeight,
+			final boolean correlate,
+			final Boolean useFFT )
+	{
+		this.width = width;
+		this.height = height;
+		this.kernelWidth = kernelWidth;
+		this.kernelHeight = kernelHeight;
+		this.mirror = !correlate;
+		this.kernels = kernels;
+
+		// as ImageJ's Convolver, correlations are scaled by the inverse of
+		// the sum of the kernel (summed in double, in the same order)
+		this.scales = new double[ kernels.length ];
+		for( int k = 0; k < kernels.length; k++ )
+		{
+			double sum = 0;
+			if( correlate )
+				for( float value : kernels[ k ] )
+					sum += value;
+			scales[ k ] = sum != 0 ? 1.0 / sum : 1.0;
+		}
+
+		padX = Math.max( kernelWidth / 2, kernelWidth - 1 - kernelWidth / 2 );
+		padY = Math.max( kernelHeight / 2, kernelHeight - 1 - kernelHeight / 2 );
+
+		final int fftW = FFT.nextSize( width + 2 * padX );
+		final int fftH = FFT.nextSize( height + 2 * padY );
+		if( null == useFFT ?
+				!correlate
+					&& isFFTFaster( width, height, kernelWidth, kernelHeight, fftW, fftH, kernels.length )
+					&& getFFTMemorySize( fftW, fftH, kernels.length ) <=
+						MAX_FFT_MEMORY_FRACTION * MemoryEstimate.getAvailableMemory( 1.0 ) :
+				useFFT.booleanValue() )
+		{
+			fftWidth = fftW;
+			fftHeight = fftH;
+			computeKernelSpectra();
+		}
+		else
+		{
+			fftWidth = 0;
+			fftHeight = 0;
+		}
+	}
+
+	/**
+	 * Check if the frequency-domain path was chosen.
+	 * @return true if the images are filtered in the frequency domain
+	 */
+	public boolean isFFT()
+	{
+		return fftWidth > 0;
+	}
+
+	/**
+	 * Estimate the memory taken by the kernels and their spectra.
+	 * @return approximate size in bytes
+	 */
+	long getMemorySize()
+	{
+		long size = 0;
+		for( float[] kernel : kernels )
+			size += 4L * kernel.length;
+		if( isFFT() )
+		{
+			size += 16L * kernelSpectraRe.length * fftWidth * fftHeight;
+			size += 16L * ( fftWidth + fftHeight );
+		}
+		return size;
+	}
+
+	/**
+	 * Compare the estimated cost per kernel of both paths. The spectra of
+	 * the kernels are computed only once, so they are not taken into account.
+	 */
+	private static boolean isFFTFaster(
+			int width,
+			int height,
+			int kernelWidth,
+			int kernelHeight,
+			int fftWidth,
+			int fftHeight,
+			int numKernels )
+	{
+		final double direct = (double) width * height * kernelWidth * kernelHeight;
+		final double size = (double) fftWidth * fftHeight;
+		// half an inverse transform per kernel (they go in pairs) plus its
+		// share of the transform of the image
+		final double transforms = 0.5 + 1.0 / Math.max( 1, numKernels );
+		final double fft = transforms * FFT_COST * size * ( Math.log( size ) / Math.log( 2 ) );
+		return fft < direct;
+	}
+
+	/**
+	 * Estimate the memory taken by the frequency-domain path: the spectra
+	 * of the kernel pairs, plus the spectrum of the image and the product
+	 * of each pair with it while filtering (as all pairs may be filtered
+	 * in parallel).
+	 *
+	 * @param fftWidth width of the frequency-domain images
+	 * @param fftHeight height of the frequency-domain images
+	 * @param numKernels number of kernels
+	 * @return approximate size in bytes
+	 */
+	static long getFFTMemorySize( int fftWidth, int fftHeight, int numKernels )
+	{
+		final long numPairs = ( numKernels + 1 ) / 2;
+		return 16L * fftWidth * fftHeight * ( 2 * numPairs + 1 );
+	}
+
+	/**
+	 * Filter an image with all kernels.
+	 *
+	 * @param pixels image pixels (row by row)
+	 * @param exe executor service to filter with several kernels in parallel
+	 * (null to filter sequentially)
+	 * @return filtered images, one per kernel, in the same order
+	 */
+	public float[][] filter( final float[] pixels, final ExecutorService exe )
+	{
+		final float[][] results = new float[ kernels.length ][];
+		final ArrayList< Callable<Void> > tasks = new ArrayList< Callable<Void> >();
+		if( isFFT() )
+		{
+			final double[][] spectrum = transformImage( pixels );
+			for( int p = 0; p < kernelSpectraRe.length; p++ )
+			{
+				final int pair = p;
+				tasks.add( new Callable<Void>(){
+					public Void call()
+					{
+						filterPair( spectrum, pair, results );
+						return null;
+					}
+				});
+			}
+		}
+		else
+		{
+			final float[] extended = extend( pixels );
+			for( int k = 0; k < kernels.length; k++ )
+			{
+				final int kernel = k;
+				tasks.add( new Callable<Void>(){
+					public Void call()
+					{
+						results[ kernel ] = filterDirect( extended, kernels[ kernel ], scales[ kernel ] );
+						return null;
+					}
+				});
+			}
+		}
+		run( tasks, exe );
+		return results;
+	}
+
+	/**
+	 * Run tasks in an executor service, or in the current thread if there
+	 * is none.
+	 */
+	private static void run( ArrayList< Callable<Void> > tasks, ExecutorService exe )
+	{
+		try{
+			if( null == exe )
+			{
+				for( Callable<Void> task : tasks )
+					task.call();
+				return;
+			}
+			final ArrayList< Future<Void> > futures = new ArrayList< Future<Void> >();
+			for( Callable<Void> task : tasks )
+				futures.add( exe.submit( task ) );
+			for( Future<Void> f : futures )
+				f.get();
+		}
+		catch( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( "Interrupted while filtering", e );
+		}
+		catch( ExecutionException e )
+		{
+			throw new RuntimeException( e.getCause() );
+		}
+		catch( Exception e )
+		{
+			throw new RuntimeException( e );
+		}
+	}
+
+	/**
+	 * Get a pixel of the image extended beyond its borders.
+	 */
+	private int extendedIndex( int x, int size )
+	{
+		if( mirror )
+		{
+			if( size == 1 )
+				return 0;
+			// mirror without repeating the border pixel
+			final int period = 2 * size - 2;
+			x = Math.abs( x ) % period;
+			return x < size ? x : period - x;
+		}
+		return x < 0 ? 0 : ( x >= size ? size - 1 : x );
+	}
+
+	/**
+	 * Extend the image by the kernel radius on each side.
+	 */
+	private float[] extend( float[] pixels )
+	{
+		final int w = width + 2 * padX;
+		final int h = height + 2 * padY;
+		final float[] extended = new float[ w * h ];
+		for( int y = 0; y < h; y++ )
+		{
+			final int offset = extendedIndex( y - padY, height ) * width;
+			for( int x = 0; x < w; x++ )
+				extended[ x + y * w ] = pixels[ offset + extendedIndex( x - padX, width ) ];
+		}
+		return extended;
+	}
+
+	/**
+	 * Filter the extended image with a kernel in the spatial domain.
+	 * Correlations add up the products in the same order as ImageJ's
+	 * Convolver, so they give exactly the same result.
+	 */
+	private float[] filterDirect( float[] extended, float[] kernel, double scale )
+	{
+		final int w = width + 2 * padX;
+		final int cx = kernelWidth / 2;
+		final int cy = kernelHeight / 2;
+		final float[] result = new float[ width * height ];
+		for( int y = 0; y < height; y++ )
+			for( int x = 0; x < width; x++ )
+			{
+				double sum = 0;
+				int i = 0;
+				for( int v = 0; v < kernelHeight; v++ )
+				{
+					if( mirror )
+					{
+						final int offset = ( y + padY - ( v - cy ) ) * w + x + padX + cx;
+						for( int u = 0; u < kernelWidth; u++ )
+							sum += kernel[ i++ ] * extended[ offset - u ];
+					}
+					else
+					{
+						final int offset = ( y + padY + ( v - cy ) ) * w + x + padX - cx;
+						for( int u = 0; u < kernelWidth; u++ )
+							sum += extended[ offset + u ] * kernel[ i++ ];
+					}
+				}
+				result[ x + y * width ] = (float) ( sum * scale );
+			}
+		return result;
+	}
+
+	/**
+	 * Compute the spectra of the kernels, two at a time.
+	 */
+	private void computeKernelSpectra()
+	{
+		fftX = new FFT( fftWidth );
+		fftY = new FFT( fftHeight );
+		final int numPairs = ( kernels.length + 1 ) / 2;
+		kernelSpectraRe = new double[ numPairs ][];
+		kernelSpectraIm = new double[ numPairs ][];
+		final int cx = kernelWidth / 2;
+		final int cy = kernelHeight / 2;
+		for( int p = 0; p < numPairs; p++ )
+		{
+			final double[] re = new double[ fftWidth * fftHeight ];
+			final double[] im = new double[ fftWidth * fftHeight ];
+			for( int part = 0; part < 2; part++ )
+			{
+				final int k = 2 * p + part;
+				if( k >= kernels.length )
+					break;
+				final double[] dest = part == 0 ? re : im;
+				final float[] kernel = kernels[ k ];
+				// kernel centered at the origin (wrapped around); a
+				// correlation is a convolution with the flipped kernel
+				for( int v = 0; v < kernelHeight; v++ )
+				{
+					final int y = ( v - cy + fftHeight ) % fftHeight;
+					for( int u = 0; u < kernelWidth; u++ )
+					{
+						final int x = ( u - cx + fftWidth ) % fftWidth;
+						final int i = u + v * kernelWidth;
+						dest[ x + y * fftWidth ] = mirror ? kernel[ i ] : kernel[ kernel.length - 1 - i ];
+					}
+				}
+			}
+			transform2D( re, im, false );
+			kernelSpectraRe[ p ] = re;
+			kernelSpectraIm[ p ] = im;
+		}
+	}
+
+	/**
+	 * Compute the spectrum of the extended image.
+	 * @return real and imaginary parts of the spectrum
+	 */
+	private double[][] transformImage( float[] pixels )
+	{
+		final double[] re = new double[ fftWidth * fftHeight ];
+		final double[] im = new double[ fftWidth * fftHeight ];
+		final int w = width + 2 * padX;
+		final int h = height + 2 * padY;
+		final float[] extended = extend( pixels );
+		for( int y = 0; y < h; y++ )
+			for( int x = 0; x < w; x++ )
+				re[ x + y * fftWidth ] = extended[ x + y * w ];
+		transform2D( re, im, false );
+		return new double[][]{ re, im };
+	}
+
+	/**
+	 * Filter the image (given its spectrum) with a pair of kernels.
+	 */
+	private void filterPair( double[][] spectrum, int pair, float[][] results )
+	{
+		final double[] kRe = kernelSpectraRe[ pair ];
+		final double[] kIm = kernelSpectraIm[ pair ];
+		final double[] re = new double[ kRe.length ];
+		final double[] im = new double[ kRe.length ];
+		for( int i = 0; i < re.length; i++ )
+		{
+			final double a = spectrum[ 0 ][ i ], b = spectrum[ 1 ][ i ];
+			re[ i ] = a * kRe[ i ] - b * kIm[ i ];
+			im[ i ] = a * kIm[ i ] + b * kRe[ i ];
+		}
+		transform2D( re, im, true );
+
+		final int first = 2 * pair;
+		for( int part = 0; part < 2 && first + part < kernels.length; part++ )
+		{
+			final double scale = scales[ first + part ] / re.length;
+			final double[] source = part == 0 ? re : im;
+			final float[] result = new float[ width * height ];
+			for( int y = 0; y < height; y++ )
+				for( int x = 0; x < width; x++ )
+					result[ x + y * width ] =
+						(float) ( source[ x + padX + ( y + padY ) * fftWidth ] * scale );
+			results[ first + part ] = result;
+		}
+	}
+
+	/**
+	 * 2D FFT (in place), rows first and then columns. The inverse transform
+	 * is not scaled.
+	 */
+	private void transform2D( double[] re, double[] im, boolean inverse )
+	{
+		final double[] lineRe = new double[ Math.max( fftWidth, fftHeight ) ];
+		final double[] lineIm = new double[ lineRe.length ];
+		final double[] outRe = new double[ lineRe.length ];
+		final double[] outIm = new double[ lineRe.length ];
+		for( int y = 0; y < fftHeight; y++ )
+		{
+			final int offset = y * fftWidth;
+			System.arraycopy( re, offset, lineRe, 0, fftWidth );
+			System.arraycopy( im, offset, lineIm, 0, fftWidth );
+			fftX.transform( lineRe, lineIm, outRe, outIm, inverse );
+			System.arraycopy( outRe, 0, re, offset, fftWidth );
+			System.arraycopy( outIm, 0, im, offset, fftWidth );
+		}
+		for( int x = 0; x < fftWidth; x++ )
+		{
+			for( int y = 0; y < fftHeight; y++ )
+			{
+				lineRe[ y ] = re[ x + y * fftWidth ];
+				lineIm[ y ] = im[ x + y * fftWidth ];
+			}
+			fftY.transform( lineRe, lineIm, outRe, outIm, inverse );
+			for( int y = 0; y < fftHeight; y++ )
+			{
+				re[ x + y * fftWidth ] = outRe[ y ];
+				im[ x + y * fftWidth ] = outIm[ y ];
+			}
+		}
+	}
+
+	/**
+	 * Mixed radix (2, 3, 5) complex FFT of a fixed length.
+	 */
+	static class FFT
+	{
+		/** transform length */
+		final int n;
+		/** prime factors of the length */
+		final int[] factors;
+		/** cosine and sine of 2 * PI * i / n */
+		final double[] cos;
+		final double[] sin;
+
+		FFT( int n )
+		{
+			this.n = n;
+			final ArrayList<Integer> f = new ArrayList<Integer>();
+			int m = n;
+			for( int p : new int[]{ 2, 3, 5 } )
+				while( m % p == 0 )
+				{
+					f.add( p );
+					m /= p;
+				}
+			if( m != 1 )
+				throw new IllegalArgumentException( "Unsupported FFT length: " + n );
+			factors = new int[ f.size() ];
+			for( int i = 0; i < factors.length; i++ )
+				factors[ i ] = f.get( i );
+			cos = new double[ n ];
+			sin = new double[ n ];
+			for( int i = 0; i < n; i++ )
+			{
+				cos[ i ] = Math.cos( 2 * Math.PI * i / n );
+				sin[ i ] = Math.sin( 2 * Math.PI * i / n );
+			}
+		}
+
+		/**
+		 * Smallest length not smaller than a given one with no prime
+		 * factors other than 2, 3 and 5.
+		 */
+		static int nextSize( int size )
+		{
+			for( int n = Math.max( 1, size ); ; n++ )
+			{
+				int m = n;
+				for( int p : new int[]{ 2, 3, 5 } )
+					while( m % p == 0 )
+						m /= p;
+				if( m == 1 )
+					return n;
+			}
+		}
+
+		/**
+		 * Transform a sequence (the input arrays are not modified).
+		 */
+		void transform( double[] inRe, double[] inIm, double[] outRe, double[] outIm, boolean inverse )
+		{
+			transform( inRe, inIm, 0, 1, outRe, outIm, 0, n, 0, inverse ? -1 : 1 );
+		}
+
+		/**
+		 * Recursive decimation in time step: transform the n elements of
+		 * the input starting at inOffset with the given stride.
+		 */
+		private void transform(
+				double[] inRe, double[] inIm, int inOffset, int stride,
+				double[] outRe, double[] outIm, int outOffset,
+				int length, int factor, int sign )
+		{
+			if( length == 1 )
+			{
+				outRe[ outOffset ] = inRe[ inOffset ];
+				outIm[ outOffset ] = inIm[ inOffset ];
+				return;
+			}
+			final int p = factors[ factor ];
+			final int m = length / p;
+			// transform the p decimated subsequences
+			for( int q = 0; q < p; q++ )
+				transform( inRe, inIm, inOffset + q * stride, stride * p,
+						outRe, outIm, outOffset + q * m, m, factor + 1, sign );
+
+			// combine them with butterflies of radix p
+			final int step = n / length;
+			final double[] tRe = new double[ p ];
+			final double[] tIm = new double[ p ];
+			for( int k = 0; k < m; k++ )
+			{
+				// twiddled inputs of the butterfly
+				for( int q = 0; q < p; q++ )
+				{
+					final int w = ( q * k * step ) % n;
+					final double c = cos[ w ], s = -sign * sin[ w ];
+					final double re = outRe[ outOffset + q * m + k ];
+					final double im = outIm[ outOffset + q * m + k ];
+					tRe[ q ] = re * c - im * s;
+					tIm[ q ] = re * s + im * c;
+				}
+				for( int r = 0; r < p; r++ )
+				{
+					double sumRe = 0, sumIm = 0;
+					for( int q = 0; q < p; q++ )
+					{
+						final int w = ( q * r * m * step ) % n;
+						final double c = cos[ w ], s = -sign * sin[ w ];
+						sumRe += tRe[ q ] * c - tIm[ q ] * s;
+						sumIm += tRe[ q ] * s + tIm[ q ] * c;
+					}
+					outRe[ outOffset + r * m + k ] = sumRe;
+					outIm[ outOffset + r * m + k ] = sumIm;
+				}
+			}
+		}
+	}
+}
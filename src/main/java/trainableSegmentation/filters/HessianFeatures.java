@@ -0,0 +1,275 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package trainableSegmentation.filters;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Features of the Hessian matrix of a (blurred) 2D image: module, trace,
+ * determinant, eigenvalues, orientation, square eigenvalue difference and
+ * normalized eigenvalue difference.
+ * <p>
+ * The second derivatives are the Sobel derivatives of the Sobel derivatives
+ * of the image, with the same edge handling (replicated edge pixels) and
+ * rounding as ImageJ's Convolver, so the features are identical to
+ * convolving the image four times. All of them are computed in a single
+ * pass over the rows, keeping only the first derivatives of three rows in
+ * memory.
+ */
+public class HessianFeatures
+{
+	/** number of features */
+	public static final int NUM_FEATURES = 8;
+
+	/** Sobel kernels (correlation, as in ImageJ's Convolver) */
+	private static final float[] SOBEL_X = {1f,2f,1f,0f,0f,0f,-1f,-2f,-1f};
+	private static final float[] SOBEL_Y = {1f,0f,-1f,2f,0f,-2f,1f,0f,-1f};
+
+	private HessianFeatures()
+	{
+	}
+
+	/**
+	 * Compute the Hessian features of an image.
+	 *
+	 * @param pixels image pixels (row by row), already blurred
+	 * @param width image width
+	 * @param height image height
+	 * @param oldHessianFormat use the old (wrong) formula of the eigenvalues
+	 * @param numThreads number of threads to use (each one processes a band of rows)
+	 * @return module, trace, determinant, first eigenvalue, second eigenvalue,
+	 * orientation, square eigenvalue difference and normalized eigenvalue
+	 * difference (row by row)
+	 */
+	public static float[][] compute(
+			final float[] pixels,
+			final int width,
+			final int height,
+			final boolean oldHessianFormat,
+			final int numThreads )
+	{
+		final float[][] features = new float[ NUM_FEATURES ][ width * height ];
+		final int bands = Math.max( 1, Math.min( numThreads, height ) );
+		if( bands == 1 )
+		{
+			computeRows( pixels, width, height, oldHessianFormat, features, 0, height );
+			return features;
+		}
+
+		final ExecutorService exe = Executors.newFixedThreadPool( bands );
+		try{
+			final ArrayList< Future<?> > futures = new ArrayList< Future<?> >();
+			for( int b = 0; b < bands; b++ )
+			{
+				final int firstRow = b * height / bands;
+				final int lastRow = ( b + 1 ) * height / bands;
+				futures.add( exe.submit( new Runnable(){
+					public void run()
+					{
+						computeRows( pixels, width, height, oldHessianFormat, features, firstRow, lastRow );
+					}
+				}));
+			}
+			for( Future<?> f : futures )
+				f.get();
+		}
+		catch( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( "Interrupted while computing Hessian features", e );
+		}
+		catch( ExecutionException e )
+		{
+			throw new RuntimeException( e.getCause() );
+		}
+		finally{
+			exe.shutdown();
+		}
+		return features;
+	}
+
+	/**
+	 * Compute the features of a band of rows.
+	 */
+	private static void computeRows(
+			final float[] pixels,
+			final int width,
+			final int height,
+			final boolean oldHessianFormat,
+			final float[][] features,
+			final int firstRow,
+			final int lastRow )
+	{
+		// first derivatives of the rows y-1, y and y+1 (in row % 3)
+		final float[][] dx = new float[ 3 ][ width ];
+		final float[][] dy = new float[ 3 ][ width ];
+		final float[] xx = new float[ width ];
+		final float[] xy = new float[ width ];
+		final float[] yy = new float[ width ];
+
+		final float[] module = features[ 0 ];
+		final float[] traces = features[ 1 ];
+		final float[] determinants = features[ 2 ];
+		final float[] eigenvalues1 = features[ 3 ];
+		final float[] eigenvalues2 = features[ 4 ];
+		final float[] orientations = features[ 5 ];
+		final float[] sed = features[ 6 ];
+		final float[] ned = features[ 7 ];
+
+		final double t = Math.pow(1, 0.75);
+		final double t2 = Math.pow(t,2);
+		final double t4 = Math.pow(t,4);
+
+		if( firstRow > 0 )
+			derivativeRows( pixels, width, height, firstRow - 1, dx, dy );
+		derivativeRows( pixels, width, height, firstRow, dx, dy );
+
+		for( int y = firstRow; y < lastRow; y++ )
+		{
+			if( y + 1 < height )
+				derivativeRows( pixels, width, height, y + 1, dx, dy );
+
+			// second derivatives: Sobel of the first derivatives
+			convolveRow( dx, width, height, y, SOBEL_X, xx );
+			convolveRow( dx, width, height, y, SOBEL_Y, xy );
+			convolveRow( dy, width, height, y, SOBEL_Y, yy );
+
+			for( int x = 0, i = y * width; x < width; x++, i++ )
+			{
+				// a
+				final float s_xx = xx[ x ];
+				// b, c
+				final float s_xy = xy[ x ];
+				// d
+				final float s_yy = yy[ x ];
+				// Hessian module: sqrt (a^2 + b*c + d^2)
+				module[ i ] = (float) Math.sqrt(s_xx*s_xx + s_xy*s_xy+ s_yy*s_yy);
+				// Trace: a + d
+				final float trace = s_xx + s_yy;
+				traces[ i ] = trace;
+				// Determinant: a*d - c*b
+				determinants[ i ] = s_xx*s_yy-s_xy*s_xy;
+
+				// First and second eigenvalues
+				if( oldHessianFormat )
+				{
+					// (a + d) / 2 +- sqrt( ( 4*b^2 + (a - d)^2) / 2 )
+					eigenvalues1[ i ] = (float) ( trace/2.0 + Math.sqrt((4*s_xy*s_xy + (s_xx - s_yy)*(s_xx - s_yy)) / 2.0 ) );
+					eigenvalues2[ i ] = (float) ( trace/2.0 - Math.sqrt((4*s_xy*s_xy + (s_xx - s_yy)*(s_xx - s_yy)) / 2.0 ) );
+				}
+				else
+				{
+					// (a + d +- sqrt( ( 4*b^2 + (a - d)^2 ) ) / 2
+					eigenvalues1[ i ] = (float) ( trace + Math.sqrt((4*s_xy*s_xy + (s_xx - s_yy)*(s_xx - s_yy)) ) ) / 2;
+					eigenvalues2[ i ] = (float) ( trace - Math.sqrt((4*s_xy*s_xy + (s_xx - s_yy)*(s_xx - s_yy)) ) ) / 2;
+				}
+				// Orientation: +-0.5 * acos( (a-d) / sqrt( 4*b^2 + (a - d)^2)) )
+				float orientation = (float)( ( s_xy < 0.0 ? -0.5 : 0.5 ) * Math.acos((s_xx	- s_yy)
+						/ Math.sqrt(4.0 * s_xy * s_xy + (s_xx - s_yy) * (s_xx - s_yy)) ));
+				if (Float.isNaN(orientation))
+					orientation = 0;
+				orientations[ i ] = orientation;
+				// Gamma-normalized square eigenvalue difference
+				sed[ i ] = (float) ( t4 * trace*trace * ( (s_xx - s_yy)*(s_xx - s_yy) + 4*s_xy*s_xy ) );
+				// Square of Gamma-normalized eigenvalue difference
+				ned[ i ] = (float) ( t2 * ( (s_xx - s_yy)*(s_xx - s_yy) + 4*s_xy*s_xy ) );
+			}
+		}
+	}
+
+	/**
+	 * Compute the Sobel derivatives of a row of the image into the buffers
+	 * of that row.
+	 */
+	private static void derivativeRows(
+			final float[] pixels,
+			final int width,
+			final int height,
+			final int y,
+			final float[][] dx,
+			final float[][] dy )
+	{
+		final float[] rowX = dx[ y % 3 ];
+		final float[] rowY = dy[ y % 3 ];
+		final int above = Math.max( y - 1, 0 ) * width;
+		final int center = y * width;
+		final int below = Math.min( y + 1, height - 1 ) * width;
+		for( int x = 0; x < width; x++ )
+		{
+			final int left = Math.max( x - 1, 0 );
+			final int right = Math.min( x + 1, width - 1 );
+			rowX[ x ] = sobel( pixels, above + left, above + x, above + right,
+					center + left, center + x, center + right,
+					below + left, below + x, below + right, SOBEL_X );
+			rowY[ x ] = sobel( pixels, above + left, above + x, above + right,
+					center + left, center + x, center + right,
+					below + left, below + x, below + right, SOBEL_Y );
+		}
+	}
+
+	/**
+	 * Convolve a row of a derivative (kept in the buffers of the rows y-1,
+	 * y and y+1) with a Sobel kernel.
+	 */
+	private static void convolveRow(
+			final float[][] rows,
+			final int width,
+			final int height,
+			final int y,
+			final float[] kernel,
+			final float[] out )
+	{
+		final float[] above = rows[ Math.max( y - 1, 0 ) % 3 ];
+		final float[] center = rows[ y % 3 ];
+		final float[] below = rows[ Math.min( y + 1, height - 1 ) % 3 ];
+		for( int x = 0; x < width; x++ )
+		{
+			final int left = Math.max( x - 1, 0 );
+			final int right = Math.min( x + 1, width - 1 );
+			out[ x ] = (float) ( (double) ( above[ left ] * kernel[ 0 ] ) + above[ x ] * kernel[ 1 ]
+					+ above[ right ] * kernel[ 2 ] + center[ left ] * kernel[ 3 ]
+					+ center[ x ] * kernel[ 4 ] + center[ right ] * kernel[ 5 ]
+					+ below[ left ] * kernel[ 6 ] + below[ x ] * kernel[ 7 ]
+					+ below[ right ] * kernel[ 8 ] );
+		}
+	}
+
+	/**
+	 * 3x3 correlation at one pixel, accumulated in double in the order of
+	 * ImageJ's Convolver.
+	 */
+	private static float sobel(
+			final float[] p,
+			final int i0, final int i1, final int i2,
+			final int i3, final int i4, final int i5,
+			final int i6, final int i7, final int i8,
+			final float[] k )
+	{
+		return (float) ( (double) ( p[ i0 ] * k[ 0 ] ) + p[ i1 ] * k[ 1 ] + p[ i2 ] * k[ 2 ]
+				+ p[ i3 ] * k[ 3 ] + p[ i4 ] * k[ 4 ] + p[ i5 ] * k[ 5 ]
+				+ p[ i6 ] * k[ 6 ] + p[ i7 ] * k[ 7 ] + p[ i8 ] * k[ 8 ] );
+	}
+}
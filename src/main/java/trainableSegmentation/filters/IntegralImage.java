@@ -0,0 +1,204 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package trainableSegmentation.filters;
+
+import java.util.ArrayList;
+
+/**
+ * Summed-area tables of the values and the squared values of a 2D image,
+ * extended beyond its borders by replicating the edge pixels. The sum (or
+ * sum of squares) of any rectangle of the extended image is obtained in
+ * constant time, so window statistics (mean, variance) cost the same for
+ * any window size.
+ * <p>
+ * Windows of any shape are handled by decomposing them into runs of pixels
+ * along the rows (see {@link #createRuns(float[], int, int)}).
+ */
+public class IntegralImage
+{
+	/** image width */
+	private final int width;
+	/** image height */
+	private final int height;
+	/** number of pixels the image is extended on each side */
+	private final int pad;
+	/** width of the tables (one more than the extended image) */
+	private final int stride;
+	/** sums of the values above and to the left of each position */
+	private final double[] sums;
+	/** sums of the squared values above and to the left of each position */
+	private final double[] sumsOfSquares;
+
+	/**
+	 * Build the tables of an image.
+	 *
+	 * @param pixels image pixels (row by row)
+	 * @param width image width
+	 * @param height image height
+	 * @param pad number of pixels the image is extended on each side
+	 * (largest distance to the border of the windows to sum)
+	 */
+	public IntegralImage( final float[] pixels, final int width, final int height, final int pad )
+	{
+		this.width = width;
+		this.height = height;
+		this.pad = pad;
+		this.stride = width + 2 * pad + 1;
+		final int rows = height + 2 * pad + 1;
+		sums = new double[ stride * rows ];
+		sumsOfSquares = new double[ stride * rows ];
+
+		for( int y = 1; y < rows; y++ )
+		{
+			final int offset = clamp( y - 1 - pad, height ) * width;
+			double rowSum = 0, rowSumOfSquares = 0;
+			for( int x = 1; x < stride; x++ )
+			{
+				final double v = pixels[ offset + clamp( x - 1 - pad, width ) ];
+				rowSum += v;
+				rowSumOfSquares += v * v;
+				final int i = x + y * stride;
+				sums[ i ] = sums[ i - stride ] + rowSum;
+				sumsOfSquares[ i ] = sumsOfSquares[ i - stride ] + rowSumOfSquares;
+			}
+		}
+	}
+
+	private static int clamp( int x, int size )
+	{
+		return x < 0 ? 0 : ( x >= size ? size - 1 : x );
+	}
+
+	/**
+	 * Sum of the values of a rectangle (corners included), in coordinates of
+	 * the original image. The rectangle may extend up to the padding beyond
+	 * the image borders.
+	 */
+	public double sum( int x0, int y0, int x1, int y1 )
+	{
+		return rectangle( sums, x0, y0, x1, y1 );
+	}
+
+	/**
+	 * Sum of the squared values of a rectangle (corners included), in
+	 * coordinates of the original image. The rectangle may extend up to the
+	 * padding beyond the image borders.
+	 */
+	public double sumOfSquares( int x0, int y0, int x1, int y1 )
+	{
+		return rectangle( sumsOfSquares, x0, y0, x1, y1 );
+	}
+
+	private double rectangle( double[] table, int x0, int y0, int x1, int y1 )
+	{
+		final int left = x0 + pad;
+		final int right = x1 + pad + 1;
+		final int top = ( y0 + pad ) * stride;
+		final int bottom = ( y1 + pad + 1 ) * stride;
+		return table[ right + bottom ] - table[ left + bottom ]
+				- table[ right + top ] + table[ left + top ];
+	}
+
+	/**
+	 * Run of consecutive pixels of the same weight along a row of a window.
+	 */
+	public static class Run
+	{
+		/** first X offset from the window center */
+		public final int first;
+		/** last X offset from the window center */
+		public final int last;
+		/** Y offset from the window center */
+		public final int row;
+		/** weight of the pixels */
+		public final double weight;
+
+		public Run( int first, int last, int row, double weight )
+		{
+			this.first = first;
+			this.last = last;
+			this.row = row;
+			this.weight = weight;
+		}
+	}
+
+	/**
+	 * Weighted sums of the values and the squared values of a window
+	 * centered at every pixel of the image.
+	 *
+	 * @param runs runs of the window (see {@link #createRuns(float[], int, int)})
+	 * @param windowSums output weighted sums of the values (row by row)
+	 * @param windowSumsOfSquares output weighted sums of the squared values (row by row)
+	 */
+	public void windowSums( final Run[] runs, final float[] windowSums,
+			final float[] windowSumsOfSquares )
+	{
+		for( int y = 0; y < height; y++ )
+			for( int x = 0; x < width; x++ )
+			{
+				double sum = 0, sumOfSquares = 0;
+				for( Run run : runs )
+				{
+					final int yy = y + run.row;
+					sum += run.weight * sum( x + run.first, yy, x + run.last, yy );
+					sumOfSquares += run.weight * sumOfSquares( x + run.first, yy, x + run.last, yy );
+				}
+				windowSums[ x + y * width ] = (float) sum;
+				windowSumsOfSquares[ x + y * width ] = (float) sumOfSquares;
+			}
+	}
+
+	/**
+	 * Decompose a kernel into runs of consecutive pixels of the same
+	 * (non-zero) weight along its rows.
+	 *
+	 * @param kernel kernel values (row by row)
+	 * @param kernelWidth kernel width (odd)
+	 * @param kernelHeight kernel height (odd)
+	 * @return runs of the kernel, with offsets from its center
+	 */
+	public static Run[] createRuns( final float[] kernel, final int kernelWidth, final int kernelHeight )
+	{
+		final int cx = ( kernelWidth - 1 ) / 2;
+		final int cy = ( kernelHeight - 1 ) / 2;
+		final ArrayList<Run> runs = new ArrayList<Run>();
+		for( int v = 0; v < kernelHeight; v++ )
+		{
+			int u = 0;
+			while( u < kernelWidth )
+			{
+				final float weight = kernel[ u + v * kernelWidth ];
+				if( weight == 0 )
+				{
+					u++;
+					continue;
+				}
+				final int first = u;
+				while( u + 1 < kernelWidth && kernel[ u + 1 + v * kernelWidth ] == weight )
+					u++;
+				runs.add( new Run( first - cx, u - cx, v - cy, weight ) );
+				u++;
+			}
+		}
+		return runs.toArray( new Run[ runs.size() ] );
+	}
+}
@@ -0,0 +1,324 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package trainableSegmentation.filters;
+
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import trainableSegmentation.MemoryEstimate;
+
+/**
+ * Process-wide cache of filter kernels (and the filters built from them,
+ * such as {@link FFTConvolver}s with their kernel spectra), so the same
+ * kernels are not rebuilt for every slice or image that is filtered with
+ * the same parameters.
+ * <p>
+ * Entries are identified by the filter name and parameters (see
+ * {@link #key(Object...)}) and evicted in least recently used order once
+ * the memory they take exceeds the capacity of the cache. The shared cache
+ * sizes its capacity from the available memory, so the spectra of the
+ * filters of large images (hundreds of MB) are kept from one slice to the
+ * next. A value that was just computed is never evicted by its own
+ * insertion, as its caller is using it anyway. Concurrent requests of the
+ * same missing entry compute it only once. Cached values are shared, so
+ * they must not be modified.
+ * <p>
+ * Computed values are only softly referenced: the garbage collector
+ * releases them before running out of memory, so the cache never keeps
+ * memory a classification or training run needs, and {@link
+ * MemoryEstimate#getAvailableMemory(double)} counts their memory as
+ * available.
+ */
+public final class KernelCache
+{
+	/** default capacity of the cache (in bytes), and minimum capacity of
+	 * caches sized from the available memory */
+	public static final long DEFAULT_CAPACITY = 64L << 20;
+	/** fraction of the available memory (including the memory of the
+	 * cached values) taken by caches sized from the available memory */
+	public static final double MAX_MEMORY_FRACTION = 0.25;
+
+	/** cache shared by all filters, sized from the available memory */
+	private static final KernelCache INSTANCE = new KernelCache( 0 );
+
+	/** entries in access order (least recently used first) */
+	private final LinkedHashMap< List<Object>, Entry > entries =
+			new LinkedHashMap< List<Object>, Entry >( 16, 0.75f, true );
+	/** maximum memory taken by the cached values (in bytes) */
+	private long capacity;
+	/** memory taken by the cached values (in bytes) */
+	private long size = 0;
+
+	/**
+	 * Cached value, computed by the first thread that requests it. Once it
+	 * is computed, the entry is replaced by one that only keeps a soft
+	 * reference to the value.
+	 */
+	private static class Entry
+	{
+		/** computation of the value (null once it is computed) */
+		final FutureTask<Object> task;
+		/** computed value (null while it is being computed) */
+		final SoftReference<Object> value;
+		/** size of the value, -1 while it is being computed */
+		final long size;
+
+		Entry( Callable<Object> factory )
+		{
+			task = new FutureTask<Object>( factory );
+			value = null;
+			size = -1;
+		}
+
+		Entry( Object value )
+		{
+			task = null;
+			this.value = new SoftReference<Object>( value );
+			size = sizeOf( value );
+		}
+	}
+
+	/**
+	 * Create a cache.
+	 * @param capacity maximum memory taken by the cached values (in bytes),
+	 * or 0 to size it from the available memory
+	 */
+	public KernelCache( long capacity )
+	{
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Get the cache shared by all filters.
+	 * @return process-wide kernel cache
+	 */
+	public static KernelCache getInstance()
+	{
+		return INSTANCE;
+	}
+
+	/**
+	 * Build the key of a cached value.
+	 * @param params filter name and parameters (the values must implement equals)
+	 * @return key for {@link #get(List, Callable)}
+	 */
+	public static List<Object> key( Object... params )
+	{
+		return Arrays.asList( params );
+	}
+
+	/**
+	 * Get a cached value, computing it if it is not in the cache.
+	 *
+	 * @param key filter name and parameters (see {@link #key(Object...)})
+	 * @param factory computes the value if it is not cached (it can be a
+	 * float[], a float[][] or an {@link FFTConvolver})
+	 * @return cached value
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T get( final List<Object> key, final Callable<T> factory )
+	{
+		final Entry entry;
+		boolean owner = false;
+		synchronized( this )
+		{
+			Entry e = entries.get( key );
+			if( null != e && null == e.task )
+			{
+				final Object value = e.value.get();
+				if( null != value )
+					return (T) value;
+				// released by the garbage collector
+				entries.remove( key );
+				size -= e.size;
+				e = null;
+			}
+			if( null == e )
+			{
+				e = new Entry( (Callable<Object>) factory );
+				entries.put( key, e );
+				owner = true;
+			}
+			entry = e;
+		}
+
+		if( owner )
+		{
+			entry.task.run();
+			synchronized( this )
+			{
+				try{
+					final Entry computed = new Entry( entry.task.get() );
+					if( entries.get( key ) == entry )
+					{
+						entries.put( key, computed );
+						size += computed.size;
+						evict( computed );
+					}
+				}
+				catch( Exception e )
+				{
+					// do not keep failed computations
+					if( entries.get( key ) == entry )
+						entries.remove( key );
+				}
+			}
+		}
+
+		try{
+			return (T) entry.task.get();
+		}
+		catch( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( "Interrupted while waiting for kernel " + key, e );
+		}
+		catch( ExecutionException e )
+		{
+			throw new RuntimeException( "Error while computing kernel " + key, e.getCause() );
+		}
+	}
+
+	/**
+	 * Set the capacity of the cache, evicting entries if necessary.
+	 * @param capacity maximum memory taken by the cached values (in bytes),
+	 * or 0 to size it from the available memory
+	 */
+	public synchronized void setCapacity( long capacity )
+	{
+		this.capacity = capacity;
+		evict( null );
+	}
+
+	/**
+	 * Get the capacity of the cache. If it is sized from the available
+	 * memory, it is a fraction of the memory available now plus the memory
+	 * of the cached values, and never less than {@link #DEFAULT_CAPACITY}.
+	 * @return maximum memory taken by the cached values (in bytes)
+	 */
+	public synchronized long getCapacity()
+	{
+		if( capacity > 0 )
+			return capacity;
+		// the available memory includes the memory of the cached values
+		final long available = MemoryEstimate.getAvailableMemory( 1.0 );
+		return Math.max( DEFAULT_CAPACITY, (long) ( MAX_MEMORY_FRACTION * available ) );
+	}
+
+	/**
+	 * Get the memory taken by the cached values.
+	 * @return approximate size in bytes
+	 */
+	public synchronized long getSize()
+	{
+		purge();
+		return size;
+	}
+
+	/**
+	 * Get the number of cached values (including the ones being computed).
+	 * @return number of entries
+	 */
+	public synchronized int getNumEntries()
+	{
+		purge();
+		return entries.size();
+	}
+
+	/**
+	 * Remove all computed values from the cache.
+	 */
+	public synchronized void clear()
+	{
+		final Iterator< Entry > it = entries.values().iterator();
+		while( it.hasNext() )
+			if( null == it.next().task )
+				it.remove();
+		size = 0;
+	}
+
+	/**
+	 * Remove the values released by the garbage collector.
+	 */
+	private void purge()
+	{
+		final Iterator< Entry > it = entries.values().iterator();
+		while( it.hasNext() )
+		{
+			final Entry e = it.next();
+			if( null == e.task && null == e.value.get() )
+			{
+				size -= e.size;
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Remove the least recently used values until the cache fits in its
+	 * capacity. Values still being computed are kept.
+	 *
+	 * @param inserted value that was just computed, kept even if it does
+	 * not fit alone in the cache (null if none)
+	 */
+	private void evict( Entry inserted )
+	{
+		purge();
+		final long capacity = getCapacity();
+		final Iterator< Map.Entry< List<Object>, Entry > > it = entries.entrySet().iterator();
+		while( size > capacity && it.hasNext() )
+		{
+			final Entry e = it.next().getValue();
+			if( null == e.task && e != inserted )
+			{
+				size -= e.size;
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Estimate the memory taken by a cached value.
+	 */
+	private static long sizeOf( Object value )
+	{
+		if( value instanceof float[] )
+			return 4L * ( (float[]) value ).length;
+		if( value instanceof float[][] )
+		{
+			long s = 0;
+			for( float[] a : (float[][]) value )
+				s += 4L * a.length;
+			return s;
+		}
+		if( value instanceof FFTConvolver )
+			return ( (FFTConvolver) value ).getMemorySize();
+		throw new IllegalArgumentException( "Unsupported kernel type: " + value.getClass() );
+	}
+}
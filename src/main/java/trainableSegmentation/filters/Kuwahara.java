@@ -31,9 +31,19 @@ import ij.plugin.filter.PlugInFilter;
 import ij.process.Blitter;
 import ij.process.ImageProcessor;
 
+import java.util.concurrent.Callable;
+
 
 /**
  * A version of the Kuwahara filter that uses linear kernels rather than square ones.
+ * <p>
+ * The window sums come from summed-area tables accumulated in double
+ * precision (see {@link IntegralImage}), while earlier versions accumulated
+ * them in float. The sums differ by float rounding only, but where the
+ * criteria of two positions along a line are nearly equal the selected
+ * position, and thus the output value, can change. The Kuwahara features
+ * are therefore not identical to the ones of earlier versions, and
+ * classifiers trained with those should be trained again.
  *
  * This plugin is licensed under the GNU Public License v2 or later.
  *
@@ -99,9 +109,39 @@ public class Kuwahara  implements PlugInFilter
 	}
 	
 	/**
-	 * create the convolution kernel
+	 * create the convolution kernel (the kernel pixels are taken from the
+	 * kernel cache when possible, so they must not be modified)
 	 */
-	public ImageStack createKernel(int size, int nAngles) 
+	public ImageStack createKernel(final int size, final int nAngles) 
+	{
+		final float[][] rotLineStack = KernelCache.getInstance().get(
+				KernelCache.key( "Kuwahara kernels", size, nAngles ),
+				new Callable<float[][]>(){
+					public float[][] call()
+					{
+						return createKernelPixels( size, nAngles );
+					}
+				});
+
+		// create an empty imStack that will contain pointers to rotLineStack
+		ImageStack imsKernel = new ImageStack(size, size);
+		for(int iAngle=0; iAngle<nAngles; iAngle++)
+			imsKernel.addSlice("kernel", rotLineStack[iAngle]);
+
+		// display kernels (just for checking)
+		if (showKernels) 
+		{
+			ImagePlus impKernel = new ImagePlus("Kernels", imsKernel);
+			impKernel.show();
+		}
+
+		return imsKernel; // basically a pointer array to 'rotLineStack'
+	}
+
+	/**
+	 * create the pixels of the convolution kernel (one line per angle)
+	 */
+	private static float[][] createKernelPixels(int size, int nAngles) 
 	{
 
 		int x1,y1;
@@ -125,9 +165,6 @@ public class Kuwahara  implements PlugInFilter
 		ImagePlus impLineRotated = NewImage.createShortImage("imLineRot",sizeTemp, sizeTemp ,1,NewImage.FILL_BLACK);
 		ImageProcessor ipLineRotated = impLineRotated.getProcessor();
 
-		// create an empty imStack that will contain pointers to rotLineStack
-		ImageStack imsKernel = new ImageStack(size, size);
-
 		// this is the place where the data is really stored
 		float[][] rotLineStack = new float[nAngles][size*size];
 
@@ -147,24 +184,15 @@ public class Kuwahara  implements PlugInFilter
 					i++;
 				}
 			}
-
-			// set pointer in imsKernel to the value stored in rotLineStack
-			imsKernel.addSlice("kernel", (float[]) rotLineStack[iAngle]);
 		}
 
-		// display kernels (just for checking)
-		if (showKernels) 
-		{
-			ImagePlus impKernel = new ImagePlus("Kernels", imsKernel);
-			impKernel.show();
-		}
-
-		return imsKernel; // basically a pointer array to 'rotLineStack'
+		return rotLineStack;
 	}
 
 
 	/**
-	 * Apply Kuwahara filter to input image
+	 * Apply Kuwahara filter to input image (with window sums in double
+	 * precision, see the class description)
 	 * 
 	 * @param ipData
 	 * @param imsKernels
@@ -172,8 +200,7 @@ public class Kuwahara  implements PlugInFilter
 	public void filter(ImageProcessor ipData, ImageStack imsKernels) 
 	{
 
-		float[][] im = new float[imW][imH];
-		float[][] imSquare= new float[imW][imH];
+		float[] im = new float[imW*imH];
 
 		int x1, y1;
 		float kernelSum = 0;
@@ -181,17 +208,19 @@ public class Kuwahara  implements PlugInFilter
 		ipData.resetMinAndMax();  // this is important because "ip.getMin();" returns the smallest displayed(!!) number.
 		float imMin =  (float) ipData.getMin();
 
-		// subtract the minimum and
-		// store square and value of image in integer arrays
+		// subtract the minimum
 		for (x1=0; x1<imW; x1++) 
 		{
 			for (y1=0; y1<imH; y1++) 
 			{
-				im[x1][y1]=ipData.getf(x1, y1)-imMin; // substraction of the minimum (offset) is necessary for the poisson statistics
-				imSquare[x1][y1]=im[x1][y1]*im[x1][y1];
+				im[x1+y1*imW]=ipData.getf(x1, y1)-imMin; // substraction of the minimum (offset) is necessary for the poisson statistics
 			}
 		}
 
+		// summed-area tables of the values and their squares, so the sums
+		// over each kernel cost the same for any kernel size
+		final IntegralImage integral = new IntegralImage(im, imW, imH, Math.max((kW-1)/2, (kH-1)/2));
+
 		float[][] imSum = new float[imW][imH];
 		float[][] imSumOfSquares = new float[imW][imH];
 		float[][] value = new float[imW][imH];
@@ -223,7 +252,7 @@ public class Kuwahara  implements PlugInFilter
 			//final ImageProcessor ipSquare = new FloatProcessor(imSquare);
 			//(new ImagePlus("imSquare", ipSquare)).show();
 			
-			convolve2(im, imSquare, imSum, imSumOfSquares, pixelsKernel);
+			convolve2(integral, imSum, imSumOfSquares, pixelsKernel);
 		
 			//convolve(ip, ipSquare, pixelsKernel);
 			
@@ -277,42 +306,22 @@ try{
 	}
 
 
-	// convolves 2 images at the same time (for gain of speed)
-	// normalises the results the sum of the kernel
-	void convolve2(float[][] im1, float[][] im2, float[][] im1Conv, float[][] im2Conv, float[] pixelsKernel) 
+	// convolves the image and its square at the same time (for gain of speed)
+	// with a kernel decomposed into runs along its rows, each of them
+	// summed in constant time from the summed-area tables
+	void convolve2(IntegralImage integral, float[][] im1Conv, float[][] im2Conv, float[] pixelsKernel) 
 	{
+		final IntegralImage.Run[] runs = IntegralImage.createRuns(pixelsKernel, kW, kH);
+		final float[] sum1 = new float[imW*imH];
+		final float[] sum2 = new float[imW*imH];
+		integral.windowSums(runs, sum1, sum2);
 
-		int x1min,x1max,y1min,y1max;
-		int x2min,x2max,y2min,y2max;
-
-		x1min=0; //(kW-1)/2; 
-		x1max=imW-1;// -(kW-1)/2-1;
-		y1min=0; //(kH-1)/2; 
-		y1max=imH-1; //-(kH-1)/2-1;
-
-		float sum1=0,sum2=0;
-		int i=0;
-	
-		for (int x1=x1min; x1<=x1max; x1++) 
+		for (int x1=0; x1<imW; x1++) 
 		{
-			for (int y1=y1min; y1<=y1max; y1++) 
+			for (int y1=0; y1<imH; y1++) 
 			{
-				x2min=x1-(kW-1)/2; x2max=x1+ (kW-1)/2;
-				y2min=y1-(kH-1)/2; y2max=y1+ (kH-1)/2;
-				sum1=0;
-				sum2=0;
-				i=0;
-				for (int y2=y2min; y2<=y2max; y2++) 
-				{
-					for (int x2=x2min; x2<=x2max; x2++) 
-					{
-						sum1 += getPixel(x2, y2, im1, imW, imH)* pixelsKernel[i]; //im1[x2][y2]*pixelsKernel[i];
-						sum2 += getPixel(x2, y2, im2, imW, imH)* pixelsKernel[i]; //im2[x2][y2]*pixelsKernel[i];
-						i++;
-					} // y2
-				} // x2
-				im1Conv[x1][y1]=sum1;
-				im2Conv[x1][y1]=sum2;
+				im1Conv[x1][y1]=sum1[x1+y1*imW];
+				im2Conv[x1][y1]=sum2[x1+y1*imW];
 			} // y1
 		} // x1
 	}
@@ -378,14 +387,28 @@ try{
 			float[][] resultCriterion) 
 	{
 		int x1min,x1max,y1min,y1max;
-		int x2min,x2max,y2min,y2max;
 
 		x1min=0;//(kW-1)/2; 
 		x1max=imW-1; //-(kW-1)/2-1;
 		y1min=0; //(kH-1)/2; 
 		y1max=imH-1; //-(kH-1)/2-1;
 
-		int sum1,sum2,n,i;
+		// offsets of the kernel pixels (in scanning order), so only the
+		// pixels of the line are visited
+		int numPixels = 0;
+		for (int i=0; i<kW*kH; i++)
+			if( pixelsKernel[i] > 0 )
+				numPixels++;
+		final int[] offsetX = new int[numPixels];
+		final int[] offsetY = new int[numPixels];
+		numPixels = 0;
+		for (int i=0; i<kW*kH; i++)
+			if( pixelsKernel[i] > 0 )
+			{
+				offsetX[numPixels] = i % kW - (kW-1)/2;
+				offsetY[numPixels] = i / kW - (kH-1)/2;
+				numPixels++;
+			}
 
 		int x1minPos,y1minPos;
 		float min;
@@ -394,32 +417,22 @@ try{
 		{
 			for (int y1=y1min; y1<=y1max; y1++) 
 			{
-				x2min=x1-(kW-1)/2; 
-				x2max=x1+(kW-1)/2;
-				y2min=y1-(kH-1)/2; 
-				y2max=y1+(kH-1)/2;
-				i=0;
-				n=0;
 				min = Float.MAX_VALUE; 
 				x1minPos = x1; 
 				y1minPos = y1;
-				for (int y2=y2min; y2<=y2max; y2++) 
+				for (int k=0; k<numPixels; k++) 
 				{
-					for (int x2=x2min; x2<=x2max; x2++) 
+					// searches for minimal criterion along the lines in the kernels (=shifting)
+					final int x2 = x1 + offsetX[k];
+					final int y2 = y1 + offsetY[k];
+					final float criterionPixel = getPixel(x2, y2, criterion, imW, imH); 
+					if( criterionPixel < min) 
 					{
-						if( pixelsKernel[i++] > 0 ) 
-						{    // searches for minimal criterion along the lines in the kernels (=shifting)
-							final float criterionPixel = getPixel(x2, y2, criterion, imW, imH); 
-							if( criterionPixel < min) 
-							{
-								min=criterionPixel;
-								x1minPos=x2;
-								y1minPos=y2;
-								n++;
-							}
-						}
-					} // y2
-				} // x2
+						min=criterionPixel;
+						x1minPos=x2;
+						y1minPos=y2;
+					}
+				}
 				result[x1][y1] = getPixel(x1minPos, y1minPos, value, imW, imH);
 				resultCriterion[x1][y1] = min;
 			} // y1
@@ -0,0 +1,285 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package trainableSegmentation.filters;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Lipschitz covers of an 8-bit image for several slopes at once, identical
+ * to {@link Lipschitz_#Lipschitz2D(ij.process.ImageProcessor)} applied with
+ * each slope.
+ * <p>
+ * A cover is computed with a forward and a backward sweep over the rows.
+ * Each pixel of a sweep depends on its neighbor in the row and on three
+ * pixels of the previous row, so the columns are split into bands swept as
+ * a wavefront: a band starts a row as soon as the band before it finished
+ * that row and the band after it finished the previous one. All slopes are
+ * updated in the same sweep, so the image is read once.
+ */
+public class LipschitzEnvelope
+{
+	/** minimum width of the bands of columns */
+	private static final int MIN_BAND_WIDTH = 64;
+
+	private LipschitzEnvelope()
+	{
+	}
+
+	/**
+	 * Compute the Lipschitz covers of an image.
+	 *
+	 * @param pixels 8-bit image pixels (row by row)
+	 * @param width image width
+	 * @param height image height
+	 * @param slopes maximum allowed differences between two neighboring pixels
+	 * @param downHat flag to indicate covering from top to bottom
+	 * @param topHat flag to indicate computing the difference between the
+	 * image and its cover instead of the cover
+	 * @param numThreads number of threads to use (each one sweeps a band of columns)
+	 * @return filtered image of each slope (row by row, 8-bit values)
+	 */
+	public static float[][] filter(
+			final byte[] pixels,
+			final int width,
+			final int height,
+			final double[] slopes,
+			final boolean downHat,
+			final boolean topHat,
+			final int numThreads )
+	{
+		final int sign = downHat ? 1 : -1;
+		final int[] source = new int[ width * height ];
+		for( int i = 0; i < source.length; i++ )
+			source[ i ] = sign * ( pixels[ i ] & 0xff );
+
+		final int[][] covers = new int[ slopes.length ][];
+		final int[] s = new int[ slopes.length ];
+		final int[] s1 = new int[ slopes.length ];
+		for( int k = 0; k < slopes.length; k++ )
+		{
+			covers[ k ] = source.clone();
+			s[ k ] = (int) slopes[ k ];
+			s1[ k ] = (int) ( s[ k ] * Math.sqrt( 2.0 ) );
+		}
+
+		final Sweep sweep = new Sweep( source, covers, width, height, s, s1, downHat ? 0 : -255,
+				Math.max( 1, Math.min( numThreads, width / MIN_BAND_WIDTH ) ) );
+		sweep.run( true );
+		sweep.run( false );
+
+		final float[][] result = new float[ slopes.length ][ width * height ];
+		for( int k = 0; k < slopes.length; k++ )
+			for( int i = 0; i < source.length; i++ )
+			{
+				final int value;
+				if( topHat )
+					value = downHat ? source[ i ] - covers[ k ][ i ] + 255 : covers[ k ][ i ] - source[ i ];
+				else
+					value = sign * covers[ k ][ i ];
+				result[ k ][ i ] = value & 0xff;
+			}
+		return result;
+	}
+
+	/**
+	 * Forward or backward sweep of the covers by bands of columns.
+	 */
+	private static class Sweep
+	{
+		private final int[] source;
+		private final int[][] covers;
+		private final int width;
+		private final int height;
+		private final int[] s;
+		private final int[] s1;
+		/** value of the pixels out of the image */
+		private final int boundary;
+		private final int bands;
+		/** number of rows each band finished in the current sweep */
+		private AtomicIntegerArray done;
+		/** set when a band fails, so the others stop waiting for it */
+		private final AtomicBoolean failed = new AtomicBoolean();
+		/** rows before the first row of the backward sweep (last rows of the forward sweep) */
+		private int[][] lastRows;
+
+		Sweep( int[] source, int[][] covers, int width, int height, int[] s, int[] s1,
+				int boundary, int bands )
+		{
+			this.source = source;
+			this.covers = covers;
+			this.width = width;
+			this.height = height;
+			this.s = s;
+			this.s1 = s1;
+			this.boundary = boundary;
+			this.bands = bands;
+		}
+
+		void run( final boolean forward )
+		{
+			done = new AtomicIntegerArray( bands );
+			if( !forward )
+			{
+				lastRows = new int[ covers.length ][];
+				for( int k = 0; k < covers.length; k++ )
+					lastRows[ k ] = Arrays.copyOfRange( covers[ k ], ( height - 1 ) * width, height * width );
+			}
+			if( bands == 1 )
+			{
+				sweepBand( 0, forward );
+				return;
+			}
+
+			final ExecutorService exe = Executors.newFixedThreadPool( bands );
+			try{
+				final ArrayList< Future<?> > futures = new ArrayList< Future<?> >();
+				for( int b = 0; b < bands; b++ )
+				{
+					final int band = b;
+					futures.add( exe.submit( new Runnable(){
+						public void run()
+						{
+							try{
+								sweepBand( band, forward );
+							}
+							catch( RuntimeException e )
+							{
+								failed.set( true );
+								throw e;
+							}
+						}
+					}));
+				}
+				for( Future<?> f : futures )
+					f.get();
+			}
+			catch( InterruptedException e )
+			{
+				failed.set( true );
+				Thread.currentThread().interrupt();
+				throw new RuntimeException( "Interrupted while computing Lipschitz covers", e );
+			}
+			catch( ExecutionException e )
+			{
+				throw new RuntimeException( e.getCause() );
+			}
+			finally{
+				exe.shutdownNow();
+			}
+		}
+
+		/**
+		 * Sweep the rows of a band, waiting for the neighbor bands to
+		 * provide the pixels it depends on.
+		 */
+		private void sweepBand( final int band, final boolean forward )
+		{
+			final int x0 = band * width / bands;
+			final int x1 = ( band + 1 ) * width / bands;
+			// bands before and after in the sweep direction
+			final int before = forward ? band - 1 : band + 1;
+			final int after = forward ? band + 1 : band - 1;
+			for( int r = 0; r < height; r++ )
+			{
+				// the neighbor before finished this row, the one after the previous row
+				if( before >= 0 && before < bands )
+					waitFor( before, r + 1 );
+				if( r > 0 && after >= 0 && after < bands )
+					waitFor( after, r );
+				for( int k = 0; k < covers.length; k++ )
+				{
+					if( forward )
+					{
+						// the first row is compared to itself (original values)
+						final int[] previous = r == 0 ? source : covers[ k ];
+						final int offset = r == 0 ? 0 : ( r - 1 ) * width;
+						forwardRow( covers[ k ], previous, offset, r, x0, x1, s[ k ], s1[ k ] );
+					}
+					else
+					{
+						final int y = height - 1 - r;
+						// the last row is compared to its forward sweep values
+						final int[] next = r == 0 ? lastRows[ k ] : covers[ k ];
+						final int offset = r == 0 ? 0 : ( y + 1 ) * width;
+						backwardRow( covers[ k ], next, offset, y, x0, x1, s[ k ], s1[ k ] );
+					}
+				}
+				done.set( band, r + 1 );
+			}
+		}
+
+		private void waitFor( final int band, final int rows )
+		{
+			while( done.get( band ) < rows )
+			{
+				if( failed.get() || Thread.currentThread().isInterrupted() )
+					throw new RuntimeException( "Lipschitz cover sweep cancelled" );
+				Thread.yield();
+			}
+		}
+
+		/**
+		 * Update a row of a cover from its left neighbors and the previous
+		 * row (upper left, upper and upper right pixels).
+		 */
+		private void forwardRow( final int[] cover, final int[] previous, final int offset,
+				final int y, final int x0, final int x1, final int s, final int s1 )
+		{
+			final int row = y * width;
+			for( int x = x0; x < x1; x++ )
+			{
+				int p = x == 0 ? boundary :
+					Math.max( cover[ row + x - 1 ] - s, previous[ offset + x - 1 ] - s1 );
+				p = Math.max( p, previous[ offset + x ] - s );
+				p = Math.max( p, previous[ offset + Math.min( x + 1, width - 1 ) ] - s1 );
+				if( p > cover[ row + x ] )
+					cover[ row + x ] = p;
+			}
+		}
+
+		/**
+		 * Update a row of a cover from its right neighbors and the next row
+		 * (lower right, lower and lower left pixels).
+		 */
+		private void backwardRow( final int[] cover, final int[] next, final int offset,
+				final int y, final int x0, final int x1, final int s, final int s1 )
+		{
+			final int row = y * width;
+			for( int x = x1 - 1; x >= x0; x-- )
+			{
+				int p = x == width - 1 ? boundary :
+					Math.max( cover[ row + x + 1 ] - s, next[ offset + x + 1 ] - s1 );
+				p = Math.max( p, next[ offset + x ] - s );
+				p = Math.max( p, next[ offset + Math.max( x - 1, 0 ) ] - s1 );
+				if( p > cover[ row + x ] )
+					cover[ row + x ] = p;
+			}
+		}
+	}
+}
@@ -0,0 +1,535 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package trainableSegmentation.filters;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Recursive (IIR) Gaussian filter and Gaussian derivatives of 2D and 3D
+ * images, whose cost does not depend on sigma.
+ * <p>
+ * The smoothing and the first and second derivatives use Deriche's fourth
+ * order recursive filters, applied forward and backward along each
+ * dimension. The derivative filters share the poles of a common fit of the
+ * three orders (as in ITK's recursive Gaussian filter), so the second
+ * derivative can be corrected to have no response to constant signals.
+ * Differentiating the recursive filters directly, rather than taking
+ * differences of the smoothed image, keeps their error proportional to the
+ * derivative instead of to the image values. Sigmas smaller than
+ * {@link #MIN_RECURSIVE_SIGMA}, where the recursive approximation is poor,
+ * are filtered with sampled Gaussian (derivative) kernels instead (which is
+ * cheap for those sigmas).
+ * <p>
+ * Images are given as arrays of slices (one slice for 2D images) of
+ * width x height pixels, in the same order as the pixel arrays of an
+ * ImageJ stack. Borders are handled by replicating the edge pixels.
+ */
+public final class RecursiveGaussian
+{
+	/** smallest sigma filtered recursively, smaller ones use a sampled kernel */
+	public static final double MIN_RECURSIVE_SIGMA = 1.0;
+	/** highest derivative order supported along each dimension */
+	public static final int MAX_ORDER = 2;
+
+	private RecursiveGaussian()
+	{
+		// prevent instantiation of utility class
+	}
+
+	/**
+	 * Smooth an image with a Gaussian kernel.
+	 *
+	 * @param slices pixels of each slice of the image (not modified)
+	 * @param width image width
+	 * @param height image height
+	 * @param sigma standard deviation of the Gaussian along each dimension
+	 * (x, y and, for 3D images, z) in pixels
+	 * @param numThreads number of threads to use
+	 * @return smoothed slices
+	 */
+	public static float[][] smooth(
+			final float[][] slices,
+			final int width,
+			final int height,
+			final double[] sigma,
+			final int numThreads )
+	{
+		return derivative( slices, width, height, sigma, new int[ sigma.length ], numThreads );
+	}
+
+	/**
+	 * Compute a Gaussian derivative of an image.
+	 *
+	 * @param slices pixels of each slice of the image (not modified)
+	 * @param width image width
+	 * @param height image height
+	 * @param sigma standard deviation of the Gaussian along each dimension
+	 * (x, y and, for 3D images, z) in pixels
+	 * @param order order of differentiation along each dimension (0 to
+	 * {@link #MAX_ORDER})
+	 * @param numThreads number of threads to use
+	 * @return derivative slices (in pixel units)
+	 */
+	public static float[][] derivative(
+			final float[][] slices,
+			final int width,
+			final int height,
+			final double[] sigma,
+			final int[] order,
+			final int numThreads )
+	{
+		final int dims = sigma.length;
+		if( dims < 2 || dims > 3 || order.length != dims
+				|| ( dims == 2 && slices.length > 1 ) )
+			throw new IllegalArgumentException( "Expected 2 (2D images) or 3 "
+					+ "sigmas and orders of differentiation" );
+		for( int d = 0; d < order.length; d++ )
+		{
+			if( order[ d ] < 0 || order[ d ] > MAX_ORDER )
+				throw new IllegalArgumentException( "Unsupported order of "
+						+ "differentiation: " + order[ d ] );
+			if( sigma[ d ] < 0 )
+				throw new IllegalArgumentException( "Negative sigma: " + sigma[ d ] );
+		}
+
+		final float[][] result = new float[ slices.length ][];
+		for( int z = 0; z < slices.length; z++ )
+			result[ z ] = slices[ z ].clone();
+
+		final ExecutorService exe = numThreads > 1 ?
+				Executors.newFixedThreadPool( numThreads ) : null;
+		try{
+			for( int d = 0; d < dims; d++ )
+				if( sigma[ d ] > 0 || order[ d ] > 0 )
+					filterDimension( result, width, height, d, sigma[ d ], order[ d ],
+							exe, Math.max( 1, numThreads ) );
+		}
+		finally{
+			if( null != exe )
+				exe.shutdown();
+		}
+		return result;
+	}
+
+	/**
+	 * Filter all lines of an image along one dimension (in place).
+	 */
+	private static void filterDimension(
+			final float[][] slices,
+			final int width,
+			final int height,
+			final int dimension,
+			final double sigma,
+			final int order,
+			final ExecutorService exe,
+			final int numThreads )
+	{
+		final int depth = slices.length;
+		final int length = dimension == 0 ? width : ( dimension == 1 ? height : depth );
+		final int numLines = width * height * depth / length;
+
+		if( null == exe )
+		{
+			new LineFilter( slices, width, height, dimension, length,
+					sigma, order, 0, numLines ).run();
+			return;
+		}
+
+		final int linesPerThread = ( numLines + numThreads - 1 ) / numThreads;
+		final ArrayList< Future<?> > futures = new ArrayList< Future<?> >();
+		for( int first = 0; first < numLines; first += linesPerThread )
+			futures.add( exe.submit( new LineFilter( slices, width, height, dimension,
+					length, sigma, order, first, Math.min( numLines, first + linesPerThread ) ) ) );
+		try{
+			for( Future<?> f : futures )
+				f.get();
+		}
+		catch( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( "Interrupted while filtering", e );
+		}
+		catch( ExecutionException e )
+		{
+			throw new RuntimeException( e.getCause() );
+		}
+	}
+
+	/**
+	 * Filter of a range of lines of an image along one dimension.
+	 */
+	private static class LineFilter implements Runnable
+	{
+		final float[][] slices;
+		final int width;
+		final int height;
+		final int dimension;
+		final int length;
+		final double sigma;
+		final int order;
+		final int firstLine;
+		final int lastLine;
+
+		LineFilter(
+				float[][] slices,
+				int width,
+				int height,
+				int dimension,
+				int length,
+				double sigma,
+				int order,
+				int firstLine,
+				int lastLine )
+		{
+			this.slices = slices;
+			this.width = width;
+			this.height = height;
+			this.dimension = dimension;
+			this.length = length;
+			this.sigma = sigma;
+			this.order = order;
+			this.firstLine = firstLine;
+			this.lastLine = lastLine;
+		}
+
+		public void run()
+		{
+			final double[] line = new double[ length ];
+			final double[] work = new double[ length + 2 * padding( sigma ) ];
+			for( int l = firstLine; l < lastLine; l++ )
+			{
+				// read line
+				if( dimension == 0 )
+				{
+					final float[] pixels = slices[ l / height ];
+					final int offset = ( l % height ) * width;
+					for( int i = 0; i < length; i++ )
+						line[ i ] = pixels[ offset + i ];
+				}
+				else if( dimension == 1 )
+				{
+					final float[] pixels = slices[ l / width ];
+					final int offset = l % width;
+					for( int i = 0; i < length; i++ )
+						line[ i ] = pixels[ offset + i * width ];
+				}
+				else
+				{
+					for( int i = 0; i < length; i++ )
+						line[ i ] = slices[ i ][ l ];
+				}
+
+				filterLine( line, work, sigma, order );
+
+				// write line back
+				if( dimension == 0 )
+				{
+					final float[] pixels = slices[ l / height ];
+					final int offset = ( l % height ) * width;
+					for( int i = 0; i < length; i++ )
+						pixels[ offset + i ] = (float) line[ i ];
+				}
+				else if( dimension == 1 )
+				{
+					final float[] pixels = slices[ l / width ];
+					final int offset = l % width;
+					for( int i = 0; i < length; i++ )
+						pixels[ offset + i * width ] = (float) line[ i ];
+				}
+				else
+				{
+					for( int i = 0; i < length; i++ )
+						slices[ i ][ l ] = (float) line[ i ];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Number of replicated pixels added on each side of a line before the
+	 * recursive filtering, so the filter state has settled when it reaches
+	 * the line.
+	 */
+	private static int padding( double sigma )
+	{
+		return 1 + (int) Math.ceil( 4 * sigma );
+	}
+
+	/**
+	 * Smooth and differentiate one line (in place).
+	 *
+	 * @param line line values, replaced by the result
+	 * @param work buffer of the line length plus twice the padding
+	 * @param sigma Gaussian sigma
+	 * @param order order of differentiation
+	 */
+	static void filterLine(
+			final double[] line,
+			final double[] work,
+			final double sigma,
+			final int order )
+	{
+		final int n = line.length;
+		if( sigma <= 0 )
+		{
+			// no smoothing, central differences with replicated borders
+			for( int i = 0; i < n; i++ )
+				work[ i ] = order == 1 ?
+						0.5 * ( line[ Math.min( i + 1, n - 1 ) ] - line[ Math.max( i - 1, 0 ) ] ) :
+						line[ Math.min( i + 1, n - 1 ) ] - 2 * line[ i ] + line[ Math.max( i - 1, 0 ) ];
+			System.arraycopy( work, 0, line, 0, n );
+		}
+		else if( sigma < MIN_RECURSIVE_SIGMA )
+		{
+			convolve( line, work, sigma, order );
+			System.arraycopy( work, 0, line, 0, n );
+		}
+		else
+		{
+			final int pad = padding( sigma );
+			recursive( line, work, sigma, order, pad );
+			System.arraycopy( work, pad, line, 0, n );
+		}
+	}
+
+	/**
+	 * Deriche's fourth order recursive Gaussian filter or Gaussian
+	 * derivative filter of a line with replicated borders ("Recursively
+	 * implementing the Gaussian and its derivatives", INRIA research report
+	 * 1893, 1993).
+	 *
+	 * @param in line values
+	 * @param out filtered line with pad values on each side
+	 * @param sigma Gaussian sigma
+	 * @param order order of differentiation (0 to 2)
+	 * @param pad number of replicated pixels on each side
+	 */
+	private static void recursive(
+			final double[] in,
+			final double[] out,
+			final double sigma,
+			final int order,
+			final int pad )
+	{
+		final int n = in.length;
+
+		final double[] c = order == 0 ? smoothingCoefficients( sigma ) :
+				derivativeCoefficients( sigma, order );
+		final double n0 = c[ 0 ], n1 = c[ 1 ], n2 = c[ 2 ], n3 = c[ 3 ];
+		final double d1 = c[ 4 ], d2 = c[ 5 ], d3 = c[ 6 ], d4 = c[ 7 ];
+		// coefficients of the anti-causal part, whose impulse response is
+		// the mirror of the causal one (with the opposite sign for odd orders)
+		final double sign = order == 1 ? -1 : 1;
+		final double m1 = sign * ( n1 - d1 * n0 );
+		final double m2 = sign * ( n2 - d2 * n0 );
+		final double m3 = sign * ( n3 - d3 * n0 );
+		final double m4 = -sign * d4 * n0;
+
+		// gains of both parts for a constant signal, used to start from the
+		// steady state of the borders
+		final double sumD = 1 + d1 + d2 + d3 + d4;
+		final double causalGain = ( n0 + n1 + n2 + n3 ) / sumD;
+		final double antiCausalGain = ( m1 + m2 + m3 + m4 ) / sumD;
+		// the smoothing is normalized to a unit gain, the derivatives are
+		// normalized by their coefficients
+		final double norm = order == 0 ? 1.0 / ( causalGain + antiCausalGain ) : 1.0;
+
+		final int total = n + 2 * pad;
+
+		// causal pass
+		double x1 = in[ 0 ], x2 = x1, x3 = x1;
+		double y1 = x1 * causalGain, y2 = y1, y3 = y1, y4 = y1;
+		for( int i = 0; i < total; i++ )
+		{
+			final double x = in[ Math.min( Math.max( i - pad, 0 ), n - 1 ) ];
+			final double y = n0 * x + n1 * x1 + n2 * x2 + n3 * x3
+					- d1 * y1 - d2 * y2 - d3 * y3 - d4 * y4;
+			out[ i ] = y;
+			x3 = x2; x2 = x1; x1 = x;
+			y4 = y3; y3 = y2; y2 = y1; y1 = y;
+		}
+
+		// anti-causal pass
+		x1 = in[ n - 1 ]; x2 = x1; x3 = x1;
+		double x4 = x1;
+		y1 = x1 * antiCausalGain; y2 = y1; y3 = y1; y4 = y1;
+		for( int i = total - 1; i >= 0; i-- )
+		{
+			final double y = m1 * x1 + m2 * x2 + m3 * x3 + m4 * x4
+					- d1 * y1 - d2 * y2 - d3 * y3 - d4 * y4;
+			final double x = in[ Math.min( Math.max( i - pad, 0 ), n - 1 ) ];
+			x4 = x3; x3 = x2; x2 = x1; x1 = x;
+			y4 = y3; y3 = y2; y2 = y1; y1 = y;
+			out[ i ] = ( out[ i ] + y ) * norm;
+		}
+	}
+
+	/**
+	 * Causal coefficients (n0 to n3, d1 to d4) of Deriche's fit of the
+	 * Gaussian, normalized by the caller.
+	 */
+	private static double[] smoothingCoefficients( final double sigma )
+	{
+		final double a0 = 1.680, a1 = 3.735, b0 = 1.783, w0 = 0.6318;
+		final double c0 = -0.6803, c1 = -0.2598, b1 = 1.723, w1 = 1.997;
+		final double[] c = new double[ 8 ];
+		numerator( sigma, a0, a1, w0, -b0, c0, c1, w1, -b1, c );
+		denominator( sigma, w0, -b0, w1, -b1, c );
+		return c;
+	}
+
+	/**
+	 * Causal coefficients (n0 to n3, d1 to d4) of the first or second
+	 * Gaussian derivative, normalized so the filter has the moments of the
+	 * continuous derivative: a unit response to the signal x for the first
+	 * derivative, and no response to constant signals and a unit response to
+	 * x^2/2 for the second one. The three orders share the poles of the fit
+	 * used by ITK's recursive Gaussian filter.
+	 */
+	private static double[] derivativeCoefficients( final double sigma, final int order )
+	{
+		final double w0 = 0.6681, l0 = -1.3932, w1 = 2.0787, l1 = -1.3732;
+		final double[] a0 = { 1.3530, -0.6724, -1.3563 };
+		final double[] a1 = { 1.8151, -3.4327, 5.2318 };
+		final double[] c0 = { -0.3531, 0.6724, 0.3446 };
+		final double[] c1 = { 0.0902, 0.6100, -2.2355 };
+
+		final double[] c = new double[ 8 ];
+		denominator( sigma, w0, l0, w1, l1, c );
+		final double sumD = 1 + c[ 4 ] + c[ 5 ] + c[ 6 ] + c[ 7 ];
+		final double dD = c[ 4 ] + 2 * c[ 5 ] + 3 * c[ 6 ] + 4 * c[ 7 ];
+		final double eD = c[ 4 ] + 4 * c[ 5 ] + 9 * c[ 6 ] + 16 * c[ 7 ];
+
+		numerator( sigma, a0[ order ], a1[ order ], w0, l0, c0[ order ], c1[ order ], w1, l1, c );
+		double sumN = c[ 0 ] + c[ 1 ] + c[ 2 ] + c[ 3 ];
+		double dN = c[ 1 ] + 2 * c[ 2 ] + 3 * c[ 3 ];
+		final double alpha;
+		if( order == 1 )
+			alpha = 2 * ( sumN * dD - dN * sumD ) / ( sumD * sumD );
+		else
+		{
+			// remove the response to constant signals with the smoothing filter
+			final double[] g = new double[ 8 ];
+			numerator( sigma, a0[ 0 ], a1[ 0 ], w0, l0, c0[ 0 ], c1[ 0 ], w1, l1, g );
+			final double sumG = g[ 0 ] + g[ 1 ] + g[ 2 ] + g[ 3 ];
+			final double beta = -( 2 * sumN - sumD * c[ 0 ] ) / ( 2 * sumG - sumD * g[ 0 ] );
+			for( int k = 0; k < 4; k++ )
+				c[ k ] += beta * g[ k ];
+			sumN = c[ 0 ] + c[ 1 ] + c[ 2 ] + c[ 3 ];
+			dN = c[ 1 ] + 2 * c[ 2 ] + 3 * c[ 3 ];
+			final double eN = c[ 1 ] + 4 * c[ 2 ] + 9 * c[ 3 ];
+			alpha = ( eN * sumD * sumD - eD * sumN * sumD - 2 * dN * dD * sumD
+					+ 2 * dD * dD * sumN ) / ( sumD * sumD * sumD );
+		}
+		for( int k = 0; k < 4; k++ )
+			c[ k ] /= alpha;
+		return c;
+	}
+
+	/**
+	 * Numerator coefficients (n0 to n3) of a causal filter whose impulse
+	 * response is the sum of two damped oscillations
+	 * (a cos(w k / sigma) + b sin(w k / sigma)) exp(l k / sigma).
+	 */
+	private static void numerator(
+			final double sigma,
+			final double a0, final double b0, final double w0, final double l0,
+			final double a1, final double b1, final double w1, final double l1,
+			final double[] c )
+	{
+		final double cos0 = Math.cos( w0 / sigma ), sin0 = Math.sin( w0 / sigma );
+		final double cos1 = Math.cos( w1 / sigma ), sin1 = Math.sin( w1 / sigma );
+		final double e0 = Math.exp( l0 / sigma ), e1 = Math.exp( l1 / sigma );
+		c[ 0 ] = a0 + a1;
+		c[ 1 ] = e1 * ( b1 * sin1 - ( a1 + 2 * a0 ) * cos1 )
+				+ e0 * ( b0 * sin0 - ( 2 * a1 + a0 ) * cos0 );
+		c[ 2 ] = 2 * e0 * e1 * ( ( a0 + a1 ) * cos1 * cos0 - b0 * cos1 * sin0 - b1 * cos0 * sin1 )
+				+ a1 * e0 * e0 + a0 * e1 * e1;
+		c[ 3 ] = e1 * e0 * e0 * ( b1 * sin1 - a1 * cos1 )
+				+ e0 * e1 * e1 * ( b0 * sin0 - a0 * cos0 );
+	}
+
+	/**
+	 * Denominator coefficients (d1 to d4, stored from index 4) of the
+	 * filters of {@link #numerator}.
+	 */
+	private static void denominator(
+			final double sigma,
+			final double w0, final double l0,
+			final double w1, final double l1,
+			final double[] c )
+	{
+		final double cos0 = Math.cos( w0 / sigma ), cos1 = Math.cos( w1 / sigma );
+		final double e0 = Math.exp( l0 / sigma ), e1 = Math.exp( l1 / sigma );
+		c[ 4 ] = -2 * e1 * cos1 - 2 * e0 * cos0;
+		c[ 5 ] = 4 * cos1 * cos0 * e0 * e1 + e1 * e1 + e0 * e0;
+		c[ 6 ] = -2 * cos0 * e0 * e1 * e1 - 2 * cos1 * e1 * e0 * e0;
+		c[ 7 ] = e0 * e0 * e1 * e1;
+	}
+
+	/**
+	 * Convolution of a line with a sampled Gaussian (derivative) kernel,
+	 * with replicated borders.
+	 *
+	 * @param in line values
+	 * @param out filtered values (at least the line length)
+	 * @param sigma Gaussian sigma
+	 * @param order order of differentiation (0 to 2)
+	 */
+	private static void convolve(
+			final double[] in,
+			final double[] out,
+			final double sigma,
+			final int order )
+	{
+		final int n = in.length;
+		final int radius = Math.max( 1, (int) Math.ceil( 4 * sigma ) );
+		final double s2 = sigma * sigma;
+		// kernel[ k ] is the weight of in[ i - k ]
+		final double[] kernel = new double[ 2 * radius + 1 ];
+		double sum = 0;
+		for( int k = -radius; k <= radius; k++ )
+			sum += Math.exp( -0.5 * k * k / s2 );
+		for( int k = -radius; k <= radius; k++ )
+		{
+			final double g = Math.exp( -0.5 * k * k / s2 ) / sum;
+			if( order == 0 )
+				kernel[ k + radius ] = g;
+			else if( order == 1 )
+				kernel[ k + radius ] = -k / s2 * g;
+			else
+				kernel[ k + radius ] = ( k * k / s2 - 1 ) / s2 * g;
+		}
+
+		for( int i = 0; i < n; i++ )
+		{
+			double v = 0;
+			for( int k = -radius; k <= radius; k++ )
+				v += kernel[ k + radius ] * in[ Math.min( Math.max( i - k, 0 ), n - 1 ) ];
+			out[ i ] = v;
+		}
+	}
+}
@@ -0,0 +1,256 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package trainableSegmentation.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import hr.irb.fastRandomForest.FastRandomForest;
+import hr.irb.fastRandomForest.PackedForest;
+import weka.classifiers.AbstractClassifier;
+import weka.core.Instances;
+
+/**
+ * Compact binary format to store trained FastRandomForest models, meant to
+ * be loaded much faster than the serialized ".model" files.
+ *
+ * <p>
+ * A file starts with the training header (attribute names, class labels and
+ * class index, encoded as in {@link BinaryTrainingData}) and the options of
+ * the forest, followed by the trees packed as flat node arrays (see
+ * {@link PackedForest}). When loading, the trees are memory-mapped and used
+ * as they are, so no object is created per tree node and only the pages of
+ * the file that are actually visited get read.
+ * </p>
+ * <p>
+ * Models can be converted back and forth between this format and the
+ * serialized ".model" format.
+ * </p>
+ */
+public final class BinaryModel
+{
+	/** file extension of the binary model files */
+	public static final String EXTENSION = ".twsm";
+
+	/** magic number to identify the files ("TWSM") */
+	private static final int MAGIC = 0x5457534D;
+	/** current version of the format */
+	private static final int VERSION = 1;
+
+	private BinaryModel() throws InstantiationException
+	{
+		throw new InstantiationException("This class is not created for instantiation");
+	}
+
+	/**
+	 * Check if a file name corresponds to a binary model file.
+	 *
+	 * @param filename name of the file
+	 * @return true if the file has the binary model extension
+	 */
+	public static boolean isBinaryModel( String filename )
+	{
+		return null != filename && filename.toLowerCase().endsWith( EXTENSION );
+	}
+
+	/**
+	 * Write a classifier and its training header into a binary model file.
+	 *
+	 * @param classifier trained FastRandomForest (or already packed forest)
+	 * @param header training header (if null, the header stored in the
+	 * forest is used)
+	 * @param filename output file name
+	 * @throws IOException if the file could not be written or the classifier
+	 * is not supported
+	 */
+	public static void write(
+			AbstractClassifier classifier,
+			Instances header,
+			String filename ) throws IOException
+	{
+		final PackedForest forest;
+		if( classifier instanceof PackedForest )
+			forest = (PackedForest) classifier;
+		else if( classifier instanceof FastRandomForest )
+		{
+			try{
+				forest = PackedForest.pack( (FastRandomForest) classifier );
+			}
+			catch( IllegalArgumentException e )
+			{
+				throw new IOException( e.getMessage(), e );
+			}
+		}
+		else
+			throw new IOException( "Only FastRandomForest models can be saved "
+					+ "in the binary model format" );
+
+		if( null == header )
+			header = forest.getHeader();
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream meta = new DataOutputStream( bytes );
+		final byte[] encodedHeader = BinaryTrainingData.encodeHeader( header );
+		meta.writeInt( encodedHeader.length );
+		meta.write( encodedHeader );
+		meta.writeUTF( forest.getForestOptions() );
+		meta.close();
+
+		final DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream( new FileOutputStream( filename ) ) );
+		try{
+			out.writeInt( MAGIC );
+			out.writeInt( VERSION );
+			out.writeInt( bytes.size() );
+			bytes.writeTo( out );
+			final ByteBuffer trees = forest.getBuffer();
+			final byte[] chunk = new byte[ 65536 ];
+			while( trees.hasRemaining() )
+			{
+				final int n = Math.min( chunk.length, trees.remaining() );
+				trees.get( chunk, 0, n );
+				out.write( chunk, 0, n );
+			}
+		}
+		finally{
+			out.close();
+		}
+	}
+
+	/**
+	 * Read a binary model file. The trees are memory-mapped, so the returned
+	 * forest can be used to classify right away without loading the whole
+	 * file.
+	 *
+	 * @param filename input file name
+	 * @return packed forest (its header is the training header)
+	 * @throws IOException if the file could not be read
+	 */
+	public static PackedForest read( String filename ) throws IOException
+	{
+		final RandomAccessFile raf = new RandomAccessFile( filename, "r" );
+		try{
+			final FileChannel channel = raf.getChannel();
+			final ByteBuffer start = ByteBuffer.allocate( 12 );
+			BinaryTrainingData.readFully( channel, start, 0 );
+			if( start.getInt() != MAGIC )
+				throw new IOException( "Not a binary model file" );
+			final int version = start.getInt();
+			if( version > VERSION )
+				throw new IOException( "Unsupported binary model version: "
+						+ version );
+			final int metaLength = start.getInt();
+			final ByteBuffer bytes = ByteBuffer.allocate( metaLength );
+			BinaryTrainingData.readFully( channel, bytes, 12 );
+
+			final DataInputStream meta = new DataInputStream(
+					new ByteArrayInputStream( bytes.array() ) );
+			meta.readInt(); // length of the encoded header
+			final Instances header = BinaryTrainingData.decodeHeader( meta );
+			final String options = meta.readUTF();
+
+			final long treesStart = 12L + metaLength;
+			final long treesLength = channel.size() - treesStart;
+			if( treesLength > Integer.MAX_VALUE )
+				throw new IOException( "Binary model too large to be mapped" );
+			// the mapping remains valid after the channel is closed
+			final ByteBuffer trees = channel.map( FileChannel.MapMode.READ_ONLY,
+					treesStart, treesLength );
+			return new PackedForest( header, options, trees );
+		}
+		finally{
+			raf.close();
+		}
+	}
+
+	/**
+	 * Convert a serialized ".model" file (classifier followed by the training
+	 * header, optionally gzipped) into a binary model file.
+	 *
+	 * @param modelFilename input model file name
+	 * @param filename output binary model file name
+	 * @throws Exception if the model could not be read or is not a
+	 * FastRandomForest
+	 */
+	public static void convertFromModel( String modelFilename, String filename )
+			throws Exception
+	{
+		InputStream is = new BufferedInputStream(
+				new FileInputStream( modelFilename ) );
+		if( modelFilename.endsWith( ".gz" ) )
+			is = new GZIPInputStream( is );
+		final ObjectInputStream in = new ObjectInputStream( is );
+		final AbstractClassifier classifier;
+		Instances header = null;
+		try{
+			classifier = (AbstractClassifier) in.readObject();
+			header = (Instances) in.readObject();
+		}
+		finally{
+			in.close();
+		}
+		write( classifier, header, filename );
+	}
+
+	/**
+	 * Convert a binary model file into a serialized ".model" file (gzipped if
+	 * the name ends with ".gz") that contains an equivalent FastRandomForest
+	 * and the training header.
+	 *
+	 * @param filename input binary model file name
+	 * @param modelFilename output model file name
+	 * @throws Exception if the model could not be read or written
+	 */
+	public static void convertToModel( String filename, String modelFilename )
+			throws Exception
+	{
+		final PackedForest forest = read( filename );
+		OutputStream os = new BufferedOutputStream(
+				new FileOutputStream( modelFilename ) );
+		if( modelFilename.endsWith( ".gz" ) )
+			os = new GZIPOutputStream( os );
+		final ObjectOutputStream out = new ObjectOutputStream( os );
+		try{
+			out.writeObject( forest.unpack() );
+			out.writeObject( forest.getHeader() );
+		}
+		finally{
+			out.close();
+		}
+	}
+}
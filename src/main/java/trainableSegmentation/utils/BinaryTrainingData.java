@@ -0,0 +1,671 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package trainableSegmentation.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+import hr.irb.fastRandomForest.DataCache;
+import hr.irb.fastRandomForest.FloatColumns;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.converters.ArffLoader;
+
+/**
+ * Columnar binary format to store (large) sets of training instances, meant
+ * to replace the text ARFF files when the number of pixel samples is big.
+ *
+ * <p>
+ * A file starts with a header containing the attribute names, the class
+ * labels and the class index. It is followed by any number of blocks, so
+ * new instances can be appended incrementally. Each block stores its number
+ * of instances followed by one float column per attribute (class included)
+ * and a float column with the instance weights. Missing values are stored
+ * as NaN.
+ * </p>
+ * <p>
+ * The blocks are read through memory-mapped {@link FileChannel} regions and
+ * can be loaded either as {@link Instances} or straight into a
+ * {@link DataCache} for the FastRandomForest, which avoids keeping the whole
+ * set as Weka instances in memory.
+ * </p>
+ */
+public final class BinaryTrainingData
+{
+	/** file extension of the binary training data files */
+	public static final String EXTENSION = ".twsd";
+
+	/** magic number to identify the files ("TWSD") */
+	private static final int MAGIC = 0x54575344;
+	/** current version of the format */
+	private static final int VERSION = 1;
+	/** type code of numeric attributes in the header */
+	private static final byte NUMERIC = 0;
+	/** type code of nominal attributes in the header */
+	private static final byte NOMINAL = 1;
+	/** maximum number of instances written per block */
+	private static final int MAX_BLOCK_SIZE = 65536;
+
+	private BinaryTrainingData() throws InstantiationException
+	{
+		throw new InstantiationException("This class is not created for instantiation");
+	}
+
+	/**
+	 * Check if a file name corresponds to a binary training data file.
+	 *
+	 * @param filename name of the file
+	 * @return true if the file has the binary training data extension
+	 */
+	public static boolean isBinaryTrainingData( String filename )
+	{
+		return null != filename && filename.toLowerCase().endsWith( EXTENSION );
+	}
+
+	/**
+	 * Write a set of instances into a binary training data file, replacing
+	 * any previous content. Instances with missing class are skipped.
+	 *
+	 * @param data set of instances (with class index set)
+	 * @param filename output file name
+	 * @throws IOException if the file could not be written
+	 */
+	public static void write( Instances data, String filename )
+			throws IOException
+	{
+		final File file = new File( filename );
+		if( file.exists() && !file.delete() )
+			throw new IOException( "Could not overwrite " + filename );
+		append( data, filename );
+	}
+
+	/**
+	 * Append a set of instances to a binary training data file. The file is
+	 * created if it does not exist yet, otherwise its header must match the
+	 * header of the instances. Instances with missing class are skipped.
+	 *
+	 * @param data set of instances (with class index set)
+	 * @param filename output file name
+	 * @throws IOException if the file could not be written or its header
+	 * does not match the data
+	 */
+	public static void append( Instances data, String filename )
+			throws IOException
+	{
+		final File file = new File( filename );
+		final boolean exists = file.exists() && file.length() > 0;
+		if( exists )
+		{
+			final String msg = readHeader( filename ).equalHeadersMsg( data );
+			if( null != msg )
+				throw new IOException( "Data header does not match the header of "
+						+ filename + ": " + msg );
+		}
+
+		final DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream( new FileOutputStream( file, true ) ) );
+		try{
+			if( !exists )
+				writeHeader( data, out );
+
+			final int numAttributes = data.numAttributes();
+			final int classIndex = data.classIndex();
+			final float[][] columns = new float[ numAttributes + 1 ][];
+
+			int first = 0;
+			while( first < data.numInstances() )
+			{
+				// collect the next block of instances (skipping the ones
+				// without class)
+				final ArrayList<Instance> block = new ArrayList<Instance>();
+				for( ; first < data.numInstances()
+						&& block.size() < MAX_BLOCK_SIZE; first++ )
+					if( !data.get( first ).isMissing( classIndex ) )
+						block.add( data.get( first ) );
+
+				final int n = block.size();
+				if( n == 0 )
+					break;
+				for( int a = 0; a <= numAttributes; a++ )
+					columns[ a ] = new float[ n ];
+				for( int i = 0; i < n; i++ )
+				{
+					final Instance ins = block.get( i );
+					for( int a = 0; a < numAttributes; a++ )
+						columns[ a ][ i ] = ins.isMissing( a ) ?
+								Float.NaN : (float) ins.value( a );
+					columns[ numAttributes ][ i ] = (float) ins.weight();
+				}
+				writeBlock( columns, n, out );
+			}
+		}
+		finally{
+			out.close();
+		}
+	}
+
+	/**
+	 * Read the header of a binary training data file.
+	 *
+	 * @param filename input file name
+	 * @return empty set of instances with the attributes and class index of
+	 * the file
+	 * @throws IOException if the file could not be read
+	 */
+	public static Instances readHeader( String filename ) throws IOException
+	{
+		final RandomAccessFile raf = new RandomAccessFile( filename, "r" );
+		try{
+			return readHeader( raf.getChannel() );
+		}
+		finally{
+			raf.close();
+		}
+	}
+
+	/**
+	 * Read all instances of a binary training data file.
+	 *
+	 * @param filename input file name
+	 * @return set of instances stored in the file
+	 * @throws IOException if the file could not be read
+	 */
+	public static Instances read( String filename ) throws IOException
+	{
+		final RandomAccessFile raf = new RandomAccessFile( filename, "r" );
+		try{
+			final FileChannel channel = raf.getChannel();
+			final Instances header = readHeader( channel );
+			final int numAttributes = header.numAttributes();
+			final long[] blocks = getBlockPositions( channel );
+
+			final Instances data = new Instances( header, countInstances(
+					channel, blocks ) );
+			final float[] column = new float[ MAX_BLOCK_SIZE ];
+			for( long position : blocks )
+			{
+				final int n = readBlockSize( channel, position );
+				final FloatBuffer buffer = mapBlock( channel, position, n,
+						numAttributes );
+				final double[][] values = new double[ n ][ numAttributes ];
+				for( int a = 0; a < numAttributes; a++ )
+				{
+					buffer.get( column, 0, n );
+					for( int i = 0; i < n; i++ )
+						values[ i ][ a ] = Float.isNaN( column[ i ] ) ?
+								weka.core.Utils.missingValue() : column[ i ];
+				}
+				buffer.get( column, 0, n );
+				for( int i = 0; i < n; i++ )
+					data.add( new DenseInstance( column[ i ], values[ i ] ) );
+			}
+			return data;
+		}
+		finally{
+			raf.close();
+		}
+	}
+
+	/**
+	 * Read all instances of a binary training data file straight into a
+	 * {@link DataCache}, the data structure used to train the
+	 * FastRandomForest. The columns of the file are copied directly into the
+	 * cache without creating any Weka instance.
+	 *
+	 * @param filename input file name
+	 * @return data cache with all the instances stored in the file
+	 * @throws Exception if the file could not be read or contains non
+	 * supported attributes
+	 */
+	public static DataCache readDataCache( String filename ) throws Exception
+	{
+		return readDataCache( filename, null );
+	}
+
+	/**
+	 * Read all instances of a binary training data file into a
+	 * {@link DataCache}. If a scratch directory is given, the attribute
+	 * columns and their sorted orders are stored in memory-mapped scratch
+	 * files in that directory instead of the heap, so the training data does
+	 * not need to fit in memory. Only the class values and weights of the
+	 * instances are kept in the heap.
+	 *
+	 * @param filename input file name
+	 * @param scratchDirectory directory for the scratch files, or null to
+	 * keep the data in the heap
+	 * @return data cache with all the instances stored in the file
+	 * @throws Exception if the file could not be read or contains non
+	 * supported attributes
+	 */
+	public static DataCache readDataCache(
+			String filename,
+			File scratchDirectory ) throws Exception
+	{
+		final RandomAccessFile raf = new RandomAccessFile( filename, "r" );
+		try{
+			final FileChannel channel = raf.getChannel();
+			final Instances header = readHeader( channel );
+			final int numAttributes = header.numAttributes();
+			final int classIndex = header.classIndex();
+			final long[] blocks = getBlockPositions( channel );
+			final int numInstances = countInstances( channel, blocks );
+
+			final int[] attNumVals = new int[ numAttributes ];
+			for( int a = 0; a < numAttributes; a++ )
+				attNumVals[ a ] = header.attribute( a ).isNominal() ?
+						header.attribute( a ).numValues() : 0;
+
+			float[][] heapVals = null;
+			final FloatColumns vals;
+			if( null == scratchDirectory )
+			{
+				heapVals = new float[ numAttributes ][];
+				for( int a = 0; a < numAttributes; a++ )
+					if( a != classIndex )
+						heapVals[ a ] = new float[ numInstances ];
+				vals = new FloatColumns( heapVals );
+			}
+			else
+				vals = new FloatColumns( numAttributes, numInstances,
+						classIndex, scratchDirectory );
+			final int[] classValues = new int[ numInstances ];
+			final double[] weights = new double[ numInstances ];
+
+			final float[] column = new float[ MAX_BLOCK_SIZE ];
+			int offset = 0;
+			for( long position : blocks )
+			{
+				final int n = readBlockSize( channel, position );
+				final FloatBuffer buffer = mapBlock( channel, position, n,
+						numAttributes );
+				for( int a = 0; a < numAttributes; a++ )
+				{
+					if( a == classIndex )
+					{
+						buffer.get( column, 0, n );
+						for( int i = 0; i < n; i++ )
+							classValues[ offset + i ] = (int) column[ i ];
+						continue;
+					}
+					buffer.get( column, 0, n );
+					// missing values go to the end of the sorted orders
+					for( int i = 0; i < n; i++ )
+						if( Float.isNaN( column[ i ] ) )
+							column[ i ] = Float.MAX_VALUE;
+					vals.put( a, offset, column, 0, n );
+				}
+				buffer.get( column, 0, n );
+				for( int i = 0; i < n; i++ )
+					weights[ offset + i ] = column[ i ];
+				offset += n;
+			}
+			if( null == scratchDirectory )
+				return new DataCache( heapVals, attNumVals, classIndex,
+						header.numClasses(), classValues, weights );
+			return new DataCache( vals, attNumVals, classIndex,
+					header.numClasses(), classValues, weights,
+					scratchDirectory );
+		}
+		finally{
+			raf.close();
+		}
+	}
+
+	/**
+	 * Convert an ARFF file into a binary training data file. The ARFF file
+	 * is read incrementally, so it does not need to fit in memory. As in the
+	 * rest of the library, the last attribute is used as class.
+	 *
+	 * @param arffFilename input ARFF file name
+	 * @param filename output binary training data file name
+	 * @throws IOException if any of the files could not be read or written
+	 */
+	public static void convertFromARFF( String arffFilename, String filename )
+			throws IOException
+	{
+		final ArffLoader loader = new ArffLoader();
+		loader.setFile( new File( arffFilename ) );
+		final Instances header = loader.getStructure();
+		header.setClassIndex( header.numAttributes() - 1 );
+
+		final File file = new File( filename );
+		if( file.exists() && !file.delete() )
+			throw new IOException( "Could not overwrite " + filename );
+
+		// write the header even if the ARFF file has no instances
+		final DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream( new FileOutputStream( file ) ) );
+		try{
+			writeHeader( header, out );
+		}
+		finally{
+			out.close();
+		}
+
+		final Instances block = new Instances( header, MAX_BLOCK_SIZE );
+		Instance ins;
+		while( null != ( ins = loader.getNextInstance( header ) ) )
+		{
+			block.add( ins );
+			if( block.numInstances() == MAX_BLOCK_SIZE )
+			{
+				append( block, filename );
+				block.delete();
+			}
+		}
+		if( block.numInstances() > 0 )
+			append( block, filename );
+	}
+
+	/**
+	 * Convert a binary training data file into an ARFF file. The instances
+	 * are written block by block, so the data does not need to fit in
+	 * memory.
+	 *
+	 * @param filename input binary training data file name
+	 * @param arffFilename output ARFF file name
+	 * @throws IOException if any of the files could not be read or written
+	 */
+	public static void convertToARFF( String filename, String arffFilename )
+			throws IOException
+	{
+		final RandomAccessFile raf = new RandomAccessFile( filename, "r" );
+		final BufferedWriter out = new BufferedWriter(
+				new OutputStreamWriter(
+						new FileOutputStream( arffFilename ),
+						StandardCharsets.UTF_8 ) );
+		try{
+			final FileChannel channel = raf.getChannel();
+			final Instances header = readHeader( channel );
+			final int numAttributes = header.numAttributes();
+			out.write( header.toString() );
+
+			final float[][] columns = new float[ numAttributes + 1 ][ MAX_BLOCK_SIZE ];
+			for( long position : getBlockPositions( channel ) )
+			{
+				final int n = readBlockSize( channel, position );
+				final FloatBuffer buffer = mapBlock( channel, position, n,
+						numAttributes );
+				for( int a = 0; a <= numAttributes; a++ )
+					buffer.get( columns[ a ], 0, n );
+
+				for( int i = 0; i < n; i++ )
+				{
+					final double[] values = new double[ numAttributes ];
+					for( int a = 0; a < numAttributes; a++ )
+						values[ a ] = Float.isNaN( columns[ a ][ i ] ) ?
+								weka.core.Utils.missingValue() : columns[ a ][ i ];
+					final DenseInstance ins = new DenseInstance(
+							columns[ numAttributes ][ i ], values );
+					ins.setDataset( header );
+					out.write( ins.toString() + "\n" );
+				}
+			}
+		}
+		finally{
+			out.close();
+			raf.close();
+		}
+	}
+
+	// -- Helper methods --
+
+	/**
+	 * Write the header of the format (attribute information).
+	 *
+	 * @param data instances to get the attributes from
+	 * @param out output stream
+	 * @throws IOException if the header could not be written or the data
+	 * contains non supported attributes
+	 */
+	private static void writeHeader( Instances data, DataOutputStream out )
+			throws IOException
+	{
+		final byte[] header = encodeHeader( data );
+		out.writeInt( MAGIC );
+		out.writeInt( VERSION );
+		out.writeInt( header.length );
+		out.write( header );
+	}
+
+	/**
+	 * Encode the attribute information of a set of instances (also used by
+	 * the binary model format).
+	 *
+	 * @param data instances to get the attributes from
+	 * @return encoded attribute information
+	 * @throws IOException if the data contains non supported attributes
+	 */
+	static byte[] encodeHeader( Instances data ) throws IOException
+	{
+		if( data.classIndex() < 0 )
+			throw new IOException( "The class index of the data is not set" );
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream header = new DataOutputStream( bytes );
+		header.writeUTF( data.relationName() );
+		header.writeInt( data.numAttributes() );
+		header.writeInt( data.classIndex() );
+		for( int a = 0; a < data.numAttributes(); a++ )
+		{
+			final Attribute att = data.attribute( a );
+			header.writeUTF( att.name() );
+			if( att.isNumeric() )
+				header.writeByte( NUMERIC );
+			else if( att.isNominal() )
+			{
+				header.writeByte( NOMINAL );
+				header.writeInt( att.numValues() );
+				for( int v = 0; v < att.numValues(); v++ )
+					header.writeUTF( att.value( v ) );
+			}
+			else
+				throw new IOException( "Only numeric and nominal attributes "
+						+ "are supported (" + att.name() + ")" );
+		}
+		header.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Read the header of the format.
+	 *
+	 * @param channel file channel positioned anywhere
+	 * @return empty set of instances with the stored attributes
+	 * @throws IOException if the file is not a valid binary training data file
+	 */
+	private static Instances readHeader( FileChannel channel ) throws IOException
+	{
+		final ByteBuffer start = ByteBuffer.allocate( 12 );
+		readFully( channel, start, 0 );
+		if( start.getInt() != MAGIC )
+			throw new IOException( "Not a binary training data file" );
+		final int version = start.getInt();
+		if( version > VERSION )
+			throw new IOException( "Unsupported binary training data version: "
+					+ version );
+		final ByteBuffer bytes = ByteBuffer.allocate( start.getInt() );
+		readFully( channel, bytes, 12 );
+
+		return decodeHeader( new DataInputStream(
+				new ByteArrayInputStream( bytes.array() ) ) );
+	}
+
+	/**
+	 * Decode attribute information written by {@link #encodeHeader}.
+	 *
+	 * @param in input stream positioned at the start of the header
+	 * @return empty set of instances with the stored attributes
+	 * @throws IOException if the header could not be read
+	 */
+	static Instances decodeHeader( DataInputStream in ) throws IOException
+	{
+		final String relationName = in.readUTF();
+		final int numAttributes = in.readInt();
+		final int classIndex = in.readInt();
+		final ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+		for( int a = 0; a < numAttributes; a++ )
+		{
+			final String name = in.readUTF();
+			if( in.readByte() == NOMINAL )
+			{
+				final int numValues = in.readInt();
+				final ArrayList<String> values = new ArrayList<String>();
+				for( int v = 0; v < numValues; v++ )
+					values.add( in.readUTF() );
+				attributes.add( new Attribute( name, values ) );
+			}
+			else
+				attributes.add( new Attribute( name ) );
+		}
+		final Instances header = new Instances( relationName, attributes, 0 );
+		header.setClassIndex( classIndex );
+		return header;
+	}
+
+	/**
+	 * Write a block of instances.
+	 *
+	 * @param columns attribute columns followed by the weight column
+	 * @param n number of instances in the block
+	 * @param out output stream
+	 * @throws IOException if the block could not be written
+	 */
+	private static void writeBlock(
+			final float[][] columns,
+			final int n,
+			final DataOutputStream out ) throws IOException
+	{
+		out.writeInt( n );
+		for( float[] column : columns )
+			for( int i = 0; i < n; i++ )
+				out.writeFloat( column[ i ] );
+	}
+
+	/**
+	 * Get the positions of all blocks of the file.
+	 *
+	 * @param channel file channel
+	 * @return file offsets of the blocks
+	 * @throws IOException if the file could not be read
+	 */
+	private static long[] getBlockPositions( FileChannel channel )
+			throws IOException
+	{
+		final ByteBuffer start = ByteBuffer.allocate( 12 );
+		readFully( channel, start, 0 );
+		final int numAttributes = readHeader( channel ).numAttributes();
+
+		final ArrayList<Long> positions = new ArrayList<Long>();
+		long position = 12 + start.getInt( 8 );
+		while( position < channel.size() )
+		{
+			positions.add( position );
+			final int n = readBlockSize( channel, position );
+			position += 4 + 4L * n * ( numAttributes + 1 );
+		}
+		if( position != channel.size() )
+			throw new IOException( "Truncated binary training data file" );
+
+		final long[] result = new long[ positions.size() ];
+		for( int i = 0; i < result.length; i++ )
+			result[ i ] = positions.get( i );
+		return result;
+	}
+
+	/**
+	 * Count the total number of instances stored in a set of blocks.
+	 */
+	private static int countInstances( FileChannel channel, long[] blocks )
+			throws IOException
+	{
+		long count = 0;
+		for( long position : blocks )
+			count += readBlockSize( channel, position );
+		if( count > Integer.MAX_VALUE )
+			throw new IOException( "Too many instances: " + count );
+		return (int) count;
+	}
+
+	/**
+	 * Read the number of instances of the block starting at a given position.
+	 */
+	private static int readBlockSize( FileChannel channel, long position )
+			throws IOException
+	{
+		final ByteBuffer size = ByteBuffer.allocate( 4 );
+		readFully( channel, size, position );
+		return size.getInt();
+	}
+
+	/**
+	 * Memory-map the columns of a block.
+	 *
+	 * @return buffer with the attribute columns followed by the weight column
+	 */
+	private static FloatBuffer mapBlock(
+			FileChannel channel,
+			long position,
+			int n,
+			int numAttributes ) throws IOException
+	{
+		final MappedByteBuffer buffer = channel.map(
+				FileChannel.MapMode.READ_ONLY, position + 4,
+				4L * n * ( numAttributes + 1 ) );
+		return buffer.asFloatBuffer();
+	}
+
+	/**
+	 * Fill a buffer with the content of the channel at a given position.
+	 */
+	static void readFully(
+			FileChannel channel,
+			ByteBuffer buffer,
+			long position ) throws IOException
+	{
+		while( buffer.hasRemaining() )
+		{
+			final int read = channel.read( buffer, position );
+			if( read < 0 )
+				throw new IOException( "Unexpected end of file" );
+			position += read;
+		}
+		buffer.flip();
+	}
+}
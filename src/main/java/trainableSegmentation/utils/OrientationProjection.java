@@ -0,0 +1,217 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package trainableSegmentation.utils;
+
+/**
+ * Projection of the responses of an image to a set of oriented filters
+ * (one response per orientation) into per-pixel statistics, all of them
+ * computed in a single pass over the responses. It gives exactly the same
+ * results as projecting a stack of the responses with ImageJ's ZProjector,
+ * once per statistic: as in ZProjector, the sum and the average are
+ * accumulated in float, and the standard deviation in double.
+ */
+public final class OrientationProjection
+{
+	/** average of the responses (same value as ZProjector.AVG_METHOD) */
+	public static final int AVERAGE = 0;
+	/** maximum response (same value as ZProjector.MAX_METHOD) */
+	public static final int MAX = 1;
+	/** minimum response (same value as ZProjector.MIN_METHOD) */
+	public static final int MIN = 2;
+	/** sum of the responses (same value as ZProjector.SUM_METHOD) */
+	public static final int SUM = 3;
+	/** standard deviation of the responses (same value as ZProjector.SD_METHOD) */
+	public static final int STANDARD_DEVIATION = 4;
+	/** median response (same value as ZProjector.MEDIAN_METHOD) */
+	public static final int MEDIAN = 5;
+
+	private OrientationProjection()
+	{
+		// prevent instantiation of utility class
+	}
+
+	/**
+	 * Project the responses to all orientations.
+	 *
+	 * @param responses pixels of the response to each orientation
+	 * @param methods statistics to compute ({@link #AVERAGE}, {@link #MAX},
+	 * {@link #MIN}, {@link #SUM}, {@link #STANDARD_DEVIATION} or
+	 * {@link #MEDIAN})
+	 * @return pixels of each projection, in the same order as the methods
+	 */
+	public static float[][] project( final float[][] responses, final int... methods )
+	{
+		final int n = responses.length;
+		final int numPixels = responses[ 0 ].length;
+		final float[][] projections = new float[ methods.length ][ numPixels ];
+
+		boolean median = false;
+		for( int method : methods )
+		{
+			if( method < AVERAGE || method > MEDIAN )
+				throw new IllegalArgumentException( "Unknown projection method: " + method );
+			median |= method == MEDIAN;
+		}
+
+		// responses of the current pixel (only needed for the median)
+		final float[] values = median ? new float[ n ] : null;
+
+		for( int i = 0; i < numPixels; i++ )
+		{
+			float fsum = 0;
+			double sum = 0, sum2 = 0;
+			float max = -Float.MAX_VALUE, min = Float.MAX_VALUE;
+			for( int k = 0; k < n; k++ )
+			{
+				final float v = responses[ k ][ i ];
+				fsum += v;
+				sum += v;
+				sum2 += (double) v * v;
+				if( v > max )
+					max = v;
+				if( v < min )
+					min = v;
+				if( median )
+					values[ k ] = v;
+			}
+			for( int m = 0; m < methods.length; m++ )
+			{
+				final float value;
+				switch( methods[ m ] )
+				{
+					case AVERAGE:
+						value = fsum / (float) n;
+						break;
+					case MAX:
+						value = max;
+						break;
+					case MIN:
+						value = min;
+						break;
+					case SUM:
+						value = fsum;
+						break;
+					case STANDARD_DEVIATION:
+						value = (float) standardDeviation( sum, sum2, n );
+						break;
+					default:
+						value = median( values );
+				}
+				projections[ m ][ i ] = value;
+			}
+		}
+		return projections;
+	}
+
+	/**
+	 * Standardize the response to each orientation (in place) so it has
+	 * zero mean and unit standard deviation over the image, as
+	 * {@link Utils#normalize(ij.ImageStack)} does.
+	 *
+	 * @param responses pixels of the response to each orientation
+	 */
+	public static void standardize( final float[][] responses )
+	{
+		for( float[] response : responses )
+		{
+			double sum = 0, sum2 = 0;
+			for( float v : response )
+			{
+				sum += v;
+				sum2 += (double) v * v;
+			}
+			final int n = response.length;
+			final double mean = sum / n;
+			final double scale = 1.0 / standardDeviation( sum, sum2, n );
+			for( int i = 0; i < n; i++ )
+				response[ i ] = (float) ( ( response[ i ] - mean ) * scale );
+		}
+	}
+
+	/**
+	 * Sample standard deviation (as computed by ImageJ) from the sum and the
+	 * sum of squares of n values.
+	 */
+	private static double standardDeviation( double sum, double sum2, int n )
+	{
+		if( n < 2 )
+			return 0;
+		final double variance = ( n * sum2 - sum * sum ) / n;
+		return variance > 0 ? Math.sqrt( variance / ( n - 1.0 ) ) : 0;
+	}
+
+	/**
+	 * Median of a small set of values (reordered in place), averaging the
+	 * two middle values if their number is even. The middle values are
+	 * found by selection, without sorting the whole set.
+	 */
+	static float median( final float[] values )
+	{
+		final int n = values.length;
+		final int middle = n / 2;
+		select( values, middle );
+		if( ( n & 1 ) == 1 )
+			return values[ middle ];
+		// the other middle value is the largest one below the middle
+		float lower = values[ 0 ];
+		for( int i = 1; i < middle; i++ )
+			if( values[ i ] > lower )
+				lower = values[ i ];
+		return ( lower + values[ middle ] ) / 2f;
+	}
+
+	/**
+	 * Reorder the values so the k-th smallest one is at position k, with
+	 * smaller or equal values before it and larger or equal ones after it
+	 * (Hoare's selection).
+	 */
+	private static void select( final float[] values, final int k )
+	{
+		int left = 0, right = values.length - 1;
+		while( right > left )
+		{
+			final float pivot = values[ ( left + right ) >>> 1 ];
+			int i = left, j = right;
+			while( i <= j )
+			{
+				while( values[ i ] < pivot )
+					i++;
+				while( values[ j ] > pivot )
+					j--;
+				if( i <= j )
+				{
+					final float tmp = values[ i ];
+					values[ i ] = values[ j ];
+					values[ j ] = tmp;
+					i++;
+					j--;
+				}
+			}
+			if( k <= j )
+				right = j;
+			else if( k >= i )
+				left = i;
+			else
+				return;
+		}
+	}
+}
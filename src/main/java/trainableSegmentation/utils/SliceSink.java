@@ -0,0 +1,44 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package trainableSegmentation.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import ij.ImageStack;
+
+/**
+ * Destination of the slices of a classification result, which are written
+ * one after the other (in increasing z order) as soon as they are
+ * classified, so the whole result does not need to be in memory.
+ */
+public interface SliceSink extends Closeable
+{
+	/**
+	 * Write the next slice of the result.
+	 *
+	 * @param slice channels of the slice (the probability of each class, or
+	 * the labels)
+	 * @throws IOException if the slice could not be written
+	 */
+	void write( ImageStack slice ) throws IOException;
+}
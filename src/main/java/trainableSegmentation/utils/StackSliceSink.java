@@ -0,0 +1,89 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package trainableSegmentation.utils;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/**
+ * Slice sink keeping the slices of the result in an in-memory stack.
+ */
+public class StackSliceSink implements SliceSink
+{
+	private final ImageStack stack;
+	/** number of channels of each slice (0 until the first slice is written) */
+	private int numChannels = 0;
+
+	/**
+	 * Create an empty sink.
+	 *
+	 * @param width image width
+	 * @param height image height
+	 */
+	public StackSliceSink( int width, int height )
+	{
+		stack = new ImageStack( width, height );
+	}
+
+	@Override
+	public void write( ImageStack slice )
+	{
+		numChannels = slice.getSize();
+		for( int c = 1; c <= slice.getSize(); c++ )
+			stack.addSlice( slice.getSliceLabel( c ), slice.getProcessor( c ) );
+	}
+
+	@Override
+	public void close()
+	{
+	}
+
+	/**
+	 * Get the stack with the slices written so far (channels of each slice
+	 * one after the other).
+	 *
+	 * @return result stack
+	 */
+	public ImageStack getStack()
+	{
+		return stack;
+	}
+
+	/**
+	 * Get the image with the slices written so far, as a hyperstack of
+	 * channels and slices when the slices have several channels. At least
+	 * one slice must have been written.
+	 *
+	 * @param title image title
+	 * @return result image
+	 */
+	public ImagePlus getImage( String title )
+	{
+		final ImagePlus image = new ImagePlus( title, stack );
+		if( numChannels > 1 )
+		{
+			image.setDimensions( numChannels, stack.getSize() / numChannels, 1 );
+			image.setOpenAsHyperStack( true );
+		}
+		return image;
+	}
+}
@@ -0,0 +1,291 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package trainableSegmentation.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+import ij.IJ;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+/**
+ * Slice sink writing the slices of the result to an uncompressed TIFF file
+ * as they arrive, readable by ImageJ as a stack (or a hyperstack of
+ * channels and slices).
+ * <p>
+ * Room for the directory (IFD) and the description of the first image is
+ * left after the file header, the pixels of the images are appended one
+ * after the other, and the directories are written when the file is
+ * closed: the first one in its room and the rest at the end of the file.
+ * Only the offsets of the images are kept in memory. The pixels are
+ * written as 32-bit floats if the first image is a float image, and as
+ * 8-bit values otherwise; all images must then be of the same kind. As in
+ * the TIFF files ImageJ writes, if the file is larger than 4GB only the
+ * directory of the first image is written and ImageJ reads the rest of the
+ * images from the image description.
+ */
+public class TiffSliceWriter implements SliceSink
+{
+	/** size of the file header (byte order, magic number and first IFD offset) */
+	private static final int HEADER_SIZE = 8;
+	/** room left for the description of the first image */
+	private static final int DESCRIPTION_SIZE = 256;
+	/** largest offset of a (non BigTIFF) TIFF file */
+	private static final long MAX_OFFSET = 0xffffffffL;
+
+	private static final int NEW_SUBFILE_TYPE = 254;
+	private static final int IMAGE_WIDTH = 256;
+	private static final int IMAGE_LENGTH = 257;
+	private static final int BITS_PER_SAMPLE = 258;
+	private static final int COMPRESSION = 259;
+	private static final int PHOTOMETRIC_INTERPRETATION = 262;
+	private static final int IMAGE_DESCRIPTION = 270;
+	private static final int STRIP_OFFSETS = 273;
+	private static final int SAMPLES_PER_PIXEL = 277;
+	private static final int ROWS_PER_STRIP = 278;
+	private static final int STRIP_BYTE_COUNTS = 279;
+	private static final int SAMPLE_FORMAT = 339;
+
+	private static final int ASCII = 2;
+	private static final int SHORT = 3;
+	private static final int LONG = 4;
+
+	private final RandomAccessFile file;
+	private final int width;
+	private final int height;
+	/** bits per sample (0 until the first image is written) */
+	private int bitsPerSample = 0;
+	/** number of channels of each slice (0 until the first slice is written) */
+	private int numChannels = 0;
+	/** offsets of the pixels of each image */
+	private final ArrayList<Long> offsets = new ArrayList<Long>();
+	/** buffer for the pixels of an image */
+	private ByteBuffer buffer;
+	private boolean closed = false;
+
+	/**
+	 * Create a TIFF file (replacing any previous one) to write slices into.
+	 *
+	 * @param filename output file name
+	 * @param width image width
+	 * @param height image height
+	 * @throws IOException if the file could not be created
+	 */
+	public TiffSliceWriter( String filename, int width, int height )
+			throws IOException
+	{
+		final File f = new File( filename );
+		if( f.exists() && !f.delete() )
+			throw new IOException( "Could not overwrite " + filename );
+		this.file = new RandomAccessFile( f, "rw" );
+		this.width = width;
+		this.height = height;
+		// big-endian header followed by the room of the first IFD
+		file.writeShort( 0x4d4d );
+		file.writeShort( 42 );
+		file.writeInt( HEADER_SIZE );
+		file.write( new byte[ ifdSize( true ) + DESCRIPTION_SIZE ] );
+	}
+
+	@Override
+	public void write( ImageStack slice ) throws IOException
+	{
+		if( closed )
+			throw new IOException( "The TIFF file is already closed" );
+		if( slice.getWidth() != width || slice.getHeight() != height )
+			throw new IOException( "Expected slices of " + width + "x" + height
+					+ " pixels, found " + slice.getWidth() + "x" + slice.getHeight() );
+		if( 0 == numChannels )
+			numChannels = slice.getSize();
+		else if( slice.getSize() != numChannels )
+			throw new IOException( "Expected slices of " + numChannels + " channel(s), found "
+					+ slice.getSize() );
+		for( int c = 1; c <= slice.getSize(); c++ )
+			writeImage( slice.getProcessor( c ) );
+	}
+
+	/**
+	 * Append the pixels of an image to the file.
+	 *
+	 * @param ip image to write
+	 * @throws IOException if the pixels could not be written, or if the
+	 * image is a float image and the previous ones were not (or vice versa)
+	 */
+	private void writeImage( ImageProcessor ip ) throws IOException
+	{
+		final boolean isFloat = ip instanceof FloatProcessor;
+		if( 0 == bitsPerSample )
+		{
+			bitsPerSample = isFloat ? 32 : 8;
+			buffer = ByteBuffer.allocate( width * height * ( bitsPerSample / 8 ) );
+		}
+		else if( isFloat != ( 32 == bitsPerSample ) )
+			throw new IOException( "Expected " + ( 32 == bitsPerSample ? "32-bit float" : "8-bit" )
+					+ " images, found a " + ip.getBitDepth() + "-bit image" );
+		buffer.clear();
+		if( 32 == bitsPerSample )
+			buffer.asFloatBuffer().put( (float[]) ip.convertToFloat().getPixels() );
+		else
+			buffer.put( (byte[]) ip.convertToByte( false ).getPixels() );
+		offsets.add( file.getFilePointer() );
+		file.write( buffer.array() );
+	}
+
+	/**
+	 * Write the image directories and close the file. Nothing is written
+	 * after the file is closed.
+	 *
+	 * @throws IOException if the directories could not be written
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		if( closed )
+			return;
+		closed = true;
+		try{
+			if( offsets.isEmpty() )
+				throw new IOException( "No slices were written to the TIFF file" );
+			final long imageSize = (long) width * height * bitsPerSample / 8;
+			// directories start on a word boundary
+			long end = file.length();
+			if( end % 2 == 1 )
+			{
+				file.seek( end++ );
+				file.write( 0 );
+			}
+			// directories beyond 4GB cannot be addressed, so only the first one is written then
+			final int numImages = end + ( offsets.size() - 1L ) * ifdSize( false ) > MAX_OFFSET ?
+					1 : offsets.size();
+			long next = numImages > 1 ? end : 0;
+			writeDirectory( HEADER_SIZE, offsets.get( 0 ), imageSize, getDescription(), next );
+			for( int i = 1; i < numImages; i++ )
+			{
+				final long ifd = next;
+				next = i == numImages - 1 ? 0 : ifd + ifdSize( false );
+				writeDirectory( ifd, offsets.get( i ), imageSize, null, next );
+			}
+		}
+		finally{
+			file.close();
+		}
+	}
+
+	/**
+	 * Get the ImageJ description of the images, to read them as a stack (or
+	 * a hyperstack of channels and slices).
+	 *
+	 * @return description as a null-terminated ASCII string
+	 */
+	private byte[] getDescription()
+	{
+		final int numImages = offsets.size();
+		String description = "ImageJ=" + IJ.getVersion() + "\nimages=" + numImages + "\n";
+		if( numChannels > 1 )
+			description += "channels=" + numChannels + "\nslices=" + ( numImages / numChannels )
+				+ "\nhyperstack=true\nmode=grayscale\n";
+		else if( numImages > 1 )
+			description += "slices=" + numImages + "\n";
+		return ( description + "\0" ).getBytes( StandardCharsets.US_ASCII );
+	}
+
+	/**
+	 * Get the size of an image directory (without the description).
+	 *
+	 * @param withDescription true if it has an image description entry
+	 * @return directory size in bytes
+	 */
+	private static int ifdSize( boolean withDescription )
+	{
+		return 2 + numEntries( withDescription ) * 12 + 4;
+	}
+
+	private static int numEntries( boolean withDescription )
+	{
+		return withDescription ? 12 : 11;
+	}
+
+	/**
+	 * Write the directory of an image (entries sorted by tag, as required
+	 * by the TIFF specification).
+	 *
+	 * @param ifd offset of the directory
+	 * @param offset offset of the pixels of the image
+	 * @param imageSize size of the pixels of the image in bytes
+	 * @param description image description (null for none), written right
+	 * after the directory (at most {@link #DESCRIPTION_SIZE} bytes)
+	 * @param next offset of the next directory (0 for the last one)
+	 * @throws IOException if the directory could not be written
+	 */
+	private void writeDirectory(
+			long ifd,
+			long offset,
+			long imageSize,
+			byte[] description,
+			long next ) throws IOException
+	{
+		file.seek( ifd );
+		file.writeShort( numEntries( null != description ) );
+		writeEntry( NEW_SUBFILE_TYPE, LONG, 1, 0 );
+		writeEntry( IMAGE_WIDTH, LONG, 1, width );
+		writeEntry( IMAGE_LENGTH, LONG, 1, height );
+		writeEntry( BITS_PER_SAMPLE, SHORT, 1, bitsPerSample );
+		writeEntry( COMPRESSION, SHORT, 1, 1 );
+		writeEntry( PHOTOMETRIC_INTERPRETATION, SHORT, 1, 1 );
+		if( null != description )
+			writeEntry( IMAGE_DESCRIPTION, ASCII, description.length, ifd + ifdSize( true ) );
+		writeEntry( STRIP_OFFSETS, LONG, 1, offset );
+		writeEntry( SAMPLES_PER_PIXEL, SHORT, 1, 1 );
+		writeEntry( ROWS_PER_STRIP, LONG, 1, height );
+		writeEntry( STRIP_BYTE_COUNTS, LONG, 1, imageSize );
+		// IEEE floating point or unsigned integer
+		writeEntry( SAMPLE_FORMAT, SHORT, 1, 32 == bitsPerSample ? 3 : 1 );
+		file.writeInt( (int) next );
+		if( null != description )
+			file.write( description );
+	}
+
+	/**
+	 * Write a directory entry with a single value (or the offset of its
+	 * values).
+	 */
+	private void writeEntry( int tag, int type, int count, long value ) throws IOException
+	{
+		file.writeShort( tag );
+		file.writeShort( type );
+		file.writeInt( count );
+		if( SHORT == type )
+		{
+			// short values are left-justified
+			file.writeShort( (int) value );
+			file.writeShort( 0 );
+		}
+		else
+			file.writeInt( (int) value );
+	}
+}
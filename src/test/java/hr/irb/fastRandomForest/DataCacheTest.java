@@ -0,0 +1,137 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hr.irb.fastRandomForest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+public class DataCacheTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * Read the attribute values and sorted orders back through the
+	 * memory-mapped scratch files and compare them with the heap cache.
+	 */
+	@Test
+	public void testMappedFromInstances() throws Exception {
+		final Instances data = createData( 500, 6 );
+
+		final DataCache heap = new DataCache( data );
+		final DataCache mapped = new DataCache( data, folder.newFolder() );
+
+		assertFalse( heap.vals.isMapped() );
+		assertTrue( mapped.vals.isMapped() );
+		assertTrue( mapped.sortedIndices.isMapped() );
+
+		assertEquals( heap.numInstances, mapped.numInstances );
+		for ( int a = 0; a < data.numAttributes(); a++ )
+		{
+			if ( a == data.classIndex() )
+				continue;
+			for ( int i = 0; i < data.numInstances(); i++ )
+			{
+				assertEquals( heap.vals.get( a, i ), mapped.vals.get( a, i ), 0 );
+				assertEquals( heap.sortedIndices.get( a, i ),
+						mapped.sortedIndices.get( a, i ) );
+			}
+		}
+		for ( int i = 0; i < data.numInstances(); i++ )
+		{
+			assertEquals( heap.instClassValues[ i ], mapped.instClassValues[ i ] );
+			assertEquals( heap.instWeights[ i ], mapped.instWeights[ i ], 0 );
+		}
+	}
+
+	/**
+	 * Train a forest on memory-mapped columns (read through the column
+	 * buffer, with the per-tree sorted orders in the scratch file of each
+	 * thread) and one in the heap with the same seed; both must give the
+	 * same votes.
+	 */
+	@Test
+	public void testMappedTraining() throws Exception {
+		final Instances data = createData( 500, 6 );
+
+		final FastRandomForest heap = createForest();
+		heap.buildClassifier( data );
+		final FastRandomForest mapped = createForest();
+		mapped.setScratchDirectory( folder.newFolder().getPath() );
+		mapped.buildClassifier( data );
+
+		for ( int i = 0; i < data.numInstances(); i++ )
+			assertArrayEquals( heap.distributionForInstance( data.instance( i ) ),
+					mapped.distributionForInstance( data.instance( i ) ), 0 );
+	}
+
+	/** Forest of more trees than threads, so the threads train several trees. */
+	private static FastRandomForest createForest()
+	{
+		final FastRandomForest forest = new FastRandomForest();
+		forest.setNumTrees( 12 );
+		forest.setNumThreads( 2 );
+		forest.setSeed( 7 );
+		return forest;
+	}
+
+	/** Random numeric data with missing values and a two-class attribute. */
+	private static Instances createData( int numInstances, int numFeatures )
+	{
+		final ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+		for ( int a = 0; a < numFeatures; a++ )
+			attributes.add( new Attribute( "f" + a ) );
+		final ArrayList<String> classes = new ArrayList<String>();
+		classes.add( "class 1" );
+		classes.add( "class 2" );
+		attributes.add( new Attribute( "class", classes ) );
+
+		final Instances data = new Instances( "data", attributes, numInstances );
+		data.setClassIndex( numFeatures );
+
+		final Random random = new Random( 42 );
+		for ( int i = 0; i < numInstances; i++ )
+		{
+			final double[] values = new double[ numFeatures + 1 ];
+			for ( int a = 0; a < numFeatures; a++ )
+				values[ a ] = random.nextInt( 10 ) == 0 ?
+						Utils.missingValue() : random.nextGaussian();
+			values[ numFeatures ] = random.nextInt( 2 );
+			data.add( new DenseInstance( 1.0, values ) );
+		}
+		return data;
+	}
+}
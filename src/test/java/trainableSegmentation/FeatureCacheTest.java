@@ -0,0 +1,167 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package trainableSegmentation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+public class FeatureCacheTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testStoreAndLoad() throws Exception {
+		final FeatureCache cache = new FeatureCache(folder.getRoot(), FeatureCache.DEFAULT_CAPACITY);
+		final Random random = new Random(1);
+		// taller than a chunk of rows
+		final ImageProcessor[] slices = {
+				new ByteProcessor(23, 150), new ShortProcessor(23, 150),
+				new ColorProcessor(23, 150), new FloatProcessor(23, 150)};
+		for (ImageProcessor ip : slices) {
+			for (int i = 0; i < ip.getPixelCount(); i++)
+				ip.set(i, ip instanceof FloatProcessor ? Float.floatToIntBits(random.nextFloat()) : random.nextInt());
+			final ImageStack stack = new ImageStack(23, 150);
+			stack.addSlice("first", ip);
+			stack.addSlice(null, ip.duplicate());
+			final String key = FeatureCache.key(ip, "test");
+			assertNull(cache.load(key));
+			assertTrue(cache.store(key, stack));
+
+			final ImageStack loaded = cache.load(key);
+			assertEquals(2, loaded.getSize());
+			assertEquals(ip.getBitDepth(), loaded.getBitDepth());
+			assertEquals("first", loaded.getSliceLabel(1));
+			assertNull(loaded.getSliceLabel(2));
+			for (int z = 1; z <= 2; z++)
+				for (int i = 0; i < ip.getPixelCount(); i++)
+					assertEquals(ip.get(i), loaded.getProcessor(z).get(i));
+		}
+	}
+
+	@Test
+	public void testCorruptedFileIsDiscarded() throws Exception {
+		final FeatureCache cache = new FeatureCache(folder.getRoot(), FeatureCache.DEFAULT_CAPACITY);
+		final ImageStack stack = new ImageStack(40, 30);
+		stack.addSlice("slice", createImage(40, 30, 2));
+		final String key = FeatureCache.key(stack.getProcessor(1), "test");
+		assertTrue(cache.store(key, stack));
+
+		final File file = new File(folder.getRoot(), key + ".features");
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(raf.length() - 10);
+			final int b = raf.read();
+			raf.seek(raf.length() - 10);
+			raf.write(b ^ 0xff);
+		} finally {
+			raf.close();
+		}
+		assertNull(cache.load(key));
+		assertFalse(file.exists());
+	}
+
+	@Test
+	public void testLeastRecentlyUsedEviction() throws Exception {
+		final FeatureCache cache = new FeatureCache(folder.getRoot(), FeatureCache.DEFAULT_CAPACITY);
+		final String[] keys = new String[3];
+		for (int i = 0; i < keys.length; i++) {
+			final ImageStack stack = new ImageStack(64, 64);
+			stack.addSlice("slice", createImage(64, 64, i));
+			keys[i] = FeatureCache.key(stack.getProcessor(1), "test");
+			assertTrue(cache.store(keys[i], stack));
+			// the first file is the least recently used one
+			new File(folder.getRoot(), keys[i] + ".features").setLastModified(1000000L * (i + 1));
+		}
+		final long size = cache.getSize();
+		cache.setCapacity(size - 1);
+		assertNull(cache.load(keys[0]));
+		assertTrue(null != cache.load(keys[1]));
+		assertTrue(null != cache.load(keys[2]));
+
+		cache.clear();
+		assertEquals(0, cache.getSize());
+	}
+
+	@Test
+	public void testFeatureStackReusesCachedFeatures() throws Exception {
+		final FeatureCache cache = new FeatureCache(folder.getRoot(), FeatureCache.DEFAULT_CAPACITY);
+		final ImagePlus input = new ImagePlus("input", createImage(37, 21, 3));
+		final FeatureStack computed = createFeatureStack(input, cache, 2);
+		assertTrue(computed.updateFeaturesMT());
+		assertTrue(cache.getSize() > 0);
+		final long size = cache.getSize();
+
+		final FeatureStack cached = createFeatureStack(input, cache, 2);
+		assertTrue(cached.updateFeaturesMT());
+		assertEquals(size, cache.getSize());
+		assertEquals(computed.getSize(), cached.getSize());
+		for (int z = 1; z <= computed.getSize(); z++) {
+			assertEquals(computed.getSliceLabel(z), cached.getSliceLabel(z));
+			assertArrayEquals((float[]) computed.getStack().getPixels(z),
+					(float[]) cached.getStack().getPixels(z), 0);
+		}
+
+		// other settings are other features
+		final FeatureStack other = createFeatureStack(input, cache, 4);
+		assertTrue(other.updateFeaturesMT());
+		assertNotEquals(computed.getSize(), other.getSize());
+		assertTrue(cache.getSize() > size);
+	}
+
+	private static FeatureStack createFeatureStack(ImagePlus input, FeatureCache cache,
+			float maximumSigma) {
+		final FeatureStack featureStack = new FeatureStack(input);
+		featureStack.setMinimumSigma(1);
+		featureStack.setMaximumSigma(maximumSigma);
+		featureStack.setFeatureCache(cache);
+		return featureStack;
+	}
+
+	private static FloatProcessor createImage(int width, int height, long seed) {
+		final Random random = new Random(seed);
+		final FloatProcessor fp = new FloatProcessor(width, height);
+		for (int i = 0; i < width * height; i++)
+			fp.setf(i, random.nextFloat() * 255);
+		return fp;
+	}
+}
@@ -0,0 +1,146 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package trainableSegmentation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+public class FeatureStack3DTest {
+
+	@Test
+	public void testBlockFeatures() {
+		ImagePlus input = createTestVolume(23, 19, 14);
+		boolean[] enabled = new boolean[FeatureStack3D.availableFeatures.length];
+		for (int feature : new int[] {FeatureStack3D.GAUSSIAN, FeatureStack3D.MINIMUM,
+				FeatureStack3D.MAXIMUM, FeatureStack3D.MEAN, FeatureStack3D.VARIANCE})
+			enabled[feature] = true;
+
+		// an inner block and a block touching the volume borders
+		assertBlockFeatures(input, enabled, 2, new int[][] {{4, 3, 2}, {15, 12, 9}},
+				new int[][] {{9, 7, 5}, {8, 7, 5}});
+	}
+
+	/**
+	 * The ImageScience kernels are wider than the Gaussian ones (up to 5
+	 * sigmas for derivatives of order 5, plus the integration scale of the
+	 * structure tensor), so the halo must cover them too.
+	 */
+	@Test
+	public void testBlockImageScienceFeatures() {
+		ImagePlus input = createTestVolume(41, 39, 35);
+		boolean[] enabled = new boolean[FeatureStack3D.availableFeatures.length];
+		for (int feature : new int[] {FeatureStack3D.HESSIAN, FeatureStack3D.DERIVATIVES,
+				FeatureStack3D.LAPLACIAN, FeatureStack3D.STRUCTURE, FeatureStack3D.EDGES})
+			enabled[feature] = true;
+		int[] origin = {16, 16, 15};
+		int[] size = {9, 7, 5};
+		// the padded block must not be the whole volume
+		int[] halo = createFeatures(input, enabled, 1).getHalo();
+		for (int d = 0; d < 3; d++) {
+			assertTrue(origin[d] - halo[d] > 0);
+			assertTrue(origin[d] + size[d] + halo[d] < new int[] {41, 39, 35}[d]);
+		}
+		assertBlockFeatures(input, enabled, 1, new int[][] {origin}, new int[][] {size});
+	}
+
+	/**
+	 * Compare the features of blocks of a volume with the same voxels of
+	 * the features of the whole volume.
+	 */
+	private static void assertBlockFeatures(ImagePlus input, boolean[] enabled,
+			float maximumSigma, int[][] origins, int[][] sizes) {
+		FeatureStack3D whole = createFeatures(input, enabled, maximumSigma);
+		assertTrue(whole.updateFeaturesMT());
+		FeatureStackArray expected = whole.getFeatureStackArray();
+
+		for (int b = 0; b < origins.length; b++) {
+			int[] origin = origins[b];
+			int[] size = sizes[b];
+			FeatureStackArray block = createFeatures(input, enabled, maximumSigma)
+					.getBlockFeatures(origin, size);
+			assertNotNull(block);
+			assertEquals(size[2], block.getSize());
+			assertEquals(whole.estimateNumOfFeatures(), block.getNumOfFeatures());
+			for (int z = 0; z < size[2]; z++) {
+				ImageStack blockStack = block.get(z).getStack();
+				ImageStack expectedStack = expected.get(origin[2] + z).getStack();
+				for (int i = 1; i <= expectedStack.getSize(); i++) {
+					assertEquals(expectedStack.getSliceLabel(i), blockStack.getSliceLabel(i));
+					ImageProcessor ip = expectedStack.getProcessor(i);
+					ip.setRoi(origin[0], origin[1], size[0], size[1]);
+					assertArrayEquals(expectedStack.getSliceLabel(i) + " (slice " + (origin[2] + z) + ")",
+							(float[]) ip.crop().getPixels(),
+							(float[]) blockStack.getProcessor(i).getPixels(), 1e-4f);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testEstimateNumOfFeatures() {
+		ImagePlus input = createTestVolume(11, 9, 6);
+		boolean[] enabled = new boolean[FeatureStack3D.availableFeatures.length];
+		for (int i = 0; i < enabled.length; i++)
+			enabled[i] = !FeatureStack3D.IMAGESCIENCE_FEATURES[i];
+		for (boolean[] features : new boolean[][] {FeatureStack3D.getDefaultEnabledFeatures(), enabled}) {
+			FeatureStack3D featureStack = createFeatures(input, features);
+			int expected = featureStack.estimateNumOfFeatures();
+			assertTrue(featureStack.updateFeaturesMT());
+			assertEquals(expected, featureStack.getFeatureStackArray().getNumOfFeatures());
+		}
+	}
+
+	private static FeatureStack3D createFeatures(ImagePlus input, boolean[] enabled) {
+		return createFeatures(input, enabled, 2);
+	}
+
+	private static FeatureStack3D createFeatures(ImagePlus input, boolean[] enabled, float maximumSigma) {
+		FeatureStack3D featureStack = new FeatureStack3D(input);
+		featureStack.setMinimumSigma(1);
+		featureStack.setMaximumSigma(maximumSigma);
+		featureStack.setEnableFeatures(enabled);
+		return featureStack;
+	}
+
+	private static ImagePlus createTestVolume(int width, int height, int depth) {
+		Random random = new Random(42);
+		ImageStack stack = new ImageStack(width, height);
+		for (int z = 0; z < depth; z++) {
+			float[] pixels = new float[width * height];
+			for (int i = 0; i < pixels.length; i++)
+				pixels[i] = random.nextFloat() * 255;
+			stack.addSlice("", new FloatProcessor(width, height, pixels));
+		}
+		return new ImagePlus("volume", stack);
+	}
+}
@@ -27,9 +27,13 @@ import ij.ImageStack;
 import ij.process.ImageProcessor;
 import org.junit.Test;
 
+import java.util.Arrays;
 import java.util.NoSuchElementException;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class FeatureStackTest {
 
@@ -46,6 +50,217 @@ public class FeatureStackTest {
 		assertEquals(expectedEigenvalue2, eigenvalue2 / factor, 0.0001);
 	}
 
+	@Test
+	public void testNeighbors() {
+		ImagePlus input = IJ.createImage("input", 13, 9, 1, 32);
+		ImageProcessor processor = input.getProcessor();
+		for (int y = 0; y < processor.getHeight(); y++)
+			for (int x = 0; x < processor.getWidth(); x++)
+				processor.setf(x, y, x + 100 * y);
+		FeatureStack featureStack = new FeatureStack(input);
+		featureStack.setMinimumSigma(1);
+		featureStack.setMaximumSigma(4);
+		featureStack.setEnabledFeatures(new boolean[20]);
+		featureStack.setEnabledFeature("Neighbors", true);
+		featureStack.updateFeaturesMT();
+		featureStack.setUseNeighbors(true);
+		// the neighbors are read from the original image, not from stack slices
+		assertEquals(1 + 3 * 8, featureStack.getSize());
+		long stackMemory = featureStack.getMemorySize();
+		for (int y = 0; y < processor.getHeight(); y++)
+			for (int x = 0; x < processor.getWidth(); x++) {
+				double[] values = featureStack.createInstance(x, y, 0).toDoubleArray();
+				for (int sigma = 1, n = 1; sigma <= 4; sigma *= 2)
+					for (int k = 0, i = -sigma; i <= sigma; i += sigma)
+						for (int j = -sigma; j <= sigma; j += sigma) {
+							if (i == 0 && j == 0)
+								continue;
+							assertEquals("Neighbors_" + sigma + "_" + k++, featureStack.getSliceLabel(n + 1));
+							assertEquals(featureStack.getPixelMirrorConditions(processor, x + i, y + j),
+									values[n++], 0);
+						}
+			}
+		ImageStack stack = featureStack.getStack();
+		assertEquals(1 + 3 * 8, stack.getSize());
+		assertTrue(featureStack.getMemorySize() > stackMemory);
+		for (int sigma = 1; sigma <= 4; sigma *= 2) {
+			for (int k = 0, i = -sigma; i <= sigma; i += sigma)
+				for (int j = -sigma; j <= sigma; j += sigma) {
+					if (i == 0 && j == 0)
+						continue;
+					ImageProcessor neighbor = getProcessorBySliceLabel(stack, "Neighbors_" + sigma + "_" + k++);
+					for (int y = 0; y < processor.getHeight(); y++)
+						for (int x = 0; x < processor.getWidth(); x++)
+							assertEquals(featureStack.getPixelMirrorConditions(processor, x + i, y + j),
+									neighbor.getf(x, y), 0);
+				}
+		}
+		// neighborhood of the original image appended to the instances
+		final int size = featureStack.getSize();
+		for (int y = 0; y < processor.getHeight(); y++)
+			for (int x = 0; x < processor.getWidth(); x++) {
+				double[] values = featureStack.createInstance(x, y, 0).toDoubleArray();
+				for (int n = size, i = -1; i <= 1; i++)
+					for (int j = -1; j <= 1; j++)
+						if (i != 0 || j != 0)
+							assertEquals(featureStack.getPixelMirrorConditions(processor, x + i, y + j),
+									values[n++], 0);
+			}
+	}
+
+	@Test
+	public void testPackedFeatures() {
+		FeatureStack featureStack = createUpdatedFeatureStack(createPatternImage());
+		double[][] expected = getInstances(featureStack);
+
+		long memory = featureStack.getMemorySize();
+		assertTrue(featureStack.packFeatures());
+		assertTrue(featureStack.isPacked());
+		// the packed features take as much memory as the slices at least
+		assertTrue(featureStack.getMemorySize() >= memory + 4L * featureStack.getSize() * 37 * 21);
+		assertInstances(expected, featureStack);
+
+		// the packed features are dropped when the stack changes
+		featureStack.removeFeature(featureStack.getSliceLabel(2));
+		assertFalse(featureStack.isPacked());
+	}
+
+	@Test
+	public void testSpilledFeatures() {
+		FeatureStack featureStack = createUpdatedFeatureStack(createPatternImage());
+		int size = featureStack.getSize();
+		String label = featureStack.getSliceLabel(size);
+		double[][] expected = getInstances(featureStack);
+
+		assertTrue(featureStack.spill(null));
+		assertTrue(featureStack.isSpilled());
+		// only the padded first slice the neighborhood is read from is left
+		assertEquals(4L * (37 + 2) * (21 + 2), featureStack.getMemorySize());
+		assertEquals(size, featureStack.getSize());
+		assertEquals(label, featureStack.getSliceLabel(size));
+		assertInstances(expected, featureStack);
+
+		// the stack is loaded back when it is requested
+		ImageStack stack = featureStack.getStack();
+		assertFalse(featureStack.isSpilled());
+		assertEquals(size, stack.getSize());
+		assertEquals(label, stack.getSliceLabel(size));
+		assertInstances(expected, featureStack);
+	}
+
+	@Test
+	public void testIncrementalUpdate() {
+		ImagePlus input = createPatternImage();
+		for (boolean multiThread : new boolean[] {true, false}) {
+			FeatureStack featureStack = createFeatureStack(input, 2);
+			update(featureStack, multiThread);
+			ImageStack previous = featureStack.getStack();
+
+			// only the planes of the new sigma are computed
+			featureStack.setMaximumSigma(4);
+			update(featureStack, multiThread);
+			FeatureStack expected = createFeatureStack(input, 4);
+			update(expected, multiThread);
+			assertEqualStacks(expected.getStack(), featureStack.getStack());
+			ImageProcessor blur = getProcessorBySliceLabel(featureStack.getStack(), "Gaussian_blur_2.0");
+			assertTrue(blur.getPixels() == getProcessorBySliceLabel(previous, "Gaussian_blur_2.0").getPixels());
+
+			// the planes of a disabled feature are dropped
+			featureStack.setEnabledFeature("Gaussian_blur", false);
+			update(featureStack, multiThread);
+			expected.setEnabledFeature("Gaussian_blur", false);
+			update(expected, multiThread);
+			assertEqualStacks(expected.getStack(), featureStack.getStack());
+
+			// the planes of a dropped stack are kept on disk for the next update
+			featureStack.setStack(null);
+			assertEquals(0, featureStack.getMemorySize());
+			update(featureStack, multiThread);
+			assertEqualStacks(expected.getStack(), featureStack.getStack());
+		}
+	}
+
+	@Test
+	public void testEstimateNumOfFeatures() {
+		boolean[] all = new boolean[FeatureStack.availableFeatures.length];
+		Arrays.fill(all, true);
+		for (int type : new int[] {ImagePlus.GRAY32, ImagePlus.COLOR_RGB}) {
+			ImagePlus input = IJ.createImage("input", 23, 17, 1, type == ImagePlus.GRAY32 ? 32 : 24);
+			input.getProcessor().noise(20);
+			for (boolean[] enabled : new boolean[][] {null, all}) {
+				FeatureStack featureStack = new FeatureStack(input);
+				featureStack.setMinimumSigma(1);
+				featureStack.setMaximumSigma(8);
+				if (enabled != null)
+					featureStack.setEnabledFeatures(enabled);
+				int expected = featureStack.estimateNumOfFeatures();
+				assertTrue(featureStack.updateFeaturesMT());
+				assertEquals(expected, featureStack.getSize());
+			}
+		}
+	}
+
+	/**
+	 * Returns a 37x21 image with a pattern that is not symmetric, so that
+	 * the features of each pixel differ.
+	 */
+	private static ImagePlus createPatternImage() {
+		ImagePlus input = IJ.createImage("input", 37, 21, 1, 32);
+		ImageProcessor processor = input.getProcessor();
+		for (int y = 0; y < processor.getHeight(); y++)
+			for (int x = 0; x < processor.getWidth(); x++)
+				processor.setf(x, y, (x * 7 + y * 13) % 17);
+		return input;
+	}
+
+	private static FeatureStack createFeatureStack(ImagePlus input, float maximumSigma) {
+		FeatureStack featureStack = new FeatureStack(input);
+		featureStack.setMinimumSigma(1);
+		featureStack.setMaximumSigma(maximumSigma);
+		return featureStack;
+	}
+
+	/**
+	 * Returns the default features (sigma 1 to 2) of an image, with the
+	 * neighborhood of each pixel appended to its instance.
+	 */
+	private static FeatureStack createUpdatedFeatureStack(ImagePlus input) {
+		FeatureStack featureStack = createFeatureStack(input, 2);
+		featureStack.updateFeaturesMT();
+		featureStack.setUseNeighbors(true);
+		return featureStack;
+	}
+
+	private static double[][] getInstances(FeatureStack featureStack) {
+		double[][] instances = new double[featureStack.getWidth() * featureStack.getHeight()][];
+		for (int y = 0, i = 0; y < featureStack.getHeight(); y++)
+			for (int x = 0; x < featureStack.getWidth(); x++, i++)
+				instances[i] = featureStack.createInstance(x, y, 1).toDoubleArray();
+		return instances;
+	}
+
+	private static void assertInstances(double[][] expected, FeatureStack featureStack) {
+		for (int y = 0, i = 0; y < featureStack.getHeight(); y++)
+			for (int x = 0; x < featureStack.getWidth(); x++, i++)
+				assertArrayEquals(expected[i], featureStack.createInstance(x, y, 1).toDoubleArray(), 0);
+	}
+
+	private static void update(FeatureStack featureStack, boolean multiThread) {
+		if (multiThread)
+			assertTrue(featureStack.updateFeaturesMT());
+		else
+			assertTrue(featureStack.updateFeaturesST());
+	}
+
+	private static void assertEqualStacks(ImageStack expected, ImageStack stack) {
+		assertEquals(expected.getSize(), stack.getSize());
+		for (int i = 1; i <= expected.getSize(); i++) {
+			assertEquals(expected.getSliceLabel(i), stack.getSliceLabel(i));
+			assertArrayEquals((float[]) expected.getProcessor(i).convertToFloat().getPixels(),
+					(float[]) stack.getProcessor(i).convertToFloat().getPixels(), 0);
+		}
+	}
+
 	/**
 	 * Returns an image, whose hessian matrix is equal to:
 	 * [1 2]
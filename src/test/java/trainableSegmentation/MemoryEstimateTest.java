@@ -0,0 +1,117 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package trainableSegmentation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class MemoryEstimateTest {
+
+	private static final long MB = 1 << 20;
+
+	@Test
+	public void testClassificationModes() {
+		// 1024x1024 pixels: 4MB per feature plane
+		MemoryEstimate whole = MemoryEstimate.forClassification(1024, 1024, 8, 100, 2, 4, true, 16, Long.MAX_VALUE);
+		assertEquals(MemoryEstimate.Mode.WHOLE_IMAGE, whole.getMode());
+		assertEquals(4, whole.getNumThreads());
+		assertEquals(4 * 100 * 4 * MB, whole.getFeatureBytes());
+		assertEquals(8 * 2 * 4 * MB + 4 * 2 * 4 * MB, whole.getResultBytes());
+		assertTrue(whole.fits());
+
+		// fewer slices at once when the whole stack does not fit
+		MemoryEstimate reduced = MemoryEstimate.forClassification(1024, 1024, 8, 100, 2, 4, true, 16,
+				whole.getTotal() / 2);
+		assertEquals(MemoryEstimate.Mode.REDUCED_THREADS, reduced.getMode());
+		assertTrue(reduced.getNumThreads() < 4);
+		assertTrue(reduced.fits());
+
+		// single images are tiled when a single thread does not fit
+		MemoryEstimate single = MemoryEstimate.forClassification(1024, 1024, 1, 100, 2, 1, false, 16, Long.MAX_VALUE);
+		MemoryEstimate tiled = MemoryEstimate.forClassification(1024, 1024, 1, 100, 2, 1, false, 16,
+				single.getTotal() / 3);
+		assertEquals(MemoryEstimate.Mode.TILED, tiled.getMode());
+		assertTrue(tiled.getTilesPerDim() >= 2);
+		assertTrue(tiled.fits());
+
+		// nothing fits: the mode taking less memory is chosen
+		MemoryEstimate least = MemoryEstimate.forClassification(1024, 1024, 1, 100, 2, 1, false, 16, MB);
+		assertFalse(least.fits());
+		assertEquals(MemoryEstimate.MAX_TILES_PER_DIM, least.getTilesPerDim());
+	}
+
+	@Test
+	public void testVolumeModes() {
+		int[] halo = {7, 7, 7};
+		MemoryEstimate whole = MemoryEstimate.forVolume(256, 256, 128, 20, 2, 4, true, halo, Long.MAX_VALUE);
+		assertEquals(MemoryEstimate.Mode.WHOLE_IMAGE, whole.getMode());
+		assertEquals(2 * 20 * 32 * MB, whole.getFeatureBytes());
+		assertEquals(2 * 32 * MB, whole.getResultBytes());
+
+		// the volume is classified in blocks when it does not fit
+		MemoryEstimate blocks = MemoryEstimate.forVolume(256, 256, 128, 20, 2, 4, true, halo,
+				whole.getTotal() / 4);
+		assertEquals(MemoryEstimate.Mode.BLOCKS, blocks.getMode());
+		assertTrue(blocks.getTilesPerDim() >= 2);
+		assertTrue(blocks.fits());
+		assertEquals(whole.getResultBytes(), blocks.getResultBytes());
+
+		// blocks cover the volume, the last one may be smaller
+		assertEquals(86, MemoryEstimate.getBlockSize(256, 3));
+		assertEquals(1, MemoryEstimate.getBlockSize(2, 3));
+		assertEquals(256, MemoryEstimate.paddedBlock(256, 2, 100));
+	}
+
+	@Test
+	public void testSlabs() {
+		// the whole volume in a single slab when it fits
+		MemoryEstimate single = MemoryEstimate.forSlabs(256, 256, 128, 20, 2, 4, false, 7, Long.MAX_VALUE);
+		assertEquals(MemoryEstimate.Mode.SLABS, single.getMode());
+		assertEquals(1, single.getTilesPerDim());
+		assertEquals(0, single.getResultBytes());
+
+		MemoryEstimate slabs = MemoryEstimate.forSlabs(256, 256, 128, 20, 2, 4, false, 7, single.getTotal() / 4);
+		assertTrue(slabs.getTilesPerDim() > 1);
+		assertTrue(slabs.fits());
+
+		// one slab per slice when nothing fits
+		MemoryEstimate least = MemoryEstimate.forSlabs(256, 256, 128, 20, 2, 4, false, 7, MB);
+		assertFalse(least.fits());
+		assertEquals(128, least.getTilesPerDim());
+	}
+
+	@Test
+	public void testTrainingModes() {
+		MemoryEstimate inMemory = MemoryEstimate.forTraining(512, 512, 10, 50, 4, Long.MAX_VALUE);
+		assertEquals(MemoryEstimate.Mode.WHOLE_IMAGE, inMemory.getMode());
+		assertEquals(Long.MAX_VALUE, inMemory.getMemoryBudget());
+
+		long available = 200 * MB;
+		MemoryEstimate spilled = MemoryEstimate.forTraining(512, 512, 10, 50, 4, available);
+		assertEquals(MemoryEstimate.Mode.SPILLED, spilled.getMode());
+		assertEquals(available - spilled.getWorkingBytes(), spilled.getMemoryBudget());
+		assertTrue(spilled.fits());
+	}
+}
@@ -0,0 +1,93 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package trainableSegmentation.filters;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class AnisotropicDiffusionTest {
+
+	private static final int WIDTH = 120;
+	private static final int HEIGHT = 90;
+
+	@Test
+	public void testSmoothsNoiseAndKeepsEdges() {
+		final float[] image = createStep(new Random(3));
+		final float[][][] single = AnisotropicDiffusion.filter(new float[][] {image},
+				WIDTH, HEIGHT, 20, 20, 4, 0.1f, 0.9f, 1f, 1);
+		assertEquals(1, single.length);
+		final float[] result = single[0][0];
+		assertTrue(deviation(result, 5, 50, 50) < deviation(image, 5, 50, 50) / 2);
+		assertTrue(deviation(result, 70, 115, 200) < deviation(image, 70, 115, 200) / 2);
+		// the step between both halves is kept
+		assertTrue(mean(result, 70, 115) - mean(result, 5, 50) > 100);
+
+		// the bands of rows give the same result as a single thread
+		final float[][][] multi = AnisotropicDiffusion.filter(new float[][] {image},
+				WIDTH, HEIGHT, 20, 20, 4, 0.1f, 0.9f, 1f, 4);
+		assertArrayEquals(result, multi[0][0], 0);
+	}
+
+	@Test
+	public void testSavedStepsOfFlatImage() {
+		final float[] flat = new float[WIDTH * HEIGHT];
+		Arrays.fill(flat, 7);
+		// the diffusion stops at once, but all steps are saved
+		final float[][][] steps = AnisotropicDiffusion.filter(new float[][] {flat},
+				WIDTH, HEIGHT, 20, 5, 2, 0.1f, 0.9f, 1f, 2);
+		assertEquals(4, steps.length);
+		for (float[][] step : steps)
+			assertArrayEquals(flat, step[0], 0);
+	}
+
+	/** vertical step from 50 to 200 in the middle, with Gaussian noise */
+	private static float[] createStep(Random random) {
+		final float[] image = new float[WIDTH * HEIGHT];
+		for (int y = 0; y < HEIGHT; y++)
+			for (int x = 0; x < WIDTH; x++)
+				image[y * WIDTH + x] = (x >= WIDTH / 2 ? 200 : 50) + (float) random.nextGaussian() * 20;
+		return image;
+	}
+
+	private static double mean(float[] image, int x0, int x1) {
+		double sum = 0;
+		for (int y = 0; y < HEIGHT; y++)
+			for (int x = x0; x < x1; x++)
+				sum += image[y * WIDTH + x];
+		return sum / (HEIGHT * (x1 - x0));
+	}
+
+	/** root mean square difference to a value in a range of columns */
+	private static double deviation(float[] image, int x0, int x1, double value) {
+		double sum = 0;
+		for (int y = 0; y < HEIGHT; y++)
+			for (int x = x0; x < x1; x++)
+				sum += (image[y * WIDTH + x] - value) * (image[y * WIDTH + x] - value);
+		return Math.sqrt(sum / (HEIGHT * (x1 - x0)));
+	}
+}
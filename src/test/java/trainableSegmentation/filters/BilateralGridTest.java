@@ -0,0 +1,103 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package trainableSegmentation.filters;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class BilateralGridTest {
+
+	@Test
+	public void testConstantImage() {
+		final float[] pixels = new float[64 * 48];
+		Arrays.fill(pixels, 42);
+		final float[][] result = BilateralGrid.filter(pixels, 64, 48, 5, new double[] {50, 100});
+		for (float[] r : result)
+			for (float v : r)
+				assertEquals(42, v, 1e-3);
+	}
+
+	@Test
+	public void testApproximatesBruteForce() {
+		final int width = 120, height = 90;
+		final float[] pixels = createTestImage(width, height);
+		final double[] rangeRadii = {50, 100};
+		for (double spatialRadius : new double[] {5, 10}) {
+			final float[][] result = BilateralGrid.filter(pixels, width, height, spatialRadius, rangeRadii);
+			for (int r = 0; r < rangeRadii.length; r++) {
+				final float[] expected = bruteForce(pixels, width, height, spatialRadius, rangeRadii[r]);
+				double error = 0;
+				for (int i = 0; i < pixels.length; i++)
+					error += Math.abs(expected[i] - result[r][i]);
+				error /= pixels.length;
+				// the noise has a standard deviation of 10 intensity levels
+				assertTrue("spatial radius = " + spatialRadius + ", range radius = " + rangeRadii[r]
+						+ ": mean error " + error, error < 1);
+			}
+		}
+	}
+
+	/**
+	 * Noisy pieces of constant intensity, 100 intensity levels apart.
+	 */
+	private static float[] createTestImage(int width, int height) {
+		final Random random = new Random(1);
+		final float[] pixels = new float[width * height];
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++)
+				pixels[x + y * width] = (float) (((x / 40 + y / 30) % 3) * 100 + random.nextGaussian() * 10);
+		return pixels;
+	}
+
+	/**
+	 * Bilateral filter with the same Gaussian kernels, summed over all the
+	 * pixels within three standard deviations.
+	 */
+	private static float[] bruteForce(float[] pixels, int width, int height,
+			double spatialRadius, double rangeRadius) {
+		final double ss = BilateralGrid.sigma(spatialRadius);
+		final double sr = BilateralGrid.sigma(rangeRadius);
+		final int radius = (int) Math.ceil(3 * ss);
+		final float[] result = new float[pixels.length];
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++) {
+				final float v0 = pixels[x + y * width];
+				double sum = 0, sumOfWeights = 0;
+				for (int yy = Math.max(0, y - radius); yy <= Math.min(height - 1, y + radius); yy++)
+					for (int xx = Math.max(0, x - radius); xx <= Math.min(width - 1, x + radius); xx++) {
+						final float v = pixels[xx + yy * width];
+						final double dx = xx - x, dy = yy - y, dv = v - v0;
+						final double w = Math.exp(-0.5 * (dx * dx + dy * dy) / (ss * ss)
+								- 0.5 * dv * dv / (sr * sr));
+						sum += w * v;
+						sumOfWeights += w;
+					}
+				result[x + y * width] = (float) (sum / sumOfWeights);
+			}
+		return result;
+	}
+}
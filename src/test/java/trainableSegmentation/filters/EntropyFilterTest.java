@@ -0,0 +1,154 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package trainableSegmentation.filters;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.ImageStack;
+import ij.gui.OvalRoi;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+
+/**
+ * Compares the sliding-histogram entropy filter with the histograms of
+ * oval ROIs it replaces.
+ */
+public class EntropyFilterTest {
+
+	@Test
+	public void testMatchesOvalRoiHistograms() {
+		final ByteProcessor image = createTestImage(53, 41, 1);
+		for (int radius : new int[] {1, 2, 4, 8}) {
+			for (int numBins : new int[] {256, 64}) {
+				final FloatProcessor expected = reference(image, radius, numBins);
+				for (int numThreads : new int[] {1, 3}) {
+					final FloatProcessor result = new Entropy_Filter().getEntropy(
+							image.duplicate(), radius, numBins, numThreads);
+					assertEqualPixels("radius = " + radius + ", bins = " + numBins
+							+ ", threads = " + numThreads, expected, result);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testEllipsoidHistograms3D() {
+		final ImageStack stack = new ImageStack(30, 24);
+		for (int z = 0; z < 7; z++)
+			stack.addSlice("", createTestImage(30, 24, z));
+		final double[] radius = {2.5, 2, 1.2};
+		for (int numThreads : new int[] {1, 4}) {
+			final ImageStack result = Entropy_Filter.getEntropy3D(stack,
+					radius[0], radius[1], radius[2], 256, numThreads);
+			for (int z = 0; z < stack.getSize(); z++)
+				assertEqualPixels("slice " + z + ", threads = " + numThreads,
+						reference3D(stack, radius, z), (FloatProcessor) result.getProcessor(z + 1));
+		}
+	}
+
+	private static void assertEqualPixels(String message, FloatProcessor expected,
+			FloatProcessor result) {
+		final float[] e = (float[]) expected.getPixels();
+		final float[] r = (float[]) result.getPixels();
+		assertEquals(message, e.length, r.length);
+		for (int i = 0; i < e.length; i++)
+			assertEquals(message + ", pixel " + i, e[i], r[i], 1e-5);
+	}
+
+	/**
+	 * Image with some blobs of random intensities (including 0 and 255, so
+	 * its range is not changed by the conversion to 8-bit).
+	 */
+	private static ByteProcessor createTestImage(int width, int height, long seed) {
+		final Random random = new Random(seed);
+		final ByteProcessor image = new ByteProcessor(width, height);
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++)
+				image.set(x, y, ((x / 5 + y / 7) % 4) * 60 + random.nextInt(8));
+		image.set(0, 0, 0);
+		image.set(width - 1, height - 1, 255);
+		return image;
+	}
+
+	/**
+	 * Entropy filter of a slice computed from the histogram of the pixels
+	 * inside an ellipsoid centered at every pixel.
+	 */
+	private static FloatProcessor reference3D(ImageStack stack, double[] radius, int z) {
+		final int width = stack.getWidth(), height = stack.getHeight();
+		final FloatProcessor fp = new FloatProcessor(width, height);
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++) {
+				final int[] histogram = new int[256];
+				int total = 0;
+				for (int zz = 0; zz < stack.getSize(); zz++)
+					for (int yy = 0; yy < height; yy++)
+						for (int xx = 0; xx < width; xx++) {
+							final double dx = (xx - x) / radius[0];
+							final double dy = (yy - y) / radius[1];
+							final double dz = (zz - z) / radius[2];
+							if (dx * dx + dy * dy + dz * dz <= 1) {
+								histogram[stack.getProcessor(zz + 1).get(xx, yy)]++;
+								total++;
+							}
+						}
+				double entropy = 0;
+				for (int k = 0; k < 256; k++)
+					if (histogram[k] > 0) {
+						final double p = histogram[k] / (double) total;
+						entropy += -p * Math.log(p) / Math.log(2.0);
+					}
+				fp.setf(x, y, (float) entropy);
+			}
+		return fp;
+	}
+
+	/**
+	 * Entropy filter computed from the histogram of an oval ROI centered at
+	 * every pixel (the original implementation).
+	 */
+	private static FloatProcessor reference(ByteProcessor bp, int radius, int numBins) {
+		final ByteProcessor image = (ByteProcessor) bp.duplicate();
+		final FloatProcessor fp = new FloatProcessor(image.getWidth(), image.getHeight());
+		final int size = 2 * radius + 1;
+		for (int i = 0; i < image.getWidth(); i++)
+			for (int j = 0; j < image.getHeight(); j++) {
+				image.setRoi(new OvalRoi(i - radius, j - radius, size, size));
+				final int[] histogram = image.getHistogram();
+				double total = 0;
+				for (int k = 0; k < numBins; k++)
+					total += histogram[k];
+				double entropy = 0;
+				for (int k = 0; k < numBins; k++)
+					if (histogram[k] > 0) {
+						final double p = histogram[k] / total;
+						entropy += -p * Math.log(p) / Math.log(2.0);
+					}
+				fp.putPixelValue(i, j, entropy);
+			}
+		return fp;
+	}
+}
@@ -0,0 +1,162 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package trainableSegmentation.filters;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import ij.plugin.filter.Convolver;
+import ij.process.FloatProcessor;
+
+/**
+ * Checks that both paths of the FFT convolver match a plain convolution
+ * (or correlation) with the corresponding border handling.
+ */
+public class FFTConvolverTest {
+
+	private static final int WIDTH = 45;
+	private static final int HEIGHT = 31;
+
+	@Test
+	public void testCorrelation() {
+		checkBothPaths(true, 7, 5, 3);
+	}
+
+	@Test
+	public void testConvolution() {
+		checkBothPaths(false, 9, 9, 4);
+	}
+
+	@Test
+	public void testAutomaticChoice() {
+		final float[][] small = createKernels(1, 3, 3, new Random(1));
+		final float[][] large = createKernels(1, 41, 41, new Random(1));
+		assertTrue(!new FFTConvolver(512, 512, small, 3, 3, false).isFFT());
+		assertTrue(new FFTConvolver(512, 512, large, 41, 41, false).isFFT());
+		// correlations are filtered directly unless requested otherwise
+		assertTrue(!new FFTConvolver(512, 512, large, 41, 41, true).isFFT());
+	}
+
+	@Test
+	public void testMemoryLimit() {
+		// the spectra of a huge image do not fit in the heap
+		final float[][] large = createKernels(6, 41, 41, new Random(1));
+		final long size = FFTConvolver.getFFTMemorySize(40000, 40000, 6);
+		assertTrue(size > Runtime.getRuntime().maxMemory());
+		assertEquals(16L * 40000 * 40000 * 7, size);
+		assertTrue(!new FFTConvolver(40000, 40000, large, 41, 41, false).isFFT());
+	}
+
+	/**
+	 * The direct correlation must give exactly the same result as ImageJ's
+	 * Convolver, which computed the membrane features before.
+	 */
+	@Test
+	public void testSameAsConvolver() {
+		final Random random = new Random(3);
+		final float[] image = new float[WIDTH * HEIGHT];
+		for (int i = 0; i < image.length; i++)
+			image[i] = 255 * random.nextFloat();
+		final float[][] kernels = createKernels(4, 19, 19, random);
+		final float[][] filtered = new FFTConvolver(WIDTH, HEIGHT, kernels, 19, 19, true)
+				.filter(image, null);
+		for (int k = 0; k < kernels.length; k++) {
+			final FloatProcessor ip = new FloatProcessor(WIDTH, HEIGHT, image.clone());
+			new Convolver().convolveFloat(ip, kernels[k], 19, 19);
+			assertArrayEquals("kernel " + k, (float[]) ip.getPixels(), filtered[k], 0f);
+		}
+	}
+
+	private static void checkBothPaths(boolean correlate, int kw, int kh, int numKernels) {
+		final Random random = new Random(7);
+		final float[] image = new float[WIDTH * HEIGHT];
+		for (int i = 0; i < image.length; i++)
+			image[i] = 100 * random.nextFloat();
+		final float[][] kernels = createKernels(numKernels, kw, kh, random);
+
+		final ExecutorService exe = Executors.newFixedThreadPool(2);
+		try {
+			final float[][] fft = new FFTConvolver(WIDTH, HEIGHT, kernels, kw, kh, correlate, true)
+					.filter(image, exe);
+			final float[][] direct = new FFTConvolver(WIDTH, HEIGHT, kernels, kw, kh, correlate, false)
+					.filter(image, null);
+			for (int k = 0; k < numKernels; k++) {
+				final float[] expected = reference(image, kernels[k], kw, kh, correlate);
+				for (int i = 0; i < expected.length; i++) {
+					assertEquals("direct, kernel " + k + ", pixel " + i, expected[i], direct[k][i], 1e-3);
+					assertEquals("FFT, kernel " + k + ", pixel " + i, expected[i], fft[k][i], 1e-3);
+				}
+			}
+		} finally {
+			exe.shutdown();
+		}
+	}
+
+	private static float[][] createKernels(int numKernels, int kw, int kh, Random random) {
+		final float[][] kernels = new float[numKernels][kw * kh];
+		for (int k = 0; k < numKernels; k++)
+			for (int i = 0; i < kw * kh; i++)
+				kernels[k][i] = random.nextFloat() - 0.3f;
+		return kernels;
+	}
+
+	/**
+	 * Correlation with a normalized kernel and replicated borders (ImageJ's
+	 * Convolver) or convolution with mirrored borders (imglib2's
+	 * FFTConvolution).
+	 */
+	private static float[] reference(float[] image, float[] kernel, int kw, int kh, boolean correlate) {
+		final float[] result = new float[image.length];
+		final int cx = kw / 2, cy = kh / 2;
+		double kernelSum = 0;
+		for (float k : kernel)
+			kernelSum += k;
+		final double scale = correlate ? 1 / kernelSum : 1;
+		for (int y = 0; y < HEIGHT; y++)
+			for (int x = 0; x < WIDTH; x++) {
+				double sum = 0;
+				for (int v = 0; v < kh; v++)
+					for (int u = 0; u < kw; u++) {
+						final int xx = correlate ? x + u - cx : x - (u - cx);
+						final int yy = correlate ? y + v - cy : y - (v - cy);
+						sum += kernel[u + v * kw] * image[border(xx, WIDTH, correlate) + border(yy, HEIGHT, correlate) * WIDTH];
+					}
+				result[x + y * WIDTH] = (float) (sum * scale);
+			}
+		return result;
+	}
+
+	private static int border(int x, int size, boolean replicate) {
+		if (replicate)
+			return Math.min(Math.max(x, 0), size - 1);
+		if (x < 0)
+			return -x;
+		return x >= size ? 2 * size - 2 - x : x;
+	}
+}
@@ -0,0 +1,93 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package trainableSegmentation.filters;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.plugin.filter.Convolver;
+import ij.process.FloatProcessor;
+
+/**
+ * Compares the fused Hessian features with the features computed from four
+ * separate Sobel convolutions by ImageJ's Convolver.
+ */
+public class HessianFeaturesTest {
+
+	private static final float[] SOBEL_X = {1f, 2f, 1f, 0f, 0f, 0f, -1f, -2f, -1f};
+	private static final float[] SOBEL_Y = {1f, 0f, -1f, 2f, 0f, -2f, 1f, 0f, -1f};
+
+	@Test
+	public void testMatchesConvolver() {
+		final Random random = new Random(3);
+		final FloatProcessor image = new FloatProcessor(37, 29);
+		for (int i = 0; i < 37 * 29; i++)
+			image.setf(i, (float) (random.nextGaussian() * 100));
+
+		final FloatProcessor dx = convolve(image, SOBEL_X);
+		final FloatProcessor dy = convolve(image, SOBEL_Y);
+		final float[] xx = (float[]) convolve(dx, SOBEL_X).getPixels();
+		final float[] xy = (float[]) convolve(dx, SOBEL_Y).getPixels();
+		final float[] yy = (float[]) convolve(dy, SOBEL_Y).getPixels();
+
+		for (boolean oldFormat : new boolean[] {false, true}) {
+			for (int numThreads : new int[] {1, 4}) {
+				final float[][] features = HessianFeatures.compute((float[]) image.getPixels(),
+						image.getWidth(), image.getHeight(), oldFormat, numThreads);
+				for (int i = 0; i < xx.length; i++) {
+					final float a = xx[i], b = xy[i], d = yy[i];
+					final float trace = a + d;
+					final double root = Math.sqrt(4 * b * b + (a - d) * (a - d));
+					final String message = "old format = " + oldFormat + ", pixel " + i;
+					assertEquals(message, (float) Math.sqrt(a * a + b * b + d * d), features[0][i], 0);
+					assertEquals(message, trace, features[1][i], 0);
+					assertEquals(message, a * d - b * b, features[2][i], 0);
+					if (oldFormat) {
+						final double oldRoot = Math.sqrt((4 * b * b + (a - d) * (a - d)) / 2.0);
+						assertEquals(message, (float) (trace / 2.0 + oldRoot), features[3][i], 0);
+						assertEquals(message, (float) (trace / 2.0 - oldRoot), features[4][i], 0);
+					} else {
+						assertEquals(message, (float) (trace + root) / 2, features[3][i], 0);
+						assertEquals(message, (float) (trace - root) / 2, features[4][i], 0);
+					}
+					float orientation = (float) ((b < 0 ? -0.5 : 0.5) * Math.acos((a - d)
+							/ Math.sqrt(4.0 * b * b + (a - d) * (a - d))));
+					if (Float.isNaN(orientation))
+						orientation = 0;
+					assertEquals(message, orientation, features[5][i], 0);
+					assertEquals(message, (float) (1.0 * trace * trace * ((a - d) * (a - d) + 4 * b * b)),
+							features[6][i], 0);
+					assertEquals(message, (float) (1.0 * ((a - d) * (a - d) + 4 * b * b)), features[7][i], 0);
+				}
+			}
+		}
+	}
+
+	private static FloatProcessor convolve(FloatProcessor ip, float[] kernel) {
+		final FloatProcessor result = (FloatProcessor) ip.duplicate();
+		new Convolver().convolveFloat(result, kernel, 3, 3);
+		return result;
+	}
+}
@@ -0,0 +1,101 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package trainableSegmentation.filters;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class IntegralImageTest {
+
+	private static final int WIDTH = 23;
+	private static final int HEIGHT = 17;
+
+	@Test
+	public void testRectangleSumsWithReplicatedBorders() {
+		final float[] pixels = createTestImage();
+		final IntegralImage integral = new IntegralImage(pixels, WIDTH, HEIGHT, 4);
+		final Random random = new Random(7);
+		for (int t = 0; t < 200; t++) {
+			final int x0 = random.nextInt(WIDTH + 8) - 4;
+			final int y0 = random.nextInt(HEIGHT + 8) - 4;
+			final int x1 = x0 + random.nextInt(WIDTH + 4 - x0);
+			final int y1 = y0 + random.nextInt(HEIGHT + 4 - y0);
+			double sum = 0, sumOfSquares = 0;
+			for (int y = y0; y <= y1; y++)
+				for (int x = x0; x <= x1; x++) {
+					final double v = pixel(pixels, x, y);
+					sum += v;
+					sumOfSquares += v * v;
+				}
+			assertEquals(sum, integral.sum(x0, y0, x1, y1), 1e-6);
+			assertEquals(sumOfSquares, integral.sumOfSquares(x0, y0, x1, y1), 1e-6);
+		}
+	}
+
+	@Test
+	public void testWindowSumsMatchDirectConvolution() {
+		final float[] pixels = createTestImage();
+		final int size = 7;
+		final float[] kernel = new float[size * size];
+		// a diagonal line, a horizontal run of a different weight and a hole
+		for (int i = 0; i < size; i++)
+			kernel[i + i * size] = 1;
+		for (int i = 1; i < size - 1; i++)
+			kernel[i + 5 * size] = 2;
+		kernel[3 + 5 * size] = 0;
+
+		final IntegralImage integral = new IntegralImage(pixels, WIDTH, HEIGHT, size / 2);
+		final float[] sums = new float[WIDTH * HEIGHT];
+		final float[] sumsOfSquares = new float[WIDTH * HEIGHT];
+		integral.windowSums(IntegralImage.createRuns(kernel, size, size), sums, sumsOfSquares);
+
+		for (int y = 0; y < HEIGHT; y++)
+			for (int x = 0; x < WIDTH; x++) {
+				double sum = 0, sumOfSquares = 0;
+				for (int v = 0; v < size; v++)
+					for (int u = 0; u < size; u++) {
+						final double p = pixel(pixels, x + u - size / 2, y + v - size / 2);
+						sum += kernel[u + v * size] * p;
+						sumOfSquares += kernel[u + v * size] * p * p;
+					}
+				assertEquals(sum, sums[x + y * WIDTH], 1e-3);
+				assertEquals(sumOfSquares, sumsOfSquares[x + y * WIDTH], 1e-1);
+			}
+	}
+
+	private static float[] createTestImage() {
+		final Random random = new Random(42);
+		final float[] pixels = new float[WIDTH * HEIGHT];
+		for (int i = 0; i < pixels.length; i++)
+			pixels[i] = random.nextInt(256);
+		return pixels;
+	}
+
+	private static float pixel(float[] pixels, int x, int y) {
+		x = Math.min(Math.max(x, 0), WIDTH - 1);
+		y = Math.min(Math.max(y, 0), HEIGHT - 1);
+		return pixels[x + y * WIDTH];
+	}
+}
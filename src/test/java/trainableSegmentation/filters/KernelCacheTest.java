@@ -0,0 +1,142 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package trainableSegmentation.filters;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class KernelCacheTest {
+
+	@Test
+	public void testConcurrentRequestsComputeOnce() throws Exception {
+		final KernelCache cache = new KernelCache(1 << 20);
+		final AtomicInteger computations = new AtomicInteger();
+		final ExecutorService exe = Executors.newFixedThreadPool(8);
+		try {
+			final ArrayList<Future<float[]>> futures = new ArrayList<Future<float[]>>();
+			for (int i = 0; i < 32; i++)
+				futures.add(exe.submit(new Callable<float[]>() {
+					public float[] call() {
+						return cache.get(KernelCache.key("test", 3, 0.5), new Callable<float[]>() {
+							public float[] call() throws Exception {
+								computations.incrementAndGet();
+								Thread.sleep(20);
+								return new float[9];
+							}
+						});
+					}
+				}));
+			final float[] first = futures.get(0).get();
+			for (Future<float[]> f : futures)
+				assertSame(first, f.get());
+		} finally {
+			exe.shutdown();
+		}
+		assertEquals(1, computations.get());
+		assertEquals(36, cache.getSize());
+	}
+
+	@Test
+	public void testLeastRecentlyUsedEviction() {
+		// room for two kernels of 100 floats
+		final KernelCache cache = new KernelCache(800);
+		final float[] a = get(cache, "a");
+		get(cache, "b");
+		// use "a" so "b" is the least recently used one
+		assertSame(a, get(cache, "a"));
+		get(cache, "c");
+		assertEquals(2, cache.getNumEntries());
+		assertEquals(800, cache.getSize());
+		assertSame(a, get(cache, "a"));
+
+		cache.setCapacity(400);
+		assertEquals(1, cache.getNumEntries());
+		cache.clear();
+		assertEquals(0, cache.getNumEntries());
+		assertEquals(0, cache.getSize());
+	}
+
+	/**
+	 * The spectra of the filter of a large slice take more than the default
+	 * capacity, but they must still be reused for the next slice.
+	 */
+	@Test
+	public void testSpectraReusedAcrossSlices() {
+		final KernelCache cache = new KernelCache(0);
+		assertTrue(cache.getCapacity() >= KernelCache.DEFAULT_CAPACITY);
+		final AtomicInteger computations = new AtomicInteger();
+		final float[][] kernels = new float[4][25 * 25];
+		for (float[] kernel : kernels)
+			kernel[12 * 25 + 12] = 1;
+
+		FFTConvolver first = null;
+		for (int slice = 0; slice < 2; slice++) {
+			final FFTConvolver convolver = cache.get(KernelCache.key("filter", 2048, 2048),
+					new Callable<FFTConvolver>() {
+						public FFTConvolver call() {
+							computations.incrementAndGet();
+							return new FFTConvolver(2048, 2048, kernels, 25, 25, false, true);
+						}
+					});
+			assertTrue(convolver.isFFT());
+			assertTrue(convolver.getMemorySize() > KernelCache.DEFAULT_CAPACITY);
+			if (null == first)
+				first = convolver;
+			assertSame(first, convolver);
+			assertEquals(1, cache.getNumEntries());
+		}
+		assertEquals(1, computations.get());
+	}
+
+	@Test
+	public void testLargeValueKeptOnInsertion() {
+		final KernelCache cache = new KernelCache(800);
+		get(cache, "a");
+		// a value larger than the capacity evicts the others, not itself
+		final float[] large = cache.get(KernelCache.key("large"), new Callable<float[]>() {
+			public float[] call() {
+				return new float[1000];
+			}
+		});
+		assertEquals(1, cache.getNumEntries());
+		assertEquals(4000, cache.getSize());
+		assertSame(large, cache.get(KernelCache.key("large"), null));
+	}
+
+	private static float[] get(KernelCache cache, String name) {
+		return cache.get(KernelCache.key(name), new Callable<float[]>() {
+			public float[] call() {
+				return new float[100];
+			}
+		});
+	}
+}
@@ -0,0 +1,74 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package trainableSegmentation.filters;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.process.ByteProcessor;
+
+/**
+ * Compares the wavefront Lipschitz covers with the sequential sweeps of
+ * the Lipschitz plugin they replace.
+ */
+public class LipschitzEnvelopeTest {
+
+	@Test
+	public void testMatchesLipschitzPlugin() {
+		final double[] slopes = {5, 10, 15, 20, 25};
+		for (int[] size : new int[][] {{200, 57}, {130, 1}, {1, 9}}) {
+			final ByteProcessor image = createTestImage(size[0], size[1]);
+			for (boolean downHat : new boolean[] {true, false})
+				for (boolean topHat : new boolean[] {true, false})
+					for (int numThreads : new int[] {1, 3}) {
+						final float[][] result = LipschitzEnvelope.filter((byte[]) image.getPixels(),
+								image.getWidth(), image.getHeight(), slopes, downHat, topHat, numThreads);
+						for (int k = 0; k < slopes.length; k++) {
+							final Lipschitz_ filter = new Lipschitz_();
+							filter.setDownHat(downHat);
+							filter.setTopHat(topHat);
+							filter.m_Slope = slopes[k];
+							final ByteProcessor expected = (ByteProcessor) image.duplicate();
+							filter.Lipschitz2D(expected);
+							final byte[] e = (byte[]) expected.getPixels();
+							for (int i = 0; i < e.length; i++)
+								assertEquals("size = " + size[0] + "x" + size[1] + ", slope = " + slopes[k]
+										+ ", down = " + downHat + ", top hat = " + topHat
+										+ ", threads = " + numThreads + ", pixel " + i,
+										e[i] & 0xff, result[k][i], 0);
+						}
+					}
+		}
+	}
+
+	private static ByteProcessor createTestImage(int width, int height) {
+		final Random random = new Random(width * 31 + height);
+		final ByteProcessor image = new ByteProcessor(width, height);
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++)
+				image.set(x, y, ((x / 7) * 40 + (y / 5) * 30 + random.nextInt(60)) % 256);
+		return image;
+	}
+}
@@ -0,0 +1,118 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package trainableSegmentation.filters;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.ImageStack;
+import ij.plugin.Filters3D;
+import ij.plugin.filter.RankFilters;
+import ij.process.FloatProcessor;
+
+/**
+ * Compares the van Herk-Gil-Werman minimum and maximum filters with the
+ * ImageJ filters they replace.
+ */
+public class MinMaxFilterTest {
+
+	@Test
+	public void testMatchesRankFilters() {
+		final FloatProcessor image = createTestImage(57, 43, 1);
+		for (float radius : new float[] {0, 1, 1.5f, 2, 2.5f, 4, 8, 16}) {
+			for (boolean maximum : new boolean[] {false, true}) {
+				final FloatProcessor expected = (FloatProcessor) image.duplicate();
+				new RankFilters().rank(expected, radius, maximum ? RankFilters.MAX : RankFilters.MIN);
+				for (int numThreads : new int[] {1, 3}) {
+					final float[] result = MinMaxFilter.filter2D((float[]) image.getPixels(),
+							image.getWidth(), image.getHeight(), radius, maximum, numThreads);
+					assertEqualPixels("radius = " + radius + ", maximum = " + maximum
+							+ ", threads = " + numThreads, (float[]) expected.getPixels(), result);
+				}
+			}
+		}
+	}
+
+	/** NaN pixels are ignored, as in RankFilters, even if the kernel only has NaN pixels */
+	@Test
+	public void testNaNAsRankFilters() {
+		final FloatProcessor image = createTestImage(40, 30, 2);
+		final Random random = new Random(5);
+		for (int i = 0; i < 120; i++)
+			image.setf(random.nextInt(40 * 30), Float.NaN);
+		for (int y = 10; y < 16; y++)
+			for (int x = 20; x < 26; x++)
+				image.setf(x, y, Float.NaN);
+		for (float radius : new float[] {1, 3}) {
+			for (boolean maximum : new boolean[] {false, true}) {
+				final FloatProcessor expected = (FloatProcessor) image.duplicate();
+				new RankFilters().rank(expected, radius, maximum ? RankFilters.MAX : RankFilters.MIN);
+				final float[] result = MinMaxFilter.filter2D((float[]) image.getPixels(),
+						image.getWidth(), image.getHeight(), radius, maximum, 1);
+				assertEqualPixels("radius = " + radius + ", maximum = " + maximum,
+						(float[]) expected.getPixels(), result);
+			}
+		}
+	}
+
+	@Test
+	public void testMatchesFilters3D() {
+		final ImageStack stack = new ImageStack(31, 26);
+		for (int z = 0; z < 9; z++)
+			stack.addSlice("", createTestImage(31, 26, z));
+		final float[][] slices = new float[stack.getSize()][];
+		for (int z = 0; z < slices.length; z++)
+			slices[z] = (float[]) stack.getPixels(z + 1);
+		final float[][] radii = {{1, 1, 1}, {2.5f, 2, 1.2f}, {4, 4, 0}, {3, 5, 6}};
+		for (float[] r : radii) {
+			for (boolean maximum : new boolean[] {false, true}) {
+				final ImageStack expected = Filters3D.filter(stack,
+						maximum ? Filters3D.MAX : Filters3D.MIN, r[0], r[1], r[2]);
+				for (int numThreads : new int[] {1, 4}) {
+					final float[][] result = MinMaxFilter.filter3D(slices, stack.getWidth(),
+							stack.getHeight(), r[0], r[1], r[2], maximum, numThreads);
+					for (int z = 0; z < slices.length; z++)
+						assertEqualPixels("radii = " + r[0] + ", " + r[1] + ", " + r[2]
+								+ ", maximum = " + maximum + ", threads = " + numThreads
+								+ ", slice " + z, (float[]) expected.getPixels(z + 1), result[z]);
+				}
+			}
+		}
+	}
+
+	private static void assertEqualPixels(String message, float[] expected, float[] result) {
+		assertEquals(message, expected.length, result.length);
+		for (int i = 0; i < expected.length; i++)
+			assertEquals(message + ", pixel " + i, expected[i], result[i], 0);
+	}
+
+	private static FloatProcessor createTestImage(int width, int height, long seed) {
+		final Random random = new Random(seed);
+		final FloatProcessor image = new FloatProcessor(width, height);
+		for (int i = 0; i < width * height; i++)
+			image.setf(i, (float) random.nextGaussian());
+		return image;
+	}
+}
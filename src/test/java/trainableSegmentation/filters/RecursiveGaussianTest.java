@@ -0,0 +1,244 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package trainableSegmentation.filters;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.ImagePlus;
+import ij.plugin.filter.GaussianBlur;
+import ij.process.FloatProcessor;
+import trainableSegmentation.ImageScience;
+
+/**
+ * Bounds the deviation of the recursive Gaussian filters from convolutions
+ * with sampled Gaussian (derivative) kernels, and from ImageJ's GaussianBlur
+ * and ImageScience, which compute the features otherwise.
+ */
+public class RecursiveGaussianTest {
+
+	private static final int WIDTH = 64;
+	private static final int HEIGHT = 48;
+	private static final int DEPTH = 12;
+
+	@Test
+	public void testSmoothing2D() {
+		final float[][] image = createTestImage(1);
+		for (double sigma : new double[] {0.4, 0.8, 1.6, 3.2, 6.4}) {
+			final double[] sigmas = {sigma, sigma};
+			final float[][] expected = reference(image, sigmas, new int[2]);
+			final float[][] result = RecursiveGaussian.smooth(image, WIDTH, HEIGHT, sigmas, 1);
+			assertDeviation("smoothing, sigma = " + sigma, expected, result, 0.001);
+		}
+	}
+
+	@Test
+	public void testDerivatives2D() {
+		final float[][] image = createTestImage(1);
+		final int[][] orders = {{1, 0}, {0, 1}, {1, 1}, {2, 0}, {0, 2}, {2, 2}};
+		for (double sigma : new double[] {2, 4, 8, 16}) {
+			final double[] sigmas = {sigma, sigma};
+			for (int[] order : orders) {
+				final float[][] expected = reference(image, sigmas, order);
+				final float[][] result = RecursiveGaussian.derivative(image, WIDTH, HEIGHT, sigmas, order, 1);
+				assertDeviation("derivative " + order[0] + "," + order[1] + ", sigma = " + sigma,
+						expected, result, 0.02);
+			}
+		}
+	}
+
+	@Test
+	public void testDerivatives3D() {
+		final float[][] image = createTestImage(DEPTH);
+		final int[][] orders = {{0, 0, 0}, {0, 0, 1}, {1, 0, 1}, {0, 0, 2}};
+		final double[] sigmas = {2, 2, 1.5};
+		for (int[] order : orders) {
+			final float[][] expected = reference(image, sigmas, order);
+			final float[][] result = RecursiveGaussian.derivative(image, WIDTH, HEIGHT, sigmas, order, 3);
+			assertDeviation("3D derivative " + order[0] + "," + order[1] + "," + order[2],
+					expected, result, 0.01);
+		}
+	}
+
+	/**
+	 * Compare with the filters of the features when the recursive Gaussian
+	 * filter is disabled: GaussianBlur for the smoothing and ImageScience
+	 * for the derivatives. The image is flat near its borders, so the
+	 * border handling of each filter does not matter.
+	 */
+	@Test
+	public void testAgainstFeatureFilters() {
+		final int width = 224, height = 192;
+		final FloatProcessor ip = createCenteredImage(width, height);
+		final ImagePlus image = new ImagePlus("", ip);
+		final float[][] pixels = {(float[]) ip.getPixels()};
+		final int[][] orders = {{1, 0}, {0, 1}, {1, 1}, {2, 0}, {0, 2}, {2, 2}};
+		final double[] tolerances = {0, 0.01, 0.02, 0.03, 0.03};
+		for (double sigma : new double[] {1, 2, 4, 8, 16}) {
+			final double[] sigmas = {sigma, sigma};
+			final FloatProcessor blurred = (FloatProcessor) ip.duplicate();
+			new GaussianBlur().blurGaussian(blurred, sigma, sigma, 0.0002);
+			assertDeviation("smoothing, sigma = " + sigma, new float[][] {(float[]) blurred.getPixels()},
+					RecursiveGaussian.smooth(pixels, width, height, sigmas, 1), 0.002);
+			for (int[] order : orders) {
+				final ImagePlus expected = ImageScience.computeDerivativeImage(sigma, order[0], order[1], image);
+				final float[][] result = RecursiveGaussian.derivative(pixels, width, height, sigmas, order, 1);
+				assertDeviation("derivative " + order[0] + "," + order[1] + ", sigma = " + sigma,
+						new float[][] {(float[]) expected.getProcessor().getPixels()}, result,
+						tolerances[order[0] + order[1]]);
+			}
+		}
+	}
+
+	@Test
+	public void testMultiThreadMatchesSingleThread() {
+		final float[][] image = createTestImage(DEPTH);
+		final double[] sigmas = {3, 3, 2};
+		final int[] order = {1, 0, 1};
+		final float[][] single = RecursiveGaussian.derivative(image, WIDTH, HEIGHT, sigmas, order, 1);
+		final float[][] multi = RecursiveGaussian.derivative(image, WIDTH, HEIGHT, sigmas, order, 4);
+		assertDeviation("multi-thread", single, multi, 0);
+	}
+
+	/**
+	 * Assert that the maximum difference between two images, relative to
+	 * the range of the expected image, does not exceed a tolerance.
+	 */
+	private static void assertDeviation(String message, float[][] expected, float[][] result,
+			double tolerance) {
+		double maxAbs = 0, maxDiff = 0;
+		for (int z = 0; z < expected.length; z++)
+			for (int i = 0; i < expected[z].length; i++) {
+				maxAbs = Math.max(maxAbs, Math.abs(expected[z][i]));
+				maxDiff = Math.max(maxDiff, Math.abs(expected[z][i] - result[z][i]));
+			}
+		final double deviation = maxAbs == 0 ? maxDiff : maxDiff / maxAbs;
+		assertTrue(message + ": relative deviation " + deviation, deviation <= tolerance);
+	}
+
+	/**
+	 * Image with a step edge, a bright disk and some noise.
+	 */
+	private static float[][] createTestImage(int depth) {
+		final Random random = new Random(42);
+		final float[][] image = new float[depth][WIDTH * HEIGHT];
+		for (int z = 0; z < depth; z++)
+			for (int y = 0; y < HEIGHT; y++)
+				for (int x = 0; x < WIDTH; x++) {
+					final double dx = x - 40, dy = y - 20, dz = z - depth / 2;
+					float v = x < 20 ? 50 : 100;
+					if (dx * dx + dy * dy + dz * dz < 100)
+						v += 80;
+					image[z][x + y * WIDTH] = v + 10 * (float) random.nextGaussian();
+				}
+		return image;
+	}
+
+	/**
+	 * Image with a step edge, a bright disk and some noise in its center,
+	 * and flat over 5 sigmas (of the largest tested sigma) from its borders.
+	 */
+	private static FloatProcessor createCenteredImage(int width, int height) {
+		final Random random = new Random(42);
+		final float[] pixels = new float[width * height];
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++) {
+				float v = 50;
+				if (x >= 80 && x < width - 80 && y >= 80 && y < height - 80) {
+					final double dx = x - width / 2 - 8, dy = y - height / 2;
+					v = x < width / 2 - 12 ? 50 : 100;
+					if (dx * dx + dy * dy < 100)
+						v += 80;
+					v += 10 * (float) random.nextGaussian();
+				}
+				pixels[x + y * width] = v;
+			}
+		return new FloatProcessor(width, height, pixels);
+	}
+
+	/**
+	 * Separable convolution with sampled and normalized Gaussian derivative
+	 * kernels, with replicated borders.
+	 */
+	private static float[][] reference(float[][] image, double[] sigma, int[] order) {
+		final int depth = image.length;
+		final int[] size = {WIDTH, HEIGHT, depth};
+		final int[] stride = {1, WIDTH, 0};
+		double[][] data = new double[depth][];
+		for (int z = 0; z < depth; z++) {
+			data[z] = new double[WIDTH * HEIGHT];
+			for (int i = 0; i < data[z].length; i++)
+				data[z][i] = image[z][i];
+		}
+		final int dims = depth > 1 ? 3 : 2;
+		for (int d = 0; d < dims; d++) {
+			final double[] kernel = kernel(sigma[d], order[d]);
+			final int radius = kernel.length / 2;
+			final double[][] out = new double[depth][WIDTH * HEIGHT];
+			for (int z = 0; z < depth; z++)
+				for (int y = 0; y < HEIGHT; y++)
+					for (int x = 0; x < WIDTH; x++) {
+						final int[] pos = {x, y, z};
+						double v = 0;
+						for (int k = -radius; k <= radius; k++) {
+							final int p = Math.min(Math.max(pos[d] - k, 0), size[d] - 1);
+							final int zz = d == 2 ? p : z;
+							final int index = x + y * WIDTH + (d == 2 ? 0 : (p - pos[d]) * stride[d]);
+							v += kernel[k + radius] * data[zz][index];
+						}
+						out[z][x + y * WIDTH] = v;
+					}
+			data = out;
+		}
+		final float[][] result = new float[depth][WIDTH * HEIGHT];
+		for (int z = 0; z < depth; z++)
+			for (int i = 0; i < result[z].length; i++)
+				result[z][i] = (float) data[z][i];
+		return result;
+	}
+
+	private static double[] kernel(double sigma, int order) {
+		final int radius = Math.max(1, (int) Math.ceil(5 * sigma));
+		final double[] kernel = new double[2 * radius + 1];
+		if (sigma == 0) {
+			kernel[radius] = 1;
+			return kernel;
+		}
+		double sum = 0;
+		for (int k = -radius; k <= radius; k++)
+			sum += Math.exp(-0.5 * k * k / (sigma * sigma));
+		final double s2 = sigma * sigma;
+		for (int k = -radius; k <= radius; k++) {
+			final double g = Math.exp(-0.5 * k * k / s2) / sum;
+			if (order == 0)
+				kernel[k + radius] = g;
+			else if (order == 1)
+				kernel[k + radius] = -k / s2 * g;
+			else
+				kernel[k + radius] = (k * k / (s2 * s2) - 1 / s2) * g;
+		}
+		return kernel;
+	}
+}
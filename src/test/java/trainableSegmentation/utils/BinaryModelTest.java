@@ -0,0 +1,104 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package trainableSegmentation.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import hr.irb.fastRandomForest.FastRandomForest;
+import hr.irb.fastRandomForest.PackedForest;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+
+public class BinaryModelTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		final Instances data = createTestData(200);
+		final FastRandomForest forest = new FastRandomForest();
+		forest.setNumTrees(20);
+		forest.buildClassifier(data);
+
+		final String binary = new File(folder.getRoot(), "classifier" + BinaryModel.EXTENSION).getPath();
+		final String model = new File(folder.getRoot(), "classifier.model").getPath();
+		final String binary2 = new File(folder.getRoot(), "classifier2" + BinaryModel.EXTENSION).getPath();
+
+		BinaryModel.write(forest, data, binary);
+		final PackedForest packed = BinaryModel.read(binary);
+		assertEquals(null, packed.getHeader().equalHeadersMsg(data));
+
+		// binary -> .model -> binary
+		BinaryModel.convertToModel(binary, model);
+		BinaryModel.convertFromModel(model, binary2);
+		final PackedForest packed2 = BinaryModel.read(binary2);
+		final FastRandomForest unpacked = packed2.unpack();
+
+		for (int i = 0; i < data.numInstances(); i++) {
+			final double[] expected = forest.distributionForInstance(data.instance(i));
+			assertArrayEquals(expected, packed.distributionForInstance(data.instance(i)), 1e-12);
+			assertArrayEquals(expected, packed2.distributionForInstance(data.instance(i)), 1e-12);
+			assertArrayEquals(expected, unpacked.distributionForInstance(data.instance(i)), 1e-12);
+		}
+	}
+
+	private static Instances createTestData(int numInstances) {
+		final ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+		attributes.add(new Attribute("feature 1"));
+		attributes.add(new Attribute("feature 2"));
+		final ArrayList<String> categories = new ArrayList<String>();
+		categories.add("a");
+		categories.add("b");
+		categories.add("c");
+		attributes.add(new Attribute("nominal", categories));
+		final ArrayList<String> classes = new ArrayList<String>();
+		classes.add("class 1");
+		classes.add("class 2");
+		attributes.add(new Attribute("class", classes));
+
+		final Instances data = new Instances("test", attributes, numInstances);
+		data.setClassIndex(data.numAttributes() - 1);
+		final Random random = new Random(42);
+		for (int i = 0; i < numInstances; i++) {
+			final double x = random.nextGaussian();
+			final double y = random.nextGaussian();
+			final DenseInstance instance = new DenseInstance(1.0,
+					new double[] {x, y, random.nextInt(3), x + 0.3 * y > 0 ? 0 : 1});
+			// some missing values to exercise the weighted branches
+			if (i % 17 == 0)
+				instance.setMissing(0);
+			data.add(instance);
+		}
+		return data;
+	}
+}
@@ -0,0 +1,98 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package trainableSegmentation.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+
+public class BinaryTrainingDataTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testWriteAppendRead() throws IOException {
+		final String filename = new File(folder.getRoot(), "data" + BinaryTrainingData.EXTENSION).getPath();
+		final Instances data = createTestData(10);
+
+		BinaryTrainingData.write(data, filename);
+		BinaryTrainingData.append(data, filename);
+
+		final Instances read = BinaryTrainingData.read(filename);
+		assertEquals(null, read.equalHeadersMsg(data));
+		assertEquals(2 * data.numInstances(), read.numInstances());
+		for (int i = 0; i < read.numInstances(); i++)
+			assertInstanceEquals(data, i % data.numInstances(), read, i);
+	}
+
+	@Test
+	public void testARFFConversion() throws IOException {
+		final String arff = new File(folder.getRoot(), "data.arff").getPath();
+		final String binary = new File(folder.getRoot(), "data" + BinaryTrainingData.EXTENSION).getPath();
+		final String arff2 = new File(folder.getRoot(), "data2.arff").getPath();
+		final Instances data = createTestData(100);
+
+		BinaryTrainingData.write(data, binary);
+		BinaryTrainingData.convertToARFF(binary, arff);
+		BinaryTrainingData.convertFromARFF(arff, binary);
+		BinaryTrainingData.convertToARFF(binary, arff2);
+
+		final Instances read = BinaryTrainingData.read(binary);
+		assertEquals(data.numInstances(), read.numInstances());
+		for (int i = 0; i < read.numInstances(); i++)
+			assertInstanceEquals(data, i, read, i);
+		assertTrue(Arrays.equals(java.nio.file.Files.readAllBytes(new File(arff).toPath()),
+				java.nio.file.Files.readAllBytes(new File(arff2).toPath())));
+	}
+
+	private static void assertInstanceEquals(Instances expected, int i, Instances actual, int j) {
+		for (int a = 0; a < expected.numAttributes(); a++)
+			assertEquals((float) expected.get(i).value(a), actual.get(j).value(a), 0);
+		assertEquals(expected.get(i).weight(), actual.get(j).weight(), 0);
+	}
+
+	private static Instances createTestData(int numInstances) {
+		final ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+		attributes.add(new Attribute("Gaussian_blur_1.0"));
+		attributes.add(new Attribute("Sobel_filter_1.0"));
+		attributes.add(new Attribute("class", new ArrayList<String>(Arrays.asList("class 1", "class 2"))));
+		final Instances data = new Instances("TWS-2D-test-grayscale", attributes, numInstances);
+		data.setClassIndex(2);
+		for (int i = 0; i < numInstances; i++)
+			data.add(new DenseInstance(1 + i % 3, new double[]{i * 0.5, -i, i % 2}));
+		return data;
+	}
+
+}
@@ -0,0 +1,126 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package trainableSegmentation.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.plugin.ZProjector;
+
+public class OrientationProjectionTest {
+
+	@Test
+	public void testAllMethods() {
+		for (int n : new int[] {1, 2, 7, 10, 32}) {
+			final Random random = new Random(n);
+			final float[][] responses = new float[n][50];
+			for (int k = 0; k < n; k++)
+				for (int i = 0; i < 50; i++)
+					// few distinct values, so there are ties
+					responses[k][i] = random.nextInt(6) - 2.5f * random.nextInt(2);
+
+			final float[][] projections = OrientationProjection.project(responses,
+					OrientationProjection.AVERAGE, OrientationProjection.MAX,
+					OrientationProjection.MIN, OrientationProjection.SUM,
+					OrientationProjection.STANDARD_DEVIATION, OrientationProjection.MEDIAN);
+
+			for (int i = 0; i < 50; i++) {
+				final float[] values = new float[n];
+				double sum = 0;
+				for (int k = 0; k < n; k++) {
+					values[k] = responses[k][i];
+					sum += values[k];
+				}
+				Arrays.sort(values);
+				final double mean = sum / n;
+				double squares = 0;
+				for (float v : values)
+					squares += (v - mean) * (v - mean);
+				final double sd = n > 1 ? Math.sqrt(squares / (n - 1)) : 0;
+				final float median = n % 2 == 1 ? values[n / 2] : (values[n / 2 - 1] + values[n / 2]) / 2f;
+
+				assertEquals(mean, projections[0][i], 1e-5);
+				assertEquals(values[n - 1], projections[1][i], 0);
+				assertEquals(values[0], projections[2][i], 0);
+				assertEquals(sum, projections[3][i], 1e-4);
+				assertEquals(sd, projections[4][i], 1e-4);
+				assertEquals("median of " + n + " values", median, projections[5][i], 0);
+			}
+		}
+	}
+
+	/**
+	 * All projections must be exactly the ones of ZProjector, which
+	 * computed the membrane features before.
+	 */
+	@Test
+	public void testSameAsZProjector() {
+		final int width = 23, height = 17;
+		for (int n : new int[] {1, 6, 30}) {
+			final Random random = new Random(n);
+			final float[][] responses = new float[n][width * height];
+			final ImageStack stack = new ImageStack(width, height);
+			for (int k = 0; k < n; k++) {
+				for (int i = 0; i < width * height; i++)
+					responses[k][i] = (float) (1000 * random.nextGaussian() / 3.0);
+				stack.addSlice("" + k, responses[k].clone());
+			}
+
+			final int[] methods = {OrientationProjection.AVERAGE, OrientationProjection.MAX,
+					OrientationProjection.MIN, OrientationProjection.SUM,
+					OrientationProjection.STANDARD_DEVIATION, OrientationProjection.MEDIAN};
+			final float[][] projections = OrientationProjection.project(responses, methods);
+
+			final ZProjector zp = new ZProjector(new ImagePlus("responses", stack));
+			zp.setStopSlice(stack.getSize());
+			for (int m = 0; m < methods.length; m++) {
+				zp.setMethod(methods[m]);
+				zp.doProjection();
+				assertArrayEquals("method " + methods[m] + " of " + n + " slices",
+						(float[]) zp.getProjection().getProcessor().getPixels(),
+						projections[m], 0f);
+			}
+		}
+	}
+
+	@Test
+	public void testStandardize() {
+		final float[][] responses = {{1, 2, 3, 4, 5}, {10, 10, 10, 20, 50}};
+		OrientationProjection.standardize(responses);
+		for (float[] response : responses) {
+			double sum = 0, squares = 0;
+			for (float v : response)
+				sum += v;
+			for (float v : response)
+				squares += (v - sum / 5) * (v - sum / 5);
+			assertEquals(0, sum / 5, 1e-6);
+			assertEquals(1, Math.sqrt(squares / 4), 1e-6);
+		}
+	}
+}
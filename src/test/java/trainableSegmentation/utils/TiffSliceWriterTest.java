@@ -0,0 +1,110 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package trainableSegmentation.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+public class TiffSliceWriterTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testProbabilityMaps() throws IOException {
+		// 3 slices of 2 channels, with an odd number of pixels
+		assertSameImage(write(3, 2, true));
+	}
+
+	@Test
+	public void testLabels() throws IOException {
+		assertSameImage(write(4, 1, false));
+	}
+
+	@Test(expected = IOException.class)
+	public void testMixedBitDepths() throws IOException {
+		final String filename = new File(folder.getRoot(), "mixed.tif").getPath();
+		try (TiffSliceWriter tiffSink = new TiffSliceWriter(filename, 13, 7)) {
+			final ImageStack labels = new ImageStack(13, 7);
+			labels.addSlice("labels", new ByteProcessor(13, 7));
+			tiffSink.write(labels);
+			// a float slice after an 8-bit one is not converted to 8-bit
+			final ImageStack probabilities = new ImageStack(13, 7);
+			probabilities.addSlice("class 0", new FloatProcessor(13, 7));
+			tiffSink.write(probabilities);
+		}
+	}
+
+	/**
+	 * Write the same slices to a TIFF file and to an in-memory stack, and
+	 * return both images.
+	 */
+	private ImagePlus[] write(int numSlices, int numChannels, boolean probabilityMaps) throws IOException {
+		final int width = 13;
+		final int height = 7;
+		final String filename = new File(folder.getRoot(), "result.tif").getPath();
+		final StackSliceSink stackSink = new StackSliceSink(width, height);
+		try (TiffSliceWriter tiffSink = new TiffSliceWriter(filename, width, height)) {
+			for (int z = 0; z < numSlices; z++) {
+				final ImageStack slice = new ImageStack(width, height);
+				for (int c = 0; c < numChannels; c++) {
+					final ImageProcessor ip = probabilityMaps ?
+							new FloatProcessor(width, height) : new ByteProcessor(width, height);
+					for (int i = 0; i < width * height; i++)
+						ip.setf(i, probabilityMaps ? (z * 31 + c * 7 + i) / 100f : (z + i) % 3);
+					slice.addSlice("class " + c, ip);
+				}
+				tiffSink.write(slice);
+				stackSink.write(slice);
+			}
+		}
+		return new ImagePlus[] {stackSink.getImage("expected"), IJ.openImage(filename)};
+	}
+
+	private static void assertSameImage(ImagePlus[] images) {
+		final ImagePlus expected = images[0];
+		final ImagePlus image = images[1];
+		assertNotNull(image);
+		assertEquals(expected.getBitDepth(), image.getBitDepth());
+		assertEquals(expected.getNChannels(), image.getNChannels());
+		assertEquals(expected.getNSlices(), image.getNSlices());
+		assertEquals(expected.getStackSize(), image.getStackSize());
+		for (int i = 1; i <= expected.getStackSize(); i++)
+			assertArrayEquals((float[]) expected.getStack().getProcessor(i).convertToFloat().getPixels(),
+					(float[]) image.getStack().getProcessor(i).convertToFloat().getPixels(), 0);
+	}
+}